@@ -19,43 +19,137 @@
 
 package com.boozallen.cognition.ingest.accumulo.storm;
 
+import backtype.storm.Config;
+import backtype.storm.Constants;
+import backtype.storm.metric.api.MultiCountMetric;
+import backtype.storm.task.OutputCollector;
 import backtype.storm.task.TopologyContext;
+import backtype.storm.topology.FailedException;
+import backtype.storm.topology.OutputFieldsDeclarer;
+import backtype.storm.topology.base.BaseRichBolt;
+import backtype.storm.tuple.Fields;
+import backtype.storm.tuple.Tuple;
+import backtype.storm.tuple.Values;
 import com.boozallen.cognition.ingest.accumulo.utils.AccumuloConnectionConfig;
 import com.boozallen.cognition.ingest.accumulo.utils.AccumuloConnectionUtils;
+import com.boozallen.cognition.ingest.accumulo.utils.SharedBatchWriters;
+import com.boozallen.cognition.ingest.accumulo.utils.WriteFailure;
+import com.boozallen.cognition.ingest.storm.Configurable;
 import com.boozallen.cognition.ingest.storm.PrepareFailedException;
-import com.boozallen.cognition.ingest.storm.bolt.AbstractProcessingBolt;
+import com.boozallen.cognition.ingest.storm.vo.LogRecord;
 import org.apache.accumulo.core.client.*;
 import org.apache.accumulo.core.client.security.tokens.PasswordToken;
 import org.apache.commons.configuration.Configuration;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
+import static com.boozallen.cognition.ingest.storm.bolt.AbstractLogRecordBolt.RECORD;
+
 /**
  * Base bolt for writing to accumulo. Manages accumulo configuration and connection.
+ * <p>
+ * By default tuples are acked as soon as {@link #process(LogRecord)} returns, while their mutations may still be
+ * buffered in the batch writer. With <code>ackAfterFlush</code> enabled, tuples are held until {@link #flush()} has
+ * written their mutations, and acked or failed together according to its outcome. Pending tuples are flushed once
+ * <code>flushTuples</code> are held or the oldest has waited <code>flushLatencyMs</code> (checked on every tuple and on
+ * tick tuples), which allows large write buffers with at-least-once delivery. <code>flushTuples</code> should stay
+ * small enough that their mutations fit in <code>maxMem</code>, or the writer flushes on its own in between.
+ * <p>
+ * With <code>sharedWriter</code> enabled, all Accumulo bolts of the worker using the same instance and credentials
+ * write through one {@link SharedBatchWriters shared MultiTableBatchWriter}, sized by <code>sharedMaxMem</code> and
+ * <code>sharedMaxWriteThreads</code>, instead of a writer per executor.
+ * <p>
+ * A rejected write is classified by {@link WriteFailure} and counted in the <code>accumulo-write-failures</code>
+ * metric, per class. The writer is replaced, as it is unusable after a rejection, and the mutations it held are added
+ * again from the records of the affected tuples. Server failures are retried up to <code>maxWriteRetries</code> times,
+ * backing off exponentially from <code>retryBackoffMs</code> up to <code>maxRetryBackoffMs</code>. Constraint and
+ * authorization failures are not retried; with <code>ackAfterFlush</code> the batch is split in halves and written
+ * again until the offending tuples are isolated, so only those are failed. Without <code>ackAfterFlush</code>, tuples
+ * are acked before their mutations are sent, so only the tuple being added is retried or failed.
+ * <pre>
+ * {@code
+ *
+ * <conf>
+ *   <sharedWriter>true</sharedWriter>
+ *   <sharedMaxMem>64000000</sharedMaxMem>
+ *   <sharedMaxWriteThreads>8</sharedMaxWriteThreads>
+ *   <ackAfterFlush>true</ackAfterFlush>
+ *   <flushTuples>1000</flushTuples>
+ *   <flushLatencyMs>1000</flushLatencyMs>
+ *   <maxWriteRetries>3</maxWriteRetries>
+ *   <retryBackoffMs>100</retryBackoffMs>
+ *   <maxRetryBackoffMs>5000</maxRetryBackoffMs>
+ * </conf>
+ * } </pre>
  */
-public abstract class AccumuloBaseBolt extends AbstractProcessingBolt {
+public abstract class AccumuloBaseBolt extends BaseRichBolt implements Configurable {
   private final Logger logger = LoggerFactory.getLogger(this.getClass());
 
+  public static final String ACK_AFTER_FLUSH = "ackAfterFlush";
+  public static final String FLUSH_TUPLES = "flushTuples";
+  public static final int FLUSH_TUPLES_DEFAULT = 1000;
+  public static final String FLUSH_LATENCY_MS = "flushLatencyMs";
+  public static final String MAX_WRITE_RETRIES = "maxWriteRetries";
+  public static final int MAX_WRITE_RETRIES_DEFAULT = 3;
+  public static final String RETRY_BACKOFF_MS = "retryBackoffMs";
+  public static final long RETRY_BACKOFF_MS_DEFAULT = 100;
+  public static final String MAX_RETRY_BACKOFF_MS = "maxRetryBackoffMs";
+  public static final long MAX_RETRY_BACKOFF_MS_DEFAULT = 5000;
+  static final int METRICS_BUCKET_SECS = 60;
+
   protected AccumuloConnectionConfig accumuloConnConfig;
   protected BatchWriterConfig config;
   protected Connector conn;
+  protected SharedBatchWriters.Lease writerLease;
+
+  boolean ackAfterFlush;
+  int flushTuples;
+  long flushLatencyMs;
+  int maxWriteRetries;
+  long retryBackoffMs;
+  long maxRetryBackoffMs;
+
+  OutputCollector collector;
+  List<Tuple> pending = new ArrayList<>();
+  long oldestPendingMillis;
+  boolean resendPending;
+  transient MultiCountMetric writeFailures = new MultiCountMetric();
 
   @Override
   public final void configure(Configuration conf) {
     accumuloConnConfig = AccumuloConnectionUtils.extractConnectionConfiguration(conf);
+    ackAfterFlush = conf.getBoolean(ACK_AFTER_FLUSH, false);
+    flushTuples = conf.getInt(FLUSH_TUPLES, FLUSH_TUPLES_DEFAULT);
+    flushLatencyMs = conf.getLong(FLUSH_LATENCY_MS, accumuloConnConfig.getMaxLatency());
+    maxWriteRetries = conf.getInt(MAX_WRITE_RETRIES, MAX_WRITE_RETRIES_DEFAULT);
+    retryBackoffMs = conf.getLong(RETRY_BACKOFF_MS, RETRY_BACKOFF_MS_DEFAULT);
+    maxRetryBackoffMs = conf.getLong(MAX_RETRY_BACKOFF_MS, MAX_RETRY_BACKOFF_MS_DEFAULT);
     configureAccumuloBolt(conf);
   }
 
   abstract void configureAccumuloBolt(Configuration conf);
 
   @Override
-  public final void prepare(Map stormConf, TopologyContext context) {
-    Instance inst = new ZooKeeperInstance(accumuloConnConfig.getInstance(), accumuloConnConfig.getZooServers());
+  public final void prepare(Map stormConf, TopologyContext context, OutputCollector collector) {
+    this.collector = collector;
+    writeFailures = new MultiCountMetric();
+    context.registerMetric("accumulo-write-failures", writeFailures, METRICS_BUCKET_SECS);
     try {
-      conn = inst.getConnector(accumuloConnConfig.getUser(), new PasswordToken(accumuloConnConfig.getKey()));
+      if (accumuloConnConfig.isSharedWriter()) {
+        writerLease = SharedBatchWriters.acquire(accumuloConnConfig);
+        conn = writerLease.getConnector();
+      } else {
+        Instance inst = new ZooKeeperInstance(accumuloConnConfig.getInstance(), accumuloConnConfig.getZooServers());
+        conn = inst.getConnector(accumuloConnConfig.getUser(), new PasswordToken(accumuloConnConfig.getKey()));
+      }
       config = new BatchWriterConfig();
       config.setMaxMemory(accumuloConnConfig.getMaxMem());
       config.setMaxLatency(accumuloConnConfig.getMaxLatency(), TimeUnit.MILLISECONDS);
@@ -71,4 +165,218 @@ public abstract class AccumuloBaseBolt extends AbstractProcessingBolt {
   }
 
   abstract void prepareAccumuloBolt(Map stormConf, TopologyContext context);
+
+  @Override
+  public final void execute(Tuple input) {
+    if (isTickTuple(input)) {
+      if (ackAfterFlush && isFlushDue()) {
+        flushPending();
+      }
+      collector.ack(input);
+      return;
+    }
+
+    LogRecord record = (LogRecord) input.getValueByField(RECORD);
+    try {
+      processWithRetries(record);
+    } catch (FailedException e) {
+      collector.fail(input);
+      return;
+    }
+    collector.emit(input, new Values(record));
+
+    if (!ackAfterFlush) {
+      collector.ack(input);
+      return;
+    }
+    if (pending.isEmpty()) {
+      oldestPendingMillis = System.currentTimeMillis();
+    }
+    pending.add(input);
+    if (pending.size() >= flushTuples || isBufferFull() || isFlushDue()) {
+      flushPending();
+    }
+  }
+
+  /**
+   * Adds mutations for the record to the writer. Adding the same record again must produce the same mutations, as
+   * records are processed again when their mutations were lost with a replaced writer.
+   *
+   * @param record
+   * @throws FailedException if the mutations could not be added, after replacing the writer; the cause is the
+   *                         rejection, if any
+   */
+  protected abstract void process(LogRecord record);
+
+  /**
+   * Processes the record, retrying with backoff if the writer fails. A rejection reported while adding is about
+   * mutations added earlier, so the record is retried whatever the failure class. The mutations of pending tuples
+   * were dropped with the writer and are sent again on the next flush.
+   *
+   * @throws FailedException if the last attempt failed
+   */
+  void processWithRetries(LogRecord record) {
+    for (int attempt = 0; ; attempt++) {
+      try {
+        process(record);
+        return;
+      } catch (FailedException e) {
+        countFailures(e.getCause());
+        resendPending |= !pending.isEmpty();
+        if (attempt >= maxWriteRetries || !backoff(attempt)) {
+          throw e;
+        }
+        logger.warn("Retrying record after failed write, attempt {} of {}", attempt + 1, maxWriteRetries);
+      }
+    }
+  }
+
+  /**
+   * Writes all mutations added so far. Only called with <code>ackAfterFlush</code> enabled.
+   *
+   * @throws MutationsRejectedException if any mutation could not be written
+   */
+  void flush() throws MutationsRejectedException {
+  }
+
+  /**
+   * Called after {@link #flush()} failed, e.g. to replace the writer.
+   */
+  void onFlushFailure() {
+  }
+
+  /**
+   * Releases the shared writer, if used.
+   */
+  void releaseWriterLease() {
+    if (writerLease != null) {
+      writerLease.close();
+      writerLease = null;
+    }
+  }
+
+  /**
+   * @return true if the bolt buffers mutations itself and the buffer should be flushed regardless of
+   * <code>flushTuples</code>
+   */
+  boolean isBufferFull() {
+    return false;
+  }
+
+  boolean isFlushDue() {
+    return !pending.isEmpty() && System.currentTimeMillis() - oldestPendingMillis >= flushLatencyMs;
+  }
+
+  void flushPending() {
+    if (pending.isEmpty()) {
+      return;
+    }
+    Set<Tuple> failed = Collections.newSetFromMap(new IdentityHashMap<>());
+    writePending(pending, resendPending, failed);
+    resendPending = false;
+    for (Tuple tuple : pending) {
+      if (failed.contains(tuple)) {
+        collector.fail(tuple);
+      } else {
+        collector.ack(tuple);
+      }
+    }
+    pending.clear();
+  }
+
+  /**
+   * Flushes the mutations of the tuples, first adding them again if <code>resend</code>. Server failures are retried
+   * with backoff; on constraint or authorization failures the tuples are split in halves, each written on its own, so
+   * only the tuples whose mutations are rejected end up in <code>failed</code>.
+   *
+   * @param tuples pending tuples
+   * @param resend true if their mutations are not in the writer anymore
+   * @param failed collects the tuples that could not be written
+   */
+  void writePending(List<Tuple> tuples, boolean resend, Set<Tuple> failed) {
+    for (int attempt = 0; ; attempt++) {
+      Throwable error;
+      try {
+        if (resend) {
+          for (Tuple tuple : tuples) {
+            process((LogRecord) tuple.getValueByField(RECORD));
+          }
+        }
+        flush();
+        return;
+      } catch (FailedException e) {
+        error = e.getCause(); // the writer is already replaced
+      } catch (MutationsRejectedException | RuntimeException e) {
+        error = e;
+        onFlushFailure();
+      }
+      resend = true;
+      Set<WriteFailure> failures = countFailures(error);
+      logger.error("Failed to write " + tuples.size() + " tuples: " + failures, error);
+
+      if (!WriteFailure.isRetryable(failures)) {
+        if (tuples.size() > 1) {
+          int half = tuples.size() / 2;
+          writePending(tuples.subList(0, half), true, failed);
+          writePending(tuples.subList(half, tuples.size()), true, failed);
+        } else {
+          failed.addAll(tuples);
+        }
+        return;
+      }
+      if (attempt >= maxWriteRetries || !backoff(attempt)) {
+        failed.addAll(tuples);
+        return;
+      }
+    }
+  }
+
+  Set<WriteFailure> countFailures(Throwable error) {
+    Set<WriteFailure> failures = WriteFailure.classify(error);
+    for (WriteFailure failure : failures) {
+      writeFailures.scope(failure.getMetricName()).incr();
+    }
+    return failures;
+  }
+
+  /**
+   * Waits before retry <code>attempt + 1</code>, doubling the wait from <code>retryBackoffMs</code> up to
+   * <code>maxRetryBackoffMs</code>.
+   *
+   * @return false if interrupted, so retrying should stop
+   */
+  boolean backoff(int attempt) {
+    long delay = Math.min(maxRetryBackoffMs, retryBackoffMs << Math.min(attempt, 30));
+    try {
+      sleep(delay);
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  void sleep(long millis) throws InterruptedException {
+    Thread.sleep(millis);
+  }
+
+  static boolean isTickTuple(Tuple tuple) {
+    return Constants.SYSTEM_COMPONENT_ID.equals(tuple.getSourceComponent())
+        && Constants.SYSTEM_TICK_STREAM_ID.equals(tuple.getSourceStreamId());
+  }
+
+  @Override
+  public Map<String, Object> getComponentConfiguration() {
+    if (!ackAfterFlush) {
+      return null;
+    }
+    Config conf = new Config();
+    conf.put(Config.TOPOLOGY_TICK_TUPLE_FREQ_SECS, Math.max(1, (int) TimeUnit.MILLISECONDS.toSeconds(flushLatencyMs)));
+    return conf;
+  }
+
+  @Override
+  public final void declareOutputFields(OutputFieldsDeclarer declarer) {
+    declarer.declare(new Fields(RECORD));
+  }
 }
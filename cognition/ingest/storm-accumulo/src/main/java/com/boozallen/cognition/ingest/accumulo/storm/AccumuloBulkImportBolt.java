@@ -0,0 +1,291 @@
+/*
+ * Licensed to Booz Allen Hamilton under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Booz Allen Hamilton licenses this file to you
+ * under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.boozallen.cognition.ingest.accumulo.storm;
+
+import backtype.storm.task.TopologyContext;
+import com.boozallen.cognition.ingest.storm.PrepareFailedException;
+import com.boozallen.cognition.ingest.storm.vo.LogRecord;
+import org.apache.accumulo.core.client.AccumuloException;
+import org.apache.accumulo.core.client.AccumuloSecurityException;
+import org.apache.accumulo.core.client.TableNotFoundException;
+import org.apache.accumulo.core.conf.AccumuloConfiguration;
+import org.apache.accumulo.core.data.ColumnUpdate;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.file.FileOperations;
+import org.apache.accumulo.core.file.FileSKVWriter;
+import org.apache.commons.configuration.Configuration;
+import org.apache.commons.lang3.Validate;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static org.apache.commons.lang3.StringUtils.isBlank;
+
+/**
+ * Bulk-loading variant of {@link AccumuloEventStorageBolt} for backfills: the same event and index entries are written
+ * as RFiles and imported, bypassing the tablet server memory and write-ahead logs used by live ingest. Use it in place
+ * of AccumuloEventStorageBolt in backfill topologies; all of its options apply.
+ * <p>
+ * Each task buffers the sorted key/values of its records per table and, once <code>flushTuples</code> are held,
+ * <code>bulkMaxBytes</code> are buffered or the oldest tuple has waited <code>flushLatencyMs</code>, writes them to
+ * a new directory under <code>bulkWorkDir</code>, one RFile per tablet of the table's current splits, and calls
+ * importDirectory. Tuples are always acked after their import (<code>ackAfterFlush</code> is implied), and failed
+ * imports are retried as configured for {@link AccumuloBaseBolt}. Cells written without a timestamp get the time they
+ * were buffered.
+ * <p>
+ * The HDFS client is configured with either <code>hadoopConfDirectory</code> (holding core-site.xml and hdfs-site.xml)
+ * or <code>hadoopConfig</code> properties. The tablet servers must be able to read <code>bulkWorkDir</code>.
+ * <pre>
+ * {@code
+ *
+ * <conf>
+ *   <eventTable>events</eventTable>
+ *   <uuidPrefix>TWITTER_</uuidPrefix>
+ *   <bulkWorkDir>/cognition/bulk</bulkWorkDir>
+ *   <bulkMaxBytes>134217728</bulkMaxBytes>
+ *   <flushTuples>200000</flushTuples>
+ *   <flushLatencyMs>60000</flushLatencyMs>
+ *   <hadoopConfig>
+ *     <fs.defaultFS>hdfs://namenode:8020</fs.defaultFS>
+ *   </hadoopConfig>
+ * </conf>
+ * } </pre>
+ */
+public class AccumuloBulkImportBolt extends AccumuloEventStorageBolt {
+  private final Logger logger = LoggerFactory.getLogger(this.getClass());
+
+  public static final String BULK_WORK_DIR = "bulkWorkDir";
+  public static final String BULK_MAX_BYTES = "bulkMaxBytes";
+  public static final long BULK_MAX_BYTES_DEFAULT = 64 * 1024 * 1024;
+  public static final String HADOOP_CONF_DIRECTORY = "hadoopConfDirectory";
+  public static final String HADOOP_CONFIG = "hadoopConfig";
+  static final String FILES_DIR = "files";
+  static final String FAILURES_DIR = "failures";
+
+  String bulkWorkDir;
+  long bulkMaxBytes;
+  Map<String, String> hadoopConfig = new HashMap<>();
+  String hadoopConfDirectory;
+
+  FileSystem fileSystem;
+  int taskId;
+  int batch;
+  Map<String, SortedMap<Key, Value>> buffers = new LinkedHashMap<>();
+  long bufferedBytes;
+
+  @Override
+  void configureAccumuloBolt(Configuration conf) {
+    super.configureAccumuloBolt(conf);
+    ackAfterFlush = true;
+    bulkWorkDir = conf.getString(BULK_WORK_DIR);
+    bulkMaxBytes = conf.getLong(BULK_MAX_BYTES, BULK_MAX_BYTES_DEFAULT);
+    hadoopConfDirectory = conf.getString(HADOOP_CONF_DIRECTORY);
+    Configuration hadoopConfigSubset = conf.subset(HADOOP_CONFIG);
+    for (Iterator itr = hadoopConfigSubset.getKeys(); itr.hasNext(); ) {
+      String key = (String) itr.next();
+      hadoopConfig.put(key, hadoopConfigSubset.getString(key));
+    }
+
+    Validate.isTrue(!isBlank(bulkWorkDir), BULK_WORK_DIR + " required");
+    Validate.isTrue(bulkMaxBytes > 0, BULK_MAX_BYTES + " must be positive");
+    Validate.isTrue(!isBlank(hadoopConfDirectory) || !hadoopConfig.isEmpty(),
+        "Missing Hadoop configuration. Configure with either %s or %s.", HADOOP_CONFIG, HADOOP_CONF_DIRECTORY);
+  }
+
+  @Override
+  void prepareAccumuloBolt(Map stormConf, TopologyContext context) {
+    super.prepareAccumuloBolt(stormConf, context);
+    taskId = context.getThisTaskId();
+    try {
+      fileSystem = FileSystem.get(getHadoopConfiguration());
+    } catch (IOException e) {
+      logger.error("Failed to get file system", e);
+      throw new PrepareFailedException("Failed to get file system", e);
+    }
+  }
+
+  org.apache.hadoop.conf.Configuration getHadoopConfiguration() {
+    org.apache.hadoop.conf.Configuration conf = new org.apache.hadoop.conf.Configuration();
+    if (hadoopConfig.isEmpty()) {
+      conf.addResource(new Path(hadoopConfDirectory + File.separator + "core-site.xml"));
+      conf.addResource(new Path(hadoopConfDirectory + File.separator + "hdfs-site.xml"));
+    } else {
+      for (Map.Entry<String, String> entry : hadoopConfig.entrySet()) {
+        conf.set(entry.getKey(), entry.getValue());
+      }
+    }
+    return conf;
+  }
+
+  /**
+   * Records are buffered instead of written, so no batch writer is created.
+   */
+  @Override
+  void resetEventWriter() {
+  }
+
+  @Override
+  protected void process(LogRecord record) {
+    Mutation event = getEventMutation(record);
+    long now = System.currentTimeMillis();
+    buffer(eventTable, event, now);
+    if (isIndexing()) {
+      for (Mutation mutation : getIndexMutations(record, event)) {
+        buffer(indexTable, mutation, now);
+      }
+    }
+  }
+
+  void buffer(String table, Mutation mutation, long timestamp) {
+    SortedMap<Key, Value> buffer = buffers.get(table);
+    if (buffer == null) {
+      buffer = new TreeMap<>();
+      buffers.put(table, buffer);
+    }
+    byte[] row = mutation.getRow();
+    for (ColumnUpdate update : mutation.getUpdates()) {
+      Key key = new Key(row, update.getColumnFamily(), update.getColumnQualifier(), update.getColumnVisibility(),
+          update.hasTimestamp() ? update.getTimestamp() : timestamp, update.isDeleted(), false);
+      Value value = new Value(update.getValue());
+      if (buffer.put(key, value) == null) {
+        bufferedBytes += key.getSize() + value.getSize();
+      }
+    }
+  }
+
+  @Override
+  boolean isBufferFull() {
+    return bufferedBytes >= bulkMaxBytes;
+  }
+
+  /**
+   * Writes the buffered key/values of each table to RFiles and imports them.
+   *
+   * @throws IllegalStateException if any table could not be imported, failing the buffered tuples
+   */
+  @Override
+  void flush() {
+    try {
+      for (Map.Entry<String, SortedMap<Key, Value>> entry : buffers.entrySet()) {
+        if (!entry.getValue().isEmpty()) {
+          importBuffer(entry.getKey(), entry.getValue());
+        }
+      }
+    } catch (IOException | AccumuloException | AccumuloSecurityException | TableNotFoundException e) {
+      throw new IllegalStateException("Bulk import failed", e);
+    } finally {
+      clearBuffers();
+    }
+  }
+
+  void importBuffer(String table, SortedMap<Key, Value> buffer)
+      throws IOException, AccumuloException, AccumuloSecurityException, TableNotFoundException {
+    Path dir = new Path(bulkWorkDir, String.format("%s/%d-%d-%d", table, taskId, System.currentTimeMillis(), batch++));
+    Path files = new Path(dir, FILES_DIR);
+    Path failures = new Path(dir, FAILURES_DIR);
+    fileSystem.mkdirs(failures);
+
+    int fileCount = writeFiles(files, buffer, conn.tableOperations().listSplits(table));
+    conn.tableOperations().importDirectory(table, files.toString(), failures.toString(), false);
+
+    FileStatus[] failed = fileSystem.listStatus(failures);
+    if (failed != null && failed.length > 0) {
+      throw new IOException(failed.length + " of " + fileCount + " files failed to import into " + table
+          + ", kept in " + failures);
+    }
+    fileSystem.delete(dir, true);
+    logger.info("Imported {} entries in {} files into {}", buffer.size(), fileCount, table);
+  }
+
+  /**
+   * Writes the sorted key/values into one RFile per tablet, so each file is assigned to a single tablet on import.
+   *
+   * @param splits current split points of the table
+   * @return number of files written
+   */
+  int writeFiles(Path dir, SortedMap<Key, Value> buffer, Collection<Text> splits) throws IOException {
+    List<Text> endRows = new ArrayList<>(new TreeSet<>(splits));
+    Iterator<Text> endRowIterator = endRows.iterator();
+    Text endRow = endRowIterator.hasNext() ? endRowIterator.next() : null;
+    Text row = new Text();
+
+    int fileCount = 0;
+    FileSKVWriter writer = null;
+    try {
+      for (Map.Entry<Key, Value> entry : buffer.entrySet()) {
+        entry.getKey().getRow(row);
+        if (endRow != null && row.compareTo(endRow) > 0) {
+          // tablets end with their split row, inclusive
+          while (endRow != null && row.compareTo(endRow) > 0) {
+            endRow = endRowIterator.hasNext() ? endRowIterator.next() : null;
+          }
+          if (writer != null) {
+            writer.close();
+            writer = null;
+          }
+        }
+        if (writer == null) {
+          writer = openWriter(new Path(dir, String.format("%05d.rf", fileCount++)));
+        }
+        writer.append(entry.getKey(), entry.getValue());
+      }
+    } finally {
+      if (writer != null) {
+        writer.close();
+      }
+    }
+    return fileCount;
+  }
+
+  FileSKVWriter openWriter(Path file) throws IOException {
+    FileSKVWriter writer = FileOperations.getInstance().openWriter(file.toString(), fileSystem,
+        fileSystem.getConf(), AccumuloConfiguration.getDefaultConfiguration());
+    writer.startDefaultLocalityGroup();
+    return writer;
+  }
+
+  @Override
+  void onFlushFailure() {
+    clearBuffers();
+  }
+
+  void clearBuffers() {
+    buffers.clear();
+    bufferedBytes = 0;
+  }
+}
@@ -22,26 +22,99 @@ package com.boozallen.cognition.ingest.accumulo.storm;
 import backtype.storm.task.TopologyContext;
 import backtype.storm.topology.FailedException;
 import com.boozallen.cognition.ingest.accumulo.utils.AccumuloBoltUtils;
+import com.boozallen.cognition.ingest.accumulo.utils.EventTableAdmin;
+import com.boozallen.cognition.ingest.accumulo.utils.MutationEncoder;
+import com.boozallen.cognition.ingest.accumulo.utils.RecordCodec;
 import com.boozallen.cognition.ingest.storm.PrepareFailedException;
 import com.boozallen.cognition.ingest.storm.vo.LogRecord;
+import org.apache.accumulo.core.client.AccumuloException;
+import org.apache.accumulo.core.client.AccumuloSecurityException;
 import org.apache.accumulo.core.client.BatchWriter;
 import org.apache.accumulo.core.client.MutationsRejectedException;
 import org.apache.accumulo.core.client.TableNotFoundException;
 import org.apache.accumulo.core.data.Mutation;
-import org.apache.accumulo.core.data.Value;
 import org.apache.accumulo.core.security.ColumnVisibility;
 import org.apache.commons.configuration.Configuration;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.Validate;
+import org.apache.hadoop.io.Text;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
-import static org.apache.commons.lang3.StringUtils.defaultString;
+import static com.boozallen.cognition.ingest.storm.util.ConfigurationMapEntryUtils.extractSimpleMap;
 
 /**
  * Stores log records into the accumulo event table, using a date-based row-id.
+ * <p>
+ * Optionally manages the table: with <code>createTable</code> it is created if missing, with <code>preSplit</code>
+ * the first task adds a split for every <code>uuidPrefix + shard</code>, and with <code>timeSplitDaysAhead</code> /
+ * <code>mergeTimeSplitsAfterDays</code> it adds daily splits ahead of time and merges old ones, once at prepare and
+ * then daily. See {@link EventTableAdmin}.
+ * <p>
+ * Large document fields (e.g. the elasticsearch json read by lens) listed in <code>documentFields</code> are written
+ * under <code>documentFamily</code> instead of "data". With <code>createTable</code>, the first task puts that family
+ * in its own locality group and sets <code>documentCompression</code> as the table's compression codec, so scans of the
+ * small fields skip the document blocks.
+ * <p>
+ * With <code>storageMode</code> "record" instead of the default "columns", the fields and metadata are encoded into a
+ * single <code>record</code> cell (see {@link RecordCodec}) rather than one cell per field, and only the fields listed
+ * in <code>queryColumns</code> are also written as "data" cells for scans and iterators to filter on. Lens decodes
+ * record cells back into data and metadata columns.
+ * <p>
+ * With <code>indexTable</code>, the record fields listed in <code>indexFields</code> are also written to a field-value
+ * index: one entry per value with row <code>index \0 lowercased value \0 day</code> (see
+ * {@link AccumuloBoltUtils#getIndexRowId}), the event row id as column qualifier and the record time as timestamp.
+ * Lens uses it to resolve equality criteria to exact event rows, so index names should match the lens field names
+ * (user, location, language). Several record fields may feed the same index name. Lens only uses the indexes its
+ * schema declares in <code>INDEX_FIELDS</code>, from <code>INDEX_START</code> if the index was enabled on a table that
+ * already had events.
+ * <p>
+ * The free text of <code>termFields</code> is written to the same table as an inverted term index: each distinct
+ * whitespace-separated, lowercased token gets an entry with row <code>keyword \0 term \0 day \0 shard</code>, where
+ * the shard (of <code>termShards</code>) is taken from the event row id, so postings of a hot term on one day are
+ * spread over several rows. Lens intersects and unions these postings to answer keyword criteria, once its schema
+ * lists every KEYWORD column in <code>TERM_INDEX_COLUMNS</code> (and <code>TERM_INDEX_START</code> if needed).
+ * <pre>
+ * {@code
+ *
+ * <conf>
+ *   <eventTable>events</eventTable>
+ *   <uuidPrefix>TWITTER_</uuidPrefix>
+ *   <splits>36</splits>
+ *   <createTable>true</createTable>
+ *   <preSplit>true</preSplit>
+ *   <timeSplitDaysAhead>2</timeSplitDaysAhead>
+ *   <mergeTimeSplitsAfterDays>30</mergeTimeSplitsAfterDays>
+ *   <documentFields>cognition.esjson</documentFields>
+ *   <documentFamily>document</documentFamily>
+ *   <documentCompression>gz</documentCompression>
+ *   <storageMode>record</storageMode>
+ *   <queryColumns>user.screen_name</queryColumns>
+ *   <queryColumns>body</queryColumns>
+ *   <indexTable>eventIndex</indexTable>
+ *   <indexFields>
+ *     <entry>
+ *       <field>user.screen_name</field>
+ *       <index>user</index>
+ *     </entry>
+ *     <entry>
+ *       <field>lang</field>
+ *       <index>language</index>
+ *     </entry>
+ *   </indexFields>
+ *   <termFields>body</termFields>
+ *   <termShards>8</termShards>
+ * </conf>
+ * } </pre>
  */
 public class AccumuloEventStorageBolt extends AccumuloBaseBolt {
   private final Logger logger = LoggerFactory.getLogger(this.getClass());
@@ -52,6 +125,27 @@ public class AccumuloEventStorageBolt extends AccumuloBaseBolt {
   public static final String VISIBILITY_BY_FIELD = "visibilityByField";
   public static final String SPLITS = "splits";
   public static final int SPLITS_DEFAULT = 36;
+  public static final String CREATE_TABLE = "createTable";
+  public static final String PRE_SPLIT = "preSplit";
+  public static final String TIME_SPLIT_DAYS_AHEAD = "timeSplitDaysAhead";
+  public static final String MERGE_TIME_SPLITS_AFTER_DAYS = "mergeTimeSplitsAfterDays";
+  public static final String DOCUMENT_FIELDS = "documentFields";
+  public static final String DOCUMENT_FAMILY = "documentFamily";
+  public static final String DOCUMENT_FAMILY_DEFAULT = "document";
+  public static final String DOCUMENT_COMPRESSION = "documentCompression";
+  public static final String DATA_FAMILY = "data";
+  public static final String METADATA_FAMILY = "metadata";
+  public static final String STORAGE_MODE = "storageMode";
+  public static final String COLUMN_STORAGE = "columns";
+  public static final String RECORD_STORAGE = "record";
+  public static final String QUERY_COLUMNS = "queryColumns";
+  public static final String INDEX_TABLE = "indexTable";
+  public static final String INDEX_FIELDS = "indexFields";
+  public static final String TERM_FIELDS = "termFields";
+  public static final String TERM_SHARDS = "termShards";
+  public static final int TERM_SHARDS_DEFAULT = 8;
+  static final String KEYWORD_INDEX = "keyword";
+  private static final byte[] EMPTY_VALUE = new byte[0];
 
   String eventTable;
   BatchWriter eventWriter;
@@ -59,6 +153,22 @@ public class AccumuloEventStorageBolt extends AccumuloBaseBolt {
   String visibility;
   String visibilityByField;
   int splits;
+  boolean createTable;
+  boolean preSplit;
+  int timeSplitDaysAhead;
+  int mergeTimeSplitsAfterDays;
+  ScheduledExecutorService splitMaintenance;
+  List<String> documentFields = new ArrayList<>();
+  String documentFamily;
+  String documentCompression;
+  String storageMode = COLUMN_STORAGE;
+  List<String> queryColumns = new ArrayList<>();
+  String indexTable;
+  Map<String, String> indexFields;
+  List<String> termFields = new ArrayList<>();
+  int termShards;
+  BatchWriter indexWriter;
+  MutationEncoder encoder;
 
   @Override
   void configureAccumuloBolt(Configuration conf) {
@@ -67,82 +177,313 @@ public class AccumuloEventStorageBolt extends AccumuloBaseBolt {
     splits = conf.getInt(SPLITS, SPLITS_DEFAULT);
     visibility = conf.getString(VISIBILITY);
     visibilityByField = conf.getString(VISIBILITY_BY_FIELD);
+    createTable = conf.getBoolean(CREATE_TABLE, false);
+    preSplit = conf.getBoolean(PRE_SPLIT, false);
+    timeSplitDaysAhead = conf.getInt(TIME_SPLIT_DAYS_AHEAD, 0);
+    mergeTimeSplitsAfterDays = conf.getInt(MERGE_TIME_SPLITS_AFTER_DAYS, 0);
+    documentFields = new ArrayList<>();
+    for (Object field : conf.getList(DOCUMENT_FIELDS)) {
+      documentFields.add(field.toString());
+    }
+    documentFamily = conf.getString(DOCUMENT_FAMILY, DOCUMENT_FAMILY_DEFAULT);
+    documentCompression = conf.getString(DOCUMENT_COMPRESSION);
+    storageMode = conf.getString(STORAGE_MODE, COLUMN_STORAGE);
+    queryColumns = new ArrayList<>();
+    for (Object field : conf.getList(QUERY_COLUMNS)) {
+      queryColumns.add(field.toString());
+    }
+    indexTable = conf.getString(INDEX_TABLE);
+    indexFields = extractSimpleMap(conf, INDEX_FIELDS, "entry", "field", "index");
+    termFields = new ArrayList<>();
+    for (Object field : conf.getList(TERM_FIELDS)) {
+      termFields.add(field.toString());
+    }
+    termShards = conf.getInt(TERM_SHARDS, TERM_SHARDS_DEFAULT);
 
     Validate.notBlank(eventTable);
+    Validate.isTrue(!DATA_FAMILY.equals(documentFamily) && !METADATA_FAMILY.equals(documentFamily),
+        "documentFamily must differ from data and metadata");
+    Validate.isTrue(COLUMN_STORAGE.equals(storageMode) || RECORD_STORAGE.equals(storageMode),
+        "storageMode must be " + COLUMN_STORAGE + " or " + RECORD_STORAGE);
+    if (isIndexing()) {
+      Validate.isTrue(!indexFields.isEmpty() || !termFields.isEmpty(),
+          "indexFields or termFields required with " + INDEX_TABLE);
+      Validate.isTrue(termShards > 0 && termShards <= AccumuloBoltUtils.SHARD_RADIX,
+          "termShards must be between 1 and " + AccumuloBoltUtils.SHARD_RADIX);
+    }
+  }
+
+  boolean isIndexing() {
+    return StringUtils.isNotBlank(indexTable);
   }
 
   @Override
   void prepareAccumuloBolt(Map stormConf, TopologyContext context) {
+    if (createTable || preSplit || timeSplitDaysAhead > 0 || mergeTimeSplitsAfterDays > 0) {
+      prepareEventTable(new EventTableAdmin(conn, eventTable, uuidPrefix, splits), context.getThisTaskIndex() == 0);
+    }
+    if (createTable && isIndexing()) {
+      try {
+        new EventTableAdmin(conn, indexTable, "", 1).createTableIfMissing();
+      } catch (AccumuloException | AccumuloSecurityException e) {
+        logger.error("Failed to create index table", e);
+        throw new PrepareFailedException("Failed to create index table", e);
+      }
+    }
     resetEventWriter();
   }
 
+  /**
+   * Creates the table if configured; the first task also sets up the document locality group and maintains its
+   * splits.
+   */
+  void prepareEventTable(EventTableAdmin admin, boolean maintainSplits) {
+    if (createTable) {
+      try {
+        admin.createTableIfMissing();
+      } catch (AccumuloException | AccumuloSecurityException e) {
+        logger.error("Failed to create table", e);
+        throw new PrepareFailedException("Failed to create table", e);
+      }
+    }
+    if (!maintainSplits) {
+      return;
+    }
+    if (createTable && !documentFields.isEmpty()) {
+      try {
+        admin.setDocumentLocalityGroup(documentFamily, documentCompression);
+      } catch (AccumuloException | AccumuloSecurityException | TableNotFoundException e) {
+        logger.error("Failed to set document locality group", e);
+      }
+    }
+    if (preSplit) {
+      try {
+        admin.addShardSplits();
+      } catch (AccumuloException | AccumuloSecurityException | TableNotFoundException e) {
+        logger.error("Failed to add shard splits", e);
+      }
+    }
+    if (timeSplitDaysAhead > 0 || mergeTimeSplitsAfterDays > 0) {
+      splitMaintenance = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "event-table-split-maintenance");
+        thread.setDaemon(true);
+        return thread;
+      });
+      splitMaintenance.scheduleAtFixedRate(() -> {
+        try {
+          admin.maintainTimeSplits(System.currentTimeMillis(), timeSplitDaysAhead, mergeTimeSplitsAfterDays);
+        } catch (AccumuloException | AccumuloSecurityException | TableNotFoundException | RuntimeException e) {
+          logger.error("Failed to maintain time splits", e);
+        }
+      }, 0, 1, TimeUnit.DAYS);
+    }
+  }
+
   void resetEventWriter() {
+    if (writerLease != null) {
+      resetSharedEventWriter();
+      return;
+    }
     try {
       if (eventWriter != null) {
         cleanupEventWriter();
       }
       eventWriter = conn.createBatchWriter(eventTable, config);
+      if (isIndexing()) {
+        indexWriter = conn.createBatchWriter(indexTable, config);
+      }
     } catch (TableNotFoundException e) {
       logger.error("Table not found", e);
       throw new PrepareFailedException("Table not found", e);
     }
   }
 
-  void cleanupEventWriter() {
+  void resetSharedEventWriter() {
     try {
       if (eventWriter != null) {
-        eventWriter.flush();
-        eventWriter.close();
+        writerLease.invalidate();
+      }
+      eventWriter = writerLease.getBatchWriter(eventTable);
+      if (isIndexing()) {
+        indexWriter = writerLease.getBatchWriter(indexTable);
+      }
+    } catch (TableNotFoundException e) {
+      logger.error("Table not found", e);
+      throw new PrepareFailedException("Table not found", e);
+    } catch (AccumuloException | AccumuloSecurityException e) {
+      logger.error("Failed to get shared writer", e);
+      throw new PrepareFailedException("Failed to get shared writer", e);
+    }
+  }
+
+  void cleanupEventWriter() {
+    try {
+      if (writerLease != null) {
+        writerLease.flush(); // writers of a shared writer cannot be flushed or closed on their own
+      } else if (eventWriter != null) {
+        try {
+          eventWriter.flush();
+        } finally {
+          // a rejected writer keeps rejecting, but close still releases its threads
+          closeWriter(eventWriter);
+          if (indexWriter != null) {
+            closeWriter(indexWriter);
+          }
+        }
       }
-    } catch (MutationsRejectedException e) {
+    } catch (MutationsRejectedException | IllegalStateException e) {
       logger.error("Failed committing mutation batch mutation", e);
     }
   }
 
+  private void closeWriter(BatchWriter writer) {
+    try {
+      writer.close();
+    } catch (MutationsRejectedException | IllegalStateException e) {
+      logger.error("Failed committing mutation batch on close", e);
+    }
+  }
+
   @Override
   protected void process(LogRecord record) {
     Mutation event = getEventMutation(record);
     try {
       eventWriter.addMutation(event);
-    } catch (MutationsRejectedException e) {
+      if (isIndexing()) {
+        indexWriter.addMutations(getIndexMutations(record, event));
+      }
+    } catch (MutationsRejectedException | IllegalStateException e) {
+      // a shared writer is closed once another bolt replaced it after a failure
       logger.error("Failed to store row. Reseting Writer", e);
       resetEventWriter();
       throw new FailedException(e);
     }
   }
 
+  @Override
+  void flush() throws MutationsRejectedException {
+    if (writerLease != null) {
+      writerLease.flush();
+    } else {
+      eventWriter.flush();
+      if (indexWriter != null) {
+        indexWriter.flush();
+      }
+    }
+  }
+
+  @Override
+  void onFlushFailure() {
+    resetEventWriter();
+  }
+
   Mutation getEventMutation(LogRecord record) {
     String recId = AccumuloBoltUtils.getEventRecordId(record, uuidPrefix, splits);
     Mutation mutation = new Mutation(recId);
 
     ColumnVisibility vis = getColumnVisibility(record);
 
-    populateMutation(mutation, "data", vis, record.getFields());
-    populateMutation(mutation, "metadata", vis, record.getMetadata());
+    Map<String, String> fields = record.getFields();
+    if (!documentFields.isEmpty()) {
+      fields = new LinkedHashMap<>(fields);
+      Map<String, String> document = new LinkedHashMap<>();
+      for (String field : documentFields) {
+        if (fields.containsKey(field)) {
+          document.put(field, fields.remove(field));
+        }
+      }
+      populateMutation(mutation, documentFamily, vis, document);
+    }
+    if (RECORD_STORAGE.equals(storageMode)) {
+      byte[] encoded = RecordCodec.encode(fields, record.getMetadata());
+      MutationEncoder encoder = getEncoder();
+      encoder.put(mutation, encoder.getFamily(RecordCodec.RECORD_FAMILY), RecordCodec.RECORD_QUALIFIER, vis, encoded);
+      Map<String, String> queryFields = new LinkedHashMap<>();
+      for (String field : queryColumns) {
+        if (fields.containsKey(field)) {
+          queryFields.put(field, fields.get(field));
+        }
+      }
+      populateMutation(mutation, DATA_FAMILY, vis, queryFields);
+    } else {
+      populateMutation(mutation, DATA_FAMILY, vis, fields);
+      populateMutation(mutation, METADATA_FAMILY, vis, record.getMetadata());
+    }
     return mutation;
   }
 
+  /**
+   * Creates the index entries of a record, one per distinct non-blank value of each index and one per distinct term of
+   * the term fields.
+   */
+  List<Mutation> getIndexMutations(LogRecord record, Mutation event) {
+    Text recId = new Text(event.getRow());
+    ColumnVisibility vis = getColumnVisibility(record);
+    long time = record.getDate().getTime();
+
+    MutationEncoder encoder = getEncoder();
+    Text family = encoder.getFamily("");
+    Map<String, Mutation> mutations = new HashMap<>();
+    for (Map.Entry<String, String> entry : indexFields.entrySet()) {
+      String value = record.getValue(entry.getKey());
+      if (StringUtils.isBlank(value)) {
+        continue;
+      }
+      String indexRowId = AccumuloBoltUtils.getIndexRowId(entry.getValue(), value, time);
+      if (!mutations.containsKey(indexRowId)) {
+        Mutation mutation = new Mutation(indexRowId);
+        encoder.put(mutation, family, recId, vis, time, EMPTY_VALUE);
+        mutations.put(indexRowId, mutation);
+      }
+    }
+
+    String shard = AccumuloBoltUtils.getShard(recId.hashCode(), termShards);
+    for (String field : termFields) {
+      for (String term : AccumuloBoltUtils.getTerms(record.getValue(field))) {
+        String indexRowId = AccumuloBoltUtils.getIndexRowId(KEYWORD_INDEX, term, time)
+            + AccumuloBoltUtils.INDEX_SEPARATOR + shard;
+        if (!mutations.containsKey(indexRowId)) {
+          Mutation mutation = new Mutation(indexRowId);
+          encoder.put(mutation, family, recId, vis, time, EMPTY_VALUE);
+          mutations.put(indexRowId, mutation);
+        }
+      }
+    }
+    return new ArrayList<>(mutations.values());
+  }
+
   ColumnVisibility getColumnVisibility(LogRecord record) {
     if (StringUtils.isNotBlank(visibility)) {
-      return new ColumnVisibility(visibility);
+      return getEncoder().getVisibility(visibility);
     } else if (StringUtils.isNotBlank(visibilityByField)) {
-      return new ColumnVisibility(record.getValue(visibilityByField));
+      return getEncoder().getVisibility(record.getValue(visibilityByField));
     } else {
-      return new ColumnVisibility();
+      return getEncoder().getVisibility(null);
     }
   }
 
   void populateMutation(Mutation mut, String columnFamily, ColumnVisibility vis, Map<String, String> fields) {
+    MutationEncoder encoder = getEncoder();
+    Text family = encoder.getFamily(columnFamily);
     for (Map.Entry<String, String> entry : fields.entrySet()) {
-      String key = defaultString(entry.getKey());
-      String value = defaultString(entry.getValue());
+      encoder.put(mut, family, entry.getKey(), vis, entry.getValue());
+    }
+  }
 
-      mut.put(columnFamily, key, vis, new Value(value.getBytes()));
+  MutationEncoder getEncoder() {
+    //lazy initialize, the encoder is not serializable
+    if (encoder == null) {
+      encoder = new MutationEncoder();
     }
+    return encoder;
   }
 
   @Override
   public void cleanup() {
+    if (splitMaintenance != null) {
+      splitMaintenance.shutdownNow();
+    }
     cleanupEventWriter();
+    releaseWriterLease();
   }
 }
@@ -21,12 +21,23 @@ package com.boozallen.cognition.ingest.accumulo.utils;
 
 import com.boozallen.cognition.ingest.storm.vo.LogRecord;
 
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
 public class AccumuloBoltUtils {
   public static final int SHARD_RADIX = 36;
+  public static final String INDEX_SEPARATOR = "\u0000";
+  public static final long INDEX_BUCKET_MILLIS = TimeUnit.DAYS.toMillis(1);
+  public static final int MAX_TERM_LENGTH = 100;
+  public static final int TIMESTAMP_DIGITS = 13;
+  private static final Pattern WHITESPACE = Pattern.compile("\\s+");
 
   /**
    * Creates date based id for accumulo row id. RowId design avoids monotonically increasing row-keys problem by
-   * sharding entries from the date based on split.
+   * sharding entries from the date based on split. The time is zero-padded to {@link #TIMESTAMP_DIGITS} digits so
+   * rows of a shard sort by time.
    *
    * @param record
    * @param prefix
@@ -37,10 +48,71 @@ public class AccumuloBoltUtils {
     String uuid = record.getUUID();
     String shard = getShard(uuid.hashCode(), splits);
     long time = record.getDate().getTime();
-    return String.format("%s%s_%s_%s", prefix, shard, time, uuid);
+    StringBuilder rowId = new StringBuilder(prefix.length() + shard.length() + TIMESTAMP_DIGITS + uuid.length() + 2);
+    rowId.append(prefix).append(shard).append('_');
+    appendTimestamp(rowId, time);
+    return rowId.append('_').append(uuid).toString();
+  }
+
+  /**
+   * Formats epoch millis as in row ids, zero-padded to {@link #TIMESTAMP_DIGITS} digits.
+   */
+  public static String formatTimestamp(long time) {
+    return appendTimestamp(new StringBuilder(TIMESTAMP_DIGITS), time).toString();
+  }
+
+  static StringBuilder appendTimestamp(StringBuilder builder, long time) {
+    if (time < 0) {
+      return builder.append(time);
+    }
+    String digits = Long.toString(time);
+    for (int i = digits.length(); i < TIMESTAMP_DIGITS; i++) {
+      builder.append('0');
+    }
+    return builder.append(digits);
   }
 
   public static String getShard(int hashcode, int splits) {
     return Integer.toString(Math.abs(hashcode % splits), SHARD_RADIX);
   }
+
+  /**
+   * Creates the row id of a field-value index entry: <code>field \0 lowercased value \0 day bucket</code>, where the
+   * bucket is the start of the UTC day of the record as a 13-digit zero-padded epoch millis, so rows of a value sort by
+   * time and a date range maps to one contiguous row range.
+   *
+   * @param field index field name, e.g. "user"
+   * @param value record value
+   * @param time  record time in millis
+   * @return
+   */
+  public static String getIndexRowId(String field, String value, long time) {
+    StringBuilder rowId = new StringBuilder(field.length() + value.length() + TIMESTAMP_DIGITS + 2);
+    rowId.append(field).append(INDEX_SEPARATOR).append(value.toLowerCase()).append(INDEX_SEPARATOR);
+    return appendTimestamp(rowId, getIndexBucket(time)).toString();
+  }
+
+  /**
+   * Tokenizes text for the term index: splits on whitespace and lowercases, dropping tokens longer than
+   * {@link #MAX_TERM_LENGTH}. Punctuation is kept, matching the space-padded keyword matching of lens.
+   *
+   * @param text may be null
+   * @return distinct terms
+   */
+  public static Set<String> getTerms(String text) {
+    Set<String> terms = new LinkedHashSet<>();
+    if (text == null) {
+      return terms;
+    }
+    for (String token : WHITESPACE.split(text.toLowerCase())) {
+      if (!token.isEmpty() && token.length() <= MAX_TERM_LENGTH) {
+        terms.add(token);
+      }
+    }
+    return terms;
+  }
+
+  public static long getIndexBucket(long time) {
+    return time - Math.floorMod(time, INDEX_BUCKET_MILLIS);
+  }
 }
@@ -34,6 +34,9 @@ public class AccumuloConnectionConfig implements Serializable {
   long maxMem;
   long maxLatency;
   int maxWriteThreads;
+  boolean sharedWriter;
+  long sharedMaxMem;
+  int sharedMaxWriteThreads;
 
   public String getInstance() {
     return instance;
@@ -62,4 +65,16 @@ public class AccumuloConnectionConfig implements Serializable {
   public int getMaxWriteThreads() {
     return maxWriteThreads;
   }
+
+  public boolean isSharedWriter() {
+    return sharedWriter;
+  }
+
+  public long getSharedMaxMem() {
+    return sharedMaxMem;
+  }
+
+  public int getSharedMaxWriteThreads() {
+    return sharedMaxWriteThreads;
+  }
 }
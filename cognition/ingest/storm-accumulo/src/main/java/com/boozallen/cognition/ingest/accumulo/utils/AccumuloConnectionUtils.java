@@ -32,9 +32,14 @@ public class AccumuloConnectionUtils {
   private static final String MAX_MEM = "maxMem";
   private static final String MAX_LATENCY = "maxLatency";
   private static final String MAX_WRITE_THREADS = "maxWriteThreads";
+  private static final String SHARED_WRITER = "sharedWriter";
+  private static final String SHARED_MAX_MEM = "sharedMaxMem";
+  private static final String SHARED_MAX_WRITE_THREADS = "sharedMaxWriteThreads";
   protected static final long MAX_MEM_DEFAULT = 10_000_000L;
   protected static final long MAX_LATENCY_DEFAULT = 1_000L;
   protected static final int MAX_WRITE_THREADS_DEFAULT = 20;
+  protected static final long SHARED_MAX_MEM_DEFAULT = 64_000_000L;
+  protected static final int SHARED_MAX_WRITE_THREADS_DEFAULT = 8;
 
   public static AccumuloConnectionConfig extractConnectionConfiguration(Configuration conf) {
     AccumuloConnectionConfig config = new AccumuloConnectionConfig();
@@ -45,6 +50,9 @@ public class AccumuloConnectionUtils {
     config.maxMem = conf.getLong(MAX_MEM, MAX_MEM_DEFAULT);
     config.maxLatency = conf.getLong(MAX_LATENCY, MAX_LATENCY_DEFAULT);
     config.maxWriteThreads = conf.getInt(MAX_WRITE_THREADS, MAX_WRITE_THREADS_DEFAULT);
+    config.sharedWriter = conf.getBoolean(SHARED_WRITER, false);
+    config.sharedMaxMem = conf.getLong(SHARED_MAX_MEM, SHARED_MAX_MEM_DEFAULT);
+    config.sharedMaxWriteThreads = conf.getInt(SHARED_MAX_WRITE_THREADS, SHARED_MAX_WRITE_THREADS_DEFAULT);
     return config;
   }
 }
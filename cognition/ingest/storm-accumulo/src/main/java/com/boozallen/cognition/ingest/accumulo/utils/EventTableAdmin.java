@@ -0,0 +1,215 @@
+/*
+ * Licensed to Booz Allen Hamilton under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Booz Allen Hamilton licenses this file to you
+ * under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.boozallen.cognition.ingest.accumulo.utils;
+
+import org.apache.accumulo.core.client.AccumuloException;
+import org.apache.accumulo.core.client.AccumuloSecurityException;
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.TableExistsException;
+import org.apache.accumulo.core.client.TableNotFoundException;
+import org.apache.accumulo.core.client.ZooKeeperInstance;
+import org.apache.accumulo.core.client.admin.TableOperations;
+import org.apache.accumulo.core.client.security.tokens.PasswordToken;
+import org.apache.accumulo.core.conf.Property;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.hadoop.io.Text;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import static com.boozallen.cognition.ingest.accumulo.utils.AccumuloBoltUtils.formatTimestamp;
+import static com.boozallen.cognition.ingest.accumulo.utils.AccumuloBoltUtils.getShard;
+
+/**
+ * Creates and maintains the splits of an event table whose row ids are built by
+ * {@link AccumuloBoltUtils#getEventRecordId}, i.e. <code>prefix + shard + "_" + millis + "_" + uuid</code>.
+ * <ul>
+ * <li>{@link #addShardSplits()} gives every shard its own tablet, so writes spread across tablet servers from the
+ * start instead of hot-spotting a single tablet until Accumulo splits it.</li>
+ * <li>{@link #addTimeSplits(long, int)} adds daily splits within every shard ahead of time, so a day's writes start
+ * on tablets of their own.</li>
+ * <li>{@link #mergeTimeSplits(long)} merges the daily tablets of each shard older than a cutoff back into one.</li>
+ * </ul>
+ * <pre>
+ * java -cp storm-accumulo.jar com.boozallen.cognition.ingest.accumulo.utils.EventTableAdmin \
+ *   instance zookeepers user password table prefix splits [daysAhead [mergeAfterDays]]
+ * </pre>
+ */
+public class EventTableAdmin {
+  private static final Logger logger = LoggerFactory.getLogger(EventTableAdmin.class);
+
+  static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+  private final TableOperations tableOperations;
+  private final String table;
+  private final String prefix;
+  private final int splits;
+
+  public EventTableAdmin(Connector conn, String table, String prefix, int splits) {
+    this.tableOperations = conn.tableOperations();
+    this.table = table;
+    this.prefix = prefix;
+    this.splits = splits;
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 7) {
+      System.err.println("Usage: EventTableAdmin instance zookeepers user password table prefix splits "
+          + "[daysAhead [mergeAfterDays]]");
+      System.exit(1);
+    }
+    Connector conn = new ZooKeeperInstance(args[0], args[1]).getConnector(args[2], new PasswordToken(args[3]));
+    EventTableAdmin admin = new EventTableAdmin(conn, args[4], args[5], Integer.parseInt(args[6]));
+    int daysAhead = args.length > 7 ? Integer.parseInt(args[7]) : 0;
+    int mergeAfterDays = args.length > 8 ? Integer.parseInt(args[8]) : 0;
+
+    admin.createTableIfMissing();
+    admin.addShardSplits();
+    admin.maintainTimeSplits(System.currentTimeMillis(), daysAhead, mergeAfterDays);
+  }
+
+  /**
+   * Creates the table unless it exists, tolerating concurrent creation by another task.
+   *
+   * @return true if the table was created
+   */
+  public boolean createTableIfMissing() throws AccumuloException, AccumuloSecurityException {
+    if (tableOperations.exists(table)) {
+      return false;
+    }
+    try {
+      tableOperations.create(table);
+      logger.info("Created table {}", table);
+      return true;
+    } catch (TableExistsException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Puts the column family in its own locality group, keeping the other groups, so scans fetching other families do
+   * not read its blocks. Accumulo only supports compression per table, so the codec (e.g. gz, snappy, lzo) is set for
+   * the whole table; the document family is what dominates its size. Existing files are rewritten on compaction.
+   *
+   * @param family      document column family
+   * @param compression table compression codec, or null to leave it unchanged
+   */
+  public void setDocumentLocalityGroup(String family, String compression)
+      throws AccumuloException, AccumuloSecurityException, TableNotFoundException {
+    Map<String, Set<Text>> groups = new HashMap<>(tableOperations.getLocalityGroups(table));
+    Set<Text> families = Collections.singleton(new Text(family));
+    if (!families.equals(groups.get(family))) {
+      groups.put(family, families);
+      tableOperations.setLocalityGroups(table, groups);
+      logger.info("Set locality group {} of {}", family, table);
+    }
+    if (StringUtils.isNotBlank(compression)) {
+      tableOperations.setProperty(table, Property.TABLE_FILE_COMPRESSION_TYPE.getKey(), compression);
+    }
+  }
+
+  /**
+   * @return split points giving every shard its own tablet; each ends with the "_" following the shard, as with more
+   * than 36 splits shard 1 would otherwise share a tablet with the rows of shards 10 to 19
+   */
+  SortedSet<Text> getShardSplits() {
+    SortedSet<Text> points = new TreeSet<>();
+    for (int i = 0; i < splits; i++) {
+      points.add(new Text(getShardPrefix(i)));
+    }
+    points.remove(points.first()); // lowest shard goes to the first tablet
+    return points;
+  }
+
+  /**
+   * @return split points at the start of each day from <code>startMillis</code> to <code>daysAhead</code> days later,
+   * in every shard
+   */
+  SortedSet<Text> getTimeSplits(long startMillis, int daysAhead) {
+    SortedSet<Text> points = new TreeSet<>();
+    long firstDay = startOfDay(startMillis);
+    for (int day = 0; day <= daysAhead; day++) {
+      long dayMillis = firstDay + day * DAY_MILLIS;
+      for (int i = 0; i < splits; i++) {
+        points.add(new Text(getShardPrefix(i) + formatTimestamp(dayMillis)));
+      }
+    }
+    return points;
+  }
+
+  public void addShardSplits() throws AccumuloException, AccumuloSecurityException, TableNotFoundException {
+    SortedSet<Text> points = getShardSplits();
+    if (!points.isEmpty()) {
+      tableOperations.addSplits(table, points);
+      logger.info("Added {} shard splits to {}", points.size(), table);
+    }
+  }
+
+  public void addTimeSplits(long startMillis, int daysAhead)
+      throws AccumuloException, AccumuloSecurityException, TableNotFoundException {
+    SortedSet<Text> points = getTimeSplits(startMillis, daysAhead);
+    tableOperations.addSplits(table, points);
+    logger.info("Added {} daily splits to {} for {} days ahead", points.size(), table, daysAhead);
+  }
+
+  /**
+   * Merges, in every shard, the tablets holding rows from before the day of <code>cutoffMillis</code>.
+   */
+  public void mergeTimeSplits(long cutoffMillis)
+      throws AccumuloException, AccumuloSecurityException, TableNotFoundException {
+    long cutoffDay = startOfDay(cutoffMillis);
+    for (int i = 0; i < splits; i++) {
+      String shard = getShardPrefix(i);
+      tableOperations.merge(table, new Text(shard), new Text(shard + formatTimestamp(cutoffDay)));
+    }
+    logger.info("Merged daily splits of {} before {}", table, cutoffDay);
+  }
+
+  /**
+   * Adds upcoming daily splits and merges old ones; either step is skipped if its day count is not positive.
+   */
+  public void maintainTimeSplits(long nowMillis, int daysAhead, int mergeAfterDays)
+      throws AccumuloException, AccumuloSecurityException, TableNotFoundException {
+    if (daysAhead > 0) {
+      addTimeSplits(nowMillis, daysAhead);
+    }
+    if (mergeAfterDays > 0) {
+      mergeTimeSplits(nowMillis - mergeAfterDays * DAY_MILLIS);
+    }
+  }
+
+  /**
+   * @return the start of the row ids of a shard, <code>prefix + shard + "_"</code>
+   */
+  String getShardPrefix(int shard) {
+    return prefix + getShard(shard, splits) + "_";
+  }
+
+  static long startOfDay(long millis) {
+    return millis - Math.floorMod(millis, DAY_MILLIS);
+  }
+}
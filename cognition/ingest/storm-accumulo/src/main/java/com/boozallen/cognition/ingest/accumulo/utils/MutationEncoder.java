@@ -0,0 +1,105 @@
+/*
+ * Licensed to Booz Allen Hamilton under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Booz Allen Hamilton licenses this file to you
+ * under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.boozallen.cognition.ingest.accumulo.utils;
+
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.security.ColumnVisibility;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.hadoop.io.Text;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes cells into mutations with as little per-cell work as possible: column families are encoded once and reused,
+ * column visibilities are parsed once per distinct expression, and qualifiers and values are encoded as UTF-8 straight
+ * into the mutation instead of through {@link Mutation#put(CharSequence, CharSequence, ColumnVisibility, Value)},
+ * which allocates a Text per column and a Value copy per cell.
+ * <p>
+ * Mutations copy every cell into their own buffer, so the qualifier buffer is reused between cells. Not thread safe;
+ * use one encoder per bolt instance.
+ */
+public class MutationEncoder {
+  static final int MAX_CACHED_VISIBILITIES = 1024;
+  private static final byte[] EMPTY = new byte[0];
+
+  private final Map<String, Text> families = new HashMap<>();
+  private final Map<String, ColumnVisibility> visibilities = new HashMap<>();
+  private final Text qualifier = new Text();
+  private ColumnVisibility emptyVisibility;
+
+  /**
+   * @return the encoded column family, shared between calls
+   */
+  public Text getFamily(String family) {
+    Text text = families.get(family);
+    if (text == null) {
+      text = new Text(family);
+      families.put(family, text);
+    }
+    return text;
+  }
+
+  /**
+   * Returns the parsed visibility of an expression, parsing each distinct expression once. The cache is cleared when
+   * it grows past {@link #MAX_CACHED_VISIBILITIES}, e.g. when visibilities come from a field with many values.
+   *
+   * @param expression may be blank for no visibility
+   */
+  public ColumnVisibility getVisibility(String expression) {
+    if (StringUtils.isBlank(expression)) {
+      if (emptyVisibility == null) {
+        emptyVisibility = new ColumnVisibility();
+      }
+      return emptyVisibility;
+    }
+    ColumnVisibility vis = visibilities.get(expression);
+    if (vis == null) {
+      if (visibilities.size() >= MAX_CACHED_VISIBILITIES) {
+        visibilities.clear();
+      }
+      vis = new ColumnVisibility(expression);
+      visibilities.put(expression, vis);
+    }
+    return vis;
+  }
+
+  /**
+   * Adds a cell; null qualifiers and values are written empty.
+   */
+  public void put(Mutation mutation, Text family, String qualifier, ColumnVisibility vis, String value) {
+    put(mutation, family, qualifier, vis, toBytes(value));
+  }
+
+  public void put(Mutation mutation, Text family, String qualifier, ColumnVisibility vis, byte[] value) {
+    this.qualifier.set(toBytes(qualifier));
+    mutation.put(family, this.qualifier, vis, new Value(value, false));
+  }
+
+  public void put(Mutation mutation, Text family, Text qualifier, ColumnVisibility vis, long timestamp, byte[] value) {
+    mutation.put(family, qualifier, vis, timestamp, new Value(value, false));
+  }
+
+  public static byte[] toBytes(String value) {
+    return value == null ? EMPTY : value.getBytes(StandardCharsets.UTF_8);
+  }
+}
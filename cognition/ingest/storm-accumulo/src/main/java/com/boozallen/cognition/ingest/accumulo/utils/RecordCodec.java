@@ -0,0 +1,144 @@
+/*
+ * Licensed to Booz Allen Hamilton under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Booz Allen Hamilton licenses this file to you
+ * under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.boozallen.cognition.ingest.accumulo.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compact binary encoding of a whole record (fields and metadata) into a single Accumulo value, used by the record
+ * storage mode of {@link com.boozallen.cognition.ingest.accumulo.storm.AccumuloEventStorageBolt}.
+ * <p>
+ * Layout: a version byte, then the fields section and the metadata section. Each section is a varint entry count
+ * followed by its entries sorted by name; an entry is the number of name bytes shared with the previous name, the
+ * remaining name bytes and the value bytes, each length a varint and all strings UTF-8. Front-coding the sorted names
+ * stores dotted field names such as <code>source.feed.*</code> about once instead of once per key.
+ * <p>
+ * The lens decoder, com.boozallen.cognition.accumulo.row.RecordCodec in spark-accumulo, must be kept in sync.
+ */
+public class RecordCodec {
+  public static final String RECORD_FAMILY = "record";
+  public static final String RECORD_QUALIFIER = "";
+  static final byte VERSION = 1;
+
+  public static byte[] encode(Map<String, String> fields, Map<String, String> metadata) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+    out.write(VERSION);
+    encodeSection(out, fields);
+    encodeSection(out, metadata);
+    return out.toByteArray();
+  }
+
+  private static void encodeSection(ByteArrayOutputStream out, Map<String, String> section) {
+    Map<String, String> sorted = new TreeMap<>();
+    for (Map.Entry<String, String> entry : section.entrySet()) {
+      sorted.put(entry.getKey() == null ? "" : entry.getKey(), entry.getValue() == null ? "" : entry.getValue());
+    }
+    writeVarInt(out, sorted.size());
+    byte[] previous = new byte[0];
+    for (Map.Entry<String, String> entry : sorted.entrySet()) {
+      byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+      int shared = sharedPrefix(previous, name);
+      writeVarInt(out, shared);
+      writeVarInt(out, name.length - shared);
+      out.write(name, shared, name.length - shared);
+      byte[] value = entry.getValue().getBytes(StandardCharsets.UTF_8);
+      writeVarInt(out, value.length);
+      out.write(value, 0, value.length);
+      previous = name;
+    }
+  }
+
+  /**
+   * Decodes a value written by {@link #encode}.
+   *
+   * @return column family ("data" or "metadata") to qualifier to value, as in the column storage mode
+   * @throws IllegalArgumentException if the version is not supported or the value is truncated
+   */
+  public static Map<String, Map<String, String>> decode(byte[] bytes) {
+    if (bytes.length == 0 || bytes[0] != VERSION) {
+      throw new IllegalArgumentException("Unsupported record encoding version");
+    }
+    int[] position = {1};
+    Map<String, Map<String, String>> families = new LinkedHashMap<>();
+    try {
+      families.put("data", decodeSection(bytes, position));
+      families.put("metadata", decodeSection(bytes, position));
+    } catch (ArrayIndexOutOfBoundsException e) {
+      throw new IllegalArgumentException("Truncated record encoding", e);
+    }
+    return families;
+  }
+
+  private static Map<String, String> decodeSection(byte[] bytes, int[] position) {
+    int count = readVarInt(bytes, position);
+    Map<String, String> section = new LinkedHashMap<>(count * 2);
+    byte[] previous = new byte[0];
+    for (int i = 0; i < count; i++) {
+      int shared = readVarInt(bytes, position);
+      int suffix = readVarInt(bytes, position);
+      byte[] name = Arrays.copyOf(previous, shared + suffix);
+      System.arraycopy(bytes, position[0], name, shared, suffix);
+      position[0] += suffix;
+      int valueLength = readVarInt(bytes, position);
+      if (position[0] + valueLength > bytes.length) {
+        throw new ArrayIndexOutOfBoundsException(position[0] + valueLength);
+      }
+      section.put(new String(name, StandardCharsets.UTF_8),
+          new String(bytes, position[0], valueLength, StandardCharsets.UTF_8));
+      position[0] += valueLength;
+      previous = name;
+    }
+    return section;
+  }
+
+  static int sharedPrefix(byte[] a, byte[] b) {
+    int max = Math.min(a.length, b.length);
+    int i = 0;
+    while (i < max && a[i] == b[i]) {
+      i++;
+    }
+    return i;
+  }
+
+  static void writeVarInt(ByteArrayOutputStream out, int value) {
+    while ((value & ~0x7F) != 0) {
+      out.write((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  static int readVarInt(byte[] bytes, int[] position) {
+    int value = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      byte b = bytes[position[0]++];
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IllegalArgumentException("Malformed varint");
+  }
+}
@@ -0,0 +1,220 @@
+/*
+ * Licensed to Booz Allen Hamilton under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Booz Allen Hamilton licenses this file to you
+ * under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.boozallen.cognition.ingest.accumulo.utils;
+
+import org.apache.accumulo.core.client.AccumuloException;
+import org.apache.accumulo.core.client.AccumuloSecurityException;
+import org.apache.accumulo.core.client.BatchWriter;
+import org.apache.accumulo.core.client.BatchWriterConfig;
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.Instance;
+import org.apache.accumulo.core.client.MultiTableBatchWriter;
+import org.apache.accumulo.core.client.MutationsRejectedException;
+import org.apache.accumulo.core.client.TableNotFoundException;
+import org.apache.accumulo.core.client.ZooKeeperInstance;
+import org.apache.accumulo.core.client.security.tokens.PasswordToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-JVM registry of {@link MultiTableBatchWriter}s shared by all Accumulo bolts of a worker that connect to the
+ * same instance with the same credentials. Sharing one writer gives a single larger buffer
+ * (<code>sharedMaxMem</code>) and one pool of <code>sharedMaxWriteThreads</code> threads instead of one writer, buffer
+ * and thread pool per executor, so mutations go out in fewer, larger batches.
+ * <p>
+ * Bolts {@link #acquire} a reference-counted {@link Lease} at prepare and close it at cleanup; the writer is flushed
+ * and closed when the last lease is closed. Writers of a {@link MultiTableBatchWriter} can neither be flushed nor
+ * closed individually, so flushing goes through the lease and flushes every table. Once the writer has rejected
+ * mutations it is unusable; {@link Lease#invalidate()} replaces it for all leases.
+ */
+public class SharedBatchWriters {
+  private static final Logger logger = LoggerFactory.getLogger(SharedBatchWriters.class);
+
+  private static final Map<String, Entry> ENTRIES = new HashMap<>();
+
+  /**
+   * Returns a lease on the writer shared by bolts with the same instance and credentials, creating it if needed. The
+   * buffer and thread settings of the first caller are used.
+   *
+   * @param config connection configuration
+   * @return lease, to be closed by the caller
+   * @throws AccumuloException
+   * @throws AccumuloSecurityException
+   */
+  public static Lease acquire(AccumuloConnectionConfig config) throws AccumuloException, AccumuloSecurityException {
+    String key = registryKey(config);
+    synchronized (ENTRIES) {
+      Entry entry = ENTRIES.get(key);
+      if (entry == null) {
+        entry = new Entry(key, config);
+        ENTRIES.put(key, entry);
+      }
+      entry.references++;
+      return new Lease(entry);
+    }
+  }
+
+  static int size() {
+    synchronized (ENTRIES) {
+      return ENTRIES.size();
+    }
+  }
+
+  static String registryKey(AccumuloConnectionConfig config) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      byte[] hash = digest.digest(String.valueOf(config.getKey()).getBytes(StandardCharsets.UTF_8));
+      StringBuilder key = new StringBuilder()
+          .append(config.getInstance()).append('|')
+          .append(config.getZooServers()).append('|')
+          .append(config.getUser()).append('|');
+      for (byte b : hash) {
+        key.append(String.format("%02x", b));
+      }
+      return key.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static void release(Entry entry) {
+    synchronized (ENTRIES) {
+      if (--entry.references > 0) {
+        return;
+      }
+      ENTRIES.remove(entry.key);
+    }
+    entry.close();
+  }
+
+  private static class Entry {
+    final String key;
+    final Connector connector;
+    final BatchWriterConfig writerConfig;
+    int references;
+    MultiTableBatchWriter writer;
+    int generation;
+
+    Entry(String key, AccumuloConnectionConfig config) throws AccumuloException, AccumuloSecurityException {
+      this.key = key;
+      Instance instance = new ZooKeeperInstance(config.getInstance(), config.getZooServers());
+      connector = instance.getConnector(config.getUser(), new PasswordToken(config.getKey()));
+      writerConfig = new BatchWriterConfig();
+      writerConfig.setMaxMemory(config.getSharedMaxMem());
+      writerConfig.setMaxLatency(config.getMaxLatency(), TimeUnit.MILLISECONDS);
+      writerConfig.setMaxWriteThreads(config.getSharedMaxWriteThreads());
+      writer = connector.createMultiTableBatchWriter(writerConfig);
+    }
+
+    synchronized void replace(int failedGeneration) {
+      if (generation != failedGeneration) {
+        return; // already replaced after the same failure
+      }
+      try {
+        writer.close();
+      } catch (MutationsRejectedException | RuntimeException e) {
+        logger.warn("Failed to close rejected shared batch writer", e);
+      }
+      writer = connector.createMultiTableBatchWriter(writerConfig);
+      generation++;
+    }
+
+    synchronized void close() {
+      try {
+        writer.close();
+      } catch (MutationsRejectedException e) {
+        logger.error("Failed committing mutation batch on close of shared batch writer", e);
+      }
+    }
+  }
+
+  /**
+   * A bolt's reference to a shared writer.
+   */
+  public static class Lease implements AutoCloseable {
+    private final Entry entry;
+    private int generation;
+    private boolean closed;
+
+    Lease(Entry entry) {
+      this.entry = entry;
+    }
+
+    public Connector getConnector() {
+      return entry.connector;
+    }
+
+    /**
+     * @param table
+     * @return writer for the table, which must not be flushed or closed directly
+     * @throws AccumuloException
+     * @throws AccumuloSecurityException
+     * @throws TableNotFoundException
+     */
+    public BatchWriter getBatchWriter(String table)
+        throws AccumuloException, AccumuloSecurityException, TableNotFoundException {
+      synchronized (entry) {
+        generation = entry.generation;
+        return entry.writer.getBatchWriter(table);
+      }
+    }
+
+    /**
+     * Sends mutations of all tables buffered in the shared writer.
+     *
+     * @throws MutationsRejectedException
+     * @throws IllegalStateException      if the writer was replaced since this lease last fetched a table writer, so
+     *                                    mutations added through it may have been lost
+     */
+    public void flush() throws MutationsRejectedException {
+      MultiTableBatchWriter writer;
+      synchronized (entry) {
+        if (generation != entry.generation) {
+          throw new IllegalStateException("Shared batch writer was replaced after rejecting mutations");
+        }
+        writer = entry.writer;
+      }
+      writer.flush();
+    }
+
+    /**
+     * Replaces the shared writer after it rejected mutations, unless another lease already did. Writers previously
+     * returned by {@link #getBatchWriter(String)} must be fetched again.
+     */
+    public void invalidate() {
+      entry.replace(generation);
+    }
+
+    @Override
+    public void close() {
+      if (!closed) {
+        closed = true;
+        release(entry);
+      }
+    }
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ * Licensed to Booz Allen Hamilton under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Booz Allen Hamilton licenses this file to you
+ * under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.boozallen.cognition.ingest.accumulo.utils;
+
+import org.apache.accumulo.core.client.MutationsRejectedException;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Why a batch writer failed to write mutations. Constraint violations and authorization failures come back on every
+ * attempt, so only server failures (tablet server errors, unknown exceptions, or a writer that was replaced or closed)
+ * are worth retrying.
+ */
+public enum WriteFailure {
+  CONSTRAINT("constraint"),
+  AUTHORIZATION("authorization"),
+  SERVER("server");
+
+  private final String metricName;
+
+  WriteFailure(String metricName) {
+    this.metricName = metricName;
+  }
+
+  public String getMetricName() {
+    return metricName;
+  }
+
+  /**
+   * @param e the failure of a write, usually a {@link MutationsRejectedException}
+   * @return the failure classes reported, never empty; failures without rejection details are server failures
+   */
+  public static Set<WriteFailure> classify(Throwable e) {
+    Set<WriteFailure> failures = EnumSet.noneOf(WriteFailure.class);
+    if (e instanceof MutationsRejectedException) {
+      MutationsRejectedException rejected = (MutationsRejectedException) e;
+      if (!rejected.getConstraintViolationSummaries().isEmpty()) {
+        failures.add(CONSTRAINT);
+      }
+      if (!rejected.getAuthorizationFailuresMap().isEmpty()) {
+        failures.add(AUTHORIZATION);
+      }
+      if (!rejected.getErrorServers().isEmpty() || rejected.getUnknownExceptions() > 0) {
+        failures.add(SERVER);
+      }
+    }
+    if (failures.isEmpty()) {
+      failures.add(SERVER);
+    }
+    return failures;
+  }
+
+  /**
+   * @return true if none of the failures would recur on retry
+   */
+  public static boolean isRetryable(Set<WriteFailure> failures) {
+    return !failures.contains(CONSTRAINT) && !failures.contains(AUTHORIZATION);
+  }
+}
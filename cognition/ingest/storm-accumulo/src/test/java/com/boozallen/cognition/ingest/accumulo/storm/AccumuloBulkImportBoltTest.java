@@ -0,0 +1,207 @@
+/*
+ * Licensed to Booz Allen Hamilton under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Booz Allen Hamilton licenses this file to you
+ * under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.boozallen.cognition.ingest.accumulo.storm;
+
+import com.boozallen.cognition.ingest.storm.vo.LogRecord;
+import mockit.Delegate;
+import mockit.Expectations;
+import mockit.Injectable;
+import mockit.Tested;
+import mockit.Verifications;
+import org.apache.accumulo.core.client.BatchWriterConfig;
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.admin.TableOperations;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Value;
+import org.apache.commons.configuration.XMLConfiguration;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class AccumuloBulkImportBoltTest {
+  @Tested
+  AccumuloBulkImportBolt bolt;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Before
+  public void setup() throws Exception {
+    bolt.fileSystem = FileSystem.getLocal(new Configuration());
+    bolt.bulkWorkDir = folder.getRoot().getAbsolutePath();
+    bolt.eventTable = "events";
+    bolt.uuidPrefix = "";
+    bolt.splits = 1;
+  }
+
+  @Test
+  public void testConfigureAccumuloBolt() throws Exception {
+    XMLConfiguration conf = new XMLConfiguration();
+    conf.load(new StringReader("<conf>"
+        + "<eventTable>events</eventTable>"
+        + "<bulkWorkDir>/cognition/bulk</bulkWorkDir>"
+        + "<hadoopConfig><fs.defaultFS>hdfs://namenode:8020</fs.defaultFS></hadoopConfig>"
+        + "</conf>"));
+
+    bolt.configureAccumuloBolt(conf);
+    assertThat(bolt.ackAfterFlush, is(true));
+    assertThat(bolt.bulkMaxBytes, is(AccumuloBulkImportBolt.BULK_MAX_BYTES_DEFAULT));
+    assertThat(bolt.hadoopConfig, is(Collections.singletonMap("fs.defaultFS", "hdfs://namenode:8020")));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConfigureMissingWorkDir() throws Exception {
+    XMLConfiguration conf = new XMLConfiguration();
+    conf.load(new StringReader("<conf>"
+        + "<eventTable>events</eventTable>"
+        + "<hadoopConfDirectory>/etc/hadoop</hadoopConfDirectory>"
+        + "</conf>"));
+
+    bolt.configureAccumuloBolt(conf);
+  }
+
+  @Test
+  public void testProcess() {
+    bolt.indexTable = "eventIndex";
+    bolt.indexFields = Collections.singletonMap("user", "user");
+    bolt.process(record("uuid1", "bob"));
+    bolt.process(record("uuid0", "alice"));
+
+    List<String> rows = new ArrayList<>();
+    for (Key key : bolt.buffers.get("events").keySet()) {
+      rows.add(key.getRow().toString() + ":" + key.getColumnQualifier());
+    }
+    assertThat(rows, is(Arrays.asList("0_0000001000000_uuid0:user", "0_0000001000000_uuid1:user")));
+    assertThat(bolt.buffers.get("eventIndex").size(), is(2));
+    assertThat(bolt.bufferedBytes > 0, is(true));
+
+    bolt.bulkMaxBytes = bolt.bufferedBytes;
+    assertThat(bolt.isBufferFull(), is(true));
+  }
+
+  @Test
+  public void testWriteFilesBySplits() throws Exception {
+    SortedMap<Key, Value> buffer = new TreeMap<>();
+    for (String row : Arrays.asList("a", "b", "c", "e", "f")) {
+      buffer.put(new Key(row, "data", "user"), new Value(row.getBytes()));
+    }
+    Path dir = new Path(folder.getRoot().getAbsolutePath(), "files");
+
+    // tablets (-inf, b], (b, d], (d, +inf)
+    int files = bolt.writeFiles(dir, buffer, Arrays.asList(new Text("d"), new Text("b")));
+    assertThat(files, is(3));
+    assertThat(bolt.fileSystem.listStatus(dir).length, is(3));
+  }
+
+  @Test
+  public void testFlush(
+      @Injectable Connector conn,
+      @Injectable TableOperations tableOperations) throws Exception {
+    bolt.conn = conn;
+    bolt.process(record("uuid0", "alice"));
+    int[] files = {0};
+
+    new Expectations() {{
+      conn.tableOperations();
+      result = tableOperations;
+      tableOperations.listSplits("events");
+      result = Collections.emptyList();
+      tableOperations.importDirectory("events", anyString, anyString, false);
+      result = new Delegate<Void>() {
+        void importDirectory(String table, String dir, String failureDir, boolean setTime) {
+          files[0] = new File(dir).list().length;
+        }
+      };
+    }};
+
+    bolt.flush();
+    assertThat(files[0], is(1));
+    assertThat(bolt.buffers.isEmpty(), is(true));
+    assertThat(bolt.bufferedBytes, is(0L));
+    // the import directory is removed once imported
+    assertThat(new File(folder.getRoot(), "events").list().length, is(0));
+  }
+
+  @Test
+  public void testFlushFailedImport(
+      @Injectable Connector conn,
+      @Injectable TableOperations tableOperations) throws Exception {
+    bolt.conn = conn;
+    bolt.process(record("uuid0", "alice"));
+
+    new Expectations() {{
+      conn.tableOperations();
+      result = tableOperations;
+      tableOperations.listSplits("events");
+      result = Collections.emptyList();
+      tableOperations.importDirectory("events", anyString, anyString, false);
+      result = new Delegate<Void>() {
+        void importDirectory(String table, String dir, String failureDir, boolean setTime) throws IOException {
+          new File(failureDir, "00000.rf").createNewFile();
+        }
+      };
+    }};
+
+    try {
+      bolt.flush();
+      fail("failed files should fail the flush");
+    } catch (IllegalStateException e) {
+      assertThat(bolt.buffers.isEmpty(), is(true));
+    }
+  }
+
+  @Test
+  public void testResetEventWriter(@Injectable Connector conn) throws Exception {
+    bolt.conn = conn;
+    bolt.resetEventWriter();
+
+    new Verifications() {{
+      conn.createBatchWriter(anyString, (BatchWriterConfig) any);
+      times = 0;
+    }};
+  }
+
+  private static LogRecord record(String uuid, String user) {
+    LogRecord record = new LogRecord(uuid);
+    record.setDate(new Date(1000000));
+    record.setValue("user", user);
+    return record;
+  }
+}
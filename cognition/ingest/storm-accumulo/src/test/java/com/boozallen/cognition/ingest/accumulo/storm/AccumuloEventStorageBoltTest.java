@@ -19,26 +19,45 @@
 
 package com.boozallen.cognition.ingest.accumulo.storm;
 
+import backtype.storm.Config;
+import backtype.storm.task.OutputCollector;
 import backtype.storm.task.TopologyContext;
 import backtype.storm.topology.FailedException;
+import backtype.storm.tuple.Tuple;
+import backtype.storm.tuple.Values;
 import com.boozallen.cognition.ingest.accumulo.utils.AccumuloBoltUtils;
+import com.boozallen.cognition.ingest.accumulo.utils.EventTableAdmin;
+import com.boozallen.cognition.ingest.accumulo.utils.RecordCodec;
 import com.boozallen.cognition.ingest.storm.PrepareFailedException;
 import com.boozallen.cognition.ingest.storm.vo.LogRecord;
 import mockit.*;
 import org.apache.accumulo.core.client.*;
+import org.apache.accumulo.core.data.ColumnUpdate;
+import org.apache.accumulo.core.data.ConstraintViolationSummary;
 import org.apache.accumulo.core.data.Mutation;
-import org.apache.accumulo.core.data.Value;
 import org.apache.accumulo.core.security.ColumnVisibility;
 import org.apache.commons.configuration.Configuration;
+import org.apache.commons.configuration.XMLConfiguration;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import static com.boozallen.cognition.ingest.accumulo.storm.AccumuloEventStorageBolt.*;
+import static com.boozallen.cognition.ingest.storm.bolt.AbstractLogRecordBolt.RECORD;
 import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
 import static org.junit.Assert.assertThat;
 
 /**
@@ -64,6 +83,8 @@ public class AccumuloEventStorageBoltTest {
       result = "";
       conf.getString(VISIBILITY_BY_FIELD);
       result = "";
+      conf.getString(STORAGE_MODE, COLUMN_STORAGE);
+      result = COLUMN_STORAGE;
     }};
 
     bolt.configureAccumuloBolt(conf);
@@ -80,6 +101,49 @@ public class AccumuloEventStorageBoltTest {
     bolt.prepareAccumuloBolt(stormConf, context);
   }
 
+  @Test
+  public void testPrepareEventTable(@Injectable EventTableAdmin admin) throws Exception {
+    bolt.createTable = true;
+    bolt.preSplit = true;
+
+    new Expectations() {{
+      admin.createTableIfMissing();
+      admin.addShardSplits();
+    }};
+
+    bolt.prepareEventTable(admin, true);
+    assertThat(bolt.splitMaintenance, is(nullValue()));
+  }
+
+  @Test
+  public void testPrepareEventTableDocumentLocalityGroup(@Injectable EventTableAdmin admin) throws Exception {
+    bolt.createTable = true;
+    bolt.documentFields = Arrays.asList("cognition.esjson");
+    bolt.documentFamily = "document";
+    bolt.documentCompression = "gz";
+
+    new Expectations() {{
+      admin.createTableIfMissing();
+      admin.setDocumentLocalityGroup("document", "gz");
+    }};
+
+    bolt.prepareEventTable(admin, true);
+  }
+
+  @Test
+  public void testPrepareEventTableOtherTask(@Injectable EventTableAdmin admin) throws Exception {
+    bolt.createTable = true;
+    bolt.preSplit = true;
+
+    bolt.prepareEventTable(admin, false);
+
+    new Verifications() {{
+      admin.createTableIfMissing();
+      admin.addShardSplits();
+      times = 0;
+    }};
+  }
+
   @Test
   public void testResetEventWriter(
       @Injectable BatchWriter eventWriter,
@@ -177,6 +241,29 @@ public class AccumuloEventStorageBoltTest {
     bolt.cleanupEventWriter();
   }
 
+  @Test
+  public void testCleanupEventWriterClosesRejectedWriters(
+      @Injectable BatchWriter eventWriter,
+      @Injectable BatchWriter indexWriter,
+      @Injectable MutationsRejectedException e) throws Exception {
+    bolt.eventWriter = eventWriter;
+    bolt.indexWriter = indexWriter;
+
+    new Expectations() {{
+      eventWriter.flush();
+      result = e;
+      eventWriter.close();
+      result = e;
+    }};
+
+    bolt.cleanupEventWriter();
+
+    new Verifications() {{
+      indexWriter.close();
+      times = 1;
+    }};
+  }
+
   @Test
   public void testProcess(
       @Injectable LogRecord record,
@@ -213,6 +300,101 @@ public class AccumuloEventStorageBoltTest {
     bolt.process(record);
   }
 
+  @Test
+  public void testProcessWithIndex(
+      @Injectable LogRecord record,
+      @Injectable BatchWriter eventWriter,
+      @Injectable BatchWriter indexWriter,
+      @Injectable Mutation event,
+      @Injectable List<Mutation> index) throws Exception {
+    bolt.eventWriter = eventWriter;
+    bolt.indexWriter = indexWriter;
+    bolt.indexTable = "eventIndex";
+
+    new Expectations(bolt) {{
+      bolt.getEventMutation(record);
+      result = event;
+      eventWriter.addMutation(event);
+      bolt.getIndexMutations(record, event);
+      result = index;
+      indexWriter.addMutations(index);
+    }};
+
+    bolt.process(record);
+  }
+
+  @Test
+  public void testConfigureIndex() throws Exception {
+    XMLConfiguration conf = new XMLConfiguration();
+    conf.load(new StringReader("<conf>"
+        + "<eventTable>events</eventTable>"
+        + "<indexTable>eventIndex</indexTable>"
+        + "<indexFields>"
+        + "<entry><field>user.screen_name</field><index>user</index></entry>"
+        + "<entry><field>lang</field><index>language</index></entry>"
+        + "</indexFields>"
+        + "</conf>"));
+
+    bolt.configureAccumuloBolt(conf);
+
+    assertThat(bolt.isIndexing(), is(true));
+    assertThat(bolt.indexFields.get("user.screen_name"), is("user"));
+    assertThat(bolt.indexFields.get("lang"), is("language"));
+  }
+
+  @Test
+  public void testConfigureIndexWithoutFields() throws Exception {
+    XMLConfiguration conf = new XMLConfiguration();
+    conf.load(new StringReader("<conf><eventTable>events</eventTable><indexTable>eventIndex</indexTable></conf>"));
+
+    thrown.expect(IllegalArgumentException.class);
+    bolt.configureAccumuloBolt(conf);
+  }
+
+  @Test
+  public void testGetIndexMutations() {
+    LogRecord record = new LogRecord("uuid");
+    record.setDate(new Date(1445332752000L));
+    record.setValue("user.screen_name", "Bob");
+    record.setValue("user.name", "bob");
+    record.setValue("lang", "");
+    bolt.indexFields = new HashMap<>();
+    bolt.indexFields.put("user.screen_name", "user");
+    bolt.indexFields.put("user.name", "user");
+    bolt.indexFields.put("lang", "language");
+
+    List<Mutation> mutations = bolt.getIndexMutations(record, new Mutation("TWITTER_a_1445332752000_uuid"));
+
+    assertThat(mutations.size(), is(1));
+    Mutation mutation = mutations.get(0);
+    assertThat(new String(mutation.getRow()), is("user\u0000bob\u00000001445299200000"));
+    ColumnUpdate update = mutation.getUpdates().get(0);
+    assertThat(new String(update.getColumnQualifier()), is("TWITTER_a_1445332752000_uuid"));
+    assertThat(update.getTimestamp(), is(1445332752000L));
+  }
+
+  @Test
+  public void testGetIndexMutationsTerms() {
+    LogRecord record = new LogRecord("uuid");
+    record.setDate(new Date(1445332752000L));
+    record.setValue("body", "Flooding in houston flooding");
+    bolt.indexFields = new HashMap<>();
+    bolt.termFields = Arrays.asList("body", "missing");
+    bolt.termShards = 1;
+
+    List<Mutation> mutations = bolt.getIndexMutations(record, new Mutation("TWITTER_a_1445332752000_uuid"));
+
+    Set<String> rows = new HashSet<>();
+    for (Mutation mutation : mutations) {
+      rows.add(new String(mutation.getRow()));
+      assertThat(new String(mutation.getUpdates().get(0).getColumnQualifier()), is("TWITTER_a_1445332752000_uuid"));
+    }
+    assertThat(rows, is(new HashSet<>(Arrays.asList(
+        "keyword\u0000flooding\u00000001445299200000\u00000",
+        "keyword\u0000in\u00000001445299200000\u00000",
+        "keyword\u0000houston\u00000001445299200000\u00000"))));
+  }
+
   @Test
   public void testGetEventMutation(
       @Injectable LogRecord record,
@@ -249,6 +431,62 @@ public class AccumuloEventStorageBoltTest {
     assertThat(bolt.getEventMutation(record), is(event));
   }
 
+  @Test
+  public void testGetEventMutationDocumentFields() {
+    LogRecord record = new LogRecord("uuid");
+    record.setValue("user", "bob");
+    record.setValue("cognition.esjson", "{}");
+    record.addMetadataValue("cognition.dataType", "twitter");
+    bolt.uuidPrefix = "";
+    bolt.splits = 1;
+    bolt.documentFields = Arrays.asList("cognition.esjson", "missing");
+    bolt.documentFamily = "document";
+
+    Set<String> columns = new HashSet<>();
+    for (ColumnUpdate update : bolt.getEventMutation(record).getUpdates()) {
+      columns.add(new String(update.getColumnFamily()) + ":" + new String(update.getColumnQualifier()));
+    }
+    assertThat(columns, is(new HashSet<>(Arrays.asList(
+        "document:cognition.esjson", "data:user", "metadata:cognition.dataType"))));
+    assertThat(record.getValue("cognition.esjson"), is("{}"));
+  }
+
+  @Test
+  public void testGetEventMutationRecordStorage() {
+    LogRecord record = new LogRecord("uuid");
+    record.setValue("user", "bob");
+    record.setValue("body", "flooding in houston");
+    record.setValue("cognition.esjson", "{}");
+    record.addMetadataValue("cognition.dataType", "twitter");
+    bolt.uuidPrefix = "";
+    bolt.splits = 1;
+    bolt.documentFields = Arrays.asList("cognition.esjson");
+    bolt.documentFamily = "document";
+    bolt.storageMode = RECORD_STORAGE;
+    bolt.queryColumns = Arrays.asList("user", "missing");
+
+    Map<String, byte[]> columns = new HashMap<>();
+    for (ColumnUpdate update : bolt.getEventMutation(record).getUpdates()) {
+      columns.put(new String(update.getColumnFamily()) + ":" + new String(update.getColumnQualifier()),
+          update.getValue());
+    }
+    assertThat(columns.keySet(), is(new HashSet<>(Arrays.asList("record:", "data:user", "document:cognition.esjson"))));
+
+    Map<String, Map<String, String>> decoded = RecordCodec.decode(columns.get("record:"));
+    assertThat(decoded.get("data").size(), is(2));
+    assertThat(decoded.get("data").get("body"), is("flooding in houston"));
+    assertThat(decoded.get("metadata").get("cognition.dataType"), is("twitter"));
+  }
+
+  @Test
+  public void testConfigureInvalidStorageMode() throws Exception {
+    XMLConfiguration conf = new XMLConfiguration();
+    conf.load(new StringReader("<conf><eventTable>events</eventTable><storageMode>avro</storageMode></conf>"));
+
+    thrown.expect(IllegalArgumentException.class);
+    bolt.configureAccumuloBolt(conf);
+  }
+
   @Test
   public void testGetColumnVisibility(
       @Injectable LogRecord record,
@@ -297,17 +535,21 @@ public class AccumuloEventStorageBoltTest {
   }
 
   @Test
-  public void testPopulateMutation(
-      @Injectable Mutation mut,
-      @Injectable String columnFamily,
-      @Injectable ColumnVisibility vis) throws Exception {
-    Map<String, String> fields = new HashMap<>();
-    fields.put("key", "value");
-
-    new Expectations() {{
-      mut.put(columnFamily, "key", vis, (Value) any);
-    }};
-    bolt.populateMutation(mut, columnFamily, vis, fields);
+  public void testPopulateMutation() throws Exception {
+    Map<String, String> fields = new LinkedHashMap<>();
+    fields.put("key", "caf\u00e9");
+    fields.put("empty", null);
+    Mutation mut = new Mutation("row");
+
+    bolt.populateMutation(mut, "data", new ColumnVisibility("A&B"), fields);
+
+    List<ColumnUpdate> updates = mut.getUpdates();
+    assertThat(updates.size(), is(2));
+    assertThat(new String(updates.get(0).getColumnFamily()), is("data"));
+    assertThat(new String(updates.get(0).getColumnQualifier()), is("key"));
+    assertThat(new String(updates.get(0).getColumnVisibility()), is("A&B"));
+    assertThat(updates.get(0).getValue(), is("caf\u00e9".getBytes(StandardCharsets.UTF_8)));
+    assertThat(updates.get(1).getValue().length, is(0));
   }
 
   @Test
@@ -317,4 +559,305 @@ public class AccumuloEventStorageBoltTest {
     }};
     bolt.cleanup();
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testExecute(
+      @Injectable OutputCollector collector,
+      @Injectable Tuple tuple,
+      @Injectable LogRecord record) {
+    bolt.collector = collector;
+    bolt.ackAfterFlush = false;
+
+    new Expectations(bolt) {{
+      tuple.getValueByField(RECORD);
+      result = record;
+      bolt.process(record);
+      collector.emit(tuple, new Values(record));
+      collector.ack(tuple);
+    }};
+
+    bolt.execute(tuple);
+    assertThat(bolt.pending.isEmpty(), is(true));
+  }
+
+  @Test
+  public void testExecuteAckAfterFlush(
+      @Injectable OutputCollector collector,
+      @Injectable Tuple tuple0,
+      @Injectable Tuple tuple1,
+      @Injectable LogRecord record,
+      @Injectable BatchWriter eventWriter) throws Exception {
+    bolt.collector = collector;
+    bolt.eventWriter = eventWriter;
+    bolt.ackAfterFlush = true;
+    bolt.flushTuples = 2;
+    bolt.flushLatencyMs = Long.MAX_VALUE;
+
+    new Expectations(bolt) {{
+      tuple0.getValueByField(RECORD);
+      result = record;
+      tuple1.getValueByField(RECORD);
+      result = record;
+      bolt.process(record);
+      eventWriter.flush();
+      times = 1;
+    }};
+
+    bolt.execute(tuple0);
+    assertThat(bolt.pending.size(), is(1));
+    bolt.execute(tuple1);
+    assertThat(bolt.pending.isEmpty(), is(true));
+
+    new Verifications() {{
+      collector.ack(tuple0);
+      collector.ack(tuple1);
+      collector.fail((Tuple) any);
+      times = 0;
+    }};
+  }
+
+  @Test
+  public void testExecuteAckAfterFlushFailure(
+      @Injectable OutputCollector collector,
+      @Injectable Tuple tuple0,
+      @Injectable Tuple tuple1,
+      @Injectable LogRecord record,
+      @Injectable BatchWriter eventWriter,
+      @Injectable MutationsRejectedException e) throws Exception {
+    bolt.collector = collector;
+    bolt.eventWriter = eventWriter;
+    bolt.ackAfterFlush = true;
+    bolt.flushTuples = 2;
+    bolt.flushLatencyMs = Long.MAX_VALUE;
+
+    new Expectations(bolt) {{
+      tuple0.getValueByField(RECORD);
+      result = record;
+      tuple1.getValueByField(RECORD);
+      result = record;
+      bolt.process(record);
+      eventWriter.flush();
+      result = e;
+      bolt.resetEventWriter();
+    }};
+
+    bolt.execute(tuple0);
+    bolt.execute(tuple1);
+    assertThat(bolt.pending.isEmpty(), is(true));
+
+    new Verifications() {{
+      collector.fail(tuple0);
+      collector.fail(tuple1);
+      collector.ack((Tuple) any);
+      times = 0;
+    }};
+  }
+
+  @Test
+  public void testExecuteAckAfterFlushProcessFailure(
+      @Injectable OutputCollector collector,
+      @Injectable Tuple tuple0,
+      @Injectable Tuple tuple1,
+      @Injectable LogRecord record0,
+      @Injectable LogRecord record1,
+      @Injectable BatchWriter eventWriter) throws Exception {
+    bolt.collector = collector;
+    bolt.eventWriter = eventWriter;
+    bolt.ackAfterFlush = true;
+    bolt.flushTuples = 10;
+    bolt.flushLatencyMs = Long.MAX_VALUE;
+
+    new Expectations(bolt) {{
+      tuple0.getValueByField(RECORD);
+      result = record0;
+      tuple1.getValueByField(RECORD);
+      result = record1;
+      bolt.process(record0);
+      times = 2;
+      bolt.process(record1);
+      result = new FailedException();
+      eventWriter.flush();
+    }};
+
+    bolt.execute(tuple0);
+    bolt.execute(tuple1);
+    // the pending tuple is kept, its mutations are sent again with the next flush
+    assertThat(bolt.pending.size(), is(1));
+    assertThat(bolt.resendPending, is(true));
+    bolt.flushPending();
+    assertThat(bolt.resendPending, is(false));
+
+    new Verifications() {{
+      collector.fail(tuple1);
+      collector.ack(tuple0);
+      collector.fail(tuple0);
+      times = 0;
+    }};
+  }
+
+  @Test
+  public void testExecuteRetriesFailedProcess(
+      @Injectable OutputCollector collector,
+      @Injectable Tuple tuple,
+      @Injectable LogRecord record) throws Exception {
+    bolt.collector = collector;
+    bolt.maxWriteRetries = 2;
+    bolt.retryBackoffMs = 100;
+    bolt.maxRetryBackoffMs = 150;
+    int[] calls = {0};
+
+    new Expectations(bolt) {{
+      tuple.getValueByField(RECORD);
+      result = record;
+      bolt.process(record);
+      result = new Delegate<Void>() {
+        void process(LogRecord record) {
+          if (calls[0]++ < 2) {
+            throw new FailedException();
+          }
+        }
+      };
+      bolt.sleep(anyLong);
+    }};
+
+    bolt.execute(tuple);
+    assertThat(calls[0], is(3));
+    assertThat(bolt.writeFailures.getValueAndReset(), is((Object) Collections.singletonMap("server", 2L)));
+
+    new Verifications() {{
+      bolt.sleep(100);
+      bolt.sleep(150);
+      collector.ack(tuple);
+    }};
+  }
+
+  @Test
+  public void testExecuteRetriesExhausted(
+      @Injectable OutputCollector collector,
+      @Injectable Tuple tuple,
+      @Injectable LogRecord record) throws Exception {
+    bolt.collector = collector;
+    bolt.maxWriteRetries = 1;
+
+    new Expectations(bolt) {{
+      tuple.getValueByField(RECORD);
+      result = record;
+      bolt.process(record);
+      result = new FailedException();
+      times = 2;
+      bolt.sleep(anyLong);
+    }};
+
+    bolt.execute(tuple);
+
+    new Verifications() {{
+      collector.fail(tuple);
+      collector.emit((Tuple) any, (List<Object>) any);
+      times = 0;
+    }};
+  }
+
+  @Test
+  public void testExecuteAckAfterFlushRetriesServerFailure(
+      @Injectable OutputCollector collector,
+      @Injectable Tuple tuple0,
+      @Injectable Tuple tuple1,
+      @Injectable LogRecord record,
+      @Injectable MutationsRejectedException e) throws Exception {
+    bolt.collector = collector;
+    bolt.ackAfterFlush = true;
+    bolt.flushTuples = 2;
+    bolt.flushLatencyMs = Long.MAX_VALUE;
+    bolt.maxWriteRetries = 1;
+    int[] flushes = {0};
+
+    new Expectations(bolt) {{
+      tuple0.getValueByField(RECORD);
+      result = record;
+      tuple1.getValueByField(RECORD);
+      result = record;
+      e.getErrorServers();
+      result = Collections.singleton("tserver:9997");
+      bolt.flush();
+      result = new Delegate<Void>() {
+        void flush() throws MutationsRejectedException {
+          if (flushes[0]++ == 0) {
+            throw e;
+          }
+        }
+      };
+      bolt.resetEventWriter();
+      bolt.sleep(anyLong);
+      bolt.process(record);
+      times = 4; // added, then added again after the writer was replaced
+    }};
+
+    bolt.execute(tuple0);
+    bolt.execute(tuple1);
+    assertThat(bolt.pending.isEmpty(), is(true));
+
+    new Verifications() {{
+      collector.ack(tuple0);
+      collector.ack(tuple1);
+      collector.fail((Tuple) any);
+      times = 0;
+    }};
+  }
+
+  @Test
+  public void testExecuteAckAfterFlushIsolatesConstraintViolation(
+      @Injectable OutputCollector collector,
+      @Injectable Tuple tuple0,
+      @Injectable Tuple tuple1,
+      @Injectable LogRecord record,
+      @Injectable MutationsRejectedException e) throws Exception {
+    bolt.collector = collector;
+    bolt.ackAfterFlush = true;
+    bolt.flushTuples = 2;
+    bolt.flushLatencyMs = Long.MAX_VALUE;
+    bolt.maxWriteRetries = 3;
+    int[] flushes = {0};
+
+    new Expectations(bolt) {{
+      tuple0.getValueByField(RECORD);
+      result = record;
+      tuple1.getValueByField(RECORD);
+      result = record;
+      e.getConstraintViolationSummaries();
+      result = Collections.singletonList(new ConstraintViolationSummary("Constraint", (short) 1, "invalid", 1));
+      // the batch fails, then the half with tuple0 is written and the half with tuple1 fails again
+      bolt.flush();
+      result = new Delegate<Void>() {
+        void flush() throws MutationsRejectedException {
+          if (flushes[0]++ != 1) {
+            throw e;
+          }
+        }
+      };
+      bolt.resetEventWriter();
+      bolt.process(record);
+    }};
+
+    bolt.execute(tuple0);
+    bolt.execute(tuple1);
+    assertThat(flushes[0], is(3));
+    assertThat(bolt.writeFailures.getValueAndReset(), is((Object) Collections.singletonMap("constraint", 2L)));
+
+    new Verifications() {{
+      collector.ack(tuple0);
+      collector.fail(tuple1);
+      bolt.sleep(anyLong);
+      times = 0;
+    }};
+  }
+
+  @Test
+  public void testGetComponentConfiguration() {
+    bolt.ackAfterFlush = false;
+    assertThat(bolt.getComponentConfiguration(), is(nullValue()));
+
+    bolt.ackAfterFlush = true;
+    bolt.flushLatencyMs = 2500;
+    assertThat(bolt.getComponentConfiguration().get(Config.TOPOLOGY_TICK_TUPLE_FREQ_SECS), is(2));
+  }
+}
@@ -6,10 +6,16 @@ import mockit.Injectable;
 import mockit.Mocked;
 import org.junit.Test;
 
+import java.util.Arrays;
 import java.util.Date;
+import java.util.LinkedHashSet;
 
+import static com.boozallen.cognition.ingest.accumulo.utils.AccumuloBoltUtils.formatTimestamp;
 import static com.boozallen.cognition.ingest.accumulo.utils.AccumuloBoltUtils.getEventRecordId;
+import static com.boozallen.cognition.ingest.accumulo.utils.AccumuloBoltUtils.getIndexBucket;
+import static com.boozallen.cognition.ingest.accumulo.utils.AccumuloBoltUtils.getIndexRowId;
 import static com.boozallen.cognition.ingest.accumulo.utils.AccumuloBoltUtils.getShard;
+import static com.boozallen.cognition.ingest.accumulo.utils.AccumuloBoltUtils.getTerms;
 import static org.hamcrest.core.Is.is;
 import static org.junit.Assert.assertThat;
 
@@ -28,7 +34,14 @@ public class AccumuloBoltUtilsTest {
             result = 1000000;
         }};
         String result = getEventRecordId(record, "PREFIX_", 1);
-        assertThat(result, is("PREFIX_0_1000000_test"));
+        assertThat(result, is("PREFIX_0_0000001000000_test"));
+    }
+
+    @Test
+    public void testFormatTimestamp() {
+        assertThat(formatTimestamp(0), is("0000000000000"));
+        assertThat(formatTimestamp(1445299200000L), is("1445299200000"));
+        assertThat(formatTimestamp(-1000), is("-1000"));
     }
 
     @Test
@@ -42,4 +55,24 @@ public class AccumuloBoltUtilsTest {
         assertThat(getShard(18, 36), is("i"));
         assertThat(getShard(35, 36), is("z"));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testGetIndexRowId() {
+        assertThat(getIndexRowId("user", "Bob", 1445332752000L), is("user\u0000bob\u00000001445299200000"));
+    }
+
+    @Test
+    public void testGetIndexBucket() {
+        assertThat(getIndexBucket(0L), is(0L));
+        assertThat(getIndexBucket(86399999L), is(0L));
+        assertThat(getIndexBucket(86400000L), is(86400000L));
+    }
+
+    @Test
+    public void testGetTerms() {
+        assertThat(getTerms(" Flooding in\tHouston, flooding\n"),
+            is(new LinkedHashSet<>(Arrays.asList("flooding", "in", "houston,"))));
+        assertThat(getTerms(null).isEmpty(), is(true));
+        assertThat(getTerms(new String(new char[101]).replace('\0', 'a')).isEmpty(), is(true));
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Licensed to Booz Allen Hamilton under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Booz Allen Hamilton licenses this file to you
+ * under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.boozallen.cognition.ingest.accumulo.utils;
+
+import mockit.Expectations;
+import mockit.Injectable;
+import mockit.Verifications;
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.TableExistsException;
+import org.apache.accumulo.core.client.admin.TableOperations;
+import org.apache.hadoop.io.Text;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import static com.boozallen.cognition.ingest.accumulo.utils.AccumuloBoltUtils.formatTimestamp;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class EventTableAdminTest {
+  private static final long DAY = EventTableAdmin.DAY_MILLIS;
+
+  @Test
+  public void testGetShardSplits(@Injectable Connector conn) {
+    EventTableAdmin admin = new EventTableAdmin(conn, "events", "P_", 4);
+
+    assertThat(admin.getShardSplits(), is(splits("P_1_", "P_2_", "P_3_")));
+  }
+
+  @Test
+  public void testGetShardSplitsMultiCharacterShards(@Injectable Connector conn) {
+    EventTableAdmin admin = new EventTableAdmin(conn, "events", "P_", 40);
+
+    SortedSet<Text> points = admin.getShardSplits();
+    assertThat(points.size(), is(39));
+    //base 36 shards 10 to 13 sort between shards 1 and 2; the tablet of shard 1 starts after theirs
+    assertThat(points.headSet(new Text("P_1_")).last(), is(new Text("P_13_")));
+    assertThat(points.tailSet(new Text("P_1_" + formatTimestamp(DAY))).first(), is(new Text("P_2_")));
+    assertThat(new Text("P_13_" + formatTimestamp(DAY)).compareTo(new Text("P_1_")) < 0, is(true));
+  }
+
+  @Test
+  public void testMergeTimeSplitsMultiCharacterShards(
+      @Injectable Connector conn,
+      @Injectable TableOperations tableOperations) throws Exception {
+    new Expectations() {{
+      conn.tableOperations();
+      result = tableOperations;
+    }};
+
+    new EventTableAdmin(conn, "events", "P_", 40).mergeTimeSplits(3 * DAY + 5);
+
+    new Verifications() {{
+      //the merge of shard 1 starts after the rows of shards 10 to 13
+      tableOperations.merge("events", new Text("P_1_"), new Text("P_1_" + formatTimestamp(3 * DAY)));
+      tableOperations.merge("events", new Text("P_11_"), new Text("P_11_" + formatTimestamp(3 * DAY)));
+    }};
+  }
+
+  @Test
+  public void testGetTimeSplits(@Injectable Connector conn) {
+    EventTableAdmin admin = new EventTableAdmin(conn, "events", "P_", 2);
+
+    assertThat(admin.getTimeSplits(DAY + 5, 1),
+        is(splits("P_0_" + formatTimestamp(DAY), "P_1_" + formatTimestamp(DAY),
+            "P_0_" + formatTimestamp(2 * DAY), "P_1_" + formatTimestamp(2 * DAY))));
+  }
+
+  @Test
+  public void testStartOfDay() {
+    assertThat(EventTableAdmin.startOfDay(3 * DAY + 1234), is(3 * DAY));
+    assertThat(EventTableAdmin.startOfDay(3 * DAY), is(3 * DAY));
+  }
+
+  @Test
+  public void testCreateTableIfMissing(
+      @Injectable Connector conn,
+      @Injectable TableOperations tableOperations) throws Exception {
+    new Expectations() {{
+      conn.tableOperations();
+      result = tableOperations;
+      tableOperations.exists("events");
+      result = false;
+      tableOperations.create("events");
+    }};
+
+    assertThat(new EventTableAdmin(conn, "events", "", 36).createTableIfMissing(), is(true));
+  }
+
+  @Test
+  public void testCreateTableIfMissingConcurrentlyCreated(
+      @Injectable Connector conn,
+      @Injectable TableOperations tableOperations) throws Exception {
+    new Expectations() {{
+      conn.tableOperations();
+      result = tableOperations;
+      tableOperations.exists("events");
+      result = false;
+      tableOperations.create("events");
+      result = new TableExistsException(null, "events", null);
+    }};
+
+    assertThat(new EventTableAdmin(conn, "events", "", 36).createTableIfMissing(), is(false));
+  }
+
+  @Test
+  public void testMaintainTimeSplits(
+      @Injectable Connector conn,
+      @Injectable TableOperations tableOperations) throws Exception {
+    new Expectations() {{
+      conn.tableOperations();
+      result = tableOperations;
+    }};
+
+    new EventTableAdmin(conn, "events", "P_", 2).maintainTimeSplits(10 * DAY + 5, 1, 7);
+
+    new Verifications() {{
+      tableOperations.addSplits("events",
+          splits("P_0_" + formatTimestamp(10 * DAY), "P_1_" + formatTimestamp(10 * DAY),
+              "P_0_" + formatTimestamp(11 * DAY), "P_1_" + formatTimestamp(11 * DAY)));
+      tableOperations.merge("events", new Text("P_0_"), new Text("P_0_" + formatTimestamp(3 * DAY)));
+      tableOperations.merge("events", new Text("P_1_"), new Text("P_1_" + formatTimestamp(3 * DAY)));
+    }};
+  }
+
+  @Test
+  public void testSetDocumentLocalityGroup(
+      @Injectable Connector conn,
+      @Injectable TableOperations tableOperations) throws Exception {
+    Map<String, Set<Text>> groups = new HashMap<>();
+    groups.put("other", Collections.singleton(new Text("other")));
+    new Expectations() {{
+      conn.tableOperations();
+      result = tableOperations;
+      tableOperations.getLocalityGroups("events");
+      result = groups;
+    }};
+
+    new EventTableAdmin(conn, "events", "", 36).setDocumentLocalityGroup("document", "gz");
+
+    Map<String, Set<Text>> expected = new HashMap<>(groups);
+    expected.put("document", Collections.singleton(new Text("document")));
+    new Verifications() {{
+      tableOperations.setLocalityGroups("events", expected);
+      tableOperations.setProperty("events", "table.file.compress.type", "gz");
+    }};
+  }
+
+  @Test
+  public void testSetDocumentLocalityGroupExisting(
+      @Injectable Connector conn,
+      @Injectable TableOperations tableOperations) throws Exception {
+    new Expectations() {{
+      conn.tableOperations();
+      result = tableOperations;
+      tableOperations.getLocalityGroups("events");
+      result = Collections.singletonMap("document", Collections.singleton(new Text("document")));
+    }};
+
+    new EventTableAdmin(conn, "events", "", 36).setDocumentLocalityGroup("document", null);
+
+    new Verifications() {{
+      tableOperations.setLocalityGroups(anyString, (Map<String, Set<Text>>) any);
+      times = 0;
+      tableOperations.setProperty(anyString, anyString, anyString);
+      times = 0;
+    }};
+  }
+
+  private static SortedSet<Text> splits(String... points) {
+    SortedSet<Text> splits = new TreeSet<>();
+    Arrays.stream(points).forEach(point -> splits.add(new Text(point)));
+    return splits;
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Licensed to Booz Allen Hamilton under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Booz Allen Hamilton licenses this file to you
+ * under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.boozallen.cognition.ingest.accumulo.utils;
+
+import org.apache.accumulo.core.data.ColumnUpdate;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.security.ColumnVisibility;
+import org.apache.hadoop.io.Text;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNot.not;
+import static org.hamcrest.core.IsSame.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class MutationEncoderTest {
+
+  @Test
+  public void testGetFamily() {
+    MutationEncoder encoder = new MutationEncoder();
+    assertThat(encoder.getFamily("data"), is(sameInstance(encoder.getFamily("data"))));
+    assertThat(encoder.getFamily("data"), is(new Text("data")));
+  }
+
+  @Test
+  public void testGetVisibility() {
+    MutationEncoder encoder = new MutationEncoder();
+    assertThat(encoder.getVisibility("A&B"), is(sameInstance(encoder.getVisibility("A&B"))));
+    assertThat(encoder.getVisibility("A&B"), is(new ColumnVisibility("A&B")));
+    assertThat(encoder.getVisibility(null), is(sameInstance(encoder.getVisibility(" "))));
+    assertThat(encoder.getVisibility(null), is(new ColumnVisibility()));
+  }
+
+  @Test
+  public void testGetVisibilityCacheBounded() {
+    MutationEncoder encoder = new MutationEncoder();
+    ColumnVisibility first = encoder.getVisibility("V0");
+    for (int i = 1; i <= MutationEncoder.MAX_CACHED_VISIBILITIES; i++) {
+      encoder.getVisibility("V" + i);
+    }
+    assertThat(encoder.getVisibility("V0"), is(not(sameInstance(first))));
+    assertThat(encoder.getVisibility("V0"), is(first));
+  }
+
+  @Test
+  public void testPut() {
+    MutationEncoder encoder = new MutationEncoder();
+    Mutation mutation = new Mutation("row");
+    Text family = encoder.getFamily("data");
+    ColumnVisibility vis = encoder.getVisibility("A");
+
+    encoder.put(mutation, family, "name", vis, "\u6771\u4eac");
+    encoder.put(mutation, family, "n", vis, (String) null);
+    encoder.put(mutation, family, new Text("row2"), vis, 1000L, new byte[0]);
+
+    List<ColumnUpdate> updates = mutation.getUpdates();
+    assertThat(updates.size(), is(3));
+    assertThat(new String(updates.get(0).getColumnQualifier()), is("name"));
+    assertThat(updates.get(0).getValue(), is("\u6771\u4eac".getBytes(StandardCharsets.UTF_8)));
+    //the reused qualifier buffer does not leak the longer previous qualifier
+    assertThat(new String(updates.get(1).getColumnQualifier()), is("n"));
+    assertThat(updates.get(1).getValue().length, is(0));
+    assertThat(updates.get(2).getTimestamp(), is(1000L));
+    assertThat(new String(updates.get(2).getColumnVisibility()), is("A"));
+  }
+}
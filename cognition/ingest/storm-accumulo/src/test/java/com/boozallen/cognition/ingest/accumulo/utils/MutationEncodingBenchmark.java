@@ -0,0 +1,110 @@
+/*
+ * Licensed to Booz Allen Hamilton under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Booz Allen Hamilton licenses this file to you
+ * under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.boozallen.cognition.ingest.accumulo.utils;
+
+import com.boozallen.cognition.ingest.storm.vo.LogRecord;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.security.ColumnVisibility;
+import org.apache.hadoop.io.Text;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares building an event mutation of a typical 40 field record the way AccumuloEventStorageBolt used to (row id
+ * via String.format, a parsed visibility per record, String puts with platform-default bytes) against
+ * {@link MutationEncoder}. Not run as part of the build; run the main method from the test classpath, e.g.
+ * <code>mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=com.boozallen.cognition.ingest.accumulo.utils.MutationEncodingBenchmark</code>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MutationEncodingBenchmark {
+  private static final String VISIBILITY = "PUBLIC|(ANALYST&US)";
+
+  private LogRecord record;
+  private MutationEncoder encoder;
+
+  @Setup
+  public void setup() {
+    record = new LogRecord(UUID.randomUUID().toString());
+    record.setDate(new Date(1445299200000L));
+    for (int i = 0; i < 40; i++) {
+      record.setValue("source.feed.field" + i, "value of field " + i + " with some text");
+    }
+    record.addMetadataValue("cognition.dataType", "moreover");
+    encoder = new MutationEncoder();
+  }
+
+  @Benchmark
+  public Mutation legacy() {
+    String uuid = record.getUUID();
+    String rowId = String.format("%s%s_%s_%s", "MOREOVER_", AccumuloBoltUtils.getShard(uuid.hashCode(), 36),
+        record.getDate().getTime(), uuid);
+    Mutation mutation = new Mutation(rowId);
+    ColumnVisibility vis = new ColumnVisibility(VISIBILITY);
+    for (Map.Entry<String, String> entry : record.getFields().entrySet()) {
+      mutation.put("data", entry.getKey(), vis, new Value(entry.getValue().getBytes()));
+    }
+    for (Map.Entry<String, String> entry : record.getMetadata().entrySet()) {
+      mutation.put("metadata", entry.getKey(), vis, new Value(entry.getValue().getBytes()));
+    }
+    return mutation;
+  }
+
+  @Benchmark
+  public Mutation encoder() {
+    Mutation mutation = new Mutation(AccumuloBoltUtils.getEventRecordId(record, "MOREOVER_", 36));
+    ColumnVisibility vis = encoder.getVisibility(VISIBILITY);
+    Text data = encoder.getFamily("data");
+    for (Map.Entry<String, String> entry : record.getFields().entrySet()) {
+      encoder.put(mutation, data, entry.getKey(), vis, entry.getValue());
+    }
+    Text metadata = encoder.getFamily("metadata");
+    for (Map.Entry<String, String> entry : record.getMetadata().entrySet()) {
+      encoder.put(mutation, metadata, entry.getKey(), vis, entry.getValue());
+    }
+    return mutation;
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder().include(MutationEncodingBenchmark.class.getSimpleName()).build()).run();
+  }
+}
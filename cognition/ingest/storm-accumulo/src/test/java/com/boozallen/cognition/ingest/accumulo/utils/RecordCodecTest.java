@@ -0,0 +1,75 @@
+/*
+ * Licensed to Booz Allen Hamilton under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Booz Allen Hamilton licenses this file to you
+ * under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.boozallen.cognition.ingest.accumulo.utils;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class RecordCodecTest {
+
+  @Test
+  public void testRoundTrip() {
+    Map<String, String> fields = new HashMap<>();
+    fields.put("source.feed.name", "Reuters");
+    fields.put("source.feed.id", "169587646");
+    fields.put("title", "caf\u00e9 \u6771\u4eac");
+    fields.put("empty", "");
+    fields.put("nullValue", null);
+    Map<String, String> metadata = Collections.singletonMap("cognition.dataType", "moreover");
+
+    Map<String, Map<String, String>> decoded = RecordCodec.decode(RecordCodec.encode(fields, metadata));
+
+    fields.put("nullValue", "");
+    assertThat(decoded.get("data"), is(fields));
+    assertThat(decoded.get("metadata"), is(metadata));
+  }
+
+  @Test
+  public void testFrontCoding() {
+    Map<String, String> fields = new HashMap<>();
+    for (int i = 0; i < 100; i++) {
+      fields.put("source.feed.editorialTopics.topic" + i, "");
+    }
+    byte[] encoded = RecordCodec.encode(fields, Collections.emptyMap());
+
+    // names share a 32 byte prefix, stored once
+    assertTrue(encoded.length < 100 * 8);
+    assertThat(RecordCodec.decode(encoded).get("data"), is(fields));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testDecodeTruncated() {
+    byte[] encoded = RecordCodec.encode(Collections.singletonMap("field", "value"), Collections.emptyMap());
+    RecordCodec.decode(Arrays.copyOf(encoded, encoded.length - 4));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testDecodeUnknownVersion() {
+    RecordCodec.decode(new byte[]{2, 0, 0});
+  }
+}
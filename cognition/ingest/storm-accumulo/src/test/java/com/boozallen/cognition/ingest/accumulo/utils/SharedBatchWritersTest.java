@@ -0,0 +1,141 @@
+/*
+ * Licensed to Booz Allen Hamilton under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Booz Allen Hamilton licenses this file to you
+ * under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.boozallen.cognition.ingest.accumulo.utils;
+
+import mockit.Expectations;
+import mockit.Injectable;
+import mockit.Mocked;
+import mockit.Verifications;
+import org.apache.accumulo.core.client.BatchWriterConfig;
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.MultiTableBatchWriter;
+import org.apache.accumulo.core.client.ZooKeeperInstance;
+import org.apache.accumulo.core.client.security.tokens.AuthenticationToken;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNot.not;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+public class SharedBatchWritersTest {
+  private AccumuloConnectionConfig config;
+
+  @Before
+  public void setUp() {
+    config = new AccumuloConnectionConfig();
+    config.instance = "instance";
+    config.zooServers = "zk:2181";
+    config.user = "user";
+    config.key = "secret";
+    config.maxLatency = 1000L;
+    config.sharedMaxMem = 64_000_000L;
+    config.sharedMaxWriteThreads = 8;
+  }
+
+  @Test
+  public void testRegistryKeyHidesCredentials() {
+    String key = SharedBatchWriters.registryKey(config);
+    assertThat(key.startsWith("instance|zk:2181|user|"), is(true));
+    assertThat(key.contains("secret"), is(false));
+
+    AccumuloConnectionConfig other = new AccumuloConnectionConfig();
+    other.instance = "instance";
+    other.zooServers = "zk:2181";
+    other.user = "user";
+    other.key = "other";
+    assertThat(SharedBatchWriters.registryKey(other), not(key));
+  }
+
+  @Test
+  public void testAcquireSharesWriterUntilLastRelease(
+      @Mocked ZooKeeperInstance instance,
+      @Injectable Connector connector,
+      @Injectable MultiTableBatchWriter writer) throws Exception {
+    new Expectations() {{
+      instance.getConnector("user", (AuthenticationToken) any);
+      result = connector;
+      times = 1;
+      connector.createMultiTableBatchWriter((BatchWriterConfig) any);
+      result = writer;
+      times = 1;
+    }};
+
+    SharedBatchWriters.Lease lease0 = SharedBatchWriters.acquire(config);
+    SharedBatchWriters.Lease lease1 = SharedBatchWriters.acquire(config);
+    assertThat(lease0.getConnector(), is(lease1.getConnector()));
+    assertThat(SharedBatchWriters.size(), is(1));
+
+    lease0.close();
+    lease0.close();
+    assertThat(SharedBatchWriters.size(), is(1));
+    new Verifications() {{
+      writer.close();
+      times = 0;
+    }};
+
+    lease1.close();
+    assertThat(SharedBatchWriters.size(), is(0));
+    new Verifications() {{
+      writer.close();
+      times = 1;
+    }};
+  }
+
+  @Test
+  public void testInvalidateReplacesWriterOnce(
+      @Mocked ZooKeeperInstance instance,
+      @Injectable Connector connector,
+      @Injectable MultiTableBatchWriter writer) throws Exception {
+    new Expectations() {{
+      instance.getConnector("user", (AuthenticationToken) any);
+      result = connector;
+      connector.createMultiTableBatchWriter((BatchWriterConfig) any);
+      result = writer;
+    }};
+
+    SharedBatchWriters.Lease lease0 = SharedBatchWriters.acquire(config);
+    SharedBatchWriters.Lease lease1 = SharedBatchWriters.acquire(config);
+    lease0.getBatchWriter("events");
+    lease1.getBatchWriter("events");
+
+    lease0.invalidate();
+    lease1.invalidate(); // same failure, already replaced
+
+    try {
+      lease1.flush();
+      fail("expected stale lease to fail flush");
+    } catch (IllegalStateException expected) {
+      // mutations added through the replaced writer may be lost
+    }
+    lease1.getBatchWriter("events");
+    lease1.flush();
+
+    lease0.close();
+    lease1.close();
+    new Verifications() {{
+      connector.createMultiTableBatchWriter((BatchWriterConfig) any);
+      times = 2;
+      writer.flush();
+      times = 1;
+    }};
+  }
+}
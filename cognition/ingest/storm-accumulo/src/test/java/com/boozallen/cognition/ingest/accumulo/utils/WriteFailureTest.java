@@ -0,0 +1,79 @@
+/*
+ * Licensed to Booz Allen Hamilton under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Booz Allen Hamilton licenses this file to you
+ * under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.boozallen.cognition.ingest.accumulo.utils;
+
+import mockit.Expectations;
+import mockit.Injectable;
+import org.apache.accumulo.core.client.MutationsRejectedException;
+import org.apache.accumulo.core.client.security.SecurityErrorCode;
+import org.apache.accumulo.core.data.ConstraintViolationSummary;
+import org.apache.accumulo.core.data.KeyExtent;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.EnumSet;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class WriteFailureTest {
+
+  @Test
+  public void testClassifyServer(@Injectable MutationsRejectedException e) {
+    new Expectations() {{
+      e.getErrorServers();
+      result = Collections.singleton("tserver:9997");
+    }};
+
+    assertThat(WriteFailure.classify(e), is(EnumSet.of(WriteFailure.SERVER)));
+    assertThat(WriteFailure.isRetryable(WriteFailure.classify(e)), is(true));
+  }
+
+  @Test
+  public void testClassifyConstraintAndServer(@Injectable MutationsRejectedException e) {
+    new Expectations() {{
+      e.getConstraintViolationSummaries();
+      result = Collections.singletonList(new ConstraintViolationSummary("Constraint", (short) 1, "invalid", 1));
+      e.getUnknownExceptions();
+      result = 1;
+    }};
+
+    assertThat(WriteFailure.classify(e), is(EnumSet.of(WriteFailure.CONSTRAINT, WriteFailure.SERVER)));
+    assertThat(WriteFailure.isRetryable(WriteFailure.classify(e)), is(false));
+  }
+
+  @Test
+  public void testClassifyAuthorization(@Injectable MutationsRejectedException e, @Injectable KeyExtent extent) {
+    new Expectations() {{
+      e.getAuthorizationFailuresMap();
+      result = Collections.singletonMap(extent, Collections.singleton(SecurityErrorCode.PERMISSION_DENIED));
+    }};
+
+    assertThat(WriteFailure.classify(e), is(EnumSet.of(WriteFailure.AUTHORIZATION)));
+    assertThat(WriteFailure.isRetryable(WriteFailure.classify(e)), is(false));
+  }
+
+  @Test
+  public void testClassifyWithoutDetails(@Injectable MutationsRejectedException e) {
+    assertThat(WriteFailure.classify(e), is(EnumSet.of(WriteFailure.SERVER)));
+    assertThat(WriteFailure.classify(new IllegalStateException()), is(EnumSet.of(WriteFailure.SERVER)));
+    assertThat(WriteFailure.classify(null), is(EnumSet.of(WriteFailure.SERVER)));
+  }
+}
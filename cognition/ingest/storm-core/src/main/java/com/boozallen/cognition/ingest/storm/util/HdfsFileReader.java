@@ -21,14 +21,24 @@ package com.boozallen.cognition.ingest.storm.util;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileChecksum;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocatedFileStatus;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RemoteIterator;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -104,4 +114,55 @@ public class HdfsFileReader implements Serializable {
     Path src = new Path(hdfsPath);
     fileSystem.copyToLocalFile(src, new Path(dst.getAbsolutePath()));
   }
+
+  /**
+   * Computes a version string for a file or directory tree, changing whenever any file content changes. Uses the
+   * file system checksums (e.g. HDFS MD5-of-CRCs) where available, falling back to length and modification time.
+   *
+   * @param path file or directory
+   * @return hex digest over the relative path and checksum of every file
+   * @throws IOException
+   */
+  public String getChecksum(String path) throws IOException {
+    if (fileSystem == null) {
+      this.connect2Hdfs();
+    }
+
+    Path root = fileSystem.makeQualified(new Path(path));
+    FileStatus rootStatus = fileSystem.getFileStatus(root);
+    List<FileStatus> files = new ArrayList<>();
+    if (rootStatus.isDirectory()) {
+      RemoteIterator<LocatedFileStatus> itr = fileSystem.listFiles(root, true);
+      while (itr.hasNext()) {
+        files.add(itr.next());
+      }
+    } else {
+      files.add(rootStatus);
+    }
+    Collections.sort(files);
+
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+    String rootPath = root.toUri().getPath();
+    for (FileStatus file : files) {
+      String relativePath = file.getPath().toUri().getPath().substring(rootPath.length());
+      digest.update(relativePath.getBytes(StandardCharsets.UTF_8));
+      FileChecksum checksum = fileSystem.getFileChecksum(file.getPath());
+      if (checksum != null) {
+        digest.update(checksum.getBytes());
+      } else {
+        digest.update((file.getLen() + ":" + file.getModificationTime()).getBytes(StandardCharsets.UTF_8));
+      }
+    }
+
+    StringBuilder hex = new StringBuilder();
+    for (byte b : digest.digest()) {
+      hex.append(String.format("%02x", b));
+    }
+    return hex.toString();
+  }
 }
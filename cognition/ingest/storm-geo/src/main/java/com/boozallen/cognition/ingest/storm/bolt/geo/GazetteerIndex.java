@@ -0,0 +1,282 @@
+/*
+ * Licensed to Booz Allen Hamilton under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Booz Allen Hamilton licenses this file to you
+ * under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.boozallen.cognition.ingest.storm.bolt.geo;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+/**
+ * Read-only, memory-mapped gazetteer for forward geocoding of free-text locations, built by
+ * {@link GazetteerIndexBuilder} from a GeoNames dump.
+ * <p>
+ * The file holds fixed-size feature entries, a sorted table of normalized names (primary, ascii and alternate names,
+ * plus admin1 codes and country codes) each pointing at a list of features ranked by population, and a string pool.
+ * Names are found by binary search over the mapped file, so lookups allocate little and pages are shared by every
+ * worker on the host.
+ * <p>
+ * Queries are split on commas: the first part is the place name, any further parts must name one of its parents,
+ * e.g. "Springfield, IL" or "Paris, France".
+ * <pre>
+ * header:   magic, version, entryCount, keyCount, postingCount, stringPoolSize (ints)
+ * entries:  nameOffset, lat, lon, population (long), admin2, admin1, country (entry or -1), countryCode (2 bytes),
+ *           woeType, padding
+ * keys:     keyOffset, firstPosting, postingCount, sorted by unsigned UTF-8 bytes of the key
+ * postings: entry index
+ * strings:  length (unsigned short) followed by UTF-8 bytes
+ * </pre>
+ */
+public class GazetteerIndex {
+  private static final Logger logger = LoggerFactory.getLogger(GazetteerIndex.class);
+
+  static final int MAGIC = 0x475a4958; // "GZIX"
+  static final int VERSION = 1;
+  static final int HEADER_SIZE = 6 * 4;
+  static final int ENTRY_SIZE = 4 + 4 + 4 + 8 + 4 + 4 + 4 + 2 + 1 + 1;
+  static final int KEY_SIZE = 3 * 4;
+  static final int POSTING_SIZE = 4;
+
+  private static final Pattern DIACRITICS = Pattern.compile("\\p{M}+");
+  private static final Pattern NON_ALPHANUMERIC = Pattern.compile("[^\\p{L}\\p{N}]+");
+  private static final ConcurrentMap<String, GazetteerIndex> INSTANCES = new ConcurrentHashMap<>();
+
+  private final ByteBuffer buffer;
+  private final int entryCount;
+  private final int keyCount;
+  private final int entriesStart;
+  private final int keysStart;
+  private final int postingsStart;
+  private final int stringsStart;
+
+  GazetteerIndex(ByteBuffer buffer) throws IOException {
+    this.buffer = buffer;
+    if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+      throw new IOException("Not a version " + VERSION + " gazetteer index");
+    }
+    entryCount = buffer.getInt(8);
+    keyCount = buffer.getInt(12);
+    int postingCount = buffer.getInt(16);
+    entriesStart = HEADER_SIZE;
+    keysStart = entriesStart + entryCount * ENTRY_SIZE;
+    postingsStart = keysStart + keyCount * KEY_SIZE;
+    stringsStart = postingsStart + postingCount * POSTING_SIZE;
+    if (stringsStart + buffer.getInt(20) != buffer.limit()) {
+      throw new IOException("Truncated gazetteer index");
+    }
+  }
+
+  /**
+   * Returns the gazetteer mapped from the given local file, mapping it on first use in this JVM.
+   *
+   * @param path local index file
+   * @return shared gazetteer
+   * @throws IOException
+   */
+  public static GazetteerIndex getInstance(String path) throws IOException {
+    GazetteerIndex index = INSTANCES.get(path);
+    if (index == null) {
+      synchronized (INSTANCES) {
+        index = INSTANCES.get(path);
+        if (index == null) {
+          index = open(new File(path));
+          INSTANCES.put(path, index);
+        }
+      }
+    }
+    return index;
+  }
+
+  static GazetteerIndex open(File file) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+         FileChannel channel = raf.getChannel()) {
+      // the mapping stays valid after the channel is closed
+      MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      GazetteerIndex index = new GazetteerIndex(mapped);
+      logger.info("Mapped gazetteer index {} with {} features and {} names", file, index.entryCount, index.keyCount);
+      return index;
+    }
+  }
+
+  /**
+   * Lower cases, strips diacritics and collapses punctuation and whitespace to a single space.
+   */
+  static String normalize(String name) {
+    String decomposed = Normalizer.normalize(name, Normalizer.Form.NFD);
+    String stripped = DIACRITICS.matcher(decomposed).replaceAll("");
+    return NON_ALPHANUMERIC.matcher(stripped.toLowerCase()).replaceAll(" ").trim();
+  }
+
+  /**
+   * Resolves a free-text location.
+   *
+   * @param query place name, optionally followed by comma separated parent names
+   * @return the best ranked feature followed by its parents (county, state, country), or <code>null</code> if no
+   * feature matches
+   */
+  TwoFishesFeature[] lookup(String query) {
+    String[] parts = query.split(",");
+    int key = findKey(normalize(parts[0]));
+    if (key < 0) {
+      return null;
+    }
+
+    List<int[]> constraints = new ArrayList<>(parts.length - 1);
+    for (int i = 1; i < parts.length; i++) {
+      String normalized = normalize(parts[i]);
+      if (normalized.isEmpty()) continue;
+      int constraintKey = findKey(normalized);
+      if (constraintKey < 0) {
+        return null;
+      }
+      constraints.add(postings(constraintKey));
+    }
+
+    int first = buffer.getInt(keyPosition(key) + 4);
+    int count = buffer.getInt(keyPosition(key) + 8);
+    for (int i = 0; i < count; i++) {
+      int entry = buffer.getInt(postingsStart + (first + i) * POSTING_SIZE);
+      if (matchesParents(entry, constraints)) {
+        return features(entry);
+      }
+    }
+    return null;
+  }
+
+  private boolean matchesParents(int entry, List<int[]> constraints) {
+    int position = entryPosition(entry);
+    for (int[] constraint : constraints) {
+      boolean matched = false;
+      for (int parent : constraint) {
+        if (parent == buffer.getInt(position + 20) || parent == buffer.getInt(position + 24)
+            || parent == buffer.getInt(position + 28)) {
+          matched = true;
+          break;
+        }
+      }
+      if (!matched) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private TwoFishesFeature[] features(int entry) {
+    List<TwoFishesFeature> features = new ArrayList<>(4);
+    features.add(feature(entry));
+    int position = entryPosition(entry);
+    for (int offset = 20; offset <= 28; offset += 4) {
+      int parent = buffer.getInt(position + offset);
+      if (parent >= 0 && parent != entry) {
+        features.add(feature(parent));
+      }
+    }
+    return features.toArray(new TwoFishesFeature[features.size()]);
+  }
+
+  private TwoFishesFeature feature(int entry) {
+    int position = entryPosition(entry);
+    TwoFishesFeature feature = new TwoFishesFeature();
+    feature.name = readString(buffer.getInt(position));
+    feature.lat = String.valueOf(buffer.getFloat(position + 4));
+    feature.lng = String.valueOf(buffer.getFloat(position + 8));
+    feature.countryCode = new String(new char[]{(char) buffer.get(position + 32), (char) buffer.get(position + 33)});
+    feature.woeType = buffer.get(position + 34);
+    return feature;
+  }
+
+  private int[] postings(int key) {
+    int first = buffer.getInt(keyPosition(key) + 4);
+    int[] postings = new int[buffer.getInt(keyPosition(key) + 8)];
+    for (int i = 0; i < postings.length; i++) {
+      postings[i] = buffer.getInt(postingsStart + (first + i) * POSTING_SIZE);
+    }
+    return postings;
+  }
+
+  /**
+   * Binary search over the sorted name table.
+   *
+   * @return key index, or -1 if the name is not indexed
+   */
+  int findKey(String normalized) {
+    if (StringUtils.isEmpty(normalized)) {
+      return -1;
+    }
+    byte[] target = normalized.getBytes(StandardCharsets.UTF_8);
+    int low = 0;
+    int high = keyCount - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int cmp = compareString(buffer.getInt(keyPosition(mid)), target);
+      if (cmp < 0) {
+        low = mid + 1;
+      } else if (cmp > 0) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -1;
+  }
+
+  private int compareString(int offset, byte[] target) {
+    int position = stringsStart + offset;
+    int length = buffer.getShort(position) & 0xffff;
+    int common = Math.min(length, target.length);
+    for (int i = 0; i < common; i++) {
+      int cmp = (buffer.get(position + 2 + i) & 0xff) - (target[i] & 0xff);
+      if (cmp != 0) {
+        return cmp;
+      }
+    }
+    return length - target.length;
+  }
+
+  private String readString(int offset) {
+    int position = stringsStart + offset;
+    byte[] bytes = new byte[buffer.getShort(position) & 0xffff];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = buffer.get(position + 2 + i);
+    }
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private int entryPosition(int entry) {
+    return entriesStart + entry * ENTRY_SIZE;
+  }
+
+  private int keyPosition(int key) {
+    return keysStart + key * KEY_SIZE;
+  }
+}
@@ -0,0 +1,307 @@
+/*
+ * Licensed to Booz Allen Hamilton under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Booz Allen Hamilton licenses this file to you
+ * under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.boozallen.cognition.ingest.storm.bolt.geo;
+
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Builds a {@link GazetteerIndex} file from a GeoNames dump (e.g. allCountries.txt or a country file). Populated
+ * places (feature class P) are indexed as towns; ADM1, ADM2 and independent political entities are indexed as states,
+ * counties and countries and linked as parents of the places within them, so the dump must include those features.
+ * <pre>
+ * java -cp storm-geo.jar com.boozallen.cognition.ingest.storm.bolt.geo.GazetteerIndexBuilder allCountries.txt gazetteer.idx
+ * </pre>
+ */
+public class GazetteerIndexBuilder {
+  private static final Logger logger = LoggerFactory.getLogger(GazetteerIndexBuilder.class);
+
+  static final byte WOE_TOWN = 7;
+  static final byte WOE_ADMIN1 = 8;
+  static final byte WOE_ADMIN2 = 9;
+  static final byte WOE_COUNTRY = 12;
+
+  /**
+   * Features ranked below this many postings for a name are dropped, keeping the index compact
+   */
+  static final int MAX_POSTINGS_PER_NAME = 100;
+  private static final int MAX_NAME_LENGTH = 64;
+
+  private final List<Entry> entries = new ArrayList<>();
+  private final Map<String, Integer> countries = new HashMap<>();
+  private final Map<String, Integer> admin1s = new HashMap<>();
+  private final Map<String, Integer> admin2s = new HashMap<>();
+
+  public static void main(String[] args) throws IOException {
+    if (args.length != 2) {
+      System.err.println("Usage: GazetteerIndexBuilder <geonames dump> <index file>");
+      System.exit(1);
+    }
+    GazetteerIndexBuilder builder = new GazetteerIndexBuilder();
+    try (BufferedReader reader = GeoDataFiles.openReader(args[0], Collections.emptyMap())) {
+      builder.load(reader);
+    }
+    builder.write(new File(args[1]));
+  }
+
+  /**
+   * Reads GeoNames tab-separated lines
+   */
+  void load(BufferedReader reader) throws IOException {
+    String line;
+    while ((line = reader.readLine()) != null) {
+      String[] columns = line.split("\t", -1);
+      if (columns.length < 15) continue;
+      byte woeType = woeType(columns[6], columns[7]);
+      if (woeType == 0) continue;
+
+      Entry entry = new Entry();
+      entry.name = columns[1];
+      entry.countryCode = columns[8];
+      entry.woeType = woeType;
+      entry.admin1Code = columns[10];
+      entry.admin2Code = columns[11];
+      try {
+        entry.lat = Float.parseFloat(columns[4]);
+        entry.lon = Float.parseFloat(columns[5]);
+        entry.population = StringUtils.isBlank(columns[14]) ? 0L : Long.parseLong(columns[14]);
+      } catch (NumberFormatException e) {
+        logger.warn("Skipping feature with invalid numbers: {}", columns[0]);
+        continue;
+      }
+      if (entry.countryCode.length() != 2) continue;
+
+      entry.names.add(columns[1]);
+      entry.names.add(columns[2]);
+      for (String alternate : columns[3].split(",")) {
+        if (alternate.length() <= MAX_NAME_LENGTH && !alternate.startsWith("http")) {
+          entry.names.add(alternate);
+        }
+      }
+
+      int index = entries.size();
+      switch (woeType) {
+        case WOE_COUNTRY:
+          entry.names.add(entry.countryCode);
+          countries.putIfAbsent(entry.countryCode, index);
+          break;
+        case WOE_ADMIN1:
+          if (StringUtils.isAlpha(entry.admin1Code)) {
+            entry.names.add(entry.admin1Code); // e.g. US state abbreviations
+          }
+          admin1s.putIfAbsent(entry.countryCode + "." + entry.admin1Code, index);
+          break;
+        case WOE_ADMIN2:
+          admin2s.putIfAbsent(entry.countryCode + "." + entry.admin1Code + "." + entry.admin2Code, index);
+          break;
+        default:
+          break;
+      }
+      entries.add(entry);
+    }
+  }
+
+  private static byte woeType(String featureClass, String featureCode) {
+    if ("P".equals(featureClass)) {
+      return WOE_TOWN;
+    }
+    if ("A".equals(featureClass)) {
+      switch (featureCode) {
+        case "ADM1":
+          return WOE_ADMIN1;
+        case "ADM2":
+          return WOE_ADMIN2;
+        case "PCLI":
+        case "PCLD":
+        case "PCLF":
+        case "PCLS":
+        case "PCL":
+          return WOE_COUNTRY;
+        default:
+          return 0;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * Links parents and writes the index file
+   */
+  void write(File file) throws IOException {
+    Map<String, List<Integer>> postings = new HashMap<>();
+    for (int i = 0; i < entries.size(); i++) {
+      Entry entry = entries.get(i);
+      entry.country = entry.woeType == WOE_COUNTRY ? -1 : countries.getOrDefault(entry.countryCode, -1);
+      entry.admin1 = entry.woeType == WOE_TOWN || entry.woeType == WOE_ADMIN2
+          ? admin1s.getOrDefault(entry.countryCode + "." + entry.admin1Code, -1) : -1;
+      entry.admin2 = entry.woeType == WOE_TOWN
+          ? admin2s.getOrDefault(entry.countryCode + "." + entry.admin1Code + "." + entry.admin2Code, -1) : -1;
+
+      Set<String> keys = new HashSet<>();
+      for (String name : entry.names) {
+        String key = GazetteerIndex.normalize(name);
+        if (!key.isEmpty() && keys.add(key)) {
+          postings.computeIfAbsent(key, k -> new ArrayList<>()).add(i);
+        }
+      }
+    }
+
+    List<byte[]> sortedKeys = new ArrayList<>(postings.size());
+    postings.keySet().forEach(key -> sortedKeys.add(key.getBytes(StandardCharsets.UTF_8)));
+    sortedKeys.sort(GazetteerIndexBuilder::compareUnsigned);
+
+    StringPool pool = new StringPool();
+    int[] nameOffsets = new int[entries.size()];
+    for (int i = 0; i < entries.size(); i++) {
+      nameOffsets[i] = pool.add(entries.get(i).name.getBytes(StandardCharsets.UTF_8));
+    }
+    int[] keyOffsets = new int[sortedKeys.size()];
+    List<List<Integer>> rankedPostings = new ArrayList<>(sortedKeys.size());
+    int postingCount = 0;
+    for (int i = 0; i < sortedKeys.size(); i++) {
+      keyOffsets[i] = pool.add(sortedKeys.get(i));
+      List<Integer> ranked = postings.get(new String(sortedKeys.get(i), StandardCharsets.UTF_8));
+      ranked.sort((a, b) -> Long.compare(entries.get(b).population, entries.get(a).population));
+      if (ranked.size() > MAX_POSTINGS_PER_NAME) {
+        ranked = ranked.subList(0, MAX_POSTINGS_PER_NAME);
+      }
+      rankedPostings.add(ranked);
+      postingCount += ranked.size();
+    }
+
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+      out.writeInt(GazetteerIndex.MAGIC);
+      out.writeInt(GazetteerIndex.VERSION);
+      out.writeInt(entries.size());
+      out.writeInt(sortedKeys.size());
+      out.writeInt(postingCount);
+      out.writeInt(pool.size());
+
+      for (int i = 0; i < entries.size(); i++) {
+        Entry entry = entries.get(i);
+        out.writeInt(nameOffsets[i]);
+        out.writeFloat(entry.lat);
+        out.writeFloat(entry.lon);
+        out.writeLong(entry.population);
+        out.writeInt(entry.admin2);
+        out.writeInt(entry.admin1);
+        out.writeInt(entry.country);
+        out.writeByte(entry.countryCode.charAt(0));
+        out.writeByte(entry.countryCode.charAt(1));
+        out.writeByte(entry.woeType);
+        out.writeByte(0);
+      }
+
+      int firstPosting = 0;
+      for (int i = 0; i < keyOffsets.length; i++) {
+        out.writeInt(keyOffsets[i]);
+        out.writeInt(firstPosting);
+        out.writeInt(rankedPostings.get(i).size());
+        firstPosting += rankedPostings.get(i).size();
+      }
+      for (List<Integer> ranked : rankedPostings) {
+        for (int entry : ranked) {
+          out.writeInt(entry);
+        }
+      }
+      pool.writeTo(out);
+    }
+    logger.info("Wrote gazetteer index {} with {} features and {} names", file, entries.size(), sortedKeys.size());
+  }
+
+  static int compareUnsigned(byte[] a, byte[] b) {
+    int common = Math.min(a.length, b.length);
+    for (int i = 0; i < common; i++) {
+      int cmp = (a[i] & 0xff) - (b[i] & 0xff);
+      if (cmp != 0) {
+        return cmp;
+      }
+    }
+    return a.length - b.length;
+  }
+
+  private static class Entry {
+    String name;
+    String countryCode;
+    String admin1Code;
+    String admin2Code;
+    float lat;
+    float lon;
+    long population;
+    byte woeType;
+    int admin2;
+    int admin1;
+    int country;
+    final Set<String> names = new LinkedHashSet<>();
+  }
+
+  /**
+   * De-duplicated length-prefixed UTF-8 strings
+   */
+  private static class StringPool {
+    private final Map<String, Integer> offsets = new LinkedHashMap<>();
+    private final List<byte[]> strings = new ArrayList<>();
+    private int size;
+
+    int add(byte[] bytes) {
+      if (bytes.length > 0xffff) {
+        throw new IllegalArgumentException("String too long for gazetteer index");
+      }
+      String key = new String(bytes, StandardCharsets.UTF_8);
+      Integer offset = offsets.get(key);
+      if (offset == null) {
+        offset = size;
+        offsets.put(key, offset);
+        strings.add(bytes);
+        size += 2 + bytes.length;
+      }
+      return offset;
+    }
+
+    int size() {
+      return size;
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+      for (byte[] bytes : strings) {
+        out.writeShort(bytes.length);
+        out.write(bytes);
+      }
+    }
+  }
+}
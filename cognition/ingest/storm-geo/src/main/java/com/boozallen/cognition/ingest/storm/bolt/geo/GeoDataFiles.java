@@ -0,0 +1,58 @@
+/*
+ * Licensed to Booz Allen Hamilton under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Booz Allen Hamilton licenses this file to you
+ * under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.boozallen.cognition.ingest.storm.bolt.geo;
+
+import com.boozallen.cognition.ingest.storm.util.HdfsFileReader;
+import org.apache.hadoop.fs.Path;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Opens geo data files stored either on the local file system or HDFS (if path starts with "hdfs://"). Files ending in
+ * ".gz" are decompressed on the fly.
+ */
+class GeoDataFiles {
+  static final String HDFS_PREFIX = "hdfs://";
+
+  static boolean isHdfsPath(String path) {
+    return path.toLowerCase().startsWith(HDFS_PREFIX);
+  }
+
+  static InputStream open(String path, Map<String, String> hadoopConfig) throws IOException {
+    InputStream in;
+    if (isHdfsPath(path)) {
+      in = new HdfsFileReader(hadoopConfig).getFSDataInputStream(new Path(path));
+    } else {
+      in = new FileInputStream(path);
+    }
+    return path.endsWith(".gz") ? new GZIPInputStream(in) : in;
+  }
+
+  static BufferedReader openReader(String path, Map<String, String> hadoopConfig) throws IOException {
+    return new BufferedReader(new InputStreamReader(open(path, hadoopConfig), StandardCharsets.UTF_8));
+  }
+}
@@ -19,6 +19,11 @@
 
 package com.boozallen.cognition.ingest.storm.bolt.geo;
 
+import backtype.storm.metric.api.CountMetric;
+import backtype.storm.metric.api.MeanReducer;
+import backtype.storm.metric.api.ReducedMetric;
+import backtype.storm.task.TopologyContext;
+import backtype.storm.topology.FailedException;
 import com.bericotech.clavin.GeoParser;
 import com.bericotech.clavin.GeoParserFactory;
 import com.bericotech.clavin.gazetteer.GeoName;
@@ -26,6 +31,7 @@ import com.bericotech.clavin.nerd.StanfordExtractor;
 import com.bericotech.clavin.resolver.ResolvedLocation;
 import com.boozallen.cognition.ingest.storm.bolt.AbstractProcessingBolt;
 import com.boozallen.cognition.ingest.storm.ConfigurationException;
+import com.boozallen.cognition.ingest.storm.util.ConfigurationMapEntryUtils;
 import com.boozallen.cognition.ingest.storm.util.HdfsFileReader;
 import com.boozallen.cognition.ingest.storm.vo.LogRecord;
 import org.apache.commons.configuration.Configuration;
@@ -35,10 +41,25 @@ import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Stream;
 
 /**
  * This bolt attempts to resolve location(s) in a specified location field of a LogRecord.
@@ -46,6 +67,39 @@ import java.util.Map;
  * Alternatively, it looks at the list of unresolvedLocations of a LogRecord and attempts to resolve.
  * Depends on a Lucene index directory stored either on the local file system
  * or HDFS (if path specified in xml conf starts with "hdfs://")
+ * <p>
+ * The index is distributed and the GeoParser warmed up asynchronously when the bolt is prepared, once per worker JVM.
+ * HDFS indexes are copied into a version directory under <code>localIndexDir</code> named after the HDFS checksum of
+ * the index; workers on the same host share it through a file lock, so only the first one downloads and later ones
+ * (or restarts) reuse the completed copy. Records wait up to <code>warmUpTimeoutSecs</code> for the parser and are
+ * failed for replay if it is still not ready.
+ * <p>
+ * GeoParsers are not thread safe, so each worker keeps a pool of <code>parserPoolSize</code> parsers (by default one
+ * per task of this bolt in the worker) and every parse borrows one. Results are cached by text in a per-worker LRU
+ * cache of <code>cacheSize</code> entries, so repeated texts (retweets, profile bios) skip entity extraction and
+ * resolution. Texts shorter than <code>minTextLength</code>, or without any capitalized token when
+ * <code>requireCapitalizedToken</code> is set, are not parsed; both can be overridden per field.
+ * <pre>
+ * {@code
+ *
+ * <conf>
+ *   <luceneIndexDir>hdfs:///clavin/index</luceneIndexDir>
+ *   <localIndexDir>/data/clavin</localIndexDir>
+ *   <textFields>body</textFields>
+ *   <textFields>actor.summary</textFields>
+ *   <parserPoolSize>0</parserPoolSize>
+ *   <cacheSize>10000</cacheSize>
+ *   <minTextLength>3</minTextLength>
+ *   <requireCapitalizedToken>false</requireCapitalizedToken>
+ *   <fieldRules>
+ *     <field>
+ *       <name>actor.summary</name>
+ *       <minTextLength>10</minTextLength>
+ *       <requireCapitalizedToken>true</requireCapitalizedToken>
+ *     </field>
+ *   </fieldRules>
+ * </conf>
+ * } </pre>
  *
  * @author michaelkorb
  * @update hwu
@@ -56,8 +110,21 @@ public class LocationResolverBolt extends AbstractProcessingBolt {
 
   private static final String LUCENE_INDEX_DIR = "luceneIndexDir";
   private static final String HADOOP_CONFIG = "hadoop-config";
-  private static final String LOCAL_INDEX_DIR = "localIndexDir"; //if copying file from HDFS, where to store locally
+  private static final String LOCAL_INDEX_DIR = "localIndexDir"; //host cache directory for versions of an HDFS index
   private static final String TEXT_FIELDS = "textFields";
+  private static final String WARM_UP_TIMEOUT_SECS = "warmUpTimeoutSecs";
+  private static final long WARM_UP_TIMEOUT_SECS_DEFAULT = 30L;
+  private static final String PARSER_POOL_SIZE = "parserPoolSize";
+  private static final String CACHE_SIZE = "cacheSize";
+  private static final int CACHE_SIZE_DEFAULT = 10_000;
+  static final String MIN_TEXT_LENGTH = "minTextLength";
+  static final int MIN_TEXT_LENGTH_DEFAULT = 3;
+  static final String REQUIRE_CAPITALIZED_TOKEN = "requireCapitalizedToken";
+  private static final String FIELD_RULES = "fieldRules.field";
+  private static final String FIELD_RULE_NAME = "name";
+  private static final int METRICS_BUCKET_SECS = 60;
+  private static final String COMPLETE_MARKER = "_COMPLETE";
+  private static final String LOCK_SUFFIX = ".lock";
 
   //Stuff that needs to be added to the existing config files
   private static final String PIP_CLAVIN_LOCATION_PREFIX = "clavinLocationPrefix";
@@ -72,7 +139,8 @@ public class LocationResolverBolt extends AbstractProcessingBolt {
 
   //Stuff that actually IS static
   private static final String HDFS_PREFIX = "hdfs://";
-  private static GeoParser _parser;
+  private static CompletableFuture<BlockingQueue<GeoParser>> _parsers;
+  private static ResolvedLocationCache<List<ResolvedLocation>> _cache;
 
   private String _luceneIndexDir;
   private String _localIndexDir;
@@ -86,9 +154,19 @@ public class LocationResolverBolt extends AbstractProcessingBolt {
   private String _latitude;
   private String _longitude;
   private String _confidence;
-  private HdfsFileReader hdfsFileReader;
+  private long warmUpTimeoutSecs;
+  private int parserPoolSize;
+  private int cacheSize;
+  private int minTextLength;
+  private boolean requireCapitalizedToken;
+  private Map<String, Map<String, String>> fieldRules;
   private Map<String, String> hadoopConfig = new HashMap<>();
 
+  private transient ReducedMetric parseLatencyMs;
+  private transient CountMetric cacheHits;
+  private transient CountMetric cacheMisses;
+  private transient CountMetric skipped;
+
   @Override
   public void configure(Configuration conf) throws ConfigurationException {
     _luceneIndexDir = conf.getString(LUCENE_INDEX_DIR);
@@ -103,6 +181,13 @@ public class LocationResolverBolt extends AbstractProcessingBolt {
     _latitude = conf.getString(LATITUDE, LATITUDE);
     _longitude = conf.getString(LONGITUDE, LONGITUDE);
     _confidence = conf.getString(CONFIDENCE, CONFIDENCE);
+    warmUpTimeoutSecs = conf.getLong(WARM_UP_TIMEOUT_SECS, WARM_UP_TIMEOUT_SECS_DEFAULT);
+    parserPoolSize = conf.getInt(PARSER_POOL_SIZE, 0);
+    cacheSize = conf.getInt(CACHE_SIZE, CACHE_SIZE_DEFAULT);
+    minTextLength = conf.getInt(MIN_TEXT_LENGTH, MIN_TEXT_LENGTH_DEFAULT);
+    requireCapitalizedToken = conf.getBoolean(REQUIRE_CAPITALIZED_TOKEN, false);
+    fieldRules = ConfigurationMapEntryUtils.extractMapList(conf, FIELD_RULES, FIELD_RULE_NAME, MIN_TEXT_LENGTH,
+        REQUIRE_CAPITALIZED_TOKEN);
 
     Configuration hadoopConfigSubset = conf.subset(HADOOP_CONFIG);
     for (Iterator<String> itr = hadoopConfigSubset.getKeys(); itr.hasNext(); ) {
@@ -110,20 +195,55 @@ public class LocationResolverBolt extends AbstractProcessingBolt {
       String value = hadoopConfigSubset.getString(key);
       hadoopConfig.put(key, value);
     }
+
+    if (StringUtils.isBlank(_luceneIndexDir)) {
+      throw new ConfigurationException(LUCENE_INDEX_DIR + " is required");
+    }
+    if (isHdfsPath(_luceneIndexDir) && StringUtils.isBlank(_localIndexDir)) {
+      throw new ConfigurationException(LOCAL_INDEX_DIR + " is required for HDFS index");
+    }
   }
 
   @Override
-  protected void process(LogRecord record) {
-    if (_parser == null) {
-      this.prepare();
+  public void prepare(Map stormConf, TopologyContext context) {
+    int poolSize = parserPoolSize > 0 ? parserPoolSize : countWorkerTasks(context);
+    warmUp(_luceneIndexDir, _localIndexDir, hadoopConfig, poolSize, cacheSize);
+
+    parseLatencyMs = context.registerMetric("clavin-parse-latency-ms", new ReducedMetric(new MeanReducer()),
+        METRICS_BUCKET_SECS);
+    cacheHits = context.registerMetric("clavin-cache-hit", new CountMetric(), METRICS_BUCKET_SECS);
+    cacheMisses = context.registerMetric("clavin-cache-miss", new CountMetric(), METRICS_BUCKET_SECS);
+    skipped = context.registerMetric("clavin-skipped", new CountMetric(), METRICS_BUCKET_SECS);
+  }
+
+  /**
+   * @return number of tasks of this component running in this worker
+   */
+  static int countWorkerTasks(TopologyContext context) {
+    List<Integer> componentTasks = context.getComponentTasks(context.getThisComponentId());
+    int count = 0;
+    for (Integer task : context.getThisWorkerTasks()) {
+      if (componentTasks.contains(task)) {
+        count++;
+      }
     }
+    return Math.max(count, 1);
+  }
+
+  @Override
+  protected void process(LogRecord record) {
+    BlockingQueue<GeoParser> parsers = getParsers();
 
     int count = 0;
     for (Object field : _textFields) {
       String text = record.getValue((String) field);
       if (StringUtils.isBlank(text)) continue;
+      if (shouldSkip((String) field, text)) {
+        skipped.incr();
+        continue;
+      }
       try {
-        List<ResolvedLocation> resolvedLocations = _parser.parse(text);
+        List<ResolvedLocation> resolvedLocations = resolve(parsers, text);
         for (ResolvedLocation rl : resolvedLocations) {
           GeoName geo = rl.geoname;
 
@@ -141,46 +261,189 @@ public class LocationResolverBolt extends AbstractProcessingBolt {
           record.setValue(_pipClavinLocationPrefix + count + "." + _fieldName, (String) field);
           count++;
         }
+      } catch (FailedException e) {
+        throw e;
       } catch (Exception e) {
         logger.error("Failed to geoparse text: " + text);
       }
     }
   }
 
-  private void prepare() {
-    if (hdfsFileReader == null) {
-      hdfsFileReader = new HdfsFileReader(hadoopConfig);
+  /**
+   * Applies the skip rules of the field, or the bolt defaults
+   */
+  boolean shouldSkip(String field, String text) {
+    Map<String, String> rule = fieldRules.getOrDefault(field, Collections.emptyMap());
+    int minLength = rule.containsKey(MIN_TEXT_LENGTH) ? Integer.parseInt(rule.get(MIN_TEXT_LENGTH)) : minTextLength;
+    boolean requireCapitalized = rule.containsKey(REQUIRE_CAPITALIZED_TOKEN)
+        ? Boolean.parseBoolean(rule.get(REQUIRE_CAPITALIZED_TOKEN)) : requireCapitalizedToken;
+
+    return text.trim().length() < minLength || (requireCapitalized && !hasCapitalizedToken(text));
+  }
+
+  static boolean hasCapitalizedToken(String text) {
+    boolean tokenStart = true;
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (tokenStart && Character.isUpperCase(c)) {
+        return true;
+      }
+      tokenStart = Character.isWhitespace(c);
+    }
+    return false;
+  }
+
+  /**
+   * Returns cached locations for the text, or parses it with a parser borrowed from the pool.
+   */
+  private List<ResolvedLocation> resolve(BlockingQueue<GeoParser> parsers, String text) throws Exception {
+    UUID key = ResolvedLocationCache.key(text);
+    List<ResolvedLocation> resolvedLocations = _cache == null ? null : _cache.get(key);
+    if (resolvedLocations != null) {
+      cacheHits.incr();
+      return resolvedLocations;
+    }
+    cacheMisses.incr();
+
+    GeoParser parser = parsers.poll(warmUpTimeoutSecs, TimeUnit.SECONDS);
+    if (parser == null) {
+      throw new FailedException("No CLAVIN GeoParser available");
+    }
+    try {
+      long start = System.nanoTime();
+      resolvedLocations = Collections.unmodifiableList(parser.parse(text));
+      parseLatencyMs.update(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    } finally {
+      parsers.offer(parser);
+    }
+    if (_cache != null) {
+      _cache.put(key, resolvedLocations);
+    }
+    return resolvedLocations;
+  }
+
+  /**
+   * Waits for the first parser of the pool to warm up.
+   *
+   * @throws FailedException if the parser is not ready within the timeout, so the record is replayed
+   */
+  private BlockingQueue<GeoParser> getParsers() {
+    int poolSize = parserPoolSize > 0 ? parserPoolSize : 1; // only used if warm-up is retried
+    CompletableFuture<BlockingQueue<GeoParser>> parsers = warmUp(_luceneIndexDir, _localIndexDir, hadoopConfig,
+        poolSize, cacheSize);
+    try {
+      return parsers.get(warmUpTimeoutSecs, TimeUnit.SECONDS);
+    } catch (TimeoutException e) {
+      throw new FailedException("CLAVIN GeoParser is still warming up");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new FailedException(e);
+    } catch (ExecutionException e) {
+      throw new FailedException("Unable to initialize GeoParser", e.getCause());
     }
+  }
 
-    File luceneIndexDir;
-    if (_luceneIndexDir.toLowerCase().startsWith(HDFS_PREFIX)) { // get file from Hdfs
-      luceneIndexDir = new File(_localIndexDir);
-      if (!luceneIndexDir.exists()) {
-        String hdfsPath = _luceneIndexDir.substring(HDFS_PREFIX.length());
-        logger.info("Getting " + hdfsPath + " from HDFS and writing to " + luceneIndexDir.getAbsolutePath());
+  /**
+   * Starts distributing the index and initializing the parser pool if not already started in this JVM. The returned
+   * future completes once the first parser is ready; the rest of the pool is filled in the background. A failed
+   * warm-up is retried on the next call.
+   */
+  private static synchronized CompletableFuture<BlockingQueue<GeoParser>> warmUp(
+      String luceneIndexDir, String localIndexDir, Map<String, String> hadoopConfig, int poolSize, int cacheSize) {
+    if (_cache == null && cacheSize > 0) {
+      _cache = new ResolvedLocationCache<>(cacheSize);
+    }
+    if (_parsers == null || _parsers.isCompletedExceptionally()) {
+      CompletableFuture<BlockingQueue<GeoParser>> parsers = new CompletableFuture<>();
+      Executor executor = runnable -> {
+        Thread thread = new Thread(runnable, "clavin-warm-up");
+        thread.setDaemon(true);
+        thread.start();
+      };
+      executor.execute(() -> {
+        BlockingQueue<GeoParser> pool = new ArrayBlockingQueue<>(poolSize);
+        File indexDir;
         try {
-          hdfsFileReader.getFileFromHdfs(hdfsPath, luceneIndexDir);
-        } catch (IllegalArgumentException | IOException e) {
-          logger.error("Unable to get file from HDFS: " + hdfsPath, e);
+          indexDir = isHdfsPath(luceneIndexDir)
+              ? getHostCachedIndex(luceneIndexDir, new File(localIndexDir), new HdfsFileReader(hadoopConfig))
+              : new File(luceneIndexDir);
+          pool.add(initializeGeoParser(indexDir));
+        } catch (Exception e) {
+          logger.error("Unable to initialize GeoParser.", e);
+          parsers.completeExceptionally(e);
+          return;
         }
-      }
-    } else { // use local directory
-      luceneIndexDir = new File(_luceneIndexDir);
+        parsers.complete(pool);
+
+        for (int i = 1; i < poolSize; i++) {
+          try {
+            pool.add(initializeGeoParser(indexDir));
+          } catch (Exception e) {
+            logger.error("Unable to initialize additional GeoParser, continuing with " + i + " parsers.", e);
+            return;
+          }
+        }
+      });
+      _parsers = parsers;
     }
+    return _parsers;
+  }
 
-    logger.info("Local Lucene index for CLAVIN: " + luceneIndexDir.getAbsolutePath());
-    initializeStaticGeoParser(luceneIndexDir);
+  /**
+   * Returns the local copy of the HDFS index for its current checksum, copying it if no other worker on this host has.
+   */
+  static File getHostCachedIndex(String hdfsPath, File localIndexDir, HdfsFileReader hdfsFileReader)
+      throws IOException {
+    String version = hdfsFileReader.getChecksum(hdfsPath);
+    File versionDir = new File(localIndexDir, version);
+    File completeMarker = new File(versionDir, COMPLETE_MARKER);
+    if (completeMarker.exists()) {
+      logger.info("Using cached CLAVIN index " + versionDir.getAbsolutePath());
+      return versionDir;
+    }
+
+    if (!localIndexDir.isDirectory() && !localIndexDir.mkdirs()) {
+      throw new IOException("Unable to create " + localIndexDir.getAbsolutePath());
+    }
+    File lockFile = new File(localIndexDir, version + LOCK_SUFFIX);
+    try (RandomAccessFile raf = new RandomAccessFile(lockFile, "rw");
+         FileChannel channel = raf.getChannel();
+         FileLock lock = channel.lock()) {
+      if (completeMarker.exists()) { // another worker copied it while we waited for the lock
+        logger.info("Using cached CLAVIN index " + versionDir.getAbsolutePath());
+        return versionDir;
+      }
+      if (versionDir.exists()) { // left over from an interrupted copy
+        deleteRecursively(versionDir.toPath());
+      }
+      logger.info("Getting " + hdfsPath + " from HDFS and writing to " + versionDir.getAbsolutePath());
+      hdfsFileReader.getFileFromHdfs(hdfsPath, versionDir);
+      if (!completeMarker.createNewFile()) {
+        throw new IOException("Unable to create " + completeMarker.getAbsolutePath());
+      }
+      return versionDir;
+    }
   }
 
-  private static synchronized void initializeStaticGeoParser(File luceneIndexDir) {
-    if (_parser == null) {
-      try {
-        _parser = GeoParserFactory.getDefault(luceneIndexDir.getAbsolutePath(), new StanfordExtractor(), 1, 1, false);
-        logger.info("Successfully initialized CLAVIN GeoParser with index directory " + luceneIndexDir.getAbsolutePath());
-      } catch (Exception e) {
-        logger.error("Unable to initialize GeoParser.", e);
+  private static void deleteRecursively(java.nio.file.Path dir) throws IOException {
+    try (Stream<java.nio.file.Path> paths = Files.walk(dir)) {
+      for (Iterator<java.nio.file.Path> itr = paths.sorted(Comparator.reverseOrder()).iterator(); itr.hasNext(); ) {
+        Files.delete(itr.next());
       }
     }
   }
 
+  private static boolean isHdfsPath(String path) {
+    return path.toLowerCase().startsWith(HDFS_PREFIX);
+  }
+
+  private static GeoParser initializeGeoParser(File luceneIndexDir) throws Exception {
+    logger.info("Local Lucene index for CLAVIN: " + luceneIndexDir.getAbsolutePath());
+    GeoParser parser = GeoParserFactory.getDefault(luceneIndexDir.getAbsolutePath(), new StanfordExtractor(), 1, 1,
+        false);
+    parser.parse("Warm up in Chicago."); // loads the NER model and index readers before the first record
+    logger.info("Successfully initialized CLAVIN GeoParser with index directory " + luceneIndexDir.getAbsolutePath());
+    return parser;
+  }
+
 }
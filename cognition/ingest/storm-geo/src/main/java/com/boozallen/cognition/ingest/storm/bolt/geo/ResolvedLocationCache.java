@@ -0,0 +1,67 @@
+/*
+ * Licensed to Booz Allen Hamilton under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Booz Allen Hamilton licenses this file to you
+ * under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.boozallen.cognition.ingest.storm.bolt.geo;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+/**
+ * Bounded LRU cache of geoparsing results by text. Texts are normalized by trimming and collapsing whitespace (case is
+ * kept, since entity extraction depends on it) and keyed by their 128-bit MD5, so entries stay small regardless of
+ * text length.
+ *
+ * @param <V> resolved locations
+ */
+class ResolvedLocationCache<V> {
+  private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+  private final Map<UUID, V> cache;
+
+  ResolvedLocationCache(int maxSize) {
+    cache = new LinkedHashMap<UUID, V>(16, 0.75f, true) {
+      private static final long serialVersionUID = -1530962218519484395L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<UUID, V> eldest) {
+        return size() > maxSize;
+      }
+    };
+  }
+
+  static UUID key(String text) {
+    String normalized = WHITESPACE.matcher(text.trim()).replaceAll(" ");
+    return UUID.nameUUIDFromBytes(normalized.getBytes(StandardCharsets.UTF_8));
+  }
+
+  synchronized V get(UUID key) {
+    return cache.get(key);
+  }
+
+  synchronized void put(UUID key, V value) {
+    cache.put(key, value);
+  }
+
+  synchronized int size() {
+    return cache.size();
+  }
+}
@@ -0,0 +1,315 @@
+/*
+ * Licensed to Booz Allen Hamilton under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Booz Allen Hamilton licenses this file to you
+ * under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.boozallen.cognition.ingest.storm.bolt.geo;
+
+import com.google.common.collect.ImmutableMap;
+import com.vividsolutions.jts.algorithm.locate.IndexedPointInAreaLocator;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.Location;
+import com.vividsolutions.jts.geom.Polygonal;
+import com.vividsolutions.jts.index.strtree.STRtree;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKTReader;
+import org.apache.commons.lang.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * In-process reverse geocoder resolving a coordinate to its city, county, state and country without a network hop.
+ * <p>
+ * Admin boundaries are loaded from a tab-separated file of <code>type, countryCode, name, WKT</code> lines, where type is
+ * one of <code>country, state, county, city</code> and WKT uses lon/lat axis order. Populated places are optionally
+ * loaded from a GeoNames dump (e.g. cities1000.txt) and used to name the city when no city polygon contains the point.
+ * Both are indexed in STR-trees; polygons are tested with indexed point-in-polygon locators. All indexes are built
+ * while loading, as the locators otherwise build theirs on the first lookup without synchronization, so lookups are
+ * read-only and safe to share between executors.
+ * <p>
+ * Instances are cached per worker JVM by file paths, see {@link #getInstance}.
+ */
+public class ReverseGeocoder {
+  private static final Logger logger = LoggerFactory.getLogger(ReverseGeocoder.class);
+
+  static final String CITY = "city";
+  static final String COUNTY = "county";
+  static final String STATE = "state";
+  static final String COUNTRY = "country";
+
+  /**
+   * Twofishes woe types of each boundary type, most precise first
+   */
+  static final Map<String, Long> WOE_TYPES = ImmutableMap.of(
+      CITY, 7L,
+      COUNTY, 9L,
+      STATE, 8L,
+      COUNTRY, 12L
+  );
+  private static final List<String> PRECISION_ORDER = new ArrayList<>(WOE_TYPES.keySet());
+
+  private static final double KM_PER_DEGREE = 111.195;
+  private static final ConcurrentMap<String, ReverseGeocoder> INSTANCES = new ConcurrentHashMap<>();
+
+  private final STRtree boundaries = new STRtree();
+  private final STRtree places = new STRtree();
+  private final List<Boundary> unbuilt = new ArrayList<>();
+  private final double maxPlaceDistanceKm;
+
+  ReverseGeocoder(double maxPlaceDistanceKm) {
+    this.maxPlaceDistanceKm = maxPlaceDistanceKm;
+  }
+
+  /**
+   * Returns the reverse geocoder for the given files, loading and indexing them on first use in this JVM.
+   *
+   * @param boundariesPath     admin boundaries file, local or HDFS
+   * @param placesPath         optional GeoNames populated places file, local or HDFS
+   * @param maxPlaceDistanceKm max distance to the nearest populated place for it to be used as city
+   * @param hadoopConfig
+   * @return shared reverse geocoder
+   * @throws IOException
+   */
+  public static ReverseGeocoder getInstance(String boundariesPath, String placesPath, double maxPlaceDistanceKm,
+                                            Map<String, String> hadoopConfig) throws IOException {
+    String key = boundariesPath + "|" + placesPath + "|" + maxPlaceDistanceKm;
+    ReverseGeocoder geocoder = INSTANCES.get(key);
+    if (geocoder == null) {
+      synchronized (INSTANCES) {
+        geocoder = INSTANCES.get(key);
+        if (geocoder == null) {
+          geocoder = load(boundariesPath, placesPath, maxPlaceDistanceKm, hadoopConfig);
+          INSTANCES.put(key, geocoder);
+        }
+      }
+    }
+    return geocoder;
+  }
+
+  static ReverseGeocoder load(String boundariesPath, String placesPath, double maxPlaceDistanceKm,
+                              Map<String, String> hadoopConfig) throws IOException {
+    long start = System.currentTimeMillis();
+    ReverseGeocoder geocoder = new ReverseGeocoder(maxPlaceDistanceKm);
+    try (BufferedReader reader = GeoDataFiles.openReader(boundariesPath, hadoopConfig)) {
+      geocoder.loadBoundaries(reader);
+    }
+    if (StringUtils.isNotBlank(placesPath)) {
+      try (BufferedReader reader = GeoDataFiles.openReader(placesPath, hadoopConfig)) {
+        geocoder.loadPlaces(reader);
+      }
+    }
+    geocoder.build();
+    logger.info("Loaded reverse geocoder index from {} and {} in {}ms", boundariesPath, placesPath,
+        System.currentTimeMillis() - start);
+    return geocoder;
+  }
+
+  void loadBoundaries(BufferedReader reader) throws IOException {
+    WKTReader wktReader = new WKTReader();
+    String line;
+    int lineNumber = 0;
+    while ((line = reader.readLine()) != null) {
+      lineNumber++;
+      if (StringUtils.isBlank(line) || line.startsWith("#")) continue;
+      String[] columns = line.split("\t", 4);
+      if (columns.length < 4 || !WOE_TYPES.containsKey(columns[0])) {
+        logger.warn("Skipping invalid boundary on line {}", lineNumber);
+        continue;
+      }
+      try {
+        Geometry geometry = wktReader.read(columns[3]);
+        if (!(geometry instanceof Polygonal) || geometry.isEmpty()) {
+          // the point in area locator only accepts polygons
+          logger.warn("Skipping boundary with {} geometry on line {}", geometry.getGeometryType(), lineNumber);
+          continue;
+        }
+        Boundary boundary = new Boundary(columns[0], columns[1], columns[2], geometry);
+        boundaries.insert(geometry.getEnvelopeInternal(), boundary);
+        unbuilt.add(boundary);
+      } catch (ParseException e) {
+        logger.warn("Skipping boundary with invalid WKT on line " + lineNumber, e);
+      }
+    }
+  }
+
+  /**
+   * Loads populated places (feature class P) from a GeoNames dump.
+   */
+  void loadPlaces(BufferedReader reader) throws IOException {
+    String line;
+    while ((line = reader.readLine()) != null) {
+      String[] columns = line.split("\t");
+      if (columns.length < 15 || !"P".equals(columns[6])) continue;
+      try {
+        Place place = new Place(columns[1], columns[8], Double.parseDouble(columns[4]), Double.parseDouble(columns[5]));
+        places.insert(new Envelope(place.lon, place.lon, place.lat, place.lat), place);
+      } catch (NumberFormatException e) {
+        logger.warn("Skipping place with invalid coordinates: {}", columns[0]);
+      }
+    }
+  }
+
+  void build() {
+    boundaries.build();
+    places.build();
+    for (Boundary boundary : unbuilt) {
+      boundary.buildIndex();
+    }
+    unbuilt.clear();
+  }
+
+  /**
+   * Resolves a coordinate.
+   *
+   * @param lat
+   * @param lon
+   * @return features ordered from most precise to least, or <code>null</code> if the point is not within any boundary
+   */
+  TwoFishesFeature[] lookup(double lat, double lon) {
+    Coordinate coordinate = new Coordinate(lon, lat);
+    Boundary[] best = new Boundary[PRECISION_ORDER.size()];
+
+    @SuppressWarnings("unchecked")
+    List<Boundary> candidates = boundaries.query(new Envelope(coordinate));
+    for (Boundary candidate : candidates) {
+      if (!candidate.contains(coordinate)) continue;
+      int level = PRECISION_ORDER.indexOf(candidate.type);
+      if (best[level] == null || candidate.area < best[level].area) {
+        best[level] = candidate;
+      }
+    }
+
+    List<TwoFishesFeature> features = new ArrayList<>(best.length);
+    String countryCode = null;
+    for (int level = best.length - 1; level >= 0; level--) {
+      if (best[level] != null && StringUtils.isNotBlank(best[level].countryCode)) {
+        countryCode = best[level].countryCode;
+        break;
+      }
+    }
+    if (countryCode == null) {
+      return null;
+    }
+
+    if (best[0] == null) {
+      Place place = nearestPlace(lat, lon, countryCode);
+      if (place != null) {
+        features.add(feature(place.name, countryCode, place.lat, place.lon, CITY));
+      }
+    }
+    for (Boundary boundary : best) {
+      if (boundary != null) {
+        features.add(feature(boundary.name, countryCode, boundary.centerLat, boundary.centerLon, boundary.type));
+      }
+    }
+    return features.toArray(new TwoFishesFeature[features.size()]);
+  }
+
+  private Place nearestPlace(double lat, double lon, String countryCode) {
+    double latDelta = maxPlaceDistanceKm / KM_PER_DEGREE;
+    double lonDelta = latDelta / Math.max(Math.cos(Math.toRadians(lat)), 0.01);
+    Envelope search = new Envelope(lon - lonDelta, lon + lonDelta, lat - latDelta, lat + latDelta);
+
+    Place nearest = null;
+    double nearestKm = maxPlaceDistanceKm;
+    @SuppressWarnings("unchecked")
+    List<Place> candidates = places.query(search);
+    for (Place candidate : candidates) {
+      if (!countryCode.equals(candidate.countryCode)) continue;
+      double km = distanceKm(lat, lon, candidate.lat, candidate.lon);
+      if (km <= nearestKm) {
+        nearest = candidate;
+        nearestKm = km;
+      }
+    }
+    return nearest;
+  }
+
+  static double distanceKm(double lat1, double lon1, double lat2, double lon2) {
+    double dLat = Math.toRadians(lat2 - lat1);
+    double dLon = Math.toRadians(lon2 - lon1);
+    double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+        + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+    return 2 * 6371.0 * Math.asin(Math.min(1.0, Math.sqrt(a)));
+  }
+
+  private static TwoFishesFeature feature(String name, String countryCode, double lat, double lon, String type) {
+    TwoFishesFeature feature = new TwoFishesFeature();
+    feature.name = name;
+    feature.countryCode = countryCode;
+    feature.lat = String.valueOf(lat);
+    feature.lng = String.valueOf(lon);
+    feature.woeType = WOE_TYPES.get(type);
+    return feature;
+  }
+
+  private static class Boundary {
+    final String type;
+    final String countryCode;
+    final String name;
+    final double area;
+    final double centerLat;
+    final double centerLon;
+    final IndexedPointInAreaLocator locator;
+
+    Boundary(String type, String countryCode, String name, Geometry geometry) {
+      this.type = type;
+      this.countryCode = countryCode;
+      this.name = name;
+      this.area = geometry.getArea();
+      Coordinate center = geometry.getInteriorPoint().getCoordinate();
+      this.centerLat = center.y;
+      this.centerLon = center.x;
+      this.locator = new IndexedPointInAreaLocator(geometry);
+    }
+
+    /**
+     * Builds the interval tree of the locator, which it would otherwise build on the first lookup.
+     */
+    void buildIndex() {
+      locator.locate(new Coordinate(centerLon, centerLat));
+    }
+
+    boolean contains(Coordinate coordinate) {
+      return locator.locate(coordinate) != Location.EXTERIOR;
+    }
+  }
+
+  private static class Place {
+    final String name;
+    final String countryCode;
+    final double lat;
+    final double lon;
+
+    Place(String name, String countryCode, double lat, double lon) {
+      this.name = name;
+      this.countryCode = countryCode;
+      this.lat = lat;
+      this.lon = lon;
+    }
+  }
+}
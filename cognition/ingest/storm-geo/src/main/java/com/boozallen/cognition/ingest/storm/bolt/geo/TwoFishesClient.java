@@ -0,0 +1,251 @@
+/*
+ * Licensed to Booz Allen Hamilton under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Booz Allen Hamilton licenses this file to you
+ * under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.boozallen.cognition.ingest.storm.bolt.geo;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.util.EntityUtils;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Non-blocking Twofishes client. Requests are pipelined over a pool of <code>maxInFlight</code> keep-alive
+ * connections; requests beyond that wait in the pool without blocking the caller, so {@link #submitQuery(String)} may be
+ * called from the callback of an earlier request. Callers bound their outstanding requests themselves. Each request is
+ * cancelled if it has not completed within <code>requestTimeoutMillis</code>, and a {@link CircuitBreaker}
+ * short-circuits requests while the server is failing.
+ * <p>
+ * Returned futures complete with the resolved features, with <code>null</code> when the server has no interpretation
+ * (or answers with a non-200 status), or exceptionally on transport errors, timeouts and open circuit.
+ */
+class TwoFishesClient implements Closeable {
+  private static final Logger logger = LoggerFactory.getLogger(TwoFishesClient.class);
+
+  private static final String CC = "cc";
+  private static final String LAT = "lat";
+  private static final String LNG = "lng";
+
+  private final CloseableHttpAsyncClient httpClient;
+  private final CircuitBreaker circuitBreaker;
+  private final ScheduledExecutorService timeouts;
+  private final long requestTimeoutMillis;
+
+  TwoFishesClient(int maxInFlight, int connectTimeoutMillis, int requestTimeoutMillis, CircuitBreaker circuitBreaker)
+      throws IOReactorException {
+    this.circuitBreaker = circuitBreaker;
+    this.requestTimeoutMillis = requestTimeoutMillis;
+
+    IOReactorConfig ioReactorConfig = IOReactorConfig.custom()
+        .setConnectTimeout(connectTimeoutMillis)
+        .setSoTimeout(requestTimeoutMillis)
+        .setSoKeepAlive(true)
+        .build();
+    PoolingNHttpClientConnectionManager connectionManager =
+        new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(ioReactorConfig));
+    connectionManager.setMaxTotal(maxInFlight);
+    connectionManager.setDefaultMaxPerRoute(maxInFlight);
+
+    RequestConfig requestConfig = RequestConfig.custom()
+        .setConnectTimeout(connectTimeoutMillis)
+        .setSocketTimeout(requestTimeoutMillis)
+        .setConnectionRequestTimeout(requestTimeoutMillis)
+        .build();
+
+    httpClient = HttpAsyncClients.custom()
+        .setConnectionManager(connectionManager)
+        .setDefaultRequestConfig(requestConfig)
+        .build();
+    httpClient.start();
+
+    timeouts = Executors.newSingleThreadScheduledExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "twofishes-request-timeout");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Submits a URL query string without blocking.
+   *
+   * @param query full request url
+   * @return future of the result and all parents, most precise first
+   */
+  CompletableFuture<TwoFishesFeature[]> submitQuery(String query) {
+    CompletableFuture<TwoFishesFeature[]> result = new CompletableFuture<>();
+    if (!circuitBreaker.allowRequest()) {
+      result.completeExceptionally(new CircuitOpenException());
+      return result;
+    }
+
+    try {
+      HttpGet get = new HttpGet(query);
+      get.setHeader("Accept", "application/json");
+      Future<HttpResponse> request = httpClient.execute(get, new ResponseCallback(query, result));
+
+      ScheduledFuture<?> timeout = timeouts.schedule(() -> request.cancel(true), requestTimeoutMillis,
+          TimeUnit.MILLISECONDS);
+      result.whenComplete((features, e) -> timeout.cancel(false));
+    } catch (RuntimeException e) {
+      circuitBreaker.recordFailure();
+      result.completeExceptionally(e);
+    }
+    return result;
+  }
+
+  CircuitBreaker.State getCircuitState() {
+    return circuitBreaker.getState();
+  }
+
+  @Override
+  public void close() throws IOException {
+    timeouts.shutdownNow();
+    httpClient.close();
+  }
+
+  private class ResponseCallback implements FutureCallback<HttpResponse> {
+    private final String query;
+    private final CompletableFuture<TwoFishesFeature[]> result;
+
+    ResponseCallback(String query, CompletableFuture<TwoFishesFeature[]> result) {
+      this.query = query;
+      this.result = result;
+    }
+
+    @Override
+    public void completed(HttpResponse response) {
+      int statusCode = response.getStatusLine().getStatusCode();
+      if (statusCode >= 500) {
+        circuitBreaker.recordFailure();
+      } else {
+        circuitBreaker.recordSuccess();
+      }
+      try {
+        // always consume the entity so the connection goes back to the pool
+        String jsonStr = EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8);
+        if (statusCode != 200) {
+          logger.error("Failed : HTTP error code : " + statusCode + ":" + query);
+          result.complete(null);
+        } else {
+          result.complete(parseResponse(jsonStr, query));
+        }
+      } catch (IOException | ParseException | RuntimeException e) {
+        result.completeExceptionally(e);
+      }
+    }
+
+    @Override
+    public void failed(Exception ex) {
+      circuitBreaker.recordFailure();
+      result.completeExceptionally(ex);
+    }
+
+    @Override
+    public void cancelled() {
+      circuitBreaker.recordFailure();
+      result.completeExceptionally(new TimeoutException("Request timed out after " + requestTimeoutMillis + "ms: "
+          + query));
+    }
+  }
+
+  /**
+   * Builds a TwoFishesFeature for the result and all parents.
+   *
+   * @param jsonStr response body
+   * @param query   request, for logging only
+   * @return features, most precise first, or <code>null</code> if there is no interpretation
+   * @throws ParseException
+   */
+  static TwoFishesFeature[] parseResponse(String jsonStr, String query) throws ParseException {
+    JSONParser parser = new JSONParser();
+    JSONObject jsonObject = (JSONObject) parser.parse(jsonStr);
+    JSONArray interpretations = (JSONArray) jsonObject.get("interpretations");
+
+    if (interpretations == null || interpretations.size() == 0) {
+      return null;
+    }
+    if (interpretations.size() > 1) {
+      //lat-long searches have multiple interpretations, e.g. city, county, state, country. most specific is first, so still use it.
+      logger.debug("Twofishes has more than one interpretation of " + query);
+    }
+    JSONObject interpretation0 = (JSONObject) interpretations.get(0);
+
+    //main result followed by parents
+    List<JSONObject> features = new ArrayList<>();
+    features.add((JSONObject) interpretation0.get("feature"));
+
+    JSONArray parents = (JSONArray) interpretation0.get("parents");
+    if (parents != null) {
+      for (Object parent : parents) {
+        features.add((JSONObject) parent);
+      }
+    }
+
+    TwoFishesFeature[] results = new TwoFishesFeature[features.size()];
+    for (int i = 0; i < features.size(); i++) {
+      JSONObject f = features.get(i);
+      TwoFishesFeature result = new TwoFishesFeature();
+      result.name = (String) f.get("name");
+      result.countryCode = (String) f.get(CC);
+      result.woeType = (long) f.get("woeType");
+      JSONObject geometry = (JSONObject) f.get("geometry");
+      JSONObject center = (JSONObject) geometry.get("center");
+      result.lat = String.valueOf(center.get(LAT));
+      result.lng = String.valueOf(center.get(LNG));
+      results[i] = result;
+    }
+    return results;
+  }
+
+  /**
+   * Signals a request that was not sent because the circuit is open.
+   */
+  static class CircuitOpenException extends IOException {
+    private static final long serialVersionUID = 6417254829411930286L;
+
+    CircuitOpenException() {
+      super("Twofishes circuit breaker is open");
+    }
+  }
+}
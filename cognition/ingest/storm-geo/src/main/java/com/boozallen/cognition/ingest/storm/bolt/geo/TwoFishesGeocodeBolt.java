@@ -19,39 +19,86 @@
 
 package com.boozallen.cognition.ingest.storm.bolt.geo;
 
-import com.boozallen.cognition.ingest.storm.bolt.AbstractProcessingBolt;
+import backtype.storm.metric.api.IMetric;
+import backtype.storm.task.OutputCollector;
+import backtype.storm.task.TopologyContext;
+import backtype.storm.topology.OutputFieldsDeclarer;
+import backtype.storm.topology.base.BaseRichBolt;
+import backtype.storm.tuple.Fields;
+import backtype.storm.tuple.Tuple;
+import backtype.storm.tuple.Values;
+import com.boozallen.cognition.ingest.storm.Configurable;
 import com.boozallen.cognition.ingest.storm.ConfigurationException;
+import com.boozallen.cognition.ingest.storm.PrepareFailedException;
+import com.boozallen.cognition.ingest.storm.bolt.AbstractLogRecordBolt;
 import com.boozallen.cognition.ingest.storm.vo.LogRecord;
 import com.google.common.collect.ImmutableMap;
 import com.google.gson.Gson;
 import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.configuration.Configuration;
 import org.apache.commons.lang.StringUtils;
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
+import org.apache.http.nio.reactor.IOReactorException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Uses a Twofishes server to resolve locations in a LogRecord.
+ * <p>
+ * Requests are sent asynchronously over pooled keep-alive connections. Up to <code>maxInFlight</code> records per task
+ * are geocoded concurrently; each record is emitted and acked as soon as its responses arrive, in completion order.
+ * The executor thread waits for a free slot before starting a record, and the record keeps its slot until all of its
+ * requests complete, so response callbacks never block. Records are always emitted, even when geocoding fails, throws
+ * or the circuit breaker is open.
+ * <p>
+ * When <code>reverseGeocoder.boundaries</code> is set, records with coordinates are resolved in-process by a
+ * {@link ReverseGeocoder} shared by all executors in the worker, and only sent to the server if the coordinates fall
+ * outside all loaded boundaries. <code>server</code> is optional in that case. Boundary and place files may be on the
+ * local file system or HDFS (path starting with "hdfs://", using <code>hadoop-config</code>).
+ * <p>
+ * Likewise, when <code>gazetteerIndex</code> is set, location strings are first looked up in a memory-mapped
+ * {@link GazetteerIndex} on local disk (built with {@link GazetteerIndexBuilder}), falling back to the server only for
+ * names it does not know.
+ * <pre>
+ * {@code
+ *
+ * <conf>
+ *   <server>http://TWOFISHES-HOST:5000</server>
+ *   <coordinatesField>geo.coordinates</coordinatesField>
+ *   <locationFields>actor.location.displayName,object_actor_location_displayName</locationFields>
+ *   <maxInFlight>64</maxInFlight>
+ *   <connectTimeoutMillis>1000</connectTimeoutMillis>
+ *   <requestTimeoutMillis>5000</requestTimeoutMillis>
+ *   <circuitBreakerFailures>20</circuitBreakerFailures>
+ *   <circuitBreakerOpenMillis>10000</circuitBreakerOpenMillis>
+ *   <reverseGeocoder>
+ *     <boundaries>hdfs:///geo/admin-boundaries.tsv</boundaries>
+ *     <places>hdfs:///geo/cities1000.txt</places>
+ *     <maxPlaceDistanceKm>25</maxPlaceDistanceKm>
+ *   </reverseGeocoder>
+ *   <gazetteerIndex>/data/geo/gazetteer.idx</gazetteerIndex>
+ *   <hadoop-config>
+ *     <fs.defaultFS>hdfs://NAMENODE:8020</fs.defaultFS>
+ *   </hadoop-config>
+ * </conf>
+ * } </pre>
  *
  * @author michaelkorb
  * @update hwu
  */
-public class TwoFishesGeocodeBolt extends AbstractProcessingBolt {
+public class TwoFishesGeocodeBolt extends BaseRichBolt implements Configurable {
   private static final long serialVersionUID = -4702888008441911691L;
   private final Logger logger = LoggerFactory.getLogger(this.getClass());
 
@@ -61,12 +108,26 @@ public class TwoFishesGeocodeBolt extends AbstractProcessingBolt {
   private static final String PIP_LOCATION = "cognition.location";
   private static final String LOCATION_FIELDS = "locationFields";
   private static final String FIELD_NAME = "fieldName";
-  private static final String CC = "cc";
-  private static final String LAT = "lat";
-  private static final String LNG = "lng";
   public static final String COORDINATES = "coordinates";
   public static final String COORDINATES_FIELD = "coordinatesField";
   private static final String USE_MULTIPLE_LOCATIONS = "useMultipleLocations";
+  static final String MAX_IN_FLIGHT = "maxInFlight";
+  static final String CONNECT_TIMEOUT_MILLIS = "connectTimeoutMillis";
+  static final String REQUEST_TIMEOUT_MILLIS = "requestTimeoutMillis";
+  static final String CIRCUIT_BREAKER_FAILURES = "circuitBreakerFailures";
+  static final String CIRCUIT_BREAKER_OPEN_MILLIS = "circuitBreakerOpenMillis";
+  static final int MAX_IN_FLIGHT_DEFAULT = 64;
+  static final int CONNECT_TIMEOUT_MILLIS_DEFAULT = 1_000;
+  static final int REQUEST_TIMEOUT_MILLIS_DEFAULT = 5_000;
+  static final int CIRCUIT_BREAKER_FAILURES_DEFAULT = 20;
+  static final long CIRCUIT_BREAKER_OPEN_MILLIS_DEFAULT = 10_000L;
+  static final String REVERSE_GEOCODER_BOUNDARIES = "reverseGeocoder.boundaries";
+  static final String REVERSE_GEOCODER_PLACES = "reverseGeocoder.places";
+  static final String REVERSE_GEOCODER_MAX_PLACE_DISTANCE_KM = "reverseGeocoder.maxPlaceDistanceKm";
+  static final double REVERSE_GEOCODER_MAX_PLACE_DISTANCE_KM_DEFAULT = 25.0;
+  static final String GAZETTEER_INDEX = "gazetteerIndex";
+  private static final String HADOOP_CONFIG = "hadoop-config";
+  private static final int METRICS_BUCKET_SECS = 60;
 
   static final Map<Long, String> WOE_TYPES = ImmutableMap.of(
       7L, "city",
@@ -77,10 +138,28 @@ public class TwoFishesGeocodeBolt extends AbstractProcessingBolt {
   private String _server;
   private String coordinatesField;
   private List<String> _locationFields; //first non-blank field in this list will be resolved and added
-  private int _successCount;
-  private int _failCount;
-  private int _exceptionCount;
   private boolean _useMultipleLocations;
+  private int maxInFlight;
+  private int connectTimeoutMillis;
+  private int requestTimeoutMillis;
+  private int circuitBreakerFailures;
+  private long circuitBreakerOpenMillis;
+  private String reverseGeocoderBoundaries;
+  private String reverseGeocoderPlaces;
+  private double reverseGeocoderMaxPlaceDistanceKm;
+  private String gazetteerIndexPath;
+  private Map<String, String> hadoopConfig = new HashMap<>();
+
+  private transient OutputCollector collector;
+  private transient TwoFishesClient client;
+  private transient Semaphore inFlight;
+  private transient ReverseGeocoder reverseGeocoder;
+  private transient GazetteerIndex gazetteerIndex;
+  private transient AtomicLong successCount;
+  private transient AtomicLong failCount;
+  private transient AtomicLong exceptionCount;
+  private transient AtomicLong circuitOpenCount;
+  private transient AtomicLong localSuccessCount;
 
   @Override
   public void configure(Configuration conf) throws ConfigurationException {
@@ -88,15 +167,120 @@ public class TwoFishesGeocodeBolt extends AbstractProcessingBolt {
     coordinatesField = conf.getString(COORDINATES_FIELD, "geo.coordinates");
     _locationFields = new ArrayList<>();
     conf.getList(LOCATION_FIELDS).forEach(x -> _locationFields.add(x.toString()));
-    _successCount = 0;
-    _failCount = 0;
-    _exceptionCount = 0;
     _useMultipleLocations = conf.getBoolean(USE_MULTIPLE_LOCATIONS, false);
+    maxInFlight = conf.getInt(MAX_IN_FLIGHT, MAX_IN_FLIGHT_DEFAULT);
+    connectTimeoutMillis = conf.getInt(CONNECT_TIMEOUT_MILLIS, CONNECT_TIMEOUT_MILLIS_DEFAULT);
+    requestTimeoutMillis = conf.getInt(REQUEST_TIMEOUT_MILLIS, REQUEST_TIMEOUT_MILLIS_DEFAULT);
+    circuitBreakerFailures = conf.getInt(CIRCUIT_BREAKER_FAILURES, CIRCUIT_BREAKER_FAILURES_DEFAULT);
+    circuitBreakerOpenMillis = conf.getLong(CIRCUIT_BREAKER_OPEN_MILLIS, CIRCUIT_BREAKER_OPEN_MILLIS_DEFAULT);
+    reverseGeocoderBoundaries = conf.getString(REVERSE_GEOCODER_BOUNDARIES);
+    reverseGeocoderPlaces = conf.getString(REVERSE_GEOCODER_PLACES);
+    reverseGeocoderMaxPlaceDistanceKm = conf.getDouble(REVERSE_GEOCODER_MAX_PLACE_DISTANCE_KM,
+        REVERSE_GEOCODER_MAX_PLACE_DISTANCE_KM_DEFAULT);
+    gazetteerIndexPath = conf.getString(GAZETTEER_INDEX);
+
+    Configuration hadoopConfigSubset = conf.subset(HADOOP_CONFIG);
+    for (Iterator<String> itr = hadoopConfigSubset.getKeys(); itr.hasNext(); ) {
+      String key = itr.next();
+      hadoopConfig.put(key, hadoopConfigSubset.getString(key));
+    }
+
+    if (maxInFlight < 1) {
+      throw new ConfigurationException(MAX_IN_FLIGHT + " must be at least 1");
+    }
+    if (StringUtils.isBlank(_server) && StringUtils.isBlank(reverseGeocoderBoundaries)
+        && StringUtils.isBlank(gazetteerIndexPath)) {
+      throw new ConfigurationException("One of " + SERVER + ", " + REVERSE_GEOCODER_BOUNDARIES + " or "
+          + GAZETTEER_INDEX + " is required");
+    }
+  }
+
+  @Override
+  public void prepare(Map stormConf, TopologyContext context, OutputCollector collector) {
+    this.collector = collector;
+    inFlight = new Semaphore(maxInFlight);
+    try {
+      client = new TwoFishesClient(maxInFlight, connectTimeoutMillis, requestTimeoutMillis,
+          new CircuitBreaker(circuitBreakerFailures, circuitBreakerOpenMillis));
+    } catch (IOReactorException e) {
+      logger.error("Failed to start Twofishes client", e);
+      throw new PrepareFailedException("Failed to start Twofishes client", e);
+    }
+
+    if (StringUtils.isNotBlank(reverseGeocoderBoundaries)) {
+      try {
+        reverseGeocoder = ReverseGeocoder.getInstance(reverseGeocoderBoundaries, reverseGeocoderPlaces,
+            reverseGeocoderMaxPlaceDistanceKm, hadoopConfig);
+      } catch (IOException | RuntimeException e) {
+        logger.error("Failed to load reverse geocoder index", e);
+        throw new PrepareFailedException("Failed to load reverse geocoder index", e);
+      }
+    }
+    if (StringUtils.isNotBlank(gazetteerIndexPath)) {
+      try {
+        gazetteerIndex = GazetteerIndex.getInstance(gazetteerIndexPath);
+      } catch (IOException e) {
+        logger.error("Failed to map gazetteer index", e);
+        throw new PrepareFailedException("Failed to map gazetteer index", e);
+      }
+    }
+
+    successCount = new AtomicLong();
+    failCount = new AtomicLong();
+    exceptionCount = new AtomicLong();
+    circuitOpenCount = new AtomicLong();
+    localSuccessCount = new AtomicLong();
+    context.registerMetric("twofishes-success", resettingMetric(successCount), METRICS_BUCKET_SECS);
+    context.registerMetric("twofishes-fail", resettingMetric(failCount), METRICS_BUCKET_SECS);
+    context.registerMetric("twofishes-exception", resettingMetric(exceptionCount), METRICS_BUCKET_SECS);
+    context.registerMetric("twofishes-circuit-open", resettingMetric(circuitOpenCount), METRICS_BUCKET_SECS);
+    context.registerMetric("local-geocode-success", resettingMetric(localSuccessCount), METRICS_BUCKET_SECS);
+  }
+
+  private static IMetric resettingMetric(AtomicLong counter) {
+    return () -> counter.getAndSet(0);
   }
 
   @Override
-  protected void process(LogRecord record) {
-    //resolve location fields
+  public void execute(Tuple input) {
+    LogRecord record = (LogRecord) input.getValueByField(AbstractLogRecordBolt.RECORD);
+    try {
+      inFlight.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      synchronized (collector) {
+        collector.fail(input);
+      }
+      return;
+    }
+
+    CompletableFuture<Boolean> processed;
+    try {
+      processed = process(record);
+    } catch (RuntimeException e) {
+      processed = new CompletableFuture<>();
+      processed.completeExceptionally(e);
+    }
+    processed.whenComplete((resolved, e) -> {
+      inFlight.release();
+      if (e != null) {
+        logger.error("Unexpected failure while geocoding record " + record.getUUID(), e);
+        exceptionCount.incrementAndGet();
+      }
+      synchronized (collector) {
+        collector.emit(input, new Values(record));
+        collector.ack(input);
+      }
+    });
+  }
+
+  /**
+   * Starts resolving location fields of the record.
+   *
+   * @param record
+   * @return future completing once the record has been updated
+   */
+  CompletableFuture<Boolean> process(LogRecord record) {
     String coordinates = record.getValue(coordinatesField);
 
     Gson gson = new Gson();
@@ -110,181 +294,195 @@ public class TwoFishesGeocodeBolt extends AbstractProcessingBolt {
     }
 
     if (lat != null && lon != null) {
-      if (resolveLocation(LAT_LON_QUERY, lat + "," + lon, record)) { //only add source field name if successful
+      if (reverseGeocoder != null && resolveCoordinatesLocally(lat, lon, record)) {
         record.setValue(PIP_LOCATION + "." + COORDINATES + "." + FIELD_NAME, coordinatesField);
+        return CompletableFuture.completedFuture(true);
       }
-    } else {
-      if (_useMultipleLocations) {
-        String startField = "";
-        String query = "";
-        for (String field : _locationFields) {
-          String value = record.getValue(field);
-          if (StringUtils.isBlank(value)) {
-            continue;
-          }
-          if (StringUtils.isEmpty(startField)) {
-            startField = field;
-          }
-          if (StringUtils.isEmpty(query)) {
-            query = value;
-          } else {
-            query += "," + value;
-            // 2 level of locations is good enough
-            break;
-          }
+      return resolveLocation(LAT_LON_QUERY, lat + "," + lon, record).thenApply(resolved -> {
+        if (resolved) { //only add source field name if successful
+          record.setValue(PIP_LOCATION + "." + COORDINATES + "." + FIELD_NAME, coordinatesField);
+        }
+        return resolved;
+      });
+    } else if (_useMultipleLocations) {
+      String startField = "";
+      String query = "";
+      for (String field : _locationFields) {
+        String value = record.getValue(field);
+        if (StringUtils.isBlank(value)) {
+          continue;
         }
-        if (StringUtils.isNotEmpty(query)) {
-          if (resolveLocation(QUERY, query, record)) {
-            record.setValue(PIP_LOCATION + "." + FIELD_NAME, startField);
-          }
+        if (StringUtils.isEmpty(startField)) {
+          startField = field;
         }
-      } else {
-        for (String field : _locationFields) {
-          String value = record.getValue(field);
-          if (StringUtils.isBlank(value)) continue;
-          if (resolveLocation(QUERY, value, record)) {
-            record.setValue(PIP_LOCATION + "." + FIELD_NAME, field);
-            break; // done as soon as we resolve a location
-          }
+        if (StringUtils.isEmpty(query)) {
+          query = value;
+        } else {
+          query += "," + value;
+          // 2 level of locations is good enough
+          break;
         }
       }
+      if (StringUtils.isEmpty(query)) {
+        return CompletableFuture.completedFuture(false);
+      }
+      String fieldName = startField;
+      return resolveQuery(query, record).thenApply(resolved -> {
+        if (resolved) {
+          record.setValue(PIP_LOCATION + "." + FIELD_NAME, fieldName);
+        }
+        return resolved;
+      });
+    } else {
+      return resolveFirstLocationField(record, 0);
     }
   }
 
   /**
-   * Queries twofishes server for unresolvedlocation an adds result to record
-   *
-   * @param unresolvedLocation
-   * @param record
+   * Resolves location fields one after another, starting at <code>index</code>, until one resolves.
    */
-  private boolean resolveLocation(String queryPrefix, String unresolvedLocation, LogRecord record) {
-    if (unresolvedLocation.startsWith("http")) { //prevent twofishes "java.lang.Exception: don't support url queries"
-      return false;
-    }
+  private CompletableFuture<Boolean> resolveFirstLocationField(LogRecord record, int index) {
+    for (int i = index; i < _locationFields.size(); i++) {
+      String field = _locationFields.get(i);
+      String value = record.getValue(field);
+      if (StringUtils.isBlank(value)) continue;
 
-    //print metrics every 1000 records
-    long total;
-    if ((total = _successCount + _failCount + _exceptionCount) % 1000 == 0) {
-      logger.debug("Total records: " + total);
-      logger.debug("Successes: " + _successCount);
-      logger.debug("Failures: " + _failCount);
-      logger.debug("Exceptions: " + _exceptionCount);
-      logger.debug("Success percentage: " + 100 * (double) _successCount / total);
+      int next = i + 1;
+      return resolveQuery(value, record).thenCompose(resolved -> {
+        if (resolved) {
+          record.setValue(PIP_LOCATION + "." + FIELD_NAME, field);
+          return CompletableFuture.completedFuture(true); // done as soon as we resolve a location
+        }
+        return resolveFirstLocationField(record, next);
+      });
     }
+    return CompletableFuture.completedFuture(false);
+  }
 
-    try {
-      String urlEncodedQuery = URLEncoder.encode(unresolvedLocation, "UTF-8");
-      TwoFishesFeature[] results = submitQuery(_server + queryPrefix + urlEncodedQuery);
-      if (results != null) {
-        //results for one location order from most precise to least
-        //e.g. Chicago, Cook County, Illinois, United States
-        for (int i = 0; i < results.length; i++) {
-          TwoFishesFeature result = results[i];
-          if (i == 0) { //only save CC and lat/lng of precise location
-            record.setValue(PIP_LOCATION, result.countryCode); //for legacy support
-            record.setValue(PIP_LOCATION + ".country", result.countryCode);
-            Gson gson = new Gson();
-            double lat = Double.parseDouble(result.lat);
-            double lng = Double.parseDouble(result.lng);
-            String json = gson.toJson(Arrays.asList(lat, lng));
-            record.setValue(PIP_LOCATION + "." + COORDINATES, json);
-          }
-          String woeType = WOE_TYPES.get(result.woeType);
-          if (woeType != null) { //ignore unknown woetypes
-            record.setValue(PIP_LOCATION + "." + woeType, result.name);
-          }
+  /**
+   * Resolves a location string with the gazetteer index, falling back to the twofishes server
+   */
+  private CompletableFuture<Boolean> resolveQuery(String unresolvedLocation, LogRecord record) {
+    if (gazetteerIndex != null) {
+      try {
+        TwoFishesFeature[] results = gazetteerIndex.lookup(unresolvedLocation);
+        if (results != null) {
+          applyResults(results, record);
+          localSuccessCount.incrementAndGet();
+          return CompletableFuture.completedFuture(true);
         }
+      } catch (RuntimeException e) {
+        logger.info("Exception while attempting to look up location: \"" + unresolvedLocation + "\".", e);
+        exceptionCount.incrementAndGet();
+      }
+    }
+    return resolveLocation(QUERY, unresolvedLocation, record);
+  }
 
-
-        return true;
+  /**
+   * Resolves coordinates with the in-process reverse geocoder and adds result to record
+   *
+   * @return true if the coordinates were resolved
+   */
+  private boolean resolveCoordinatesLocally(String lat, String lon, LogRecord record) {
+    try {
+      TwoFishesFeature[] results = reverseGeocoder.lookup(Double.parseDouble(lat), Double.parseDouble(lon));
+      if (results == null) {
+        return false;
       }
-    } catch (Exception e) {
-      logger.info("Exception while attempting to resolve location: \"" + unresolvedLocation + "\".", e);
-      _exceptionCount++;
+      applyResults(results, record);
+      localSuccessCount.incrementAndGet();
+      return true;
+    } catch (RuntimeException e) {
+      logger.info("Exception while attempting to reverse geocode: \"" + lat + "," + lon + "\".", e);
+      exceptionCount.incrementAndGet();
+      return false;
     }
-    return false;
   }
 
   /**
-   * Submits a URL query string and builds a TwoFishesFeature for the result and all parents.
+   * Queries twofishes server for unresolvedlocation an adds result to record
    *
-   * @param query
-   * @return
-   * @throws IOException
-   * @throws ParseException
+   * @param unresolvedLocation
+   * @param record
    */
-  private TwoFishesFeature[] submitQuery(String query) throws IOException, ParseException {
-    URL url = new URL(query);
-    HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-    conn.setRequestMethod("GET");
-    conn.setRequestProperty("Accept", "application/json");
-    if (conn.getResponseCode() != 200) {
-      logger.error("Failed : HTTP error code : " + conn.getResponseCode() + ":" + url.toString());
-      _failCount++;
-      return null;
+  private CompletableFuture<Boolean> resolveLocation(String queryPrefix, String unresolvedLocation, LogRecord record) {
+    if (StringUtils.isBlank(_server)) {
+      return CompletableFuture.completedFuture(false);
+    }
+    if (unresolvedLocation.startsWith("http")) { //prevent twofishes "java.lang.Exception: don't support url queries"
+      return CompletableFuture.completedFuture(false);
     }
-    BufferedReader br = new BufferedReader(new InputStreamReader((conn.getInputStream())));
-    String jsonStr = br.readLine();
-    br.close();
-    conn.disconnect();
 
-    JSONParser parser = new JSONParser();
-    JSONObject jsonObject = (JSONObject) parser.parse(jsonStr);
-    JSONArray interpretations = (JSONArray) jsonObject.get("interpretations");
+    String urlEncodedQuery;
+    try {
+      urlEncodedQuery = URLEncoder.encode(unresolvedLocation, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
 
-    if (interpretations.size() == 0) {
-      //logger.warn("Twofishes unable to resolve location " + unresolvedLocation);
-      _failCount++;
-      return null;
-    } else {
-      if (interpretations.size() > 1) {
-        //lat-long searches have multiple interpretations, e.g. city, county, state, country. most specific is first, so still use it.
-        logger.debug("Twofishes has more than one interpretation of " + query);
+    return client.submitQuery(_server + queryPrefix + urlEncodedQuery).handle((results, e) -> {
+      if (e != null) {
+        if (e instanceof TwoFishesClient.CircuitOpenException) {
+          circuitOpenCount.incrementAndGet();
+        } else {
+          logger.info("Exception while attempting to resolve location: \"" + unresolvedLocation + "\".", e);
+          exceptionCount.incrementAndGet();
+        }
+        return false;
       }
-      JSONObject interpretation0 = (JSONObject) interpretations.get(0);
-
-      //ArrayList of main result and parents
-      ArrayList<JSONObject> features = new ArrayList<JSONObject>();
-      JSONObject feature = (JSONObject) interpretation0.get("feature");
-
-      //save main result
-      features.add(feature);
-
-      JSONArray parents = (JSONArray) interpretation0.get("parents");
-      //get parents as feature JSONObjects
-      for (int i = 0; i < parents.size(); i++) {
-        JSONObject parentFeature = (JSONObject) parents.get(i);
-        features.add(parentFeature);
+      if (results == null) {
+        failCount.incrementAndGet();
+        return false;
       }
-
-      //parse features and return
-      TwoFishesFeature[] results = new TwoFishesFeature[features.size()];
-
-      for (int i = 0; i < features.size(); i++) {
-        JSONObject f = features.get(i);
-        TwoFishesFeature result = new TwoFishesFeature();
-        result.name = (String) f.get("name");
-        result.countryCode = (String) f.get(CC);
-        result.woeType = (long) f.get("woeType");
-        JSONObject geometry = (JSONObject) f.get("geometry");
-        JSONObject center = (JSONObject) geometry.get("center");
-        result.lat = String.valueOf(center.get(LAT));
-        result.lng = String.valueOf(center.get(LNG));
-        results[i] = result;
+      try {
+        applyResults(results, record);
+      } catch (RuntimeException ex) {
+        logger.info("Exception while attempting to resolve location: \"" + unresolvedLocation + "\".", ex);
+        exceptionCount.incrementAndGet();
+        return false;
       }
+      successCount.incrementAndGet();
+      return true;
+    });
+  }
 
-      _successCount++;
-      return results;
+  /**
+   * Adds resolved features to the record. Results for one location are ordered from most precise to least, e.g.
+   * Chicago, Cook County, Illinois, United States
+   */
+  void applyResults(TwoFishesFeature[] results, LogRecord record) {
+    for (int i = 0; i < results.length; i++) {
+      TwoFishesFeature result = results[i];
+      if (i == 0) { //only save CC and lat/lng of precise location
+        record.setValue(PIP_LOCATION, result.countryCode); //for legacy support
+        record.setValue(PIP_LOCATION + ".country", result.countryCode);
+        Gson gson = new Gson();
+        double lat = Double.parseDouble(result.lat);
+        double lng = Double.parseDouble(result.lng);
+        String json = gson.toJson(Arrays.asList(lat, lng));
+        record.setValue(PIP_LOCATION + "." + COORDINATES, json);
+      }
+      String woeType = WOE_TYPES.get(result.woeType);
+      if (woeType != null) { //ignore unknown woetypes
+        record.setValue(PIP_LOCATION + "." + woeType, result.name);
+      }
     }
-
   }
 
-  private class TwoFishesFeature {
-    public String name;
-    public String countryCode;
-    public String lat;
-    public String lng;
-    public long woeType;
+  @Override
+  public void cleanup() {
+    if (client != null) {
+      try {
+        client.close();
+      } catch (IOException e) {
+        logger.warn("Failed to close Twofishes client", e);
+      }
+    }
   }
 
+  @Override
+  public void declareOutputFields(OutputFieldsDeclarer declarer) {
+    declarer.declare(new Fields(AbstractLogRecordBolt.RECORD));
+  }
 }
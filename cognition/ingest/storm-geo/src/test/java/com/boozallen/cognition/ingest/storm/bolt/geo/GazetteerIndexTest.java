@@ -0,0 +1,106 @@
+/*
+ * Licensed to Booz Allen Hamilton under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Booz Allen Hamilton licenses this file to you
+ * under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.boozallen.cognition.ingest.storm.bolt.geo;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class GazetteerIndexTest {
+  private static final String GEONAMES = String.join("\n",
+      "6252001\tUnited States\tUnited States\tUSA,Etats-Unis\t39.76\t-98.5\tA\tPCLI\tUS\t\t00\t\t\t\t310232863",
+      "4896861\tIllinois\tIllinois\t\t40.0\t-89.25\tA\tADM1\tUS\t\tIL\t\t\t\t12830632",
+      "4398678\tMissouri\tMissouri\t\t38.25\t-92.5\tA\tADM1\tUS\t\tMO\t\t\t\t5988927",
+      "4250542\tSangamon County\tSangamon County\t\t39.75\t-89.65\tA\tADM2\tUS\t\tIL\t167\t\t\t197465",
+      "4250542\tSpringfield\tSpringfield\t\t39.80\t-89.64\tP\tPPLA\tUS\t\tIL\t167\t\t\t116250",
+      "4409896\tSpringfield\tSpringfield\t\t37.21\t-93.29\tP\tPPLA2\tUS\t\tMO\t077\t\t\t159498",
+      "2988507\tParis\tParis\tPa\u0159\u00ed\u017e\t48.85\t2.35\tP\tPPLC\tFR\t\t11\t75\t\t\t2138551",
+      "2988508\tParis Stream\tParis Stream\t\t48.85\t2.35\tH\tSTM\tFR\t\t11\t75\t\t\t0");
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private GazetteerIndex index;
+
+  @Before
+  public void setUp() throws IOException {
+    GazetteerIndexBuilder builder = new GazetteerIndexBuilder();
+    builder.load(new BufferedReader(new StringReader(GEONAMES)));
+    File file = folder.newFile("gazetteer.idx");
+    builder.write(file);
+    index = GazetteerIndex.open(file);
+  }
+
+  @Test
+  public void testLookupRankedByPopulation() {
+    TwoFishesFeature[] features = index.lookup("Springfield");
+
+    assertThat(features.length, is(3));
+    assertThat(features[0].name, is("Springfield"));
+    assertThat(features[0].woeType, is(7L));
+    assertThat(features[0].lat, is("37.21"));
+    assertThat(features[1].name, is("Missouri"));
+    assertThat(features[2].name, is("United States"));
+  }
+
+  @Test
+  public void testLookupWithParent() {
+    TwoFishesFeature[] features = index.lookup("springfield, IL");
+
+    assertThat(features.length, is(4));
+    assertThat(features[0].lat, is("39.8"));
+    assertThat(features[1].name, is("Sangamon County"));
+    assertThat(features[1].woeType, is(9L));
+    assertThat(features[2].name, is("Illinois"));
+    assertThat(features[2].woeType, is(8L));
+    assertThat(features[3].countryCode, is("US"));
+  }
+
+  @Test
+  public void testLookupAlternateName() {
+    TwoFishesFeature[] features = index.lookup("PARIZ");
+
+    assertThat(features.length, is(1));
+    assertThat(features[0].name, is("Paris"));
+    assertThat(features[0].countryCode, is("FR"));
+  }
+
+  @Test
+  public void testLookupNoMatch() {
+    assertThat(index.lookup("Paris, USA"), is(nullValue()));
+    assertThat(index.lookup("Paris Stream"), is(nullValue()));
+    assertThat(index.lookup("nowhere"), is(nullValue()));
+  }
+
+  @Test
+  public void testNormalize() {
+    assertThat(GazetteerIndex.normalize("  S\u00e3o Paulo, (SP) "), is("sao paulo sp"));
+  }
+}
@@ -0,0 +1,135 @@
+/*
+ * Licensed to Booz Allen Hamilton under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Booz Allen Hamilton licenses this file to you
+ * under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.boozallen.cognition.ingest.storm.bolt.geo;
+
+import com.boozallen.cognition.ingest.storm.ConfigurationException;
+import com.boozallen.cognition.ingest.storm.util.HdfsFileReader;
+import org.apache.commons.configuration.XMLConfiguration;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Collections;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class LocationResolverBoltTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /**
+   * Pretends to copy an index from HDFS
+   */
+  private static class StubHdfsFileReader extends HdfsFileReader {
+    private static final long serialVersionUID = 1L;
+    String checksum = "v1";
+    int copies;
+
+    StubHdfsFileReader() {
+      super(Collections.<String, String>emptyMap());
+    }
+
+    @Override
+    public String getChecksum(String path) {
+      return checksum;
+    }
+
+    @Override
+    public void getFileFromHdfs(String hdfsPath, File dst) throws IOException {
+      copies++;
+      assertThat(dst.mkdirs(), is(true));
+      assertThat(new File(dst, "segments_1").createNewFile(), is(true));
+    }
+  }
+
+  @Test
+  public void testGetHostCachedIndexCopiesOncePerVersion() throws IOException {
+    File cacheDir = new File(folder.getRoot(), "clavin");
+    StubHdfsFileReader reader = new StubHdfsFileReader();
+
+    File first = LocationResolverBolt.getHostCachedIndex("hdfs:///geo/index", cacheDir, reader);
+    File second = LocationResolverBolt.getHostCachedIndex("hdfs:///geo/index", cacheDir, reader);
+
+    assertThat(first, is(new File(cacheDir, "v1")));
+    assertThat(second, is(first));
+    assertThat(new File(first, "segments_1").exists(), is(true));
+    assertThat(reader.copies, is(1));
+
+    reader.checksum = "v2";
+    File updated = LocationResolverBolt.getHostCachedIndex("hdfs:///geo/index", cacheDir, reader);
+    assertThat(updated, is(new File(cacheDir, "v2")));
+    assertThat(reader.copies, is(2));
+  }
+
+  @Test
+  public void testGetHostCachedIndexReplacesIncompleteCopy() throws IOException {
+    File cacheDir = folder.newFolder("clavin");
+    File partial = new File(cacheDir, "v1");
+    assertThat(partial.mkdirs(), is(true));
+    assertThat(new File(partial, "partial").createNewFile(), is(true));
+    StubHdfsFileReader reader = new StubHdfsFileReader();
+
+    File index = LocationResolverBolt.getHostCachedIndex("hdfs:///geo/index", cacheDir, reader);
+
+    assertThat(reader.copies, is(1));
+    assertThat(new File(index, "partial").exists(), is(false));
+    assertThat(new File(index, "segments_1").exists(), is(true));
+  }
+
+  @Test
+  public void testShouldSkip() throws Exception {
+    XMLConfiguration conf = new XMLConfiguration();
+    conf.load(new StringReader("<conf>"
+        + "<luceneIndexDir>/data/clavin</luceneIndexDir>"
+        + "<textFields>body</textFields>"
+        + "<textFields>actor.summary</textFields>"
+        + "<fieldRules><field>"
+        + "<name>actor.summary</name><minTextLength>10</minTextLength>"
+        + "<requireCapitalizedToken>true</requireCapitalizedToken>"
+        + "</field></fieldRules>"
+        + "</conf>"));
+    LocationResolverBolt bolt = new LocationResolverBolt();
+    bolt.configure(conf);
+
+    assertThat(bolt.shouldSkip("body", "ok"), is(true));
+    assertThat(bolt.shouldSkip("body", "in paris"), is(false));
+    assertThat(bolt.shouldSkip("actor.summary", "Paris"), is(true));
+    assertThat(bolt.shouldSkip("actor.summary", "living in paris, tx"), is(true));
+    assertThat(bolt.shouldSkip("actor.summary", "living in Paris, TX"), is(false));
+  }
+
+  @Test
+  public void testHasCapitalizedToken() {
+    assertThat(LocationResolverBolt.hasCapitalizedToken("flooding in Houston"), is(true));
+    assertThat(LocationResolverBolt.hasCapitalizedToken("iPhone user"), is(false));
+    assertThat(LocationResolverBolt.hasCapitalizedToken(""), is(false));
+  }
+
+  @Test(expected = ConfigurationException.class)
+  public void testConfigureRequiresLocalIndexDirForHdfs() throws Exception {
+    XMLConfiguration conf = new XMLConfiguration();
+    conf.load(new StringReader("<conf><luceneIndexDir>hdfs:///clavin</luceneIndexDir></conf>"));
+    new LocationResolverBolt().configure(conf);
+  }
+}
@@ -0,0 +1,52 @@
+/*
+ * Licensed to Booz Allen Hamilton under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Booz Allen Hamilton licenses this file to you
+ * under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.boozallen.cognition.ingest.storm.bolt.geo;
+
+import org.junit.Test;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNot.not;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class ResolvedLocationCacheTest {
+
+  @Test
+  public void testKeyNormalizesWhitespace() {
+    assertThat(ResolvedLocationCache.key("  RT Flooding in\n Houston "),
+        is(ResolvedLocationCache.key("RT Flooding in Houston")));
+    assertThat(ResolvedLocationCache.key("Flooding in Houston"),
+        not(ResolvedLocationCache.key("flooding in houston")));
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsed() {
+    ResolvedLocationCache<String> cache = new ResolvedLocationCache<>(2);
+    cache.put(ResolvedLocationCache.key("a"), "A");
+    cache.put(ResolvedLocationCache.key("b"), "B");
+    cache.get(ResolvedLocationCache.key("a"));
+    cache.put(ResolvedLocationCache.key("c"), "C");
+
+    assertThat(cache.size(), is(2));
+    assertThat(cache.get(ResolvedLocationCache.key("a")), is("A"));
+    assertThat(cache.get(ResolvedLocationCache.key("b")), is(nullValue()));
+    assertThat(cache.get(ResolvedLocationCache.key("c")), is("C"));
+  }
+}
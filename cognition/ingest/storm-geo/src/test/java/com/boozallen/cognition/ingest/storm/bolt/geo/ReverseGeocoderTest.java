@@ -0,0 +1,135 @@
+/*
+ * Licensed to Booz Allen Hamilton under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Booz Allen Hamilton licenses this file to you
+ * under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.boozallen.cognition.ingest.storm.bolt.geo;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class ReverseGeocoderTest {
+  private static final String BOUNDARIES = ""
+      + "# type\tcc\tname\twkt\n"
+      + "country\tUS\tUnited States\tPOLYGON ((-100 30, -80 30, -80 50, -100 50, -100 30))\n"
+      + "state\tUS\tIllinois\tPOLYGON ((-91 37, -87 37, -87 42.5, -91 42.5, -91 37))\n"
+      + "county\tUS\tCook County\tPOLYGON ((-88.3 41.4, -87.5 41.4, -87.5 42.2, -88.3 42.2, -88.3 41.4))\n"
+      + "city\tUS\tChicago\tPOLYGON ((-87.95 41.64, -87.52 41.64, -87.52 42.03, -87.95 42.03, -87.95 41.64))\n"
+      + "bogus\tUS\tIgnored\tPOLYGON ((-100 30, -80 30, -80 50, -100 50, -100 30))\n";
+  private static final String PLACES = ""
+      + "1\tSpringfield\tSpringfield\t\t39.80\t-89.64\tP\tPPLA\tUS\t\tIL\t167\t\t\t116250\n"
+      + "2\tWindsor\tWindsor\t\t42.30\t-83.02\tP\tPPL\tCA\t\tON\t\t\t\t217188\n";
+
+  private ReverseGeocoder geocoder;
+
+  @Before
+  public void setUp() throws IOException {
+    geocoder = new ReverseGeocoder(25.0);
+    geocoder.loadBoundaries(new BufferedReader(new StringReader(BOUNDARIES)));
+    geocoder.loadPlaces(new BufferedReader(new StringReader(PLACES)));
+    geocoder.build();
+  }
+
+  @Test
+  public void testLookupCityPolygon() {
+    TwoFishesFeature[] features = geocoder.lookup(41.88, -87.63);
+
+    assertThat(features.length, is(4));
+    assertThat(features[0].name, is("Chicago"));
+    assertThat(features[0].woeType, is(7L));
+    assertThat(features[1].name, is("Cook County"));
+    assertThat(features[1].woeType, is(9L));
+    assertThat(features[2].name, is("Illinois"));
+    assertThat(features[2].woeType, is(8L));
+    assertThat(features[3].name, is("United States"));
+    assertThat(features[3].countryCode, is("US"));
+  }
+
+  @Test
+  public void testLookupNearestPlace() {
+    TwoFishesFeature[] features = geocoder.lookup(39.75, -89.6);
+
+    assertThat(features.length, is(3));
+    assertThat(features[0].name, is("Springfield"));
+    assertThat(features[0].woeType, is(7L));
+    assertThat(features[1].name, is("Illinois"));
+  }
+
+  @Test
+  public void testLookupPlaceOtherCountryIgnored() {
+    TwoFishesFeature[] features = geocoder.lookup(42.28, -83.1);
+
+    assertThat(features.length, is(1));
+    assertThat(features[0].name, is("United States"));
+  }
+
+  @Test
+  public void testLookupOutside() {
+    assertThat(geocoder.lookup(0, 0), is(nullValue()));
+  }
+
+  @Test
+  public void testConcurrentFirstLookups() throws Exception {
+    //the locator indexes are built while loading, so concurrent first lookups do not race building them
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<TwoFishesFeature[]>> lookups = new ArrayList<>();
+      for (int i = 0; i < 64; i++) {
+        lookups.add(executor.submit(() -> geocoder.lookup(41.88, -87.63)));
+      }
+      for (Future<TwoFishesFeature[]> lookup : lookups) {
+        assertThat(lookup.get()[0].name, is("Chicago"));
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testLoadBoundariesSkipsNonPolygons() throws IOException {
+    ReverseGeocoder geocoder = new ReverseGeocoder(25.0);
+    geocoder.loadBoundaries(new BufferedReader(new StringReader(""
+        + "city\tUS\tPoint\tPOINT (-87.63 41.88)\n"
+        + "city\tUS\tLine\tLINESTRING (-88 41, -87 42)\n"
+        + "city\tUS\tEmpty\tPOLYGON EMPTY\n"
+        + "city\tUS\tChicago\t"
+        + "MULTIPOLYGON (((-87.95 41.64, -87.52 41.64, -87.52 42.03, -87.95 42.03, -87.95 41.64)))\n")));
+    geocoder.build();
+
+    TwoFishesFeature[] features = geocoder.lookup(41.88, -87.63);
+    assertThat(features.length, is(1));
+    assertThat(features[0].name, is("Chicago"));
+  }
+
+  @Test
+  public void testDistanceKm() {
+    assertThat(Math.round(ReverseGeocoder.distanceKm(0, 0, 1, 0)), is(111L));
+  }
+}
@@ -0,0 +1,187 @@
+/*
+ * Licensed to Booz Allen Hamilton under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Booz Allen Hamilton licenses this file to you
+ * under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.boozallen.cognition.ingest.storm.bolt.geo;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsInstanceOf.instanceOf;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+/**
+ * Exercises {@link TwoFishesClient} against a local stub Twofishes server.
+ */
+public class TwoFishesClientTest {
+  private static final String CHICAGO = "{\"interpretations\":[{\"feature\":{\"name\":\"Chicago\",\"cc\":\"US\","
+      + "\"woeType\":7,\"geometry\":{\"center\":{\"lat\":41.85,\"lng\":-87.65}}},\"parents\":["
+      + "{\"name\":\"Cook County\",\"cc\":\"US\",\"woeType\":9,\"geometry\":{\"center\":{\"lat\":41.8,\"lng\":-87.7}}},"
+      + "{\"name\":\"Illinois\",\"cc\":\"US\",\"woeType\":8,\"geometry\":{\"center\":{\"lat\":40.0,\"lng\":-89.2}}}]}]}";
+  private static final String EMPTY = "{\"interpretations\":[]}";
+
+  private HttpServer server;
+  private String baseUrl;
+  private TwoFishesClient client;
+  private AtomicInteger requests = new AtomicInteger();
+
+  @Before
+  public void setUp() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.setExecutor(Executors.newFixedThreadPool(8));
+    server.createContext("/chicago", exchange -> respond(exchange, 200, CHICAGO));
+    server.createContext("/empty", exchange -> respond(exchange, 200, EMPTY));
+    server.createContext("/error", exchange -> respond(exchange, 503, "{}"));
+    server.createContext("/slow", exchange -> {
+      try {
+        Thread.sleep(2_000);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      respond(exchange, 200, CHICAGO);
+    });
+    server.start();
+    baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+  }
+
+  private void respond(com.sun.net.httpserver.HttpExchange exchange, int status, String body) throws IOException {
+    requests.incrementAndGet();
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.sendResponseHeaders(status, bytes.length);
+    try (OutputStream os = exchange.getResponseBody()) {
+      os.write(bytes);
+    }
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    if (client != null) {
+      client.close();
+    }
+    server.stop(0);
+  }
+
+  @Test
+  public void testSubmitQuery() throws Exception {
+    client = new TwoFishesClient(4, 1_000, 1_000, new CircuitBreaker(5, 60_000));
+
+    TwoFishesFeature[] features = client.submitQuery(baseUrl + "/chicago?query=chicago").get(5, TimeUnit.SECONDS);
+
+    assertThat(features.length, is(3));
+    assertThat(features[0].name, is("Chicago"));
+    assertThat(features[0].countryCode, is("US"));
+    assertThat(features[0].woeType, is(7L));
+    assertThat(features[0].lat, is("41.85"));
+    assertThat(features[0].lng, is("-87.65"));
+    assertThat(features[2].name, is("Illinois"));
+  }
+
+  @Test
+  public void testSubmitQueryNoInterpretation() throws Exception {
+    client = new TwoFishesClient(4, 1_000, 1_000, new CircuitBreaker(5, 60_000));
+    assertThat(client.submitQuery(baseUrl + "/empty?query=nowhere").get(5, TimeUnit.SECONDS), is(nullValue()));
+  }
+
+  @Test
+  public void testSubmitQueryServerError() throws Exception {
+    client = new TwoFishesClient(4, 1_000, 1_000, new CircuitBreaker(5, 60_000));
+    assertThat(client.submitQuery(baseUrl + "/error?query=chicago").get(5, TimeUnit.SECONDS), is(nullValue()));
+  }
+
+  @Test
+  public void testSubmitQueryPipelined() throws Exception {
+    client = new TwoFishesClient(8, 1_000, 5_000, new CircuitBreaker(5, 60_000));
+
+    List<CompletableFuture<TwoFishesFeature[]>> futures = new ArrayList<>();
+    for (int i = 0; i < 200; i++) {
+      futures.add(client.submitQuery(baseUrl + "/chicago?query=chicago" + i));
+    }
+    for (CompletableFuture<TwoFishesFeature[]> future : futures) {
+      assertThat(future.get(10, TimeUnit.SECONDS)[0].name, is("Chicago"));
+    }
+    assertThat(requests.get(), is(200));
+  }
+
+  @Test
+  public void testSubmitQueryTimeout() throws Exception {
+    client = new TwoFishesClient(4, 1_000, 200, new CircuitBreaker(5, 60_000));
+    try {
+      client.submitQuery(baseUrl + "/slow?query=chicago").get(5, TimeUnit.SECONDS);
+      fail("expected request to time out");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause() instanceof TimeoutException || e.getCause() instanceof IOException, is(true));
+    }
+  }
+
+  @Test
+  public void testCircuitBreakerOpens() throws Exception {
+    client = new TwoFishesClient(4, 1_000, 1_000, new CircuitBreaker(3, 60_000));
+    for (int i = 0; i < 3; i++) {
+      client.submitQuery(baseUrl + "/error?query=chicago").get(5, TimeUnit.SECONDS);
+    }
+    assertThat(client.getCircuitState(), is(CircuitBreaker.State.OPEN));
+
+    int before = requests.get();
+    try {
+      client.submitQuery(baseUrl + "/chicago?query=chicago").get(5, TimeUnit.SECONDS);
+      fail("expected open circuit");
+    } catch (ExecutionException e) {
+      assertThat(e.getCause(), instanceOf(TwoFishesClient.CircuitOpenException.class));
+    }
+    assertThat(requests.get(), is(before));
+  }
+
+  @Test
+  public void testCircuitBreakerHalfOpen() {
+    AtomicInteger clock = new AtomicInteger();
+    CircuitBreaker breaker = new CircuitBreaker(1, 100) {
+      @Override
+      long now() {
+        return clock.get();
+      }
+    };
+    breaker.recordFailure();
+    assertThat(breaker.allowRequest(), is(false));
+
+    clock.set(100);
+    assertThat(breaker.allowRequest(), is(true));
+    assertThat(breaker.allowRequest(), is(false));
+
+    breaker.recordSuccess();
+    assertThat(breaker.getState(), is(CircuitBreaker.State.CLOSED));
+    assertThat(breaker.allowRequest(), is(true));
+  }
+}
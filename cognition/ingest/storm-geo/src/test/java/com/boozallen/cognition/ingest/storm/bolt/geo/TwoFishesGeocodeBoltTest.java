@@ -0,0 +1,212 @@
+/*
+ * Licensed to Booz Allen Hamilton under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Booz Allen Hamilton licenses this file to you
+ * under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.boozallen.cognition.ingest.storm.bolt.geo;
+
+import backtype.storm.task.IOutputCollector;
+import backtype.storm.task.OutputCollector;
+import backtype.storm.task.TopologyContext;
+import backtype.storm.tuple.Tuple;
+import com.boozallen.cognition.ingest.storm.bolt.AbstractLogRecordBolt;
+import com.boozallen.cognition.ingest.storm.vo.LogRecord;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import mockit.Expectations;
+import mockit.Injectable;
+import org.apache.commons.configuration.XMLConfiguration;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Exercises the emit and ack flow of {@link TwoFishesGeocodeBolt} against a local stub Twofishes server.
+ */
+public class TwoFishesGeocodeBoltTest {
+  private static final String CHICAGO = "{\"interpretations\":[{\"feature\":{\"name\":\"Chicago\",\"cc\":\"US\","
+      + "\"woeType\":7,\"geometry\":{\"center\":{\"lat\":41.85,\"lng\":-87.65}}},\"parents\":[]}]}";
+  private static final String EMPTY = "{\"interpretations\":[]}";
+
+  private HttpServer server;
+  private TwoFishesGeocodeBolt bolt;
+  private RecordingCollector collector;
+
+  @Before
+  public void setUp() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.setExecutor(Executors.newFixedThreadPool(4));
+    server.createContext("/", exchange -> respond(exchange, exchange.getRequestURI().getQuery().contains("chicago")
+        ? CHICAGO : EMPTY));
+    server.start();
+  }
+
+  private void respond(HttpExchange exchange, String body) throws IOException {
+    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+    exchange.sendResponseHeaders(200, bytes.length);
+    try (OutputStream os = exchange.getResponseBody()) {
+      os.write(bytes);
+    }
+  }
+
+  @After
+  public void tearDown() {
+    if (bolt != null) {
+      bolt.cleanup();
+    }
+    server.stop(0);
+  }
+
+  private void prepare(TopologyContext context, int tuples) throws Exception {
+    XMLConfiguration conf = new XMLConfiguration();
+    conf.load(new StringReader("<conf>"
+        + "<server>http://127.0.0.1:" + server.getAddress().getPort() + "</server>"
+        + "<locationFields>home</locationFields>"
+        + "<locationFields>work</locationFields>"
+        + "<maxInFlight>1</maxInFlight>"
+        + "</conf>"));
+    bolt = new TwoFishesGeocodeBolt();
+    bolt.configure(conf);
+    collector = new RecordingCollector(tuples);
+    bolt.prepare(Collections.emptyMap(), context, new OutputCollector(collector));
+  }
+
+  private static LogRecord record(String field, String value) {
+    LogRecord record = new LogRecord("uuid");
+    record.setValue(field, value);
+    return record;
+  }
+
+  private static void returns(Tuple input, LogRecord record) {
+    new Expectations() {{
+      input.getValueByField(AbstractLogRecordBolt.RECORD);
+      result = record;
+    }};
+  }
+
+  /**
+   * Executes the tuples in order on a separate thread, as the executor thread of a task would, so a bolt blocking the
+   * executor forever fails the test instead of hanging it.
+   */
+  private void execute(Tuple... inputs) {
+    Thread executor = new Thread(() -> {
+      for (Tuple input : inputs) {
+        bolt.execute(input);
+      }
+    }, "executor");
+    executor.setDaemon(true);
+    executor.start();
+  }
+
+  @Test
+  public void testNextLocationFieldWithOneInFlight(@Injectable TopologyContext context,
+                                                   @Injectable Tuple first, @Injectable Tuple second) throws Exception {
+    prepare(context, 2);
+    //the first field has no interpretation, so the second is queried from the callback of the first response
+    LogRecord record1 = record("home", "nowhere");
+    record1.setValue("work", "chicago");
+    LogRecord record2 = record("home", "chicago");
+    returns(first, record1);
+    returns(second, record2);
+
+    execute(first, second);
+
+    assertThat(collector.done.await(10, TimeUnit.SECONDS), is(true));
+    assertThat(collector.acked.size(), is(2));
+    assertThat(collector.emitted.size(), is(2));
+    assertThat(record1.getValue("cognition.location.fieldName"), is("work"));
+    assertThat(record1.getValue("cognition.location.city"), is("Chicago"));
+    assertThat(record2.getValue("cognition.location.fieldName"), is("home"));
+  }
+
+  @Test
+  public void testProcessThrows(@Injectable TopologyContext context,
+                                @Injectable Tuple malformed, @Injectable Tuple next) throws Exception {
+    prepare(context, 2);
+    //coordinates that are not json fail before any request is sent
+    LogRecord record1 = record("geo.coordinates", "[41.85,");
+    LogRecord record2 = record("home", "chicago");
+    returns(malformed, record1);
+    returns(next, record2);
+
+    execute(malformed, next);
+
+    //the record is still emitted and acked, and its slot is released for the next one
+    assertThat(collector.done.await(10, TimeUnit.SECONDS), is(true));
+    assertThat(collector.acked.size(), is(2));
+    assertThat(collector.failed.size(), is(0));
+    assertThat(collector.emitted.size(), is(2));
+    assertThat(record2.getValue("cognition.location.fieldName"), is("home"));
+  }
+
+  /**
+   * Records the emitted and acked tuples, counting down once <code>tuples</code> were acked or failed.
+   */
+  private static class RecordingCollector implements IOutputCollector {
+    final List<List<Object>> emitted = Collections.synchronizedList(new ArrayList<>());
+    final List<Tuple> acked = Collections.synchronizedList(new ArrayList<>());
+    final List<Tuple> failed = Collections.synchronizedList(new ArrayList<>());
+    final CountDownLatch done;
+
+    RecordingCollector(int tuples) {
+      done = new CountDownLatch(tuples);
+    }
+
+    @Override
+    public List<Integer> emit(String streamId, Collection<Tuple> anchors, List<Object> tuple) {
+      emitted.add(tuple);
+      return Collections.emptyList();
+    }
+
+    @Override
+    public void emitDirect(int taskId, String streamId, Collection<Tuple> anchors, List<Object> tuple) {
+      emitted.add(tuple);
+    }
+
+    @Override
+    public void ack(Tuple input) {
+      acked.add(input);
+      done.countDown();
+    }
+
+    @Override
+    public void fail(Tuple input) {
+      failed.add(input);
+      done.countDown();
+    }
+
+    @Override
+    public void reportError(Throwable error) {
+    }
+  }
+}
@@ -36,9 +36,10 @@ public class AccumuloUtils {
   public static Collection<Range> getRanges(Instant beginTime, Instant endTime, String source) {
     ArrayList<Range> ranges = new ArrayList<>();
     //numeric shard ids
-    long begin = beginTime.toEpochMilli();
-    long end = endTime.toEpochMilli();
-    end += 1000; //needed so it can be exclusive, otherwise range is not correct
+    //row ids have the time zero-padded to 13 digits, see AccumuloBoltUtils.getEventRecordId in storm-accumulo
+    String begin = String.format("%013d", beginTime.toEpochMilli());
+    //1000 added so it can be exclusive, otherwise range is not correct
+    String end = String.format("%013d", endTime.toEpochMilli() + 1000);
     for (int i = 0; i <= 9; i++) {
       Range range = new Range(source + "_" + i + "_" + begin, true, source + "_" + i + "_" + end, false);
       ranges.add(range);
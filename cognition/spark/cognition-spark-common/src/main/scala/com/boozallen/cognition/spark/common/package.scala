@@ -19,9 +19,14 @@
 
 package com.boozallen.cognition.spark.common
 
+import java.io.Writer
+
+import com.boozallen.cognition.accumulo.row.{ColumnKey, RowView}
 import org.apache.hadoop.io.Text
 import org.apache.spark.rdd.RDD
 
+import scala.reflect.ClassTag
+
 package object utils {
   val DefaultJsonField = ("data", "cognition.esjson")
 
@@ -31,6 +36,35 @@ package object utils {
    */
   def collapseArray(arr: Array[String]): String = "[" + arr.mkString(",") + "]"
 
+  /**
+   * Same as collapseArray, writing each object to out as it comes rather than building the whole string. Nothing is
+   * written until the first object is read, or objects is known to be empty, so that a failure before any result
+   * leaves out untouched; the opening bracket is then flushed right away.
+   */
+  def writeArray(objects: Iterator[String], out: Writer): Unit = {
+    objects.hasNext
+    out.write("[")
+    out.flush()
+    for ((obj, index) <- objects.zipWithIndex) {
+      if (index > 0) {
+        out.write(",")
+      }
+      out.write(obj)
+    }
+    out.write("]")
+    out.flush()
+  }
+
+  /**
+   * Iterates the elements of the rdd on the driver, running one job per group of partitionsPerJob partitions as the
+   * iterator reaches them. Like RDD.toLocalIterator, which runs a job per partition, only one group is held in driver
+   * memory at a time, but the partitions of a group are read in parallel.
+   */
+  def localIterator[T: ClassTag](rdd: RDD[T], partitionsPerJob: Int): Iterator[T] = {
+    rdd.partitions.indices.grouped(math.max(1, partitionsPerJob)).flatMap(partitions =>
+      rdd.context.runJob(rdd, (partition: Iterator[T]) => partition.toArray, partitions).flatten)
+  }
+
   /**
    * Add this functionality to the RDD existing libraries when this package is imported
    */
@@ -65,4 +99,26 @@ package object utils {
     }
   }
 
+  /**
+   * Add this functionality to the RDD existing libraries when this package is imported
+   */
+  implicit def rowViewRDDFunctions(rdd: RDD[(Text, RowView)]) = new RowViewRDDFunctions(rdd)
+
+  class RowViewRDDFunctions(rdd: RDD[(Text, RowView)]) extends Serializable {
+
+    /**
+     * Same as [[CognitionRDDFunctions.makeJson]] for rows read as [[RowView]]s; only the json column is decoded.
+     *
+     * Caution: This wraps a spark collect action.
+     *
+     * @param limit -- the number of results to return. If limit is -1, return all results.
+     * @param jsonField -- the field in the datasource where the json is stored
+     */
+    def makeJson(limit: Int = -1, jsonField: Tuple2[String, String] = DefaultJsonField): String = {
+      val column = new ColumnKey(jsonField._1, jsonField._2)
+      val json = rdd.flatMap(row => Option(row._2.get(column)))
+      collapseArray(if (limit < 0) json.collect() else json.take(limit))
+    }
+  }
+
 }
\ No newline at end of file
@@ -30,6 +30,7 @@ import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.StreamingOutput;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -56,7 +57,7 @@ public class JsonLensEndpoint extends LensEndpoint{
    */
   @GET
   @Path("/_search")
-  public String jsonQuery(@QueryParam("q") String q, String schemaIn){
+  public StreamingOutput jsonQuery(@QueryParam("q") String q, String schemaIn){
 
     // initialize query properties
     String startDate = null;
@@ -66,6 +67,7 @@ public class JsonLensEndpoint extends LensEndpoint{
     String country = null;
     Integer limit = null;
     String schema = null;
+    boolean newestFirst = false;
     List<String> keywords = new ArrayList<String>();
 
     q = convertDelim(q);
@@ -93,6 +95,8 @@ public class JsonLensEndpoint extends LensEndpoint{
           limit = Integer.parseInt(param[1]); break;
         case "schema":
           schema = param[1].toLowerCase(); break;
+        case "newestFirst":
+          newestFirst = Boolean.parseBoolean(param[1]); break;
         }
       }
     }
@@ -101,7 +105,7 @@ public class JsonLensEndpoint extends LensEndpoint{
       schema = schemaIn;
     }
 
-    return this.query(user, keywords, language, country, startDate, endDate, schema, true, limit);
+    return this.query(user, keywords, language, country, startDate, endDate, schema, true, limit, newestFirst);
   }
 
   /**
@@ -113,7 +117,7 @@ public class JsonLensEndpoint extends LensEndpoint{
 
   @GET
   @Path("/{schema}/_search")
-  public String querySchema(@QueryParam("q") String q, @PathParam("schema") String schema){
+  public StreamingOutput querySchema(@QueryParam("q") String q, @PathParam("schema") String schema){
     return jsonQuery(q,schema);
   }
 
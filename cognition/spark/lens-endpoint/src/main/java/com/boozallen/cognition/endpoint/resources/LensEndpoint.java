@@ -23,7 +23,9 @@ import com.boozallen.cognition.accumulo.config.CognitionConfiguration;
 import com.boozallen.cognition.lens.Criteria;
 import com.boozallen.cognition.lens.Field;
 import com.boozallen.cognition.lens.LensAPI;
+import com.boozallen.cognition.lens.QueryResultCache;
 import com.boozallen.cognition.lens.SchemaAdapter;
+import com.google.common.io.CountingOutputStream;
 import com.sun.jersey.api.NotFoundException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -31,8 +33,11 @@ import org.slf4j.LoggerFactory;
 import javax.validation.constraints.NotNull;
 import javax.ws.rs.*;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
-import java.time.format.DateTimeParseException;
 import java.time.temporal.ChronoUnit;
 import java.util.List;
 
@@ -64,24 +69,28 @@ public class LensEndpoint {
   }
 
   @GET
-  public String defaultBehavior(@QueryParam("user") String user, @QueryParam("keywords") List<String> keywords,
+  public StreamingOutput defaultBehavior(@QueryParam("user") String user, @QueryParam("keywords") List<String> keywords,
       @QueryParam("language") String language, @QueryParam("country") String country,
       @NotNull @QueryParam("startDate") String startDate, @NotNull @QueryParam("endDate") String endDate,
       @QueryParam("schema") String schema,
       @DefaultValue("true") @QueryParam("useSpaceTokenization") boolean useSpaceTokenization,
-      @QueryParam("limit") int limit) {
-    return query(user, keywords, language, country, startDate, endDate, schema, useSpaceTokenization, limit);
+      @QueryParam("limit") int limit, @DefaultValue("false") @QueryParam("newestFirst") boolean newestFirst) {
+    return query(user, keywords, language, country, startDate, endDate, schema, useSpaceTokenization, limit,
+        newestFirst);
   }
 
   /**
    * Returns data bound to specific query parameters.
    * Required parameters: Start and end date.
+   * With newestFirst, the most recent matching records up to the limit are returned, newest first.
+   * The results are streamed as they are read, compressed when the client accepts gzip (see the gzip settings of
+   * config.yml).
    *
-   * @return String The results from query in JSON form.
+   * @return StreamingOutput The results from query in JSON form.
    */
   @GET
   @Path("query")
-  public String query(@QueryParam("user") String user,
+  public StreamingOutput query(@QueryParam("user") String user,
       @QueryParam("keywords") List<String> keywords,
       @QueryParam("language") String language,
       @QueryParam("country") String country,
@@ -89,7 +98,8 @@ public class LensEndpoint {
       @NotNull @QueryParam("endDate") String endDate,
       @QueryParam("schema") String schema,
       @DefaultValue("true") @QueryParam("useSpaceTokenization") boolean useSpaceTokenization,
-      @QueryParam("limit") int limit) {
+      @QueryParam("limit") int limit,
+      @DefaultValue("false") @QueryParam("newestFirst") boolean newestFirst) {
 
 
     if (startDate == null || endDate == null) {
@@ -112,22 +122,35 @@ public class LensEndpoint {
 
     Criteria criteria = buildCriteria(user, keywords, language, country, schema, useSpaceTokenization,
         startInstant, endInstant);
+    criteria.setNewestFirst(newestFirst);
+
+    return output -> {
+      CountingOutputStream counting = new CountingOutputStream(output);
+      try {
+        query(criteria, limit, counting);
+      } catch (Exception e) {
+        LOGGER.error(QUERY_ERROR, e);
+        if (counting.getCount() > 0) {
+          //part of the results is already sent, abort the response
+          throw new WebApplicationException(e);
+        }
+        output.write(FAILURE.getBytes(StandardCharsets.UTF_8));
+        return;
+      }
+
+      long end = System.currentTimeMillis();
+      LOGGER.info("PERF: Data Retrieval took: " + (end - start) + "ms");
+    };
+  }
 
-    String sparkMessage = null;
-    try {
-      sparkMessage = query(criteria, limit);
-    } catch (DateTimeParseException e) {
-      LOGGER.error(QUERY_ERROR + "Issue parsing provided dates, please check date format.", e);
-      return FAILURE;
-    } catch (Exception e) {
-      LOGGER.error(QUERY_ERROR, e);
-      return FAILURE;
-    }
-
-    long end = System.currentTimeMillis();
-    LOGGER.info("PERF: Data Retrieval took: " + (end - start) + "ms");
-
-    return sparkMessage;
+  /**
+   * Returns the counters of the query result cache: hits, misses, coalesced queries, the hit rate and the Spark job
+   * time saved.
+   */
+  @GET
+  @Path("cache/stats")
+  public QueryResultCache.Stats cacheStats() {
+    return api.getCacheStats();
   }
 
   private Criteria buildCriteria(String user, List<String> keywords, String language, String country, String schema,
@@ -173,9 +196,8 @@ public class LensEndpoint {
     return schema;
   }
 
-  private String query(Criteria criteria, int limit) {
-    String sparkMessage = (limit > 0) ? api.query(criteria, limit) : api.query(criteria);
-    return sparkMessage;
+  private void query(Criteria criteria, int limit, OutputStream output) throws IOException {
+    api.query(criteria, (limit > 0) ? limit : -1, output);
   }
 
 }
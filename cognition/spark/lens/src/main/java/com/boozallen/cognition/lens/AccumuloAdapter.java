@@ -21,9 +21,35 @@ package com.boozallen.cognition.lens;
 
 import com.boozallen.cognition.accumulo.config.AccumuloConfiguration;
 import com.boozallen.cognition.accumulo.config.CognitionConfiguration;
-import com.boozallen.cognition.accumulo.structure.AccumuloUtils;
+import com.boozallen.cognition.accumulo.iterators.CriteriaFilterIterator;
+import org.apache.accumulo.core.client.AccumuloException;
+import org.apache.accumulo.core.client.AccumuloSecurityException;
+import org.apache.accumulo.core.client.IteratorSetting;
+import org.apache.accumulo.core.client.TableNotFoundException;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.PartialKey;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.util.Pair;
+import org.apache.commons.configuration.Configuration;
+import org.apache.hadoop.io.Text;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 
 public class AccumuloAdapter {
+  private static final Logger logger = LoggerFactory.getLogger(AccumuloAdapter.class);
+
+  /**
+   * Evaluate the criteria on the tablet servers with {@link CriteriaFilterIterator}, which must then be on their
+   * classpath (e.g. the spark-accumulo jar in lib/ext)
+   */
+  public static final String SERVER_SIDE_FILTER = "lens.serverSideFilter";
+  static final String FILTER_ITERATOR_NAME = "lensCriteria";
+  static final int FILTER_ITERATOR_PRIORITY = 50;
 
   /**
    * Add information to the accumulo configuration
@@ -32,12 +58,115 @@ public class AccumuloAdapter {
    * @return a fully configured accumulo configuration
    */
   public static AccumuloConfiguration getAccumuloConfiguration(Criteria criteria, CognitionConfiguration cognition) {
-    AccumuloConfiguration accumulo = cognition.getAccumuloConfiguration();
+    return getAccumuloConfiguration(criteria, cognition, getRanges(criteria, cognition));
+  }
+
+  /**
+   * Add information to the accumulo configuration, scanning only the given ranges
+   * @param criteria -- the criteria object to pull the necessary information from
+   * @param cognition -- the current cognition configuration
+   * @param ranges -- the ranges to scan, see {@link #getRanges(Criteria, CognitionConfiguration)}
+   * @return a fully configured accumulo configuration
+   */
+  public static AccumuloConfiguration getAccumuloConfiguration(Criteria criteria, CognitionConfiguration cognition,
+                                                               Collection<Range> ranges) {
+    AccumuloConfiguration accumulo = cognition.getAccumuloConfiguration().copy();
     accumulo.setTableName(criteria.getAccumuloTable());
-    accumulo.setRanges(AccumuloUtils.getRanges(criteria.getDateStart(), criteria.getDateEnd(), criteria.getSchema().getSource()));
+    accumulo.setRanges(ranges);
+    //the time slices of ScanRangePlanner are adjacent and would be merged back into one range per shard; index rows
+    //are each their own split either way, so Query reads them with a batch scanner instead, see isExactRow
+    accumulo.setAutoAdjustRanges(false);
     accumulo.setAuthorizations(criteria.getSchema().getAuthorizations());
+    IteratorSetting filter = getServerSideFilter(criteria, cognition);
+    if (filter != null) {
+      accumulo.addIterator(filter);
+    }
 
     return accumulo;
   }
 
+  /**
+   * Returns the iterator evaluating the criteria on the tablet servers, or null if it is not enabled or there is
+   * nothing to filter.
+   */
+  public static IteratorSetting getServerSideFilter(Criteria criteria, CognitionConfiguration cognition) {
+    return isServerSideFilter(cognition) && hasFilter(criteria) ? getFilterIterator(criteria) : null;
+  }
+
+  static boolean isServerSideFilter(CognitionConfiguration cognition) {
+    Configuration properties = cognition.getProperties();
+    return properties != null && properties.getBoolean(SERVER_SIDE_FILTER, false);
+  }
+
+  static boolean hasFilter(Criteria criteria) {
+    return !criteria.getStringMatches().isEmpty() || !criteria.getKeywords().isEmpty();
+  }
+
+  /**
+   * Builds the scan iterator evaluating the criteria on the tablet servers, on the columns of the schema.
+   * @param criteria -- the criteria object to pull the matches and keywords from
+   * @return the iterator setting
+   */
+  public static IteratorSetting getFilterIterator(Criteria criteria) {
+    IteratorSetting setting = new IteratorSetting(FILTER_ITERATOR_PRIORITY, FILTER_ITERATOR_NAME,
+        CriteriaFilterIterator.class);
+    CriteriaFilterIterator.setCaseSensitive(setting, criteria.isCaseSensitive());
+    SchemaAdapter schema = criteria.getSchema();
+    for (Map.Entry<Field, String> match : criteria.getStringMatches().entrySet()) {
+      CriteriaFilterIterator.addMatch(setting, match.getValue(), getColumns(schema, match.getKey()));
+    }
+    if (!criteria.getKeywords().isEmpty()) {
+      CriteriaFilterIterator.setKeywords(setting, criteria.getKeywords(), getColumns(schema, Field.KEYWORD));
+    }
+    return setting;
+  }
+
+  private static List<Pair<Text, Text>> getColumns(SchemaAdapter schema, Field field) {
+    List<Pair<Text, Text>> columns = new ArrayList<>();
+    for (Column column : schema.getColumns(field)) {
+      columns.add(new Pair<>(column.getColumnFamily(), column.getColumnQualifier()));
+    }
+    return columns;
+  }
+
+  /**
+   * Returns true if the range covers exactly one row, as the ranges of the rows found in the index table.
+   */
+  public static boolean isExactRow(Range range) {
+    if (range.isInfiniteStartKey() || range.isInfiniteStopKey() || !range.isStartKeyInclusive()
+        || range.isEndKeyInclusive()) {
+      return false;
+    }
+    Key start = range.getStartKey();
+    return start.equals(new Key(start.getRow())) && range.getEndKey().equals(start.followingKey(PartialKey.ROW));
+  }
+
+  /**
+   * Returns the ranges to scan: the exact rows found in the index table when the schema has one and it can answer
+   * the criteria (empty if nothing matches), otherwise time slices of every shard of the date range, see
+   * {@link ScanRangePlanner}.
+   * @param criteria -- the criteria object to pull the necessary information from
+   * @param cognition -- the current cognition configuration
+   * @return the ranges to scan
+   */
+  public static Collection<Range> getRanges(Criteria criteria, CognitionConfiguration cognition) {
+    Collection<Range> ranges = null;
+    if (IndexPlanner.canAnswer(criteria)) {
+      Configuration properties = cognition.getProperties();
+      int maxRanges = properties == null ? IndexPlanner.MAX_RANGES_DEFAULT
+          : properties.getInt(IndexPlanner.MAX_RANGES, IndexPlanner.MAX_RANGES_DEFAULT);
+      try {
+        IndexPlanner planner = new IndexPlanner(cognition.getAccumuloConfiguration().getConnector(), maxRanges);
+        ranges = planner.getRanges(criteria);
+      } catch (AccumuloException | AccumuloSecurityException | TableNotFoundException e) {
+        logger.warn("Index lookup failed, scanning the date range instead", e);
+      }
+    }
+    if (ranges == null) {
+      ScanRangePlanner planner = ScanRangePlanner.getInstance(cognition.getProperties(), criteria.getSchema());
+      ranges = planner.getRanges(criteria.getDateStart(), criteria.getDateEnd(), criteria.getSchema().getSource());
+    }
+    return ranges;
+  }
+
 }
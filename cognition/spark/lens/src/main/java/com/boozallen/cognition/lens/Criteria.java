@@ -38,6 +38,7 @@ public class Criteria implements Serializable {
   private Collection<String> keywords;
   private boolean useSpaceTokens = true;
   private boolean caseSensitive = CASE_SENSITIVE;
+  private boolean newestFirst = false;
 
   private SchemaAdapter schema;
   private String accumuloTable;
@@ -94,6 +95,20 @@ public class Criteria implements Serializable {
     return caseSensitive;
   }
 
+  /**
+   * Keep the most recent matching rows when the results are limited, rather than whichever rows are found first, and
+   * order the results from newest to oldest.
+   * @param newestFirst -- true to prefer the most recent rows
+   */
+  public Criteria setNewestFirst(boolean newestFirst) {
+    this.newestFirst = newestFirst;
+    return this;
+  }
+
+  public boolean isNewestFirst() {
+    return newestFirst;
+  }
+
   public Collection<String> getKeywords() {
     return getTransformedKeywords();
   }
@@ -120,6 +135,25 @@ public class Criteria implements Serializable {
     return this;
   }
 
+  /**
+   * Returns a copy of these criteria over another date range.
+   * @param start -- the start of the date range
+   * @param end -- the end of the date range
+   */
+  public Criteria withDates(Instant start, Instant end) {
+    Criteria copy = new Criteria();
+    copy.dateStart = start;
+    copy.dateEnd = end;
+    copy.stringMatches.putAll(stringMatches);
+    copy.keywords.addAll(keywords);
+    copy.useSpaceTokens = useSpaceTokens;
+    copy.caseSensitive = caseSensitive;
+    copy.newestFirst = newestFirst;
+    copy.schema = schema;
+    copy.accumuloTable = accumuloTable;
+    return copy;
+  }
+
   public Instant getDateStart() {
     return dateStart;
   }
@@ -173,7 +207,8 @@ public class Criteria implements Serializable {
   public String toString() {
     return "Criteria [accumuloTable=" + accumuloTable + ", dateStart=" + dateStart + ", dateEnd=" + dateEnd
         + ", stringMatches=" + stringMatches + ", keywords=" + keywords
-        + ", useSpaceTokens=" + useSpaceTokens + ", caseSensitive=" + caseSensitive + ", schema=" + schema
+        + ", useSpaceTokens=" + useSpaceTokens + ", caseSensitive=" + caseSensitive + ", newestFirst=" + newestFirst
+        + ", schema=" + schema
         + "]";
   }
 
@@ -71,45 +71,14 @@ public class CriteriaMatcher implements Serializable {
   }
 
   /**
-   * Evaluate if the row atches all of the criteria
+   * Evaluate if the row atches all of the criteria. This compiles the criteria for every call; to evaluate many rows,
+   * compile them once with {@link CriteriaPlan#compile(Criteria)}.
    * @param criteria -- the criteria for filtering 
    * @param observedValues -- the values from accumulo
    * @return true if the values in accumulo match all of the criteria, false otherwise
    */
   public static boolean evaluate(Criteria criteria, Map<Tuple2<String, String>, String> observedValues) {
-    for (Map.Entry<Field, String> crit : criteria.getStringMatches().entrySet()) {
-      if (!checkField(crit.getValue(), getObservedValues(criteria, crit.getKey(), observedValues))) {
-        return false;
-      }//else continue down the list of criteria
-    }
-
-    //keyword part
-    if (criteria.getKeywords().size() > 0) {
-      Set<String> observed = getObservedValues(criteria, Field.KEYWORD, observedValues);
-      if (observed.size() > 0) {
-        observed = cleanValues(observed);
-        for (String criteriaKeyword : criteria.getKeywords()) {
-          for (String value : observed) {
-            if (value.contains(criteriaKeyword)) {
-              return true;
-            }
-          }
-        }
-      }
-    } else {
-      return true;
-    }
-    return false;
-
-  }
-
-  private static Set<String> cleanValues(Set<String> observed) {
-    //wrap in spaces avoids costly tokenization
-    Set<String> retVal = new HashSet<>();
-    for (String x : observed) {
-      retVal.add(" " + x.toLowerCase() + " ");
-    }
-    return retVal;
+    return CriteriaPlan.compile(criteria).evaluate(observedValues);
   }
 
 }
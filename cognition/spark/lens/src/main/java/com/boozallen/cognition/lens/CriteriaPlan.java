@@ -0,0 +1,219 @@
+/*
+ * Licensed to Booz Allen Hamilton under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Booz Allen Hamilton licenses this file to you
+ * under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.boozallen.cognition.lens;
+
+import com.boozallen.cognition.accumulo.row.ColumnKey;
+import com.boozallen.cognition.accumulo.row.RowView;
+import scala.Tuple2;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The criteria of a query compiled for evaluating rows: match values are transformed once, column lookup keys are
+ * built once and equality matches are ordered so the most selective fail first. The plan is immutable and
+ * serializable, so a query broadcasts it to the executors (see QueryFilter) instead of shipping the criteria and
+ * recomputing them for every row.
+ * <p>
+ * Evaluating a row map does not allocate and evaluating a {@link RowView} only decodes the values of the criteria
+ * columns; keywords are found with a {@link KeywordAutomaton} in one pass over each value. The semantics are those of
+ * {@link CriteriaMatcher}, except that values are lowercased a character at a time rather than with
+ * {@link String#toLowerCase()}, which only differs for the few characters whose lowercase has a different length.
+ * @author mparker
+ *
+ */
+public final class CriteriaPlan implements Serializable {
+  private static final long serialVersionUID = -2389420916137435516L;
+
+  /**
+   * Equality fields from the most to the least selective, e.g. a user matches far fewer rows than a language
+   */
+  static final List<Field> SELECTIVITY = Arrays.asList(Field.USER, Field.LOCATION, Field.KEYWORD, Field.JSON,
+      Field.LANGUAGE);
+
+  private final boolean caseSensitive;
+  private final Match[] matches;
+  private final KeywordAutomaton keywords;
+  private final Tuple2<String, String>[] keywordColumns;
+  private final ColumnKey[] keywordColumnKeys;
+
+  private CriteriaPlan(boolean caseSensitive, Match[] matches, KeywordAutomaton keywords,
+                       Tuple2<String, String>[] keywordColumns) {
+    this.caseSensitive = caseSensitive;
+    this.matches = matches;
+    this.keywords = keywords;
+    this.keywordColumns = keywordColumns;
+    this.keywordColumnKeys = toColumnKeys(keywordColumns);
+  }
+
+  /**
+   * Compiles the criteria with the columns of their schema.
+   * @param criteria -- the query criteria
+   * @return the evaluation plan
+   */
+  public static CriteriaPlan compile(Criteria criteria) {
+    SchemaAdapter schema = criteria.getSchema();
+    List<Match> matches = new ArrayList<>();
+    for (Map.Entry<Field, String> match : criteria.getStringMatches().entrySet()) {
+      matches.add(new Match(match.getKey(), match.getValue(), getColumnKeys(schema.getColumns(match.getKey()))));
+    }
+    matches.sort(Comparator.comparingInt((Match match) -> SELECTIVITY.indexOf(match.field))
+        .thenComparingInt(match -> match.columns.length));
+
+    Collection<String> keywords = criteria.getKeywords();
+    Tuple2<String, String>[] keywordColumns = keywords.isEmpty() ? getColumnKeys(new ArrayList<Column>())
+        : getColumnKeys(schema.getColumns(Field.KEYWORD));
+    return new CriteriaPlan(criteria.isCaseSensitive(), matches.toArray(new Match[matches.size()]),
+        KeywordAutomaton.build(keywords), keywordColumns);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Tuple2<String, String>[] getColumnKeys(List<Column> columns) {
+    Tuple2<String, String>[] keys = new Tuple2[columns.size()];
+    for (int i = 0; i < keys.length; i++) {
+      Column column = columns.get(i);
+      keys[i] = new Tuple2<>(column.getColumnFamily().toString(), column.getColumnQualifier().toString());
+    }
+    return keys;
+  }
+
+  private static ColumnKey[] toColumnKeys(Tuple2<String, String>[] columns) {
+    ColumnKey[] keys = new ColumnKey[columns.length];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = new ColumnKey(columns[i]._1(), columns[i]._2());
+    }
+    return keys;
+  }
+
+  /**
+   * Evaluates if the row matches all equality criteria and, if there are keywords, any keyword. Only the values of
+   * the criteria columns are decoded.
+   * @param row -- the row
+   * @return true if the row matches
+   */
+  public boolean evaluate(RowView row) {
+    for (Match match : matches) {
+      if (!matches(match, row)) {
+        return false;
+      }
+    }
+    if (keywords.size() == 0) {
+      return true;
+    }
+    for (ColumnKey column : keywordColumnKeys) {
+      String value = row.get(column);
+      if (value != null && keywords.matchesAny(value)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean matches(Match match, RowView row) {
+    for (ColumnKey column : match.columnKeys) {
+      String value = row.get(column);
+      if (value != null && equals(value, match.value)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Evaluates if the row matches all equality criteria and, if there are keywords, any keyword.
+   * @param observedValues -- the values of the row by (column family, column qualifier)
+   * @return true if the row matches
+   */
+  public boolean evaluate(Map<Tuple2<String, String>, String> observedValues) {
+    for (Match match : matches) {
+      if (!matches(match, observedValues)) {
+        return false;
+      }
+    }
+    if (keywords.size() == 0) {
+      return true;
+    }
+    for (Tuple2<String, String> column : keywordColumns) {
+      String value = observedValues.get(column);
+      if (value != null && keywords.matchesAny(value)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean matches(Match match, Map<Tuple2<String, String>, String> observedValues) {
+    for (Tuple2<String, String> column : match.columns) {
+      String value = observedValues.get(column);
+      if (value != null && equals(value, match.value)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean equals(String observed, String value) {
+    if (caseSensitive) {
+      return observed.equals(value);
+    }
+    if (observed.length() != value.length()) {
+      return false;
+    }
+    for (int i = 0; i < value.length(); i++) {
+      if (Character.toLowerCase(observed.charAt(i)) != value.charAt(i)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the fields of the equality matches in evaluation order.
+   */
+  List<Field> getMatchOrder() {
+    List<Field> fields = new ArrayList<>(matches.length);
+    for (Match match : matches) {
+      fields.add(match.field);
+    }
+    return fields;
+  }
+
+  private static final class Match implements Serializable {
+    private static final long serialVersionUID = 5829145871049316027L;
+
+    final Field field;
+    final String value;
+    final Tuple2<String, String>[] columns;
+    final ColumnKey[] columnKeys;
+
+    Match(Field field, String value, Tuple2<String, String>[] columns) {
+      this.field = field;
+      this.value = value;
+      this.columns = columns;
+      this.columnKeys = toColumnKeys(columns);
+    }
+  }
+
+}
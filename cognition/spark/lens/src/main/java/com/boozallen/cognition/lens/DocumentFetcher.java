@@ -0,0 +1,218 @@
+/*
+ * Licensed to Booz Allen Hamilton under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Booz Allen Hamilton licenses this file to you
+ * under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.boozallen.cognition.lens;
+
+import com.boozallen.cognition.accumulo.config.CognitionConfiguration;
+import com.boozallen.cognition.accumulo.row.RecordCodec;
+import com.boozallen.cognition.accumulo.row.RowView;
+import org.apache.accumulo.core.client.AccumuloException;
+import org.apache.accumulo.core.client.AccumuloSecurityException;
+import org.apache.accumulo.core.client.BatchScanner;
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.IteratorSetting;
+import org.apache.accumulo.core.client.TableNotFoundException;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.util.Pair;
+import org.apache.commons.configuration.Configuration;
+import org.apache.hadoop.io.Text;
+import scala.Tuple2;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fetches the json documents of the rows matching a query, the second phase of {@link Query}: the criteria are
+ * evaluated on a scan of the filter columns only, so the documents of rows failing them are never read, and the
+ * documents of the matching rows are then looked up by row id.
+ * <p>
+ * Rows are looked up with a batch scanner in batches of at most <code>lens.fetch.batchSize</code> exact ranges, using
+ * <code>lens.fetch.threads</code> threads. Rows written in the record storage mode of AccumuloEventStorageBolt have
+ * the document in their <code>record</code> cell.
+ * <p>
+ * The rows found in the index table are read the same way, see {@link #fetchRows}: the input format makes each exact
+ * range its own input split, so reading them through it would run a Spark task per row.
+ * @author mparker
+ *
+ */
+public class DocumentFetcher {
+  public static final String BATCH_SIZE = "lens.fetch.batchSize";
+  public static final int BATCH_SIZE_DEFAULT = 1000;
+  public static final String THREADS = "lens.fetch.threads";
+  public static final int THREADS_DEFAULT = 8;
+
+  private final Connector conn;
+  private final int batchSize;
+  private final int threads;
+
+  public DocumentFetcher(Connector conn, int batchSize, int threads) {
+    if (batchSize <= 0 || threads <= 0) {
+      throw new IllegalArgumentException("batchSize and threads must be positive");
+    }
+    this.conn = conn;
+    this.batchSize = batchSize;
+    this.threads = threads;
+  }
+
+  /**
+   * Creates a fetcher with the connector of the accumulo configuration and the lens properties.
+   * @param cognition -- the current cognition configuration
+   */
+  public static DocumentFetcher getInstance(CognitionConfiguration cognition)
+      throws AccumuloException, AccumuloSecurityException {
+    Configuration properties = cognition.getProperties();
+    int batchSize = properties == null ? BATCH_SIZE_DEFAULT : properties.getInt(BATCH_SIZE, BATCH_SIZE_DEFAULT);
+    int threads = properties == null ? THREADS_DEFAULT : properties.getInt(THREADS, THREADS_DEFAULT);
+    return new DocumentFetcher(cognition.getAccumuloConfiguration().getConnector(), batchSize, threads);
+  }
+
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  /**
+   * Looks up the json documents of the given rows.
+   * @param criteria -- the query criteria, giving the table, authorizations and json column
+   * @param rows -- the row ids
+   * @return the documents in the order of the rows, skipping rows without a document
+   * @throws TableNotFoundException if the table does not exist
+   */
+  public List<String> fetch(Criteria criteria, Collection<String> rows) throws TableNotFoundException {
+    Column column = criteria.getSchema().getColumns(Field.JSON).get(0);
+    List<String> documents = new ArrayList<>(rows.size());
+    List<String> batch = new ArrayList<>(Math.min(batchSize, rows.size()));
+    for (String row : rows) {
+      batch.add(row);
+      if (batch.size() == batchSize) {
+        fetchBatch(criteria, column, batch, documents);
+        batch.clear();
+      }
+    }
+    if (!batch.isEmpty()) {
+      fetchBatch(criteria, column, batch, documents);
+    }
+    return documents;
+  }
+
+  void fetchBatch(Criteria criteria, Column column, List<String> rows, List<String> documents)
+      throws TableNotFoundException {
+    List<Range> ranges = new ArrayList<>(rows.size());
+    for (String row : rows) {
+      ranges.add(Range.exact(row));
+    }
+
+    Map<String, String> found = new HashMap<>();
+    BatchScanner scanner = conn.createBatchScanner(criteria.getAccumuloTable(),
+        IndexPlanner.getAuthorizations(criteria.getSchema()), threads);
+    try {
+      scanner.setRanges(ranges);
+      scanner.fetchColumn(column.getColumnFamily(), column.getColumnQualifier());
+      scanner.fetchColumnFamily(new Text(RecordCodec.RECORD_FAMILY));
+      for (Map.Entry<Key, Value> entry : scanner) {
+        String document = getDocument(column, entry.getKey(), entry.getValue());
+        if (document != null) {
+          found.put(entry.getKey().getRow().toString(), document);
+        }
+      }
+    } finally {
+      scanner.close();
+    }
+
+    //the batch scanner returns rows in no particular order
+    for (String row : rows) {
+      String document = found.get(row);
+      if (document != null) {
+        documents.add(document);
+      }
+    }
+  }
+
+  /**
+   * Reads the cells of the given rows, in batches of at most <code>lens.fetch.batchSize</code> exact ranges.
+   * @param criteria -- the query criteria, giving the table and authorizations
+   * @param ranges -- exact ranges of the rows, see {@link AccumuloAdapter#isExactRow}
+   * @param columns -- the (family, qualifier) columns to read, a null qualifier reading the whole family
+   * @param filter -- iterator evaluating the criteria on the tablet servers, or null
+   * @return the rows read, in no particular order, skipping rows without any of the columns
+   * @throws TableNotFoundException if the table does not exist
+   */
+  public List<Tuple2<Text, RowView>> fetchRows(Criteria criteria, Collection<Range> ranges,
+                                               Collection<Pair<Text, Text>> columns, IteratorSetting filter)
+      throws TableNotFoundException {
+    List<Tuple2<Text, RowView>> rows = new ArrayList<>(ranges.size());
+    List<Range> batch = new ArrayList<>(Math.min(batchSize, ranges.size()));
+    for (Range range : ranges) {
+      batch.add(range);
+      if (batch.size() == batchSize) {
+        fetchRowBatch(criteria, batch, columns, filter, rows);
+        batch.clear();
+      }
+    }
+    if (!batch.isEmpty()) {
+      fetchRowBatch(criteria, batch, columns, filter, rows);
+    }
+    return rows;
+  }
+
+  void fetchRowBatch(Criteria criteria, List<Range> ranges, Collection<Pair<Text, Text>> columns,
+                     IteratorSetting filter, List<Tuple2<Text, RowView>> rows) throws TableNotFoundException {
+    Map<Text, List<Map.Entry<Key, Value>>> cells = new LinkedHashMap<>();
+    BatchScanner scanner = conn.createBatchScanner(criteria.getAccumuloTable(),
+        IndexPlanner.getAuthorizations(criteria.getSchema()), threads);
+    try {
+      scanner.setRanges(ranges);
+      for (Pair<Text, Text> column : columns) {
+        if (column.getSecond() == null) {
+          scanner.fetchColumnFamily(column.getFirst());
+        } else {
+          scanner.fetchColumn(column.getFirst(), column.getSecond());
+        }
+      }
+      if (filter != null) {
+        scanner.addScanIterator(filter);
+      }
+      //the batch scanner may interleave the cells of rows on different tablets
+      for (Map.Entry<Key, Value> entry : scanner) {
+        cells.computeIfAbsent(entry.getKey().getRow(), row -> new ArrayList<>()).add(entry);
+      }
+    } finally {
+      scanner.close();
+    }
+
+    for (Map.Entry<Text, List<Map.Entry<Key, Value>>> row : cells.entrySet()) {
+      rows.add(new Tuple2<>(row.getKey(), RowView.of(row.getValue().iterator())));
+    }
+  }
+
+  static String getDocument(Column column, Key key, Value value) {
+    if (RecordCodec.RECORD_FAMILY.equals(key.getColumnFamily().toString())) {
+      Map<String, String> family = RecordCodec.decode(value.get()).get(column.getColumnFamily().toString());
+      return family == null ? null : family.get(column.getColumnQualifier().toString());
+    }
+    return new String(value.get(), StandardCharsets.UTF_8);
+  }
+
+}
@@ -0,0 +1,300 @@
+/*
+ * Licensed to Booz Allen Hamilton under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Booz Allen Hamilton licenses this file to you
+ * under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.boozallen.cognition.lens;
+
+import org.apache.accumulo.core.client.Connector;
+import org.apache.accumulo.core.client.Scanner;
+import org.apache.accumulo.core.client.TableNotFoundException;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.security.Authorizations;
+import org.apache.hadoop.io.Text;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Resolves the criteria of a query to exact event rows using the index table written at ingest (see
+ * AccumuloEventStorageBolt in storm-accumulo), so only matching rows are read instead of the whole date range.
+ * <p>
+ * Field-value index rows are <code>field \0 lowercased value \0 day</code>; term index rows are
+ * <code>keyword \0 term \0 day \0 shard</code>, with terms being whitespace-separated lowercased tokens. Both have
+ * the event row id as column qualifier and the event time as timestamp. Rows matching one equality criteria are
+ * unioned over the days of the date range and intersected across criteria. A keyword matches the rows containing all
+ * of its terms, and the rows of the keywords are unioned, as any keyword matching is enough.
+ * <p>
+ * The index only covers what the schema declares: equality criteria on fields missing from <code>INDEX_FIELDS</code>
+ * are not used to narrow the rows, nor is any of them when the date range starts before <code>INDEX_START</code>, as
+ * rows written before the field was indexed have no entries. Likewise keywords are only looked up in the term index
+ * when every KEYWORD column of the schema is listed in <code>TERM_INDEX_COLUMNS</code> and the date range starts from
+ * <code>TERM_INDEX_START</code>, as a keyword found in any of them matches.
+ * <p>
+ * The planned rows are a superset of the matching rows, so the query still filters them. An equality criteria or term
+ * with more than <code>maxRanges</code> rows is not used to narrow the rows; if no criteria narrows them, or keywords
+ * are matched as plain substrings (not using space tokens), the planner returns null and the date range is scanned.
+ * As the planned rows are read with batch scanners on the driver (see {@link DocumentFetcher#fetchRows}), larger
+ * results are better served by the parallel scan of {@link ScanRangePlanner}.
+ * @author mparker
+ *
+ */
+public class IndexPlanner {
+  private static final Logger logger = LoggerFactory.getLogger(IndexPlanner.class);
+
+  public static final String MAX_RANGES = "lens.index.maxRanges";
+  public static final int MAX_RANGES_DEFAULT = 10000;
+
+  static final String SEPARATOR = "\u0000";
+  static final String KEYWORD_INDEX = "keyword";
+  static final String DATA_FAMILY = "data";
+  static final int MAX_TERM_LENGTH = 100; //longer terms are not indexed
+  static final long BUCKET_MILLIS = TimeUnit.DAYS.toMillis(1);
+  static final long MAX_MILLIS = 9999999999999L; //largest 13 digit bucket
+  private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+  private final Connector conn;
+  private final int maxRanges;
+
+  public IndexPlanner(Connector conn, int maxRanges) {
+    this.conn = conn;
+    this.maxRanges = maxRanges;
+  }
+
+  /**
+   * Returns true if the schema has an index table and the criteria has equality matches on indexed fields or space
+   * token keywords.
+   * @param criteria -- the query criteria
+   */
+  public static boolean canAnswer(Criteria criteria) {
+    SchemaAdapter schema = criteria.getSchema();
+    if (schema == null || schema.getIndexTable() == null || schema.getIndexTable().isEmpty()) {
+      return false;
+    }
+    return canAnswerMatches(criteria) || canAnswerKeywords(criteria);
+  }
+
+  static boolean canAnswerMatches(Criteria criteria) {
+    SchemaAdapter schema = criteria.getSchema();
+    if (criteria.isCaseSensitive() || !isIndexed(schema.getIndexStart(), criteria.getDateStart())) {
+      return false;
+    }
+    Set<Field> indexFields = schema.getIndexFields();
+    for (Field field : criteria.getStringMatches().keySet()) {
+      if (indexFields.contains(field)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Returns true if an index written from indexStart covers the date range starting at dateStart.
+   */
+  static boolean isIndexed(Instant indexStart, Instant dateStart) {
+    return indexStart == null || !dateStart.isBefore(indexStart);
+  }
+
+  static boolean canAnswerKeywords(Criteria criteria) {
+    if (!criteria.getUseSpaceTokens() || criteria.getKeywords().isEmpty()) {
+      return false;
+    }
+    SchemaAdapter schema = criteria.getSchema();
+    if (!isIndexed(schema.getTermIndexStart(), criteria.getDateStart())) {
+      return false;
+    }
+    Set<String> termColumns = schema.getTermIndexColumns();
+    List<Column> keywordColumns = schema.getColumns(Field.KEYWORD);
+    if (keywordColumns.isEmpty()) {
+      return false;
+    }
+    for (Column column : keywordColumns) {
+      if (!column.getColumnFamily().toString().equals(DATA_FAMILY)
+          || !termColumns.contains(column.getColumnQualifier().toString())) {
+        return false;
+      }
+    }
+    for (String keyword : criteria.getKeywords()) {
+      if (getTerms(keyword).isEmpty()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Looks up the rows matching the criteria within the date range.
+   * @param criteria -- the query criteria
+   * @return exact ranges of the candidate rows, sorted, empty if no row matches, or null if the index cannot
+   * narrow the rows
+   * @throws TableNotFoundException if the index table does not exist
+   */
+  public Collection<Range> getRanges(Criteria criteria) throws TableNotFoundException {
+    if (!canAnswer(criteria)) {
+      return null;
+    }
+    SchemaAdapter schema = criteria.getSchema();
+    long start = toMillis(criteria.getDateStart());
+    long end = toMillis(criteria.getDateEnd()) + 1000; //exclusive, same as AccumuloUtils.getRanges
+
+    Set<String> rows = null;
+    if (canAnswerMatches(criteria)) {
+      Set<Field> indexFields = schema.getIndexFields();
+      for (Map.Entry<Field, String> match : criteria.getStringMatches().entrySet()) {
+        if (!indexFields.contains(match.getKey())) {
+          continue;
+        }
+        String prefix = match.getKey().name().toLowerCase() + SEPARATOR + match.getValue() + SEPARATOR;
+        rows = intersect(rows, scan(schema, prefix, start, end));
+        if (rows != null && rows.isEmpty()) {
+          return new ArrayList<>();
+        }
+      }
+    }
+    if (canAnswerKeywords(criteria)) {
+      rows = intersect(rows, getKeywordRows(schema, criteria.getKeywords(), start, end));
+    }
+    if (rows == null) {
+      logger.info("Index cannot narrow {}, scanning the date range instead", criteria);
+      return null;
+    }
+
+    List<Range> ranges = new ArrayList<>(rows.size());
+    for (String row : new TreeSet<>(rows)) {
+      ranges.add(Range.exact(row));
+    }
+    return ranges;
+  }
+
+  /**
+   * Unions the rows of each keyword, which are the intersection of the postings of its terms.
+   * @return the rows, or null if the postings of any keyword are too large to narrow the rows
+   */
+  Set<String> getKeywordRows(SchemaAdapter schema, Collection<String> keywords, long start, long end)
+      throws TableNotFoundException {
+    Set<String> rows = new HashSet<>();
+    for (String keyword : keywords) {
+      Set<String> keywordRows = null;
+      for (String term : getTerms(keyword)) {
+        if (term.length() > MAX_TERM_LENGTH) {
+          continue;
+        }
+        keywordRows = intersect(keywordRows, scan(schema, KEYWORD_INDEX + SEPARATOR + term + SEPARATOR, start, end));
+        if (keywordRows != null && keywordRows.isEmpty()) {
+          break;
+        }
+      }
+      if (keywordRows == null) {
+        return null;
+      }
+      rows.addAll(keywordRows);
+      if (rows.size() > maxRanges) {
+        return null;
+      }
+    }
+    return rows;
+  }
+
+  /**
+   * Intersects candidate rows, where null stands for all rows.
+   */
+  static Set<String> intersect(Set<String> rows, Set<String> other) {
+    if (rows == null) {
+      return other;
+    }
+    if (other != null) {
+      rows.retainAll(other);
+    }
+    return rows;
+  }
+
+  /**
+   * Splits a keyword into the terms of the term index.
+   */
+  static Set<String> getTerms(String keyword) {
+    Set<String> terms = new LinkedHashSet<>();
+    for (String token : WHITESPACE.split(keyword.toLowerCase())) {
+      if (!token.isEmpty()) {
+        terms.add(token);
+      }
+    }
+    return terms;
+  }
+
+  /**
+   * Scans the index rows with the given prefix, any day bucket of the date range and any shard.
+   * @return the matching event row ids, or null if there are more than maxRanges
+   */
+  Set<String> scan(SchemaAdapter schema, String prefix, long start, long end) throws TableNotFoundException {
+    String source = schema.getSource() == null ? null : schema.getSource() + "_";
+
+    Scanner scanner = conn.createScanner(schema.getIndexTable(), getAuthorizations(schema));
+    Text endRow = Range.followingPrefix(new Text(getIndexRow(prefix, end - 1)));
+    scanner.setRange(new Range(new Text(getIndexRow(prefix, start)), true, endRow, false));
+
+    Set<String> rows = new HashSet<>();
+    for (Map.Entry<Key, Value> entry : scanner) {
+      long timestamp = entry.getKey().getTimestamp();
+      if (timestamp < start || timestamp >= end) {
+        continue;
+      }
+      String row = entry.getKey().getColumnQualifier().toString();
+      if (source != null && !row.startsWith(source)) {
+        continue;
+      }
+      rows.add(row);
+      if (rows.size() > maxRanges) {
+        logger.debug("More than {} rows match {}", maxRanges, prefix);
+        return null;
+      }
+    }
+    return rows;
+  }
+
+  static String getIndexRow(String prefix, long time) {
+    return String.format("%s%013d", prefix, time - Math.floorMod(time, BUCKET_MILLIS));
+  }
+
+  static long toMillis(Instant instant) {
+    if (instant.isBefore(Instant.EPOCH)) {
+      return 0;
+    }
+    return instant.isAfter(Instant.ofEpochMilli(MAX_MILLIS)) ? MAX_MILLIS : instant.toEpochMilli();
+  }
+
+  static Authorizations getAuthorizations(SchemaAdapter schema) {
+    String auths = schema.getAuthorizations();
+    if (auths == null || auths.isEmpty()) {
+      return Authorizations.EMPTY;
+    }
+    return new Authorizations(auths);
+  }
+
+}
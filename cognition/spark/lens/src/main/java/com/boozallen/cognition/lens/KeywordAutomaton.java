@@ -0,0 +1,258 @@
+/*
+ * Licensed to Booz Allen Hamilton under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Booz Allen Hamilton licenses this file to you
+ * under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.boozallen.cognition.lens;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Aho-Corasick automaton finding the keywords of a query in a text value in a single pass, whatever the number of
+ * keywords.
+ * <p>
+ * Values are matched as {@link CriteriaMatcher} does: lowercased and wrapped in spaces, so with space tokens a keyword
+ * <code>" flood "</code> only matches whole tokens. The value is neither copied nor lowercased up front; the padding
+ * and lowercasing are applied a character at a time while walking the automaton, which does not allocate.
+ * <p>
+ * Transitions on ASCII characters are resolved into a dense table when building, other characters follow the failure
+ * links. The automaton is immutable and serializable, it is part of the broadcast {@link CriteriaPlan}.
+ * @author mparker
+ *
+ */
+public final class KeywordAutomaton implements Serializable {
+  private static final long serialVersionUID = 3196871457436526188L;
+
+  private static final int ASCII = 128;
+  private static final int[] NO_OUTPUT = new int[0];
+
+  private final String[] keywords;
+  /**
+   * Next state of each state for each ASCII character
+   */
+  private final int[] asciiNext;
+  /**
+   * Sorted non-ASCII edge characters of each state and their target states
+   */
+  private final char[][] edgeChars;
+  private final int[][] edgeTargets;
+  private final int[] fail;
+  /**
+   * Keywords ending at each state, including through failure links
+   */
+  private final int[][] output;
+
+  private KeywordAutomaton(String[] keywords, int[] asciiNext, char[][] edgeChars, int[][] edgeTargets, int[] fail,
+                           int[][] output) {
+    this.keywords = keywords;
+    this.asciiNext = asciiNext;
+    this.edgeChars = edgeChars;
+    this.edgeTargets = edgeTargets;
+    this.fail = fail;
+    this.output = output;
+  }
+
+  /**
+   * Builds the automaton of the keywords, as returned by Criteria.getKeywords.
+   * @param keywords -- the keywords, padded with spaces when using space tokens
+   * @return the automaton
+   */
+  public static KeywordAutomaton build(Collection<String> keywords) {
+    String[] words = keywords.toArray(new String[keywords.size()]);
+
+    //trie
+    List<TreeMap<Character, Integer>> children = new ArrayList<>();
+    List<List<Integer>> ends = new ArrayList<>();
+    children.add(new TreeMap<>());
+    ends.add(new ArrayList<>());
+    for (int id = 0; id < words.length; id++) {
+      int state = 0;
+      for (int i = 0; i < words[id].length(); i++) {
+        char c = words[id].charAt(i);
+        Integer next = children.get(state).get(c);
+        if (next == null) {
+          next = children.size();
+          children.add(new TreeMap<>());
+          ends.add(new ArrayList<>());
+          children.get(state).put(c, next);
+        }
+        state = next;
+      }
+      ends.get(state).add(id);
+    }
+
+    //failure links, breadth first so the failure states of a state are done before it
+    int states = children.size();
+    Integer[] order = breadthFirst(children);
+    int[] fail = new int[states];
+    for (int state : order) {
+      if (state == 0) {
+        continue; //children of the root fail to the root
+      }
+      for (Map.Entry<Character, Integer> edge : children.get(state).entrySet()) {
+        int f = fail[state];
+        while (f != 0 && !children.get(f).containsKey(edge.getKey())) {
+          f = fail[f];
+        }
+        Integer target = children.get(f).get(edge.getKey());
+        fail[edge.getValue()] = target == null ? 0 : target;
+      }
+    }
+
+    //outputs and ASCII transitions, from those of the failure state
+    int[][] output = new int[states][];
+    int[] asciiNext = new int[states * ASCII];
+    output[0] = toArray(ends.get(0));
+    for (int state : order) {
+      if (state != 0) {
+        output[state] = merge(toArray(ends.get(state)), output[fail[state]]);
+      }
+      for (int c = 0; c < ASCII; c++) {
+        Integer child = children.get(state).get((char) c);
+        if (child != null) {
+          asciiNext[state * ASCII + c] = child;
+        } else {
+          asciiNext[state * ASCII + c] = state == 0 ? 0 : asciiNext[fail[state] * ASCII + c];
+        }
+      }
+    }
+
+    char[][] edgeChars = new char[states][];
+    int[][] edgeTargets = new int[states][];
+    for (int state = 0; state < states; state++) {
+      Map<Character, Integer> nonAscii = children.get(state).tailMap((char) ASCII);
+      edgeChars[state] = new char[nonAscii.size()];
+      edgeTargets[state] = new int[nonAscii.size()];
+      int i = 0;
+      for (Map.Entry<Character, Integer> edge : nonAscii.entrySet()) {
+        edgeChars[state][i] = edge.getKey();
+        edgeTargets[state][i++] = edge.getValue();
+      }
+    }
+    return new KeywordAutomaton(words, asciiNext, edgeChars, edgeTargets, fail, output);
+  }
+
+  private static Integer[] breadthFirst(List<TreeMap<Character, Integer>> children) {
+    List<Integer> order = new ArrayList<>(children.size());
+    order.add(0);
+    for (int i = 0; i < order.size(); i++) {
+      order.addAll(children.get(order.get(i)).values());
+    }
+    return order.toArray(new Integer[order.size()]);
+  }
+
+  private static int[] toArray(List<Integer> ids) {
+    if (ids.isEmpty()) {
+      return NO_OUTPUT;
+    }
+    int[] array = new int[ids.size()];
+    for (int i = 0; i < array.length; i++) {
+      array[i] = ids.get(i);
+    }
+    return array;
+  }
+
+  private static int[] merge(int[] own, int[] inherited) {
+    if (inherited.length == 0) {
+      return own;
+    }
+    int[] merged = Arrays.copyOf(own, own.length + inherited.length);
+    System.arraycopy(inherited, 0, merged, own.length, inherited.length);
+    return merged;
+  }
+
+  private int next(int state, char c) {
+    if (c < ASCII) {
+      return asciiNext[state * ASCII + c];
+    }
+    while (true) {
+      int i = Arrays.binarySearch(edgeChars[state], c);
+      if (i >= 0) {
+        return edgeTargets[state][i];
+      }
+      if (state == 0) {
+        return 0;
+      }
+      state = fail[state];
+    }
+  }
+
+  /**
+   * Returns the number of keywords.
+   */
+  public int size() {
+    return keywords.length;
+  }
+
+  /**
+   * Returns the keyword with the given id, ids being the positions in the collection the automaton was built from.
+   */
+  public String getKeyword(int id) {
+    return keywords[id];
+  }
+
+  /**
+   * Returns true if any keyword is contained in the lowercased value wrapped in spaces.
+   * @param value -- the text value
+   */
+  public boolean matchesAny(String value) {
+    if (output[0].length > 0) {
+      return true; //the empty keyword
+    }
+    int state = next(0, ' ');
+    if (output[state].length > 0) {
+      return true;
+    }
+    for (int i = 0; i < value.length(); i++) {
+      state = next(state, Character.toLowerCase(value.charAt(i)));
+      if (output[state].length > 0) {
+        return true;
+      }
+    }
+    return output[next(state, ' ')].length > 0;
+  }
+
+  /**
+   * Finds all keywords contained in the lowercased value wrapped in spaces.
+   * @param value -- the text value
+   * @param hits -- set with the ids of the keywords found
+   */
+  public void findAll(String value, BitSet hits) {
+    collect(output[0], hits);
+    int state = next(0, ' ');
+    collect(output[state], hits);
+    for (int i = 0; i < value.length(); i++) {
+      state = next(state, Character.toLowerCase(value.charAt(i)));
+      collect(output[state], hits);
+    }
+    collect(output[next(state, ' ')], hits);
+  }
+
+  private static void collect(int[] ids, BitSet hits) {
+    for (int id : ids) {
+      hits.set(id);
+    }
+  }
+
+}
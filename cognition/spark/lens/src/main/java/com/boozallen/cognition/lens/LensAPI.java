@@ -20,11 +20,19 @@
 package com.boozallen.cognition.lens;
 
 import com.boozallen.cognition.accumulo.config.CognitionConfiguration;
+import com.boozallen.cognition.accumulo.row.ColumnKey;
+import com.boozallen.cognition.accumulo.row.RowView;
 import org.apache.commons.configuration.Configuration;
 import org.apache.spark.SparkConf;
 import org.apache.spark.SparkContext;
 import org.apache.spark.serializer.KryoSerializer;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.Iterator;
 
 /**
@@ -35,12 +43,14 @@ import java.util.Iterator;
 public class LensAPI {
   private SparkContext sc;
   private CognitionConfiguration cognition;
+  private QueryResultCache cache;
 
   /**
    * Create a lens api with the properties file on the classpath and creating a new spark context.
    */
   public LensAPI() {
     cognition = new CognitionConfiguration();
+    cache = QueryResultCache.getInstance(cognition.getProperties());
     sc = createSparkContext();
   }
 
@@ -50,6 +60,7 @@ public class LensAPI {
    */
   public LensAPI(SparkContext sc) {
     cognition = new CognitionConfiguration();
+    cache = QueryResultCache.getInstance(cognition.getProperties());
     this.sc = sc;
   }
 
@@ -59,6 +70,7 @@ public class LensAPI {
    */
   public LensAPI(CognitionConfiguration cognition) {
     this.cognition = cognition;
+    cache = QueryResultCache.getInstance(cognition.getProperties());
     sc = createSparkContext();
   }
 
@@ -69,6 +81,7 @@ public class LensAPI {
    */
   public LensAPI(SparkContext sc, CognitionConfiguration cognition) {
     this.cognition = cognition;
+    cache = QueryResultCache.getInstance(cognition.getProperties());
     this.sc = sc;
   }
 
@@ -82,6 +95,7 @@ public class LensAPI {
     Configuration config = cognition.getProperties();
 
     conf.set("spark.serializer", KryoSerializer.class.getName());
+    conf.registerKryoClasses(new Class<?>[]{RowView.class, ColumnKey.class, CriteriaPlan.class, KeywordAutomaton.class});
     conf.setAppName(config.getString("app.name"));
     conf.setMaster(config.getString("master"));
 
@@ -100,14 +114,13 @@ public class LensAPI {
   }
   
   /**
-   * Issue the query based on the given criteria.
+   * Issue the query based on the given criteria. Results are cached, and identical concurrent queries share one
+   * Spark job, see {@link QueryResultCache}.
    * @param criteria -- the criteria to filter by
    * @return a json string of the results
    */
   public String query(Criteria criteria) {
-    Query query = new Query(sc, criteria, cognition);
-    String json = query.json();
-    return json;
+    return cache.get(criteria, -1, () -> new Query(sc, criteria, cognition).json());
   }
 
   /**
@@ -117,9 +130,32 @@ public class LensAPI {
    * @return a json string of the results
    */
   public String query(Criteria criteria, int limit) {
-    Query query = new Query(sc, criteria, cognition);
-    String json = query.json(limit);
-    return json;
+    return cache.get(criteria, limit, () -> new Query(sc, criteria, cognition).json(limit));
+  }
+
+  /**
+   * Issue the query based on the given criteria and limit, writing the json results as they are read rather than
+   * assembling them in memory. Without a limit, the results are read a few partitions at a time. Results are cached
+   * as in {@link #query(Criteria)}, unless larger than <code>lens.cache.maxEntryBytes</code>.
+   * @param criteria -- the criteria to filter by
+   * @param limit -- the limit to the number of results returned, or -1 for all results
+   * @param out -- the stream to write the json array of the results to, in UTF-8
+   * @throws IOException if writing to the stream fails
+   */
+  public void query(Criteria criteria, int limit, OutputStream out) throws IOException {
+    cache.write(criteria, limit, out, stream -> {
+      Query query = new Query(sc, criteria, cognition);
+      Writer writer = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+      query.writeJson(limit, writer);
+      writer.flush();
+    });
+  }
+
+  /**
+   * Returns the hit rate and other counters of the query result cache.
+   */
+  public QueryResultCache.Stats getCacheStats() {
+    return cache.getStats();
   }
 
 }
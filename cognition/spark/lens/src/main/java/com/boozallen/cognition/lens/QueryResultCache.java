@@ -0,0 +1,592 @@
+/*
+ * Licensed to Booz Allen Hamilton under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Booz Allen Hamilton licenses this file to you
+ * under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.boozallen.cognition.lens;
+
+import org.apache.commons.configuration.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Instant;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Cache of the json results of queries, keyed by a canonical form of the criteria and the limit, with single-flight
+ * coalescing: a query arriving while an identical one runs waits for its result instead of starting another Spark
+ * job.
+ * <p>
+ * Results are kept in least recently used order up to <code>lens.cache.maxBytes</code> bytes, and results larger
+ * than <code>lens.cache.maxEntryBytes</code> are not kept. If an identical query is already waiting when a result
+ * outgrows that size, it is spooled to a temporary file, replayed to the waiting queries and deleted once the last of
+ * them is done; the spooled results total at most <code>lens.cache.maxSpoolBytes</code>. Otherwise the queries
+ * waiting for a result too large to keep run on their own.
+ * A result expires after <code>lens.cache.ttlMillis</code>, or after <code>lens.cache.pastTtlMillis</code> when the
+ * date range ended more than <code>lens.cache.settleMillis</code> ago, as late events are no longer expected and its
+ * rows no longer change.
+ * @author mparker
+ *
+ */
+public class QueryResultCache {
+  private static final Logger logger = LoggerFactory.getLogger(QueryResultCache.class);
+
+  public static final String MAX_BYTES = "lens.cache.maxBytes";
+  public static final long MAX_BYTES_DEFAULT = 64L << 20;
+  public static final String MAX_ENTRY_BYTES = "lens.cache.maxEntryBytes";
+  public static final long MAX_ENTRY_BYTES_DEFAULT = 8L << 20;
+  public static final String TTL_MILLIS = "lens.cache.ttlMillis";
+  public static final long TTL_MILLIS_DEFAULT = 60000L;
+  public static final String PAST_TTL_MILLIS = "lens.cache.pastTtlMillis";
+  public static final long PAST_TTL_MILLIS_DEFAULT = 3600000L;
+  public static final String SETTLE_MILLIS = "lens.cache.settleMillis";
+  public static final long SETTLE_MILLIS_DEFAULT = 600000L;
+  public static final String MAX_SPOOL_BYTES = "lens.cache.maxSpoolBytes";
+  public static final long MAX_SPOOL_BYTES_DEFAULT = 1L << 30;
+
+  /**
+   * Writes the json result of a query.
+   */
+  public interface ResultWriter {
+    void write(OutputStream out) throws IOException;
+  }
+
+  private final long maxBytes;
+  private final long maxEntryBytes;
+  private final long ttlMillis;
+  private final long pastTtlMillis;
+  private final long settleMillis;
+  private final long maxSpoolBytes;
+  private final Clock clock;
+
+  private final Map<UUID, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long bytes;
+  private final ConcurrentMap<UUID, Flight> inFlight = new ConcurrentHashMap<>();
+  private final AtomicLong spoolBytes = new AtomicLong();
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong coalesced = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong savedMillis = new AtomicLong();
+  private final AtomicInteger waiting = new AtomicInteger();
+
+  public QueryResultCache(long maxBytes, long maxEntryBytes, long ttlMillis, long pastTtlMillis, long settleMillis,
+                          long maxSpoolBytes) {
+    this(maxBytes, maxEntryBytes, ttlMillis, pastTtlMillis, settleMillis, maxSpoolBytes, Clock.systemUTC());
+  }
+
+  QueryResultCache(long maxBytes, long maxEntryBytes, long ttlMillis, long pastTtlMillis, long settleMillis,
+                   long maxSpoolBytes, Clock clock) {
+    this.maxBytes = maxBytes;
+    this.maxEntryBytes = Math.min(maxEntryBytes, maxBytes);
+    this.ttlMillis = ttlMillis;
+    this.pastTtlMillis = pastTtlMillis;
+    this.settleMillis = settleMillis;
+    this.maxSpoolBytes = maxSpoolBytes;
+    this.clock = clock;
+  }
+
+  /**
+   * Creates a cache from the lens properties.
+   * @param properties -- the lens properties, may be null
+   */
+  public static QueryResultCache getInstance(Configuration properties) {
+    if (properties == null) {
+      return new QueryResultCache(MAX_BYTES_DEFAULT, MAX_ENTRY_BYTES_DEFAULT, TTL_MILLIS_DEFAULT,
+          PAST_TTL_MILLIS_DEFAULT, SETTLE_MILLIS_DEFAULT, MAX_SPOOL_BYTES_DEFAULT);
+    }
+    return new QueryResultCache(properties.getLong(MAX_BYTES, MAX_BYTES_DEFAULT),
+        properties.getLong(MAX_ENTRY_BYTES, MAX_ENTRY_BYTES_DEFAULT),
+        properties.getLong(TTL_MILLIS, TTL_MILLIS_DEFAULT),
+        properties.getLong(PAST_TTL_MILLIS, PAST_TTL_MILLIS_DEFAULT),
+        properties.getLong(SETTLE_MILLIS, SETTLE_MILLIS_DEFAULT),
+        properties.getLong(MAX_SPOOL_BYTES, MAX_SPOOL_BYTES_DEFAULT));
+  }
+
+  /**
+   * Returns the cached result of the query, or runs it.
+   * @param criteria -- the query criteria
+   * @param limit -- the limit of the query, negative for all results
+   * @param query -- runs the query
+   * @return the json result
+   */
+  public String get(Criteria criteria, int limit, Supplier<String> query) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      write(criteria, limit, out, stream -> stream.write(query.get().getBytes(StandardCharsets.UTF_8)));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Writes the cached result of the query to out, or runs it, writing its result as it comes.
+   * @param criteria -- the query criteria
+   * @param limit -- the limit of the query, negative for all results
+   * @param out -- the stream to write the json result to
+   * @param query -- runs the query, writing its result to the given stream
+   * @throws IOException if writing fails
+   */
+  public void write(Criteria criteria, int limit, OutputStream out, ResultWriter query) throws IOException {
+    UUID key = getKey(criteria, limit);
+    if (writeCached(lookup(key), out, hits)) {
+      return;
+    }
+
+    Flight flight = new Flight();
+    Flight leader = inFlight.putIfAbsent(key, flight);
+    if (leader != null) {
+      if (!leader.retain()) {
+        //the leader finished and left the map since, look the query up again
+        write(criteria, limit, out, query);
+        return;
+      }
+      try {
+        //a failed query, or a result too large to keep that was not spooled, is not shared and the query runs again
+        if (!writeCached(await(leader.result), out, coalesced)) {
+          misses.incrementAndGet();
+          query.write(out);
+        }
+      } finally {
+        leader.release();
+      }
+      return;
+    }
+
+    CapturingOutputStream capture = null;
+    try {
+      //the previous identical query may have completed since the lookup
+      Entry cached = lookup(key);
+      if (writeCached(cached, out, hits)) {
+        flight.result.complete(cached);
+        return;
+      }
+      misses.incrementAndGet();
+      long start = clock.millis();
+      capture = new CapturingOutputStream(out, flight);
+      flight.setCapture(capture);
+      query.write(capture);
+      capture.flush();
+      capture.finish();
+      Entry entry = new Entry(capture.getCaptured(), capture.getSpool(), clock.millis() + getTtl(criteria),
+          clock.millis() - start);
+      if (entry.json != null) {
+        put(key, entry);
+      }
+      flight.result.complete(entry);
+    } catch (IOException | RuntimeException | Error e) {
+      if (capture != null) {
+        capture.discard();
+      }
+      flight.result.completeExceptionally(e);
+      throw e;
+    } finally {
+      inFlight.remove(key, flight);
+      flight.release();
+    }
+  }
+
+  private boolean writeCached(Entry entry, OutputStream out, AtomicLong counter) throws IOException {
+    if (entry == null || (entry.json == null && entry.spool == null)) {
+      return false;
+    }
+    counter.incrementAndGet();
+    savedMillis.addAndGet(entry.elapsedMillis);
+    if (entry.json != null) {
+      out.write(entry.json);
+    } else {
+      Files.copy(entry.spool, out);
+    }
+    return true;
+  }
+
+  private Entry await(CompletableFuture<Entry> leader) {
+    waiting.incrementAndGet();
+    try {
+      return leader.join();
+    } catch (RuntimeException e) {
+      return null;
+    } finally {
+      waiting.decrementAndGet();
+    }
+  }
+
+  long getTtl(Criteria criteria) {
+    Instant end = criteria.getDateEnd();
+    boolean settled = end != null && end.isBefore(Instant.ofEpochMilli(clock.millis() - settleMillis));
+    return settled ? pastTtlMillis : ttlMillis;
+  }
+
+  /**
+   * Returns the canonical key of a query: the matched rows (see {@link #getCanonicalCriteria}), the date range, the
+   * order and the limit.
+   */
+  static UUID getKey(Criteria criteria, int limit) {
+    String key = getCanonicalCriteria(criteria) + '\u0000' + criteria.getDateStart() + '\u0000'
+        + criteria.getDateEnd() + '\u0000' + criteria.isNewestFirst() + '\u0000' + Math.max(limit, -1);
+    return UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Returns a canonical form of what decides whether a row matches, regardless of the date range: the table, the
+   * schema, the matches and keywords in sorted order and the matching options.
+   */
+  static String getCanonicalCriteria(Criteria criteria) {
+    SchemaAdapter schema = criteria.getSchema();
+    StringBuilder key = new StringBuilder();
+    key.append(criteria.getAccumuloTable()).append('\u0000')
+        .append(schema == null ? "" : schema.getJson()).append('\u0000')
+        .append(new TreeMap<>(criteria.getStringMatches())).append('\u0000')
+        .append(new TreeSet<>(criteria.getKeywords())).append('\u0000')
+        .append(criteria.getUseSpaceTokens()).append(criteria.isCaseSensitive());
+    return key.toString();
+  }
+
+  private synchronized Entry lookup(UUID key) {
+    Entry entry = entries.get(key);
+    if (entry != null && entry.expires <= clock.millis()) {
+      entries.remove(key);
+      bytes -= entry.json.length;
+      return null;
+    }
+    return entry;
+  }
+
+  private synchronized void put(UUID key, Entry entry) {
+    Entry previous = entries.put(key, entry);
+    if (previous != null) {
+      bytes -= previous.json.length;
+    }
+    bytes += entry.json.length;
+    Iterator<Entry> eldest = entries.values().iterator();
+    while (bytes > maxBytes && eldest.hasNext()) {
+      bytes -= eldest.next().json.length;
+      eldest.remove();
+      evictions.incrementAndGet();
+    }
+  }
+
+  /**
+   * Returns the size of the results currently spooled for waiting queries.
+   */
+  long getSpoolBytes() {
+    return spoolBytes.get();
+  }
+
+  public synchronized void clear() {
+    entries.clear();
+    bytes = 0;
+  }
+
+  public Stats getStats() {
+    synchronized (this) {
+      return new Stats(hits.get(), misses.get(), coalesced.get(), evictions.get(), savedMillis.get(), waiting.get(),
+          entries.size(), bytes);
+    }
+  }
+
+  /**
+   * Counters of the cache since it was created.
+   */
+  public static class Stats {
+    private final long hits;
+    private final long misses;
+    private final long coalesced;
+    private final long evictions;
+    private final long savedMillis;
+    private final int waiting;
+    private final int entries;
+    private final long bytes;
+
+    Stats(long hits, long misses, long coalesced, long evictions, long savedMillis, int waiting, int entries,
+          long bytes) {
+      this.hits = hits;
+      this.misses = misses;
+      this.coalesced = coalesced;
+      this.evictions = evictions;
+      this.savedMillis = savedMillis;
+      this.waiting = waiting;
+      this.entries = entries;
+      this.bytes = bytes;
+    }
+
+    /**
+     * Queries answered from the cache.
+     */
+    public long getHits() {
+      return hits;
+    }
+
+    /**
+     * Queries that ran a Spark job.
+     */
+    public long getMisses() {
+      return misses;
+    }
+
+    /**
+     * Queries answered with the result of an identical query that was running.
+     */
+    public long getCoalesced() {
+      return coalesced;
+    }
+
+    public long getEvictions() {
+      return evictions;
+    }
+
+    /**
+     * Sum of the run time of the queries whose results were reused, an estimate of the Spark job time saved.
+     */
+    public long getSavedMillis() {
+      return savedMillis;
+    }
+
+    /**
+     * Queries currently waiting for an identical running query.
+     */
+    public int getWaiting() {
+      return waiting;
+    }
+
+    public int getEntries() {
+      return entries;
+    }
+
+    public long getBytes() {
+      return bytes;
+    }
+
+    /**
+     * Share of the queries that did not run a Spark job.
+     */
+    public double getHitRate() {
+      long total = hits + misses + coalesced;
+      return total == 0 ? 0 : (double) (hits + coalesced) / total;
+    }
+
+    @Override
+    public String toString() {
+      return "Stats [hits=" + hits + ", misses=" + misses + ", coalesced=" + coalesced + ", evictions=" + evictions
+          + ", savedMillis=" + savedMillis + ", waiting=" + waiting + ", entries=" + entries + ", bytes=" + bytes
+          + "]";
+    }
+  }
+
+  private static class Entry {
+    final byte[] json;
+    final Path spool;
+    final long expires;
+    final long elapsedMillis;
+
+    Entry(byte[] json, Path spool, long expires, long elapsedMillis) {
+      this.json = json;
+      this.spool = spool;
+      this.expires = expires;
+      this.elapsedMillis = elapsedMillis;
+    }
+  }
+
+  /**
+   * A running query and the number of queries reading its result, the leader included. A spooled result is deleted
+   * when the last of them releases it, after which no other query may retain it.
+   */
+  private class Flight {
+    final CompletableFuture<Entry> result = new CompletableFuture<>();
+    private int readers = 1;
+    private CapturingOutputStream capture;
+
+    synchronized boolean retain() {
+      if (readers == 0) {
+        return false;
+      }
+      readers++;
+      return true;
+    }
+
+    synchronized boolean isAwaited() {
+      return readers > 1;
+    }
+
+    synchronized void setCapture(CapturingOutputStream capture) {
+      this.capture = capture;
+    }
+
+    void release() {
+      CapturingOutputStream last;
+      synchronized (this) {
+        if (--readers > 0) {
+          return;
+        }
+        last = capture;
+      }
+      if (last != null) {
+        last.discard();
+      }
+    }
+  }
+
+  /**
+   * Writes through to the stream and keeps a copy of what is written: in memory up to maxEntryBytes, then in a
+   * temporary file if an identical query is waiting for the result. The copy is dropped, and the waiting queries run
+   * on their own, if no query is waiting when the result outgrows memory, if the spooled results of the cache would
+   * exceed maxSpoolBytes, or if the file cannot be written.
+   */
+  private class CapturingOutputStream extends FilterOutputStream {
+    private final Flight flight;
+    private ByteArrayOutputStream captured = new ByteArrayOutputStream();
+    private Path spool;
+    private OutputStream spooled;
+    private long spooledBytes;
+
+    CapturingOutputStream(OutputStream out, Flight flight) {
+      super(out);
+      this.flight = flight;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      capture(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      capture(b, off, len);
+    }
+
+    private void capture(byte[] b, int off, int len) {
+      if (captured != null && captured.size() + len > maxEntryBytes) {
+        ByteArrayOutputStream inMemory = captured;
+        captured = null;
+        if (!flight.isAwaited()) {
+          drop();
+          return;
+        }
+        try {
+          spool = Files.createTempFile("lens-result", ".json");
+          spooled = Files.newOutputStream(spool);
+        } catch (IOException e) {
+          logger.warn("Failed to spool a result larger than " + maxEntryBytes + " bytes", e);
+          drop();
+          return;
+        }
+        spool(inMemory.toByteArray(), 0, inMemory.size());
+      }
+      if (captured != null) {
+        captured.write(b, off, len);
+      } else if (spooled != null) {
+        spool(b, off, len);
+      }
+    }
+
+    private void spool(byte[] b, int off, int len) {
+      if (spoolBytes.addAndGet(len) > maxSpoolBytes) {
+        spoolBytes.addAndGet(-len);
+        logger.info("Spooled results exceed {} bytes, waiting queries run on their own", maxSpoolBytes);
+        drop();
+        return;
+      }
+      spooledBytes += len;
+      try {
+        spooled.write(b, off, len);
+      } catch (IOException e) {
+        logger.warn("Failed to spool a result larger than " + maxEntryBytes + " bytes", e);
+        drop();
+      }
+    }
+
+    /**
+     * Drops the copy and lets the queries waiting for it, and those arriving later, run right away.
+     */
+    private void drop() {
+      discard();
+      flight.result.complete(new Entry(null, null, 0, 0));
+    }
+
+    /**
+     * Completes the spooled copy, if any.
+     */
+    void finish() {
+      if (spooled == null) {
+        return;
+      }
+      try {
+        spooled.close();
+        spooled = null;
+      } catch (IOException e) {
+        logger.warn("Failed to spool a result larger than " + maxEntryBytes + " bytes", e);
+        drop();
+      }
+    }
+
+    /**
+     * Deletes the spooled copy, if any.
+     */
+    synchronized void discard() {
+      if (spooled != null) {
+        try {
+          spooled.close();
+        } catch (IOException e) {
+          //the file is deleted anyway
+        }
+        spooled = null;
+      }
+      if (spool != null) {
+        try {
+          Files.deleteIfExists(spool);
+        } catch (IOException e) {
+          logger.warn("Failed to delete spooled result " + spool, e);
+        }
+        spool = null;
+      }
+      spoolBytes.addAndGet(-spooledBytes);
+      spooledBytes = 0;
+    }
+
+    byte[] getCaptured() {
+      return captured == null ? null : captured.toByteArray();
+    }
+
+    Path getSpool() {
+      return spool;
+    }
+  }
+
+}
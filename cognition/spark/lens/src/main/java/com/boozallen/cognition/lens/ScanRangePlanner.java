@@ -0,0 +1,180 @@
+/*
+ * Licensed to Booz Allen Hamilton under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Booz Allen Hamilton licenses this file to you
+ * under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.boozallen.cognition.lens;
+
+import org.apache.accumulo.core.data.Range;
+import org.apache.commons.configuration.Configuration;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Plans the ranges scanning a date range of the event table when the index cannot narrow the rows.
+ * <p>
+ * Event row ids are <code>uuidPrefix shard _ time _ uuid</code> (see AccumuloBoltUtils.getEventRecordId in
+ * storm-accumulo), with the shard a base 36 number below the <code>splits</code> of AccumuloEventStorageBolt and the
+ * time zero-padded to 13 digits, so the rows of a shard within the date range are one contiguous range. Each shard
+ * range is subdivided into time slices so the scan yields about <code>targetRanges</code> ranges, and as many input
+ * splits and Spark tasks, but no slice is shorter than <code>minSliceMillis</code>.
+ * <p>
+ * The number of shards is the <code>SHARDS</code> property of the schema when set, otherwise
+ * <code>lens.scan.shards</code>; it must match the <code>splits</code> the source was ingested with.
+ * <p>
+ * Queries keeping the newest rows scan the ranges in windows, newest first, see {@link #getWindows}.
+ * @author mparker
+ *
+ */
+public class ScanRangePlanner {
+  public static final String SHARDS = "lens.scan.shards";
+  public static final int SHARDS_DEFAULT = 36;
+  public static final String TARGET_RANGES = "lens.scan.targetRanges";
+  public static final int TARGET_RANGES_DEFAULT = 256;
+  public static final String MIN_SLICE_MILLIS = "lens.scan.minSliceMillis";
+  public static final long MIN_SLICE_MILLIS_DEFAULT = 3600000L;
+
+  static final int SHARD_RADIX = 36;
+
+  private final int shards;
+  private final int targetRanges;
+  private final long minSliceMillis;
+
+  public ScanRangePlanner(int shards, int targetRanges, long minSliceMillis) {
+    if (shards <= 0 || targetRanges <= 0 || minSliceMillis <= 0) {
+      throw new IllegalArgumentException("shards, targetRanges and minSliceMillis must be positive");
+    }
+    this.shards = shards;
+    this.targetRanges = targetRanges;
+    this.minSliceMillis = minSliceMillis;
+  }
+
+  /**
+   * Creates a planner from the lens properties and the schema of the queried source.
+   * @param properties -- the lens properties, may be null
+   * @param schema -- the schema, its SHARDS property overrides lens.scan.shards
+   */
+  public static ScanRangePlanner getInstance(Configuration properties, SchemaAdapter schema) {
+    int shards = properties == null ? SHARDS_DEFAULT : properties.getInt(SHARDS, SHARDS_DEFAULT);
+    if (schema.getShards() != null) {
+      shards = schema.getShards();
+    }
+    int targetRanges = properties == null ? TARGET_RANGES_DEFAULT
+        : properties.getInt(TARGET_RANGES, TARGET_RANGES_DEFAULT);
+    long minSliceMillis = properties == null ? MIN_SLICE_MILLIS_DEFAULT
+        : properties.getLong(MIN_SLICE_MILLIS, MIN_SLICE_MILLIS_DEFAULT);
+    return new ScanRangePlanner(shards, targetRanges, minSliceMillis);
+  }
+
+  /**
+   * Returns the ranges covering the rows of every shard from the start to the end of the date range.
+   * @param dateStart -- the start of the date range
+   * @param dateEnd -- the end of the date range, rows up to a second after it are included
+   * @param source -- the source, row ids start with <code>source _</code>
+   * @return adjacent time slices of each shard, in row order
+   */
+  public List<Range> getRanges(Instant dateStart, Instant dateEnd, String source) {
+    long start = IndexPlanner.toMillis(dateStart);
+    long end = IndexPlanner.toMillis(dateEnd) + 1000; //exclusive, same as AccumuloUtils.getRanges
+    int slices = getSlices(start, end);
+
+    List<Range> ranges = new ArrayList<>(shards * slices);
+    for (int shard = 0; shard < shards; shard++) {
+      String prefix = source + "_" + Integer.toString(shard, SHARD_RADIX) + "_";
+      String sliceStart = getRow(prefix, start);
+      for (int slice = 1; slice <= slices; slice++) {
+        String sliceEnd = getRow(prefix, start + (end - start) * slice / slices);
+        ranges.add(new Range(sliceStart, true, sliceEnd, false));
+        sliceStart = sliceEnd;
+      }
+    }
+    return ranges;
+  }
+
+  /**
+   * Groups ranges into windows of time, newest first, by the time of their start row: the time slices of
+   * {@link #getRanges} starting at the same time across the shards, or the exact rows found in the index. Windows
+   * are extended until they hold at least <code>minRanges</code> ranges, so each is scanned by enough tasks. Rows of a
+   * window are newer than the rows of the windows after it; ranges without a time are in the last window.
+   * @param ranges -- the ranges to scan, time slices or exact rows
+   * @param source -- the source, row ids start with <code>source _</code>
+   * @param minRanges -- the minimum number of ranges per window
+   * @return the windows, newest first
+   */
+  public static List<List<Range>> getWindows(Collection<Range> ranges, String source, int minRanges) {
+    Map<Long, List<Range>> byTime = new TreeMap<>(Collections.reverseOrder());
+    for (Range range : ranges) {
+      long time = range.getStartKey() == null ? -1 : getTime(range.getStartKey().getRow().toString(), source);
+      byTime.computeIfAbsent(time, t -> new ArrayList<>()).add(range);
+    }
+
+    List<List<Range>> windows = new ArrayList<>();
+    List<Range> window = new ArrayList<>();
+    for (List<Range> group : byTime.values()) {
+      window.addAll(group);
+      if (window.size() >= minRanges) {
+        windows.add(window);
+        window = new ArrayList<>();
+      }
+    }
+    if (!window.isEmpty()) {
+      windows.add(window);
+    }
+    return windows;
+  }
+
+  /**
+   * Returns the time of an event row id, or of the start row of a time slice.
+   * @param row -- the row, <code>source _ shard _ time</code> optionally followed by <code>_ uuid</code>
+   * @param source -- the source of the row
+   * @return the time in millis, or -1 if the row has no time
+   */
+  public static long getTime(String row, String source) {
+    if (source == null || !row.startsWith(source + "_")) {
+      return -1;
+    }
+    int start = row.indexOf('_', source.length() + 1) + 1;
+    if (start == 0 || row.length() < start + 13) {
+      return -1;
+    }
+    try {
+      return Long.parseLong(row.substring(start, start + 13));
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Returns the number of time slices per shard.
+   */
+  int getSlices(long start, long end) {
+    long maxSlices = Math.max(1, (end - start) / minSliceMillis);
+    long slices = (targetRanges + shards - 1) / shards;
+    return (int) Math.max(1, Math.min(slices, maxSlices));
+  }
+
+  static String getRow(String prefix, long time) {
+    return String.format("%s%013d", prefix, time);
+  }
+
+}
@@ -25,10 +25,14 @@ import com.google.gson.JsonSyntaxException;
 import scala.Tuple2;
 
 import java.io.*;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -47,7 +51,8 @@ public class SchemaAdapter implements Serializable {
   private static Gson gson = new Gson();
 
   public enum Property {
-    TABLE_NAME, AUTHORIZATIONS, SOURCE;
+    TABLE_NAME, AUTHORIZATIONS, SOURCE, INDEX_TABLE, INDEX_FIELDS, INDEX_START, TERM_INDEX_COLUMNS, TERM_INDEX_START,
+    SHARDS;
   }
 
   public SchemaAdapter() {
@@ -70,6 +75,73 @@ public class SchemaAdapter implements Serializable {
     return properties.get(Property.SOURCE);
   }
 
+  /**
+   * Returns the field-value index table written at ingest, or null if the source is not indexed.
+   */
+  public String getIndexTable() {
+    return properties.get(Property.INDEX_TABLE);
+  }
+
+  /**
+   * Returns the fields written to the field-value index (the index names of AccumuloEventStorageBolt's
+   * <code>indexFields</code>), given as comma separated field names, empty if none.
+   */
+  public Set<Field> getIndexFields() {
+    Set<Field> indexFields = EnumSet.noneOf(Field.class);
+    String names = properties.get(Property.INDEX_FIELDS);
+    if (names != null) {
+      for (String name : names.split(",")) {
+        if (!name.trim().isEmpty()) {
+          indexFields.add(Field.valueOf(name.trim().toUpperCase()));
+        }
+      }
+    }
+    return indexFields;
+  }
+
+  /**
+   * Returns the time from which the index fields are indexed, or null if they were indexed since the first event.
+   */
+  public Instant getIndexStart() {
+    String start = properties.get(Property.INDEX_START);
+    return start == null || start.isEmpty() ? null : Instant.parse(start);
+  }
+
+  /**
+   * Returns the column qualifiers of the data columns written to the term index (AccumuloEventStorageBolt's
+   * <code>termFields</code>), given comma separated, empty if none.
+   */
+  public Set<String> getTermIndexColumns() {
+    Set<String> columns = new LinkedHashSet<>();
+    String names = properties.get(Property.TERM_INDEX_COLUMNS);
+    if (names != null) {
+      for (String name : names.split(",")) {
+        if (!name.trim().isEmpty()) {
+          columns.add(name.trim());
+        }
+      }
+    }
+    return columns;
+  }
+
+  /**
+   * Returns the time from which the term index columns are indexed, or null if they were indexed since the first
+   * event.
+   */
+  public Instant getTermIndexStart() {
+    String start = properties.get(Property.TERM_INDEX_START);
+    return start == null || start.isEmpty() ? null : Instant.parse(start);
+  }
+
+  /**
+   * Returns the number of shards the source was ingested with (the splits of AccumuloEventStorageBolt), or null if
+   * not set.
+   */
+  public Integer getShards() {
+    String shards = properties.get(Property.SHARDS);
+    return shards == null || shards.isEmpty() ? null : Integer.valueOf(shards);
+  }
+
   public void setTableName(String tableName) {
     properties.put(Property.TABLE_NAME, tableName);
   }
@@ -82,6 +154,34 @@ public class SchemaAdapter implements Serializable {
     properties.put(Property.SOURCE, source);
   }
 
+  public void setIndexTable(String indexTable) {
+    properties.put(Property.INDEX_TABLE, indexTable);
+  }
+
+  public void setIndexFields(Set<Field> indexFields) {
+    StringBuilder names = new StringBuilder();
+    for (Field field : indexFields) {
+      names.append(names.length() == 0 ? "" : ",").append(field.name());
+    }
+    properties.put(Property.INDEX_FIELDS, names.toString());
+  }
+
+  public void setIndexStart(Instant indexStart) {
+    properties.put(Property.INDEX_START, indexStart == null ? null : indexStart.toString());
+  }
+
+  public void setTermIndexColumns(Set<String> columns) {
+    properties.put(Property.TERM_INDEX_COLUMNS, String.join(",", columns));
+  }
+
+  public void setTermIndexStart(Instant termIndexStart) {
+    properties.put(Property.TERM_INDEX_START, termIndexStart == null ? null : termIndexStart.toString());
+  }
+
+  public void setShards(int shards) {
+    properties.put(Property.SHARDS, Integer.toString(shards));
+  }
+
   /**
    * Reads a file located on the classpath and converts it to a string.
    * @param path
@@ -199,12 +299,12 @@ public class SchemaAdapter implements Serializable {
    * Return all columns based on the source of the data and the field
    * @param field -- the associated field
    * @param source -- the source of the data
-   * @return a list of columns
+   * @return a list of columns, empty if the field is not mapped
    */
   public List<Column> getColumns(Field field) {
     List<Column> columns = new ArrayList<>();
-    for (Column column : fields.get(field)) {
-      columns.add(column);
+    if (fields.containsKey(field)) {
+      columns.addAll(fields.get(field));
     }
     return columns;
   }
@@ -0,0 +1,502 @@
+/*
+ * Licensed to Booz Allen Hamilton under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Booz Allen Hamilton licenses this file to you
+ * under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.boozallen.cognition.lens;
+
+import org.apache.commons.configuration.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import scala.Tuple2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.time.Clock;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Local disk cache of the rows matching queries in completed time buckets, so a query whose date range overlaps the
+ * date range of an earlier query with the same criteria, such as a sliding "last 24 hours" window, only scans the
+ * time it has not seen yet.
+ * <p>
+ * The date range is split into buckets of <code>lens.bucket.millis</code> aligned on the epoch. A bucket entirely
+ * within the date range that ended more than <code>lens.bucket.settleMillis</code> ago is complete: late events are
+ * no longer expected, so its matching rows no longer change. The matching rows of a complete bucket, with their json
+ * document when read in the scan, are kept in a gzipped file per canonical criteria (see
+ * {@link QueryResultCache#getCanonicalCriteria}) and bucket under <code>lens.bucket.cacheDir</code>. The other buckets,
+ * and the partial buckets at the ends of the date range, are always scanned. Files are evicted in least recently used
+ * order once they total more than <code>lens.bucket.cacheBytes</code>. Date ranges of more than
+ * <code>lens.bucket.maxBuckets</code> buckets are not split.
+ * <p>
+ * Rows written into a bucket after it was cached, such as replays, retries after an outage or backfills, are missed
+ * until its file expires, <code>lens.bucket.ttlMillis</code> after it was written; files left by an earlier process
+ * are only kept within that age. Clear the directory after backfilling past buckets. As results may be stale this way,
+ * the cache is disabled unless <code>lens.bucket.cacheBytes</code> is set.
+ * <p>
+ * Instances are shared per JVM by settings, see {@link #getInstance}.
+ * @author mparker
+ *
+ */
+public class TimeBucketCache {
+  private static final Logger logger = LoggerFactory.getLogger(TimeBucketCache.class);
+
+  public static final String BUCKET_MILLIS = "lens.bucket.millis";
+  public static final long BUCKET_MILLIS_DEFAULT = 3600000L;
+  public static final String SETTLE_MILLIS = "lens.bucket.settleMillis";
+  public static final long SETTLE_MILLIS_DEFAULT = 600000L;
+  public static final String MAX_BUCKETS = "lens.bucket.maxBuckets";
+  public static final int MAX_BUCKETS_DEFAULT = 744; //31 days of hourly buckets
+  public static final String TTL_MILLIS = "lens.bucket.ttlMillis";
+  public static final long TTL_MILLIS_DEFAULT = 21600000L; //6 hours
+  public static final String CACHE_DIR = "lens.bucket.cacheDir";
+  public static final String CACHE_BYTES = "lens.bucket.cacheBytes";
+  public static final long CACHE_BYTES_DEFAULT = 0L; //disabled
+
+  static final String SUFFIX = ".bucket";
+  static final String TEMP_SUFFIX = ".tmp";
+  private static final ConcurrentMap<String, TimeBucketCache> INSTANCES = new ConcurrentHashMap<>();
+
+  private final Path dir;
+  private final long bucketMillis;
+  private final long settleMillis;
+  private final int maxBuckets;
+  private final long maxBytes;
+  private final long ttlMillis;
+  private final Clock clock;
+
+  private final Map<String, CachedFile> files = new LinkedHashMap<>(16, 0.75f, true);
+  private long bytes;
+
+  TimeBucketCache(Path dir, long bucketMillis, long settleMillis, int maxBuckets, long maxBytes, long ttlMillis,
+                  Clock clock) throws IOException {
+    if (bucketMillis <= 0 || maxBuckets <= 0) {
+      throw new IllegalArgumentException("bucketMillis and maxBuckets must be positive");
+    }
+    this.dir = dir;
+    this.bucketMillis = bucketMillis;
+    this.settleMillis = settleMillis;
+    this.maxBuckets = maxBuckets;
+    this.maxBytes = maxBytes;
+    this.ttlMillis = ttlMillis;
+    this.clock = clock;
+    Files.createDirectories(dir);
+    load();
+  }
+
+  /**
+   * Returns the cache for the lens properties, loading the index of its directory on first use in this JVM.
+   * @param properties -- the lens properties, may be null
+   * @return the shared cache, or null if it is disabled (<code>lens.bucket.cacheBytes</code> is 0, the default) or
+   * its directory cannot be used
+   */
+  public static TimeBucketCache getInstance(Configuration properties) {
+    String defaultDir = Paths.get(System.getProperty("java.io.tmpdir"), "lens-buckets").toString();
+    long maxBytes = properties == null ? CACHE_BYTES_DEFAULT : properties.getLong(CACHE_BYTES, CACHE_BYTES_DEFAULT);
+    if (maxBytes <= 0) {
+      return null;
+    }
+    String dir = properties == null ? defaultDir : properties.getString(CACHE_DIR, defaultDir);
+    long bucketMillis = properties == null ? BUCKET_MILLIS_DEFAULT
+        : properties.getLong(BUCKET_MILLIS, BUCKET_MILLIS_DEFAULT);
+    long settleMillis = properties == null ? SETTLE_MILLIS_DEFAULT
+        : properties.getLong(SETTLE_MILLIS, SETTLE_MILLIS_DEFAULT);
+    int maxBuckets = properties == null ? MAX_BUCKETS_DEFAULT : properties.getInt(MAX_BUCKETS, MAX_BUCKETS_DEFAULT);
+    long ttlMillis = properties == null ? TTL_MILLIS_DEFAULT : properties.getLong(TTL_MILLIS, TTL_MILLIS_DEFAULT);
+
+    String key = dir + "|" + bucketMillis + "|" + settleMillis + "|" + maxBuckets + "|" + maxBytes + "|" + ttlMillis;
+    TimeBucketCache cache = INSTANCES.get(key);
+    if (cache == null) {
+      synchronized (INSTANCES) {
+        cache = INSTANCES.get(key);
+        if (cache == null) {
+          try {
+            cache = new TimeBucketCache(Paths.get(dir), bucketMillis, settleMillis, maxBuckets, maxBytes, ttlMillis,
+                Clock.systemUTC());
+          } catch (IOException e) {
+            logger.warn("Cannot use " + dir + " for the time bucket cache, queries scan their whole date range", e);
+            return null;
+          }
+          INSTANCES.put(key, cache);
+        }
+      }
+    }
+    return cache;
+  }
+
+  /**
+   * Indexes the files left by earlier runs, least recently modified first, and deletes unfinished and expired files.
+   */
+  private synchronized void load() throws IOException {
+    File[] listed = dir.toFile().listFiles();
+    if (listed == null) {
+      throw new IOException("Cannot list " + dir);
+    }
+    List<File> found = new ArrayList<>(Arrays.asList(listed));
+    found.sort(Comparator.comparingLong(File::lastModified));
+    long now = clock.millis();
+    for (File file : found) {
+      boolean bucket = file.getName().endsWith(SUFFIX);
+      if (file.getName().endsWith(TEMP_SUFFIX) || bucket && isExpired(file.lastModified(), now)) {
+        Files.deleteIfExists(file.toPath());
+      } else if (bucket) {
+        files.put(file.getName(), new CachedFile(file.length(), file.lastModified()));
+        bytes += file.length();
+      }
+    }
+    evict();
+  }
+
+  /**
+   * Splits the date range of the criteria into the complete buckets already cached and the spans to scan.
+   * @param criteria -- the query criteria
+   * @return the plan of the query, to be closed once its rows are read, or null if the date range is not split (the
+   * schema has no source or the range has too many buckets)
+   */
+  public Plan plan(Criteria criteria) {
+    String source = criteria.getSchema() == null ? null : criteria.getSchema().getSource();
+    if (source == null) {
+      return null;
+    }
+    long start = IndexPlanner.toMillis(criteria.getDateStart());
+    long end = IndexPlanner.toMillis(criteria.getDateEnd()) + 1000; //exclusive, same as AccumuloUtils.getRanges
+    long first = start - Math.floorMod(start, bucketMillis);
+    if ((end - first + bucketMillis - 1) / bucketMillis > maxBuckets) {
+      return null;
+    }
+
+    long settled = clock.millis() - settleMillis;
+    String key = UUID.nameUUIDFromBytes(
+        QueryResultCache.getCanonicalCriteria(criteria).getBytes(StandardCharsets.UTF_8)).toString();
+    Plan plan = new Plan(criteria, key, source);
+    long spanStart = -1;
+    for (long bucket = first; bucket < end; bucket += bucketMillis) {
+      long bucketEnd = bucket + bucketMillis;
+      boolean complete = bucket >= start && bucketEnd <= end && bucketEnd <= settled;
+      InputStream cached = complete ? open(getFileName(key, bucket)) : null;
+      if (cached != null) {
+        if (spanStart >= 0) {
+          plan.addSpan(spanStart, bucket);
+          spanStart = -1;
+        }
+        plan.cached.add(cached);
+      } else {
+        if (spanStart < 0) {
+          spanStart = Math.max(bucket, start);
+        }
+        if (complete) {
+          plan.fill.add(bucket);
+        }
+      }
+    }
+    if (spanStart >= 0) {
+      plan.addSpan(spanStart, end);
+    }
+    logger.debug("Reading {} cached buckets and scanning {} spans of {}", plan.cached.size(), plan.spans.size(),
+        criteria);
+    return plan;
+  }
+
+  String getFileName(String key, long bucket) {
+    return key + "_" + bucketMillis + "_" + bucket + SUFFIX;
+  }
+
+  /**
+   * Opens a cached file, so it can still be read if it is evicted before the query reads it. Expired files are
+   * deleted instead, so their bucket is scanned again.
+   */
+  private synchronized InputStream open(String name) {
+    CachedFile file = files.get(name);
+    if (file == null) {
+      return null;
+    }
+    if (isExpired(file.written, clock.millis())) {
+      remove(name);
+      return null;
+    }
+    try {
+      return new FileInputStream(dir.resolve(name).toFile());
+    } catch (FileNotFoundException e) {
+      bytes -= files.remove(name).bytes;
+      return null;
+    }
+  }
+
+  private boolean isExpired(long written, long now) {
+    return now - written > ttlMillis;
+  }
+
+  private synchronized void added(String name, long size) {
+    CachedFile previous = files.put(name, new CachedFile(size, clock.millis()));
+    bytes += size - (previous == null ? 0 : previous.bytes);
+    evict();
+  }
+
+  private synchronized void remove(String name) {
+    try {
+      Files.deleteIfExists(dir.resolve(name));
+    } catch (IOException e) {
+      logger.warn("Failed to delete cached bucket " + name, e);
+    }
+    bytes -= files.remove(name).bytes;
+  }
+
+  private synchronized void evict() {
+    Iterator<Map.Entry<String, CachedFile>> eldest = files.entrySet().iterator();
+    while (bytes > maxBytes && eldest.hasNext()) {
+      Map.Entry<String, CachedFile> entry = eldest.next();
+      try {
+        Files.deleteIfExists(dir.resolve(entry.getKey()));
+      } catch (IOException e) {
+        logger.warn("Failed to delete cached bucket " + entry.getKey(), e);
+      }
+      bytes -= entry.getValue().bytes;
+      eldest.remove();
+    }
+  }
+
+  synchronized long getBytes() {
+    return bytes;
+  }
+
+  synchronized int size() {
+    return files.size();
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in, int length) throws IOException {
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static class CachedFile {
+    final long bytes;
+    final long written;
+
+    CachedFile(long bytes, long written) {
+      this.bytes = bytes;
+      this.written = written;
+    }
+  }
+
+  /**
+   * The cached buckets and the spans to scan of a query. The rows scanned are passed to {@link #add} and written to
+   * the files of the complete buckets that were not cached, which are kept on {@link #commit}.
+   */
+  public class Plan implements Closeable {
+    private final Criteria criteria;
+    private final String key;
+    private final String source;
+    private final List<InputStream> cached = new ArrayList<>();
+    private final List<long[]> spans = new ArrayList<>();
+    private final Set<Long> fill = new LinkedHashSet<>();
+    private final Map<Long, DataOutputStream> writers = new HashMap<>();
+    private final Map<Long, Path> temps = new HashMap<>();
+    private boolean failed;
+
+    Plan(Criteria criteria, String key, String source) {
+      this.criteria = criteria;
+      this.key = key;
+      this.source = source;
+    }
+
+    private void addSpan(long start, long end) {
+      spans.add(new long[]{start, end});
+    }
+
+    /**
+     * Returns the criteria of each span of the date range to scan.
+     */
+    public List<Criteria> getSpans() {
+      List<Criteria> criteriaSpans = new ArrayList<>(spans.size());
+      for (long[] span : spans) {
+        //the end of the date range is a second before the exclusive end, see IndexPlanner.getRanges
+        criteriaSpans.add(criteria.withDates(Instant.ofEpochMilli(span[0]), Instant.ofEpochMilli(span[1] - 1000)));
+      }
+      return criteriaSpans;
+    }
+
+    /**
+     * Returns the (row id, document) pairs of the cached buckets, reading one bucket at a time.
+     */
+    public Iterator<Tuple2<String, String>> getCachedRows() {
+      return new Iterator<Tuple2<String, String>>() {
+        private int bucket = 0;
+        private DataInputStream in;
+        private Tuple2<String, String> next;
+
+        @Override
+        public boolean hasNext() {
+          try {
+            while (next == null) {
+              if (in == null) {
+                if (bucket == cached.size()) {
+                  return false;
+                }
+                in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(cached.get(bucket++))));
+              }
+              int length = in.readInt();
+              if (length < 0) {
+                in.close();
+                in = null;
+              } else {
+                String row = readString(in, length);
+                next = new Tuple2<>(row, readString(in, in.readInt()));
+              }
+            }
+            return true;
+          } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read a cached bucket", e);
+          }
+        }
+
+        @Override
+        public Tuple2<String, String> next() {
+          if (!hasNext()) {
+            throw new NoSuchElementException();
+          }
+          Tuple2<String, String> row = next;
+          next = null;
+          return row;
+        }
+      };
+    }
+
+    /**
+     * Writes a scanned row to the file of its bucket, if the bucket is complete.
+     * @param row -- the row id
+     * @param document -- the json document of the row, or its row id when documents are fetched later
+     */
+    public void add(String row, String document) {
+      long time = ScanRangePlanner.getTime(row, source);
+      long bucket = time - Math.floorMod(time, bucketMillis);
+      if (time < 0 || failed || !fill.contains(bucket)) {
+        return;
+      }
+      try {
+        DataOutputStream out = getWriter(bucket);
+        writeString(out, row);
+        writeString(out, document);
+      } catch (IOException e) {
+        logger.warn("Failed to write a cached bucket, the buckets of this query are not cached", e);
+        failed = true;
+      }
+    }
+
+    private DataOutputStream getWriter(long bucket) throws IOException {
+      DataOutputStream out = writers.get(bucket);
+      if (out == null) {
+        Path temp = Files.createTempFile(dir, getFileName(key, bucket), TEMP_SUFFIX);
+        temps.put(bucket, temp);
+        out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(temp))));
+        writers.put(bucket, out);
+      }
+      return out;
+    }
+
+    /**
+     * Keeps the files of the complete buckets scanned. Call once every scanned row was added.
+     */
+    public void commit() {
+      if (failed) {
+        return;
+      }
+      try {
+        for (long bucket : fill) {
+          DataOutputStream out = getWriter(bucket);
+          out.writeInt(-1);
+          out.close();
+          writers.remove(bucket);
+          String name = getFileName(key, bucket);
+          Path target = dir.resolve(name);
+          Files.move(temps.remove(bucket), target, StandardCopyOption.REPLACE_EXISTING,
+              StandardCopyOption.ATOMIC_MOVE);
+          added(name, Files.size(target));
+        }
+      } catch (IOException e) {
+        logger.warn("Failed to keep the cached buckets of " + criteria, e);
+      }
+    }
+
+    /**
+     * Closes the cached files and deletes the files of the buckets not committed.
+     */
+    @Override
+    public void close() {
+      for (InputStream in : cached) {
+        closeQuietly(in);
+      }
+      for (DataOutputStream out : writers.values()) {
+        closeQuietly(out);
+      }
+      writers.clear();
+      for (Path temp : temps.values()) {
+        try {
+          Files.deleteIfExists(temp);
+        } catch (IOException e) {
+          logger.warn("Failed to delete " + temp, e);
+        }
+      }
+      temps.clear();
+    }
+
+    private void closeQuietly(Closeable closeable) {
+      try {
+        closeable.close();
+      } catch (IOException e) {
+        logger.debug("Failed to close a cached bucket", e);
+      }
+    }
+  }
+
+}
@@ -19,37 +19,193 @@
 
 package com.boozallen.cognition.lens
 
+import java.io.Writer
+
 import com.boozallen.cognition.accumulo.config.CognitionConfiguration
+import com.boozallen.cognition.accumulo.row.{ColumnKey, RowView}
 import com.boozallen.cognition.spark.accumulo.accumulo._
 import com.boozallen.cognition.spark.common.utils._
+import org.apache.accumulo.core.data.Range
+import org.apache.accumulo.core.util.Pair
 import org.apache.hadoop.io.Text
 import org.apache.spark.SparkContext
 import org.apache.spark.rdd.RDD
 
+import scala.collection.JavaConversions._
+import scala.collection.mutable.ArrayBuffer
+
 /**
- * Class that runs the query and assembles the results into json
+ * Class that runs the query and assembles the results into json.
+ *
+ * When the criteria have filter columns, the json is assembled in two phases: the scan reads only the filter columns
+ * to evaluate the criteria, then the documents of the matching rows are looked up by row id on the driver, see
+ * [[DocumentFetcher]]. Documents of rows failing the criteria are never read or shipped.
+ *
+ * Limited queries stop scanning once the limit is reached, see [[QueryLimiter]]. When the criteria keep the newest
+ * rows, the ranges are scanned in windows of time, newest first, until a window brings the results to the limit.
+ * Unlimited queries reuse the rows of the completed time buckets cached by earlier queries with the same criteria and
+ * scan only the rest of the date range, see [[TimeBucketCache]].
  */
 class Query(sc: SparkContext, val criteria: Criteria, cognitionConfiguration: CognitionConfiguration) extends Serializable {
-  val config = AccumuloAdapter.getAccumuloConfiguration(criteria, cognitionConfiguration)
-  config.fetchColumns(QueryFilter.getColumns(criteria));
-  protected[this] val unfilteredRDD = sc.accumuloExpandedRowRDD(config.getConfiguration())
+  //without criteria every row matches, so the documents are read in the scan
+  val twoPhase = !QueryFilter.getFilterColumns(criteria).isEmpty
+  val scanColumns = if (twoPhase) QueryFilter.getFilterScanColumns(criteria) else QueryFilter.getColumns(criteria)
+  //lazy, as queries reading cached time buckets only plan the ranges of the rest of the date range
+  lazy val ranges = AccumuloAdapter.getRanges(criteria, cognitionConfiguration)
+  lazy val config = configure(ranges.toSeq)
+  //no ranges means the index found no matching rows; an input format without ranges would scan the whole table
+  protected[this] lazy val unfilteredRDD =
+    if (ranges.isEmpty) sc.emptyRDD[(Text, RowView)]
+    else scan(ranges)
 
   /**
-   * Returns the RDD object of the result without the action having occured on it
+   * Returns the RDD object of the result without the action having occured on it, as views over the cells of the
+   * rows (see [[RowView.toMap]] for the decoded columns). With filter columns, the rows hold only the filter columns,
+   * not the json document.
    */
-  def query(): RDD[(Text, scala.collection.immutable.Map[(String, String), String])] = {
-    QueryFilter.query(unfilteredRDD, criteria)
+  def query(): RDD[(Text, RowView)] = {
+    QueryFilter.queryRowView(unfilteredRDD, criteria)
   }
 
   /**
    * Calls the collect action on the query filtered RDD and assembles into json
    */
-  def json(): String = query.makeJson(jsonField = criteria.getSchema.getTuples(Field.JSON).get(0));
+  def json(): String = json(-1)
 
    /**
-   * Calls the take(limit) action on the query filtered RDD and assembles into json
+   * Runs the query filtered RDD up to the limit and assembles into json
    */
   //can't use default parameters when calling from java -- for java compatibility
-  def json(limit: Int): String = query.makeJson(limit, criteria.getSchema.getTuples(Field.JSON).get(0));
+  def json(limit: Int): String = {
+    if (limit < 0 && !criteria.isNewestFirst) {
+      unlimited(collect = true)(rows => collapseArray(documents(rows).toArray))
+    } else {
+      collapseArray(documents(limited(limit).iterator).toArray)
+    }
+  }
+
+  /**
+   * Same as json(limit), writing the json array to out as the documents are read instead of assembling it
+   * in memory. Without a limit, the rows are read a few partitions at a time (see
+   * [[com.boozallen.cognition.spark.common.utils.localIterator]]), so the driver holds only those partitions and
+   * the first documents are written before the scan completes; newest first still collects every row to sort them.
+   */
+  @throws[java.io.IOException]
+  def writeJson(limit: Int, out: Writer): Unit = {
+    if (limit < 0 && !criteria.isNewestFirst) {
+      unlimited(collect = false)(rows => writeArray(documents(rows), out))
+    } else {
+      writeArray(documents(limited(limit).iterator), out)
+    }
+  }
+
+  /**
+   * Passes all matching rows to consume, collected or read a few partitions at a time. Rows of the completed time
+   * buckets cached by an earlier query are read from the cache and only the rest of the date range is scanned; the
+   * completed buckets scanned are cached once consume has read every row.
+   */
+  private def unlimited[R](collect: Boolean)(consume: Iterator[(String, String)] => R): R = {
+    def rows(rdd: RDD[(Text, RowView)]): Iterator[(String, String)] =
+      if (collect) results(rdd).collect().iterator else localIterator(results(rdd), sc.defaultParallelism)
+
+    val buckets = TimeBucketCache.getInstance(cognitionConfiguration.getProperties)
+    val plan = if (buckets == null) null else buckets.plan(criteria)
+    if (plan == null) {
+      return consume(rows(unfilteredRDD))
+    }
+    try {
+      val spanRanges = plan.getSpans.flatMap(span =>
+        collectionAsScalaIterable(AccumuloAdapter.getRanges(span, cognitionConfiguration)))
+      val scanned = if (spanRanges.isEmpty) Iterator.empty else rows(scan(bufferAsJavaList(spanRanges)))
+      val added = scanned.map(row => {
+        plan.add(row._1, row._2)
+        row
+      })
+      val result = consume(asScalaIterator(plan.getCachedRows) ++ added)
+      if (!added.hasNext) {
+        plan.commit()
+      }
+      result
+    } finally {
+      plan.close()
+    }
+  }
+
+  private def limited(limit: Int): Array[(String, String)] = {
+    if (criteria.isNewestFirst) newest(limit)
+    else QueryLimiter.take(results(unfilteredRDD), limit)
+  }
+
+  /**
+   * The json documents of the rows, fetched a batch at a time in two phases.
+   */
+  private def documents(rows: Iterator[(String, String)]): Iterator[String] = {
+    if (!twoPhase) {
+      rows.map(_._2)
+    } else {
+      val fetcher = DocumentFetcher.getInstance(cognitionConfiguration)
+      rows.map(_._1).grouped(fetcher.getBatchSize).flatMap(batch => fetcher.fetch(criteria, seqAsJavaList(batch)))
+    }
+  }
+
+  /**
+   * Returns the newest matching rows up to the limit, newest first, scanning the windows of the ranges in turn.
+   */
+  private def newest(limit: Int): Array[(String, String)] = {
+    val source = criteria.getSchema.getSource
+    val time = (row: (String, String)) => ScanRangePlanner.getTime(row._1, source)
+    if (limit < 0) {
+      return unlimited(collect = true)(rows => rows.toArray.sortBy(row => -time(row)))
+    }
+
+    val rows = ArrayBuffer[(String, String)]()
+    val windows = ScanRangePlanner.getWindows(ranges, source, sc.defaultParallelism).iterator
+    while (rows.size < limit && windows.hasNext) {
+      rows ++= QueryLimiter.takeNewest(results(scan(windows.next())), limit - rows.size, time)
+    }
+    rows.toArray
+  }
+
+  /**
+   * Reads the ranges. Time slices are read with the input format; the rows found in the index table are read with batch
+   * scanners and parallelized, as the input format would make a split, and a task, of each of them.
+   */
+  private def scan(scanRanges: java.util.Collection[Range]): RDD[(Text, RowView)] = {
+    val (exactRows, slices) = scanRanges.toSeq.partition(range => AccumuloAdapter.isExactRow(range))
+    val sliceRDD = if (slices.isEmpty) None else Some(sc.accumuloRowViewRDD(configure(slices).getConfiguration()))
+    val rowRDD = if (exactRows.isEmpty) None else Some(fetchRows(exactRows))
+    (sliceRDD ++ rowRDD).reduceOption(_ union _).getOrElse(sc.emptyRDD[(Text, RowView)])
+  }
+
+  private def configure(scanRanges: Seq[Range]) = {
+    val config = AccumuloAdapter.getAccumuloConfiguration(criteria, cognitionConfiguration, seqAsJavaList(scanRanges))
+    config.fetchColumns(scanColumns)
+    config
+  }
+
+  private def fetchRows(exactRows: Seq[Range]): RDD[(Text, RowView)] = {
+    val columns = scanColumns.map(column =>
+      new Pair(new Text(column._1), if (column._2 == null) null else new Text(column._2)))
+    val rows = DocumentFetcher.getInstance(cognitionConfiguration).fetchRows(criteria, seqAsJavaList(exactRows),
+      seqAsJavaList(columns), AccumuloAdapter.getServerSideFilter(criteria, cognitionConfiguration))
+    //Text is not serializable, the row ids are shipped as strings
+    sc.parallelize(rows.map(row => (row._1.toString, row._2)), math.max(1, math.min(rows.size, sc.defaultParallelism)))
+      .map(row => (new Text(row._1), row._2))
+  }
+
+  /**
+   * Filters the rows and keeps the row id with the json document, or with the row id again in two phases, as the
+   * documents are fetched after the limit is applied.
+   */
+  private def results(rdd: RDD[(Text, RowView)]): RDD[(String, String)] = {
+    val filtered = QueryFilter.queryRowView(rdd, criteria)
+    if (twoPhase) {
+      filtered.map(row => (row._1.toString, row._1.toString))
+    } else {
+      val json = QueryFilter.getJsonColumn(criteria)
+      val column = new ColumnKey(json._1, json._2)
+      filtered.flatMap(row => Option(row._2.get(column)).map(document => (row._1.toString, document)))
+    }
+  }
 
-}
\ No newline at end of file
+}
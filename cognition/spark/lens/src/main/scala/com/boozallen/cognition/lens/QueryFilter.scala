@@ -19,6 +19,7 @@
 
 package com.boozallen.cognition.lens
 
+import com.boozallen.cognition.accumulo.row.{RecordCodec, RowView}
 import org.apache.hadoop.io.Text
 import org.apache.spark.rdd.RDD
 
@@ -29,20 +30,31 @@ import scala.collection.JavaConversions._
  */
 object QueryFilter {
   /**
-   * Filters the rdd based on the provided criteria
+   * Filters the rdd based on the provided criteria, compiled once and broadcast to the executors
    */
   def query(rdd: RDD[(Text, scala.collection.immutable.Map[(String, String), String])], criteria: Criteria): RDD[(Text, scala.collection.immutable.Map[(String, String), String])] = {
-    rdd.filter(row => matchJava(row._2, criteria))
+    val plan = rdd.sparkContext.broadcast(CriteriaPlan.compile(criteria))
+    rdd.filter(row => matchJava(row._2, plan.value))
   }
 
-  private def matchJava(rowMap: scala.collection.immutable.Map[(String, String), String], criteria: Criteria) = {
-    CriteriaMatcher.evaluate(criteria, rowMap)
+  /**
+   * Filters the rows based on the provided criteria, compiled once and broadcast to the executors
+   */
+  def queryRowView(rdd: RDD[(Text, RowView)], criteria: Criteria): RDD[(Text, RowView)] = {
+    val plan = rdd.sparkContext.broadcast(CriteriaPlan.compile(criteria))
+    rdd.filter(row => plan.value.evaluate(row._2))
+  }
+
+  private def matchJava(rowMap: scala.collection.immutable.Map[(String, String), String], plan: CriteriaPlan) = {
+    plan.evaluate(rowMap)
   }
 
   /**
-   * Builds up all columns to request from accumulo based on the provided criteria.
+   * Builds up the columns the criteria are evaluated on, without the json document column. The document may be
+   * stored in its own column family and locality group (see the documentFields option of AccumuloEventStorageBolt),
+   * in which case a scan of these columns does not read the document blocks at all.
    */
-  def getColumns(criteria: Criteria) = {
+  def getFilterColumns(criteria: Criteria) = {
     var columns = criteria.getStringMatches.keySet.map(x =>
       criteria.getSchema.getColumns(x))
       .flatMap(x => x).map(x => (x.getColumnFamily.toString(), x.getColumnQualifier.toString()))
@@ -51,9 +63,30 @@ object QueryFilter {
       columns ++= criteria.getSchema.getColumns(Field.KEYWORD).map(x => (x.getColumnFamily.toString(), x.getColumnQualifier.toString()))
     }
 
-    columns += criteria.getSchema.getTuples(Field.JSON).get(0)
-
     columns.toSeq
   }
 
-}
\ No newline at end of file
+  /**
+   * Builds up all columns to request from accumulo based on the provided criteria: the filter columns, the json
+   * document column of the schema and the record column, which holds all data and metadata columns of rows written
+   * in the record storage mode of AccumuloEventStorageBolt.
+   */
+  def getColumns(criteria: Criteria) = {
+    (getFilterColumns(criteria).toSet + getJsonColumn(criteria) + ((RecordCodec.RECORD_FAMILY, ""))).toSeq
+  }
+
+  /**
+   * Builds up the columns to request from accumulo in the first phase of a query, which evaluates the criteria: the
+   * filter columns and the record column, see [[getColumns]].
+   */
+  def getFilterScanColumns(criteria: Criteria) = {
+    (getFilterColumns(criteria).toSet + ((RecordCodec.RECORD_FAMILY, ""))).toSeq
+  }
+
+  /**
+   * The column holding the json document, e.g. data:cognition.esjson, or document:cognition.esjson when stored in
+   * its own column family.
+   */
+  def getJsonColumn(criteria: Criteria) = criteria.getSchema.getTuples(Field.JSON).get(0)
+
+}
@@ -0,0 +1,104 @@
+/*
+ * Licensed to Booz Allen Hamilton under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Booz Allen Hamilton licenses this file to you
+ * under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.boozallen.cognition.lens
+
+import java.util.PriorityQueue
+import java.util.concurrent.CountDownLatch
+
+import org.apache.spark.rdd.RDD
+import org.slf4j.LoggerFactory
+
+import scala.collection.JavaConversions._
+import scala.concurrent.ExecutionContext.Implicits.global
+import scala.reflect.ClassTag
+
+/**
+ * Limit-aware execution of queries, so a small limit over a long date range does not scan the whole range.
+ *
+ * Unlike RDD.take, which runs growing waves of tasks that each read their whole partition, every task stops reading
+ * its partition once it has <code>limit</code> elements, and the driver cancels the tasks still running as soon as
+ * <code>limit</code> elements have arrived.
+ */
+object QueryLimiter {
+  private val logger = LoggerFactory.getLogger(QueryLimiter.getClass)
+
+  /**
+   * Returns up to limit elements of the rdd, taken from whichever partitions finish first, in partition order.
+   * @param rdd -- the rdd, read lazily so tasks stop scanning at the limit
+   * @param limit -- the number of elements to return
+   */
+  def take[T: ClassTag](rdd: RDD[T], limit: Int): Array[T] = {
+    if (limit <= 0 || rdd.partitions.isEmpty) {
+      return Array.empty[T]
+    }
+    val results = new Array[Array[T]](rdd.partitions.length)
+    var count = 0
+    val done = new CountDownLatch(1)
+
+    val job = rdd.context.submitJob(rdd, (partition: Iterator[T]) => partition.take(limit).toArray,
+      rdd.partitions.indices, (index: Int, result: Array[T]) => results.synchronized {
+        results(index) = result
+        count += result.length
+        if (count >= limit) {
+          done.countDown()
+        }
+      }, ())
+    job.onComplete(_ => done.countDown())
+    done.await()
+
+    if (results.synchronized(count < limit)) {
+      job.value.get.get //the job is complete, rethrow its failure
+    } else if (!job.isCompleted) {
+      logger.debug("Limit of {} reached, cancelling the remaining tasks", limit)
+      job.cancel()
+    }
+    results.synchronized {
+      results.filter(_ != null).flatten.take(limit)
+    }
+  }
+
+  /**
+   * Returns the newest limit elements of the rdd, newest first. Each task keeps only the newest limit elements of its
+   * partition, but reads the whole partition, so the rdd should cover a window of time, see
+   * [[ScanRangePlanner.getWindows]].
+   * @param rdd -- the rdd
+   * @param limit -- the number of elements to return, or -1 for all
+   * @param time -- the time of an element
+   */
+  def takeNewest[T: ClassTag](rdd: RDD[T], limit: Int, time: T => Long): Array[T] = {
+    val newest = if (limit < 0) rdd.collect() else rdd.mapPartitions(newestOf(_, limit, time).iterator).collect()
+    val sorted = newest.sortBy(x => -time(x))
+    if (limit < 0) sorted else sorted.take(limit)
+  }
+
+  private[lens] def newestOf[T](elements: Iterator[T], limit: Int, time: T => Long): Seq[T] = {
+    val heap = new PriorityQueue[T](11, Ordering.by[T, Long](time))
+    for (element <- elements) {
+      if (heap.size < limit) {
+        heap.add(element)
+      } else if (limit > 0 && time(element) > time(heap.peek)) {
+        heap.poll()
+        heap.add(element)
+      }
+    }
+    heap.toList
+  }
+
+}
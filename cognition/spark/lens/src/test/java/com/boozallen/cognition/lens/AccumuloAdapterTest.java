@@ -24,6 +24,7 @@ import com.boozallen.cognition.accumulo.config.CognitionConfiguration;
 
 import org.apache.accumulo.core.client.AccumuloSecurityException;
 import org.apache.accumulo.core.client.mock.MockInstance;
+import org.apache.accumulo.core.data.Range;
 import org.junit.Test;
 
 import java.io.IOException;
@@ -55,4 +56,12 @@ public class AccumuloAdapterTest {
     assertEquals("moreover",criteria.getAccumuloTable());
   }
 
+  @Test
+  public void testIsExactRow() {
+    assertTrue(AccumuloAdapter.isExactRow(Range.exact("MOREOVER_0_1445332752000_a")));
+    assertFalse(AccumuloAdapter.isExactRow(new Range("MOREOVER_0_1445332752000", "MOREOVER_0_1445336352000")));
+    assertFalse(AccumuloAdapter.isExactRow(Range.prefix("MOREOVER_0_")));
+    assertFalse(AccumuloAdapter.isExactRow(new Range()));
+  }
+
 }
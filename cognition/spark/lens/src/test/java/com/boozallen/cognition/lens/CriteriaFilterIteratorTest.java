@@ -0,0 +1,170 @@
+/*
+ * Licensed to Booz Allen Hamilton under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Booz Allen Hamilton licenses this file to you
+ * under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.boozallen.cognition.lens;
+
+import com.boozallen.cognition.accumulo.config.AccumuloConfiguration;
+import com.boozallen.cognition.accumulo.config.CognitionConfiguration;
+import com.boozallen.cognition.accumulo.row.RecordCodec;
+import org.apache.accumulo.core.client.*;
+import org.apache.accumulo.core.client.mock.MockInstance;
+import org.apache.accumulo.core.client.security.tokens.PasswordToken;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.security.Authorizations;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class CriteriaFilterIteratorTest {
+  private static Instance instance = new MockInstance("filter");
+  private static Connector conn;
+
+  @BeforeClass
+  public static void init() throws AccumuloException, AccumuloSecurityException, TableNotFoundException, TableExistsException {
+    conn = instance.getConnector("root", new PasswordToken());
+    conn.tableOperations().create("filter");
+
+    BatchWriter writer = conn.createBatchWriter("filter", new BatchWriterConfig());
+    Mutation a = new Mutation("a");
+    a.put("data", "language", new Value("English".getBytes()));
+    a.put("data", "content", new Value("Flooding in Houston".getBytes()));
+    a.put("data", "source.location.country", new Value("United States".getBytes()));
+    writer.addMutation(a);
+
+    Mutation b = new Mutation("b");
+    b.put("data", "source.language", new Value("french".getBytes()));
+    b.put("data", "content", new Value("rain".getBytes()));
+    writer.addMutation(b);
+
+    Mutation c = new Mutation("c");
+    c.put(RecordCodec.RECORD_FAMILY, "", new Value(record("content", "houston rain", "language", "english")));
+    writer.addMutation(c);
+    writer.close();
+  }
+
+  /**
+   * Encodes a record without metadata, as the record storage mode of AccumuloEventStorageBolt does.
+   */
+  private static byte[] record(String... fields) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(1);
+    out.write(fields.length / 2);
+    for (int i = 0; i < fields.length; i += 2) {
+      byte[] name = fields[i].getBytes(StandardCharsets.UTF_8);
+      byte[] value = fields[i + 1].getBytes(StandardCharsets.UTF_8);
+      out.write(0); //no name prefix shared with the previous field
+      out.write(name.length);
+      out.write(name, 0, name.length);
+      out.write(value.length);
+      out.write(value, 0, value.length);
+    }
+    out.write(0);
+    return out.toByteArray();
+  }
+
+  private Criteria criteria() {
+    SchemaAdapter schema = new SchemaAdapter();
+    schema.loadJson("moreover-schema.json");
+    Criteria criteria = new Criteria();
+    criteria.setSchema(schema);
+    return criteria;
+  }
+
+  private Set<String> scan(Criteria criteria) throws TableNotFoundException {
+    Scanner scanner = conn.createScanner("filter", Authorizations.EMPTY);
+    scanner.addScanIterator(AccumuloAdapter.getFilterIterator(criteria));
+    Set<String> rows = new HashSet<>();
+    for (Map.Entry<Key, Value> entry : scanner) {
+      rows.add(entry.getKey().getRow().toString());
+    }
+    return rows;
+  }
+
+  @Test
+  public void testMatch() throws TableNotFoundException {
+    assertEquals(new HashSet<>(Arrays.asList("a", "c")), scan(criteria().addMatch(Field.LANGUAGE, "English")));
+    assertEquals(new HashSet<>(Arrays.asList("b")), scan(criteria().addMatch(Field.LANGUAGE, "french")));
+  }
+
+  @Test
+  public void testMatchAll() throws TableNotFoundException {
+    Criteria criteria = criteria().addMatch(Field.LANGUAGE, "english").addMatch(Field.LOCATION, "united states");
+    assertEquals(new HashSet<>(Arrays.asList("a")), scan(criteria));
+  }
+
+  @Test
+  public void testMatchCaseSensitive() throws TableNotFoundException {
+    Criteria criteria = criteria().setCaseSensitive(true).addMatch(Field.LANGUAGE, "English");
+    assertEquals(new HashSet<>(Arrays.asList("a")), scan(criteria));
+  }
+
+  @Test
+  public void testKeywords() throws TableNotFoundException {
+    assertEquals(new HashSet<>(Arrays.asList("a", "c")), scan(criteria().addKeyword("HOUSTON")));
+    assertEquals(new HashSet<>(Arrays.asList("b", "c")), scan(criteria().addKeyword("rain")));
+    //any keyword is enough
+    assertEquals(new HashSet<>(Arrays.asList("a", "b", "c")), scan(criteria().addKeyword("flooding").addKeyword("rain")));
+    assertTrue(scan(criteria().addKeyword("hous")).isEmpty());
+  }
+
+  @Test
+  public void testKeywordsAndMatch() throws TableNotFoundException {
+    assertEquals(new HashSet<>(Arrays.asList("c")),
+        scan(criteria().addKeyword("rain").addMatch(Field.LANGUAGE, "english")));
+    assertTrue(scan(criteria().addKeyword("houston").addMatch(Field.LANGUAGE, "french")).isEmpty());
+  }
+
+  @Test
+  public void testNoCriteria() throws TableNotFoundException {
+    assertEquals(new HashSet<>(Arrays.asList("a", "b", "c")), scan(criteria()));
+  }
+
+  @Test
+  public void testGetAccumuloConfiguration() throws AccumuloSecurityException, IOException {
+    AccumuloConfiguration accumuloConfig = new AccumuloConfiguration(instance, "root", "", true);
+    CognitionConfiguration cognition = new CognitionConfiguration(accumuloConfig);
+    Criteria criteria = criteria().addMatch(Field.LANGUAGE, "english");
+    criteria.setDates(Instant.parse("2015-10-20T00:00:00Z"), Instant.parse("2015-10-20T23:59:59Z"));
+
+    //each query gets its own job configuration
+    AccumuloConfiguration first = AccumuloAdapter.getAccumuloConfiguration(criteria, cognition,
+        Arrays.asList(new Range("a")));
+    assertNotSame(accumuloConfig, first);
+    assertNotSame(accumuloConfig.getConfiguration(), first.getConfiguration());
+    assertFalse(AccumuloAdapter.isServerSideFilter(cognition));
+
+    cognition.getProperties().setProperty(AccumuloAdapter.SERVER_SIDE_FILTER, "true");
+    assertTrue(AccumuloAdapter.isServerSideFilter(cognition));
+    assertNotNull(AccumuloAdapter.getAccumuloConfiguration(criteria, cognition, Arrays.asList(new Range("a"))));
+  }
+
+}
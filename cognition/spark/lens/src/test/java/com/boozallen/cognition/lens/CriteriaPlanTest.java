@@ -0,0 +1,147 @@
+/*
+ * Licensed to Booz Allen Hamilton under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Booz Allen Hamilton licenses this file to you
+ * under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.boozallen.cognition.lens;
+
+import com.boozallen.cognition.accumulo.row.RowView;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Value;
+import org.junit.Test;
+import scala.Tuple2;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class CriteriaPlanTest {
+
+  private Criteria criteria() {
+    SchemaAdapter schema = new SchemaAdapter();
+    schema.loadJson("moreover-schema.json");
+    Criteria criteria = new Criteria();
+    criteria.setSchema(schema);
+    return criteria;
+  }
+
+  private static Map<Tuple2<String, String>, String> row(String... columns) {
+    Map<Tuple2<String, String>, String> row = new HashMap<>();
+    for (int i = 0; i < columns.length; i += 2) {
+      row.put(new Tuple2<>("data", columns[i]), columns[i + 1]);
+    }
+    return row;
+  }
+
+  @Test
+  public void testEvaluateMatches() {
+    CriteriaPlan plan = CriteriaPlan.compile(criteria().addMatch(Field.LANGUAGE, "English")
+        .addMatch(Field.LOCATION, "united states"));
+
+    assertTrue(plan.evaluate(row("language", "ENGLISH", "source.location.country", "United States")));
+    assertTrue(plan.evaluate(row("source.language", "english", "cognition.location", "united states")));
+    assertFalse(plan.evaluate(row("language", "English")));
+    assertFalse(plan.evaluate(row("language", "Englishman", "source.location.country", "United States")));
+    assertFalse(plan.evaluate(row()));
+  }
+
+  @Test
+  public void testEvaluateCaseSensitive() {
+    CriteriaPlan plan = CriteriaPlan.compile(criteria().setCaseSensitive(true).addMatch(Field.LANGUAGE, "English"));
+
+    assertTrue(plan.evaluate(row("language", "English")));
+    assertFalse(plan.evaluate(row("language", "english")));
+  }
+
+  @Test
+  public void testEvaluateKeywords() {
+    CriteriaPlan plan = CriteriaPlan.compile(criteria().addKeyword("Houston").addKeyword("rain"));
+
+    assertTrue(plan.evaluate(row("content", "Flooding in HOUSTON")));
+    assertTrue(plan.evaluate(row("content", "rain")));
+    assertFalse(plan.evaluate(row("content", "Houstonians and rainbows")));
+    assertFalse(plan.evaluate(row("language", "rain")));
+
+    //without space tokens keywords match anywhere
+    plan = CriteriaPlan.compile(criteria().addKeyword("rain").useSpaceTokens(false));
+    assertTrue(plan.evaluate(row("content", "Rainbows")));
+  }
+
+  @Test
+  public void testEvaluateSameAsCriteriaMatcher() {
+    Criteria criteria = criteria().addKeyword("flooding").addMatch(Field.LANGUAGE, "english");
+    CriteriaPlan plan = CriteriaPlan.compile(criteria);
+    for (Map<Tuple2<String, String>, String> row : Arrays.asList(row("language", "English", "content", "Flooding"),
+        row("language", "English", "content", "Floodings"), row("content", "flooding"), row())) {
+      assertEquals(CriteriaMatcher.evaluate(criteria, row), plan.evaluate(row));
+    }
+  }
+
+  @Test
+  public void testEvaluateRowView() {
+    CriteriaPlan plan = CriteriaPlan.compile(criteria().addMatch(Field.LANGUAGE, "english").addKeyword("rain"));
+
+    for (Map<Tuple2<String, String>, String> row : Arrays.asList(row("language", "English", "content", "heavy rain"),
+        row("language", "English", "content", "snow"), row("content", "rain"), row())) {
+      assertEquals(plan.evaluate(row), plan.evaluate(rowView(row)));
+    }
+    assertTrue(plan.evaluate(rowView(row("content", "rain", "language", "English"))));
+  }
+
+  private static RowView rowView(Map<Tuple2<String, String>, String> row) {
+    List<Map.Entry<Key, Value>> cells = new ArrayList<>();
+    for (Map.Entry<Tuple2<String, String>, String> column : row.entrySet()) {
+      cells.add(new AbstractMap.SimpleEntry<>(new Key("row", column.getKey()._1(), column.getKey()._2()),
+          new Value(column.getValue().getBytes(StandardCharsets.UTF_8))));
+    }
+    return RowView.of(cells.iterator());
+  }
+
+  @Test
+  public void testMatchOrder() {
+    CriteriaPlan plan = CriteriaPlan.compile(criteria().addMatch(Field.LANGUAGE, "english")
+        .addMatch(Field.LOCATION, "texas"));
+    assertEquals(Arrays.asList(Field.LOCATION, Field.LANGUAGE), plan.getMatchOrder());
+  }
+
+  @Test
+  public void testSerializable() throws IOException, ClassNotFoundException {
+    CriteriaPlan plan = CriteriaPlan.compile(criteria().addKeyword("rain").addMatch(Field.LANGUAGE, "english"));
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(plan);
+    }
+    try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+      CriteriaPlan copy = (CriteriaPlan) in.readObject();
+      assertTrue(copy.evaluate(row("language", "English", "content", "rain")));
+      assertFalse(copy.evaluate(row("language", "English", "content", "snow")));
+    }
+  }
+
+}
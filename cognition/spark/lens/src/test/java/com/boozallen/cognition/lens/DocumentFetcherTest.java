@@ -0,0 +1,134 @@
+/*
+ * Licensed to Booz Allen Hamilton under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Booz Allen Hamilton licenses this file to you
+ * under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.boozallen.cognition.lens;
+
+import com.boozallen.cognition.accumulo.row.ColumnKey;
+import com.boozallen.cognition.accumulo.row.RecordCodec;
+import com.boozallen.cognition.accumulo.row.RowView;
+import org.apache.accumulo.core.client.*;
+import org.apache.accumulo.core.client.mock.MockInstance;
+import org.apache.accumulo.core.client.security.tokens.PasswordToken;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.util.Pair;
+import org.apache.hadoop.io.Text;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class DocumentFetcherTest {
+  private static Instance instance = new MockInstance("documents");
+  private static Connector conn;
+
+  @BeforeClass
+  public static void init() throws AccumuloException, AccumuloSecurityException, TableNotFoundException, TableExistsException {
+    conn = instance.getConnector("root", new PasswordToken());
+    conn.tableOperations().create("documents");
+
+    BatchWriter writer = conn.createBatchWriter("documents", new BatchWriterConfig());
+    for (String row : Arrays.asList("a", "b", "c")) {
+      Mutation m = new Mutation(row);
+      m.put("data", "cognition.esjson", new Value(("{\"id\":\"" + row + "\"}").getBytes()));
+      m.put("data", "content", new Value("not fetched".getBytes()));
+      writer.addMutation(m);
+    }
+    Mutation record = new Mutation("d");
+    record.put(RecordCodec.RECORD_FAMILY, "", new Value(record("cognition.esjson", "{\"id\":\"d\"}")));
+    writer.addMutation(record);
+    writer.close();
+  }
+
+  /**
+   * Encodes a record with a single field and no metadata, as the record storage mode of AccumuloEventStorageBolt does.
+   */
+  private static byte[] record(String name, String value) {
+    byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+    byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+    byte[] bytes = new byte[nameBytes.length + valueBytes.length + 6];
+    int i = 0;
+    bytes[i++] = 1; //version
+    bytes[i++] = 1; //fields
+    bytes[i++] = 0; //no name prefix shared
+    bytes[i++] = (byte) nameBytes.length;
+    System.arraycopy(nameBytes, 0, bytes, i, nameBytes.length);
+    i += nameBytes.length;
+    bytes[i++] = (byte) valueBytes.length;
+    System.arraycopy(valueBytes, 0, bytes, i, valueBytes.length);
+    i += valueBytes.length;
+    bytes[i] = 0; //metadata
+    return bytes;
+  }
+
+  private Criteria criteria() {
+    SchemaAdapter schema = new SchemaAdapter();
+    schema.loadJson("moreover-schema.json");
+    Criteria criteria = new Criteria();
+    criteria.setSchema(schema);
+    criteria.setAccumuloTable("documents");
+    return criteria;
+  }
+
+  @Test
+  public void testFetch() throws TableNotFoundException {
+    //batches of 2 rows, documents in the order of the rows, missing rows skipped
+    DocumentFetcher fetcher = new DocumentFetcher(conn, 2, 1);
+    assertEquals(Arrays.asList("{\"id\":\"c\"}", "{\"id\":\"a\"}", "{\"id\":\"d\"}", "{\"id\":\"b\"}"),
+        fetcher.fetch(criteria(), Arrays.asList("c", "a", "x", "d", "b")));
+  }
+
+  @Test
+  public void testFetchNone() throws TableNotFoundException {
+    assertTrue(new DocumentFetcher(conn, 2, 1).fetch(criteria(), Collections.<String>emptyList()).isEmpty());
+  }
+
+  @Test
+  public void testFetchRows() throws TableNotFoundException {
+    DocumentFetcher fetcher = new DocumentFetcher(conn, 2, 1);
+    List<Range> ranges = Arrays.asList(Range.exact("c"), Range.exact("a"), Range.exact("x"), Range.exact("d"));
+    List<Pair<Text, Text>> columns = Arrays.asList(new Pair<>(new Text("data"), new Text("cognition.esjson")),
+        new Pair<>(new Text(RecordCodec.RECORD_FAMILY), (Text) null));
+
+    Map<String, RowView> rows = new HashMap<>();
+    for (scala.Tuple2<Text, RowView> row : fetcher.fetchRows(criteria(), ranges, columns, null)) {
+      rows.put(row._1().toString(), row._2());
+    }
+
+    //missing rows skipped, only the fetched columns read
+    assertEquals(3, rows.size());
+    assertEquals("{\"id\":\"c\"}", rows.get("c").get(new ColumnKey("data", "cognition.esjson")));
+    assertNull(rows.get("a").get(new ColumnKey("data", "content")));
+    assertEquals("{\"id\":\"d\"}", rows.get("d").get(new ColumnKey("data", "cognition.esjson")));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidBatchSize() {
+    new DocumentFetcher(conn, 0, 1);
+  }
+
+}
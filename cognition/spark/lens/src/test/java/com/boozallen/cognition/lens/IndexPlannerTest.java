@@ -0,0 +1,234 @@
+/*
+ * Licensed to Booz Allen Hamilton under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Booz Allen Hamilton licenses this file to you
+ * under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.boozallen.cognition.lens;
+
+import com.boozallen.cognition.accumulo.config.AccumuloConfiguration;
+import com.boozallen.cognition.accumulo.config.CognitionConfiguration;
+import org.apache.accumulo.core.client.*;
+import org.apache.accumulo.core.client.mock.MockInstance;
+import org.apache.accumulo.core.client.security.tokens.PasswordToken;
+import org.apache.accumulo.core.data.Mutation;
+import org.apache.accumulo.core.data.Range;
+import org.apache.accumulo.core.data.Value;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+
+import static org.junit.Assert.*;
+
+public class IndexPlannerTest {
+  private static Instance instance = new MockInstance("index");
+  private static Connector conn;
+
+  private static final long DAY_1 = Instant.parse("2015-10-20T09:19:12Z").toEpochMilli();
+  private static final long DAY_2 = Instant.parse("2015-10-21T09:19:12Z").toEpochMilli();
+
+  @BeforeClass
+  public static void init() throws AccumuloException, AccumuloSecurityException, TableNotFoundException, TableExistsException {
+    conn = instance.getConnector("root", new PasswordToken());
+    conn.tableOperations().create("index");
+
+    BatchWriter writer = conn.createBatchWriter("index", new BatchWriterConfig());
+    writer.addMutation(entry("user", "bob", DAY_1, "MOREOVER_0_" + DAY_1 + "_a"));
+    writer.addMutation(entry("user", "bob", DAY_2, "MOREOVER_1_" + DAY_2 + "_b"));
+    writer.addMutation(entry("user", "bob", DAY_2, "TWITTER_1_" + DAY_2 + "_c"));
+    writer.addMutation(entry("user", "alice", DAY_1, "MOREOVER_2_" + DAY_1 + "_d"));
+    writer.addMutation(entry("language", "english", DAY_1, "MOREOVER_0_" + DAY_1 + "_a"));
+    writer.addMutation(entry("language", "english", DAY_1, "MOREOVER_2_" + DAY_1 + "_d"));
+    writer.addMutation(term("flooding", DAY_1, "0", "MOREOVER_0_" + DAY_1 + "_a"));
+    writer.addMutation(term("flooding", DAY_2, "1", "MOREOVER_1_" + DAY_2 + "_b"));
+    writer.addMutation(term("houston", DAY_2, "1", "MOREOVER_1_" + DAY_2 + "_b"));
+    writer.addMutation(term("houston", DAY_1, "2", "MOREOVER_2_" + DAY_1 + "_d"));
+    writer.addMutation(term("rain", DAY_1, "0", "MOREOVER_0_" + DAY_1 + "_a"));
+    writer.close();
+  }
+
+  private static Mutation entry(String field, String value, long time, String row) {
+    Mutation m = new Mutation(IndexPlanner.getIndexRow(field + IndexPlanner.SEPARATOR + value + IndexPlanner.SEPARATOR, time));
+    m.put("", row, time, new Value(new byte[0]));
+    return m;
+  }
+
+  private static Mutation term(String term, long time, String shard, String row) {
+    String prefix = IndexPlanner.KEYWORD_INDEX + IndexPlanner.SEPARATOR + term + IndexPlanner.SEPARATOR;
+    Mutation m = new Mutation(IndexPlanner.getIndexRow(prefix, time) + IndexPlanner.SEPARATOR + shard);
+    m.put("", row, time, new Value(new byte[0]));
+    return m;
+  }
+
+  private Criteria criteria() {
+    SchemaAdapter schema = new SchemaAdapter();
+    schema.loadJson("moreover-schema.json");
+    schema.setIndexTable("index");
+    schema.setIndexFields(EnumSet.of(Field.USER, Field.LANGUAGE));
+    schema.setTermIndexColumns(Collections.singleton("content"));
+    Criteria criteria = new Criteria();
+    criteria.setSchema(schema);
+    criteria.setDates(Instant.parse("2015-10-20T00:00:00Z"), Instant.parse("2015-10-21T23:59:59Z"));
+    return criteria;
+  }
+
+  @Test
+  public void testGetRanges() throws TableNotFoundException {
+    Criteria criteria = criteria().addMatch(Field.USER, "Bob");
+
+    Collection<Range> ranges = new IndexPlanner(conn, 100).getRanges(criteria);
+    assertEquals(Arrays.asList(Range.exact("MOREOVER_0_" + DAY_1 + "_a"), Range.exact("MOREOVER_1_" + DAY_2 + "_b")),
+        new ArrayList<>(ranges));
+  }
+
+  @Test
+  public void testGetRangesDateRange() throws TableNotFoundException {
+    Criteria criteria = criteria().addMatch(Field.USER, "bob");
+    criteria.setDates(Instant.ofEpochMilli(DAY_2 - 1000), Instant.ofEpochMilli(DAY_2));
+
+    Collection<Range> ranges = new IndexPlanner(conn, 100).getRanges(criteria);
+    assertEquals(Arrays.asList(Range.exact("MOREOVER_1_" + DAY_2 + "_b")), new ArrayList<>(ranges));
+  }
+
+  @Test
+  public void testGetRangesIntersect() throws TableNotFoundException {
+    Criteria criteria = criteria().addMatch(Field.USER, "bob").addMatch(Field.LANGUAGE, "English");
+
+    Collection<Range> ranges = new IndexPlanner(conn, 100).getRanges(criteria);
+    assertEquals(Arrays.asList(Range.exact("MOREOVER_0_" + DAY_1 + "_a")), new ArrayList<>(ranges));
+  }
+
+  @Test
+  public void testGetRangesNoMatch() throws TableNotFoundException {
+    Criteria criteria = criteria().addMatch(Field.USER, "alice").addMatch(Field.LANGUAGE, "french");
+
+    assertTrue(new IndexPlanner(conn, 100).getRanges(criteria).isEmpty());
+  }
+
+  @Test
+  public void testGetRangesUnindexedField() throws TableNotFoundException {
+    //no location index entries were written, the match must not narrow the rows to none
+    assertNull(new IndexPlanner(conn, 100).getRanges(criteria().addMatch(Field.LOCATION, "us")));
+
+    Criteria criteria = criteria().addMatch(Field.LOCATION, "us").addMatch(Field.USER, "alice");
+    assertEquals(Arrays.asList(Range.exact("MOREOVER_2_" + DAY_1 + "_d")),
+        new ArrayList<>(new IndexPlanner(conn, 100).getRanges(criteria)));
+  }
+
+  @Test
+  public void testGetRangesBeforeIndexStart() throws TableNotFoundException {
+    Criteria criteria = criteria().addMatch(Field.USER, "bob");
+    criteria.getSchema().setIndexStart(Instant.parse("2015-10-21T00:00:00Z"));
+    assertNull(new IndexPlanner(conn, 100).getRanges(criteria));
+
+    criteria.setDates(Instant.parse("2015-10-21T00:00:00Z"), Instant.parse("2015-10-21T23:59:59Z"));
+    assertEquals(Arrays.asList(Range.exact("MOREOVER_1_" + DAY_2 + "_b")),
+        new ArrayList<>(new IndexPlanner(conn, 100).getRanges(criteria)));
+  }
+
+  @Test
+  public void testGetRangesTooMany() throws TableNotFoundException {
+    Criteria criteria = criteria().addMatch(Field.USER, "bob");
+
+    assertNull(new IndexPlanner(conn, 1).getRanges(criteria));
+  }
+
+  @Test
+  public void testGetRangesKeywords() throws TableNotFoundException {
+    //terms of a keyword are intersected, keywords are unioned
+    Criteria criteria = criteria().addKeyword("Flooding Houston").addKeyword("rain");
+
+    Collection<Range> ranges = new IndexPlanner(conn, 100).getRanges(criteria);
+    assertEquals(Arrays.asList(Range.exact("MOREOVER_0_" + DAY_1 + "_a"), Range.exact("MOREOVER_1_" + DAY_2 + "_b")),
+        new ArrayList<>(ranges));
+  }
+
+  @Test
+  public void testGetRangesKeywordsAndMatches() throws TableNotFoundException {
+    Criteria criteria = criteria().addKeyword("houston").addMatch(Field.USER, "bob");
+
+    Collection<Range> ranges = new IndexPlanner(conn, 100).getRanges(criteria);
+    assertEquals(Arrays.asList(Range.exact("MOREOVER_1_" + DAY_2 + "_b")), new ArrayList<>(ranges));
+  }
+
+  @Test
+  public void testGetRangesKeywordsTooMany() throws TableNotFoundException {
+    //the frequent term is skipped, the other term still narrows the rows
+    Criteria criteria = criteria().addKeyword("flooding rain");
+    assertEquals(Arrays.asList(Range.exact("MOREOVER_0_" + DAY_1 + "_a")),
+        new ArrayList<>(new IndexPlanner(conn, 1).getRanges(criteria)));
+
+    assertNull(new IndexPlanner(conn, 1).getRanges(criteria().addKeyword("flooding")));
+  }
+
+  @Test
+  public void testCanAnswerKeywords() {
+    assertTrue(IndexPlanner.canAnswer(criteria().addKeyword("flooding")));
+    assertFalse(IndexPlanner.canAnswer(criteria().addKeyword("flooding").useSpaceTokens(false)));
+    assertFalse(IndexPlanner.canAnswer(criteria().addKeyword("flooding").addKeyword(" ")));
+  }
+
+  @Test
+  public void testGetRangesKeywordsNotTermIndexed() throws TableNotFoundException {
+    //the keyword column is not term indexed, its rows have no postings
+    Criteria criteria = criteria().addKeyword("houston");
+    criteria.getSchema().setTermIndexColumns(Collections.singleton("title"));
+    assertNull(new IndexPlanner(conn, 100).getRanges(criteria));
+
+    criteria.getSchema().setTermIndexColumns(Collections.emptySet());
+    assertNull(new IndexPlanner(conn, 100).getRanges(criteria));
+
+    criteria.getSchema().setTermIndexColumns(Collections.singleton("content"));
+    criteria.getSchema().setTermIndexStart(Instant.parse("2015-10-21T00:00:00Z"));
+    assertNull(new IndexPlanner(conn, 100).getRanges(criteria));
+
+    //the user index still narrows the rows, the keyword is left to the query filter
+    criteria.addMatch(Field.USER, "bob");
+    assertEquals(Arrays.asList(Range.exact("MOREOVER_0_" + DAY_1 + "_a"), Range.exact("MOREOVER_1_" + DAY_2 + "_b")),
+        new ArrayList<>(new IndexPlanner(conn, 100).getRanges(criteria)));
+  }
+
+  @Test
+  public void testCanAnswer() {
+    assertFalse(IndexPlanner.canAnswer(criteria()));
+    assertTrue(IndexPlanner.canAnswer(criteria().addMatch(Field.USER, "bob")));
+    assertFalse(IndexPlanner.canAnswer(criteria().addMatch(Field.USER, "bob").setCaseSensitive(true)));
+    assertFalse(IndexPlanner.canAnswer(criteria().addMatch(Field.LOCATION, "us")));
+
+    Criteria criteria = criteria().addMatch(Field.USER, "bob");
+    criteria.getSchema().setIndexTable(null);
+    assertFalse(IndexPlanner.canAnswer(criteria));
+  }
+
+  @Test
+  public void testAccumuloAdapterGetRanges() throws AccumuloSecurityException, IOException {
+    CognitionConfiguration cognition = new CognitionConfiguration(new AccumuloConfiguration(instance, "root", "", true));
+
+    Collection<Range> ranges = AccumuloAdapter.getRanges(criteria().addMatch(Field.USER, "alice"), cognition);
+    assertEquals(Arrays.asList(Range.exact("MOREOVER_2_" + DAY_1 + "_d")), new ArrayList<>(ranges));
+
+    //without equality criteria every shard of the date range is scanned, in 8 slices of 6 hours
+    assertEquals(36 * 8, AccumuloAdapter.getRanges(criteria(), cognition).size());
+  }
+
+}
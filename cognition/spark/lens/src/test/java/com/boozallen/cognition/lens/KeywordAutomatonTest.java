@@ -0,0 +1,106 @@
+/*
+ * Licensed to Booz Allen Hamilton under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Booz Allen Hamilton licenses this file to you
+ * under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.boozallen.cognition.lens;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class KeywordAutomatonTest {
+
+  @Test
+  public void testMatchesAny() {
+    KeywordAutomaton automaton = KeywordAutomaton.build(Arrays.asList(" houston ", " rain "));
+
+    assertTrue(automaton.matchesAny("Flooding in HOUSTON"));
+    assertTrue(automaton.matchesAny("rain"));
+    assertTrue(automaton.matchesAny("heavy rain today"));
+    assertFalse(automaton.matchesAny("Houstonians and rainbows"));
+    assertFalse(automaton.matchesAny(""));
+  }
+
+  @Test
+  public void testFindAll() {
+    KeywordAutomaton automaton = KeywordAutomaton.build(Arrays.asList("he", "she", "his", "hers"));
+
+    BitSet hits = new BitSet();
+    automaton.findAll("USHERS", hits);
+    assertEquals(BitSet.valueOf(new long[]{0b1011}), hits);
+    assertEquals("hers", automaton.getKeyword(3));
+    assertEquals(4, automaton.size());
+  }
+
+  @Test
+  public void testNonAscii() {
+    assertTrue(KeywordAutomaton.build(Arrays.asList(" caf\u00e9 ")).matchesAny("Un CAF\u00c9 noir"));
+    //failure links on ASCII and non-ASCII characters
+    assertTrue(KeywordAutomaton.build(Arrays.asList("\u00e9\u00e9x", "\u00e9y")).matchesAny("\u00e9\u00e9y"));
+    assertTrue(KeywordAutomaton.build(Arrays.asList("a\u00e9x", "\u00e9\u00e8")).matchesAny("a\u00e9\u00e8"));
+    assertFalse(KeywordAutomaton.build(Arrays.asList("a\u00e9x", "\u00e9\u00e8")).matchesAny("a\u00e9"));
+  }
+
+  @Test
+  public void testEmpty() {
+    assertFalse(KeywordAutomaton.build(Collections.<String>emptyList()).matchesAny("anything"));
+    //an empty keyword is contained in any value
+    assertTrue(KeywordAutomaton.build(Arrays.asList("")).matchesAny(""));
+  }
+
+  @Test
+  public void testSameAsPaddedContains() {
+    Random random = new Random(42);
+    String alphabet = "aAb \u00e9";
+    for (int run = 0; run < 500; run++) {
+      List<String> keywords = new ArrayList<>();
+      for (int i = 0; i < 1 + random.nextInt(5); i++) {
+        keywords.add(randomString(random, alphabet.toLowerCase(), 1 + random.nextInt(4)));
+      }
+      String value = randomString(random, alphabet, random.nextInt(12));
+      String padded = " " + value.toLowerCase() + " ";
+
+      KeywordAutomaton automaton = KeywordAutomaton.build(keywords);
+      BitSet hits = new BitSet();
+      automaton.findAll(value, hits);
+      boolean any = false;
+      for (int id = 0; id < keywords.size(); id++) {
+        boolean contained = padded.contains(keywords.get(id));
+        assertEquals(keywords + " in '" + value + "'", contained, hits.get(id));
+        any |= contained;
+      }
+      assertEquals(any, automaton.matchesAny(value));
+    }
+  }
+
+  private static String randomString(Random random, String alphabet, int length) {
+    StringBuilder builder = new StringBuilder(length);
+    for (int i = 0; i < length; i++) {
+      builder.append(alphabet.charAt(random.nextInt(alphabet.length())));
+    }
+    return builder.toString();
+  }
+
+}
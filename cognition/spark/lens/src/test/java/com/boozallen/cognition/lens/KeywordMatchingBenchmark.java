@@ -0,0 +1,107 @@
+/*
+ * Licensed to Booz Allen Hamilton under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Booz Allen Hamilton licenses this file to you
+ * under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.boozallen.cognition.lens;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Collection;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares matching a keyword watch list against a tweet-sized text value the way CriteriaMatcher used to (lowercased
+ * and space-padded copy of the value, String.contains for each keyword) against {@link KeywordAutomaton}. None of the
+ * keywords match, the worst case of both. Not run as part of the build; run the main method from the test classpath,
+ * e.g. <code>mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=com.boozallen.cognition.lens.KeywordMatchingBenchmark</code>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeywordMatchingBenchmark {
+  @Param({"10", "50", "200"})
+  private int keywordCount;
+
+  private Collection<String> keywords;
+  private KeywordAutomaton automaton;
+  private String value;
+
+  @Setup
+  public void setup() {
+    Random random = new Random(42);
+    Criteria criteria = new Criteria();
+    for (int i = 0; i < keywordCount; i++) {
+      criteria.addKeyword(word(random, 5 + random.nextInt(6)) + "q");
+    }
+    keywords = criteria.getKeywords();
+    automaton = KeywordAutomaton.build(keywords);
+
+    StringBuilder text = new StringBuilder();
+    while (text.length() < 280) {
+      text.append(Character.toUpperCase((char) ('a' + random.nextInt(26)))).append(word(random, 2 + random.nextInt(8)))
+          .append(' ');
+    }
+    value = text.toString();
+  }
+
+  private static String word(Random random, int length) {
+    StringBuilder word = new StringBuilder(length);
+    for (int i = 0; i < length; i++) {
+      word.append((char) ('a' + random.nextInt(26)));
+    }
+    return word.toString();
+  }
+
+  @Benchmark
+  public boolean legacy() {
+    String padded = " " + value.toLowerCase() + " ";
+    for (String keyword : keywords) {
+      if (padded.contains(keyword)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Benchmark
+  public boolean automaton() {
+    return automaton.matchesAny(value);
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder().include(KeywordMatchingBenchmark.class.getSimpleName()).build()).run();
+  }
+}
@@ -33,6 +33,7 @@ import org.apache.spark.serializer.KryoSerializer;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.time.Instant;
 
@@ -171,6 +172,14 @@ public class LensTest {
     criteria.setAccumuloTable("moreover");
     String json = lens.query(criteria);
     assertEquals("[moreover json]", json);
+
+    assertEquals("[moreover json]", lens.query(criteria, 1));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    lens.query(criteria, -1, out);
+    assertEquals("[moreover json]", out.toString("UTF-8"));
+    criteria.setNewestFirst(true);
+    assertEquals("[moreover json]", lens.query(criteria, 1));
+    assertEquals("[]", lens.query(criteria, 0));
   }
 
 }
@@ -0,0 +1,319 @@
+/*
+ * Licensed to Booz Allen Hamilton under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Booz Allen Hamilton licenses this file to you
+ * under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package com.boozallen.cognition.lens;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class QueryResultCacheTest {
+  private static final Instant NOW = Instant.parse("2015-10-21T12:00:00Z");
+
+  private final TestClock clock = new TestClock();
+  private final AtomicInteger runs = new AtomicInteger();
+
+  private QueryResultCache cache(long maxBytes) {
+    return cache(maxBytes, 1000);
+  }
+
+  private QueryResultCache cache(long maxBytes, long maxSpoolBytes) {
+    return new QueryResultCache(maxBytes, maxBytes, 60000, 3600000, 600000, maxSpoolBytes, clock);
+  }
+
+  private Criteria criteria(Instant end) {
+    SchemaAdapter schema = new SchemaAdapter();
+    schema.loadJson("moreover-schema.json");
+    Criteria criteria = new Criteria();
+    criteria.setSchema(schema);
+    criteria.setDates(end.minusSeconds(3600), end);
+    return criteria;
+  }
+
+  private String run(String json) {
+    runs.incrementAndGet();
+    return json;
+  }
+
+  @Test
+  public void testGet() {
+    QueryResultCache cache = cache(1000);
+    Criteria criteria = criteria(NOW).addMatch(Field.LANGUAGE, "english");
+
+    assertEquals("[a]", cache.get(criteria, 10, () -> run("[a]")));
+    assertEquals("[a]", cache.get(criteria, 10, () -> run("[b]")));
+    assertEquals(1, runs.get());
+    //the limit is part of the key
+    assertEquals("[c]", cache.get(criteria, 5, () -> run("[c]")));
+
+    QueryResultCache.Stats stats = cache.getStats();
+    assertEquals(1, stats.getHits());
+    assertEquals(2, stats.getMisses());
+    assertEquals(2, stats.getEntries());
+    assertEquals(1.0 / 3, stats.getHitRate(), 0.0001);
+  }
+
+  @Test
+  public void testGetKey() {
+    Criteria criteria = criteria(NOW).addMatch(Field.LANGUAGE, "English").addMatch(Field.LOCATION, "us")
+        .addKeyword("rain").addKeyword("flood");
+    Criteria same = criteria(NOW).addKeyword("flood").addKeyword("rain").addMatch(Field.LOCATION, "US")
+        .addMatch(Field.LANGUAGE, "english");
+
+    assertEquals(QueryResultCache.getKey(criteria, 10), QueryResultCache.getKey(same, 10));
+    assertEquals(QueryResultCache.getKey(criteria, -1), QueryResultCache.getKey(same, -5));
+    assertNotEquals(QueryResultCache.getKey(criteria, 10), QueryResultCache.getKey(same, 11));
+    assertNotEquals(QueryResultCache.getKey(criteria, 10), QueryResultCache.getKey(same.setNewestFirst(true), 10));
+    assertNotEquals(QueryResultCache.getKey(criteria(NOW), 10),
+        QueryResultCache.getKey(criteria(NOW.plusSeconds(1)), 10));
+  }
+
+  @Test
+  public void testTtl() {
+    QueryResultCache cache = cache(1000);
+    Criteria live = criteria(NOW);
+    Criteria past = criteria(NOW.minusSeconds(3600));
+
+    cache.get(live, 10, () -> run("[live]"));
+    cache.get(past, 10, () -> run("[past]"));
+    clock.millis = NOW.toEpochMilli() + 60000;
+    cache.get(live, 10, () -> run("[live]"));
+    cache.get(past, 10, () -> run("[past]"));
+    assertEquals(3, runs.get());
+
+    clock.millis = NOW.toEpochMilli() + 3600000;
+    cache.get(past, 10, () -> run("[past]"));
+    assertEquals(4, runs.get());
+  }
+
+  @Test
+  public void testEviction() {
+    QueryResultCache cache = cache(12);
+
+    cache.get(criteria(NOW), 1, () -> run("[aaaa]"));
+    cache.get(criteria(NOW), 2, () -> run("[bbbb]"));
+    //the least recently used result is evicted
+    cache.get(criteria(NOW), 1, () -> run("[aaaa]"));
+    cache.get(criteria(NOW), 3, () -> run("[cccc]"));
+    assertEquals(1, cache.getStats().getEvictions());
+    assertEquals(12, cache.getStats().getBytes());
+    cache.get(criteria(NOW), 1, () -> run("[aaaa]"));
+    assertEquals(3, runs.get());
+
+    //too large to keep
+    cache.get(criteria(NOW), 4, () -> run("[ddddddddddd]"));
+    cache.get(criteria(NOW), 4, () -> run("[ddddddddddd]"));
+    assertEquals(5, runs.get());
+  }
+
+  @Test
+  public void testSingleFlight() throws Exception {
+    QueryResultCache cache = cache(1000);
+    Criteria criteria = criteria(NOW);
+    CountDownLatch release = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Future<String> leader = executor.submit(() -> cache.get(criteria, 10, () -> {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new IllegalStateException(e);
+        }
+        return run("[a]");
+      }));
+      while (runs.get() == 0 && cache.getStats().getMisses() == 0) {
+        Thread.sleep(10);
+      }
+      Future<String> follower = executor.submit(() -> cache.get(criteria, 10, () -> run("[b]")));
+      while (cache.getStats().getWaiting() == 0) {
+        Thread.sleep(10);
+      }
+      release.countDown();
+
+      assertEquals("[a]", leader.get());
+      assertEquals("[a]", follower.get());
+      assertEquals(1, runs.get());
+      assertEquals(1, cache.getStats().getCoalesced());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testSingleFlightTooLargeToKeep() throws Exception {
+    QueryResultCache cache = cache(8);
+    Criteria criteria = criteria(NOW);
+    CountDownLatch release = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      Future<String> leader = executor.submit(() -> cache.get(criteria, -1, () -> {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new IllegalStateException(e);
+        }
+        return run("[aaaaaaaaaaaa]");
+      }));
+      while (cache.getStats().getMisses() == 0) {
+        Thread.sleep(10);
+      }
+      List<Future<String>> followers = new ArrayList<>();
+      for (int i = 0; i < 3; i++) {
+        followers.add(executor.submit(() -> cache.get(criteria, -1, () -> run("[b]"))));
+      }
+      while (cache.getStats().getWaiting() < 3) {
+        Thread.sleep(10);
+      }
+      release.countDown();
+
+      assertEquals("[aaaaaaaaaaaa]", leader.get());
+      for (Future<String> follower : followers) {
+        assertEquals("[aaaaaaaaaaaa]", follower.get());
+      }
+      assertEquals(1, runs.get());
+      assertEquals(3, cache.getStats().getCoalesced());
+      assertEquals(0, cache.getStats().getEntries());
+      //the spooled result is deleted once replayed
+      assertEquals(0, cache.getSpoolBytes());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testSpoolLimit() throws Exception {
+    QueryResultCache cache = cache(8, 10);
+    Criteria criteria = criteria(NOW);
+    CountDownLatch release = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      Future<String> leader = executor.submit(() -> cache.get(criteria, -1, () -> {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new IllegalStateException(e);
+        }
+        return run("[aaaaaaaaaaaa]");
+      }));
+      while (cache.getStats().getMisses() == 0) {
+        Thread.sleep(10);
+      }
+      List<Future<String>> followers = new ArrayList<>();
+      for (int i = 0; i < 2; i++) {
+        followers.add(executor.submit(() -> cache.get(criteria, -1, () -> run("[b]"))));
+      }
+      while (cache.getStats().getWaiting() < 2) {
+        Thread.sleep(10);
+      }
+      release.countDown();
+
+      //the result does not fit in the spool, the waiting queries run on their own
+      assertEquals("[aaaaaaaaaaaa]", leader.get());
+      for (Future<String> follower : followers) {
+        assertEquals("[b]", follower.get());
+      }
+      assertEquals(3, runs.get());
+      assertEquals(0, cache.getStats().getCoalesced());
+      assertEquals(0, cache.getSpoolBytes());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testTooLargeToKeepNotSpooledWithoutWaiting() throws Exception {
+    QueryResultCache cache = cache(8);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    cache.write(criteria(NOW), -1, out, stream -> {
+      stream.write("[aaaaaaaaaaaa".getBytes("UTF-8"));
+      //no identical query waits, the result is not copied to disk
+      assertEquals(0, cache.getSpoolBytes());
+      stream.write("]".getBytes("UTF-8"));
+    });
+    assertEquals("[aaaaaaaaaaaa]", out.toString("UTF-8"));
+    assertEquals(0, cache.getStats().getEntries());
+  }
+
+  @Test
+  public void testWrite() throws Exception {
+    QueryResultCache cache = cache(1000);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    cache.write(criteria(NOW), -1, out, stream -> {
+      runs.incrementAndGet();
+      stream.write("[".getBytes("UTF-8"));
+      stream.write("a]".getBytes("UTF-8"));
+    });
+    assertEquals("[a]", out.toString("UTF-8"));
+
+    //results written as a stream are shared with the string api
+    assertEquals("[a]", cache.get(criteria(NOW), -1, () -> run("[b]")));
+    assertEquals(1, runs.get());
+  }
+
+  @Test
+  public void testFailureNotCached() {
+    QueryResultCache cache = cache(1000);
+    try {
+      cache.get(criteria(NOW), 10, () -> {
+        throw new IllegalStateException("failed");
+      });
+      fail();
+    } catch (IllegalStateException e) {
+      assertEquals("failed", e.getMessage());
+    }
+    assertEquals("[a]", cache.get(criteria(NOW), 10, () -> run("[a]")));
+  }
+
+  private static class TestClock extends Clock {
+    volatile long millis = NOW.toEpochMilli();
+
+    @Override
+    public ZoneId getZone() {
+      return ZoneOffset.UTC;
+    }
+
+    @Override
+    public Clock withZone(ZoneId zone) {
+      return this;
+    }
+
+    @Override
+    public long millis() {
+      return millis;
+    }
+
+    @Override
+    public Instant instant() {
+      return Instant.ofEpochMilli(millis);
+    }
+  }
+
+}
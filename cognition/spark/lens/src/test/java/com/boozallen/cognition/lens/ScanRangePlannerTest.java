@@ -0,0 +1,137 @@
+/*
+ * Licensed to Booz Allen Hamilton under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Booz Allen Hamilton licenses this file to you
+ * under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.boozallen.cognition.lens;
+
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Range;
+import org.apache.commons.configuration.BaseConfiguration;
+import org.apache.commons.configuration.Configuration;
+import org.junit.Test;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ScanRangePlannerTest {
+  private static final Instant START = Instant.parse("2015-10-20T00:00:00Z");
+  private static final Instant END = Instant.parse("2015-10-20T23:59:59Z");
+
+  @Test
+  public void testGetRanges() {
+    List<Range> ranges = new ScanRangePlanner(2, 8, 1000).getRanges(START, END, "TWITTER");
+
+    assertEquals(8, ranges.size());
+    long start = START.toEpochMilli();
+    long slice = 6 * 3600000L;
+    assertEquals(new Range(String.format("TWITTER_0_%013d", start), true,
+        String.format("TWITTER_0_%013d", start + slice), false), ranges.get(0));
+    assertEquals(new Range(String.format("TWITTER_0_%013d", start + 3 * slice), true,
+        String.format("TWITTER_0_%013d", start + 4 * slice), false), ranges.get(3));
+    assertEquals(new Range(String.format("TWITTER_1_%013d", start), true,
+        String.format("TWITTER_1_%013d", start + slice), false), ranges.get(4));
+
+    //slices are adjacent, a row at a boundary is in exactly one of them
+    String row = String.format("TWITTER_0_%013d_uuid", start + slice);
+    assertFalse(ranges.get(0).contains(new Key(row)));
+    assertTrue(ranges.get(1).contains(new Key(row)));
+  }
+
+  @Test
+  public void testGetRangesShardIds() {
+    List<Range> ranges = new ScanRangePlanner(37, 1, 1000).getRanges(START, END, "TWITTER");
+
+    assertEquals(37, ranges.size());
+    //shard ids are base 36, as in AccumuloBoltUtils.getShard
+    assertEquals(String.format("TWITTER_z_%013d", START.toEpochMilli()),
+        ranges.get(35).getStartKey().getRow().toString());
+    assertEquals(String.format("TWITTER_10_%013d", START.toEpochMilli()),
+        ranges.get(36).getStartKey().getRow().toString());
+  }
+
+  @Test
+  public void testGetSlices() {
+    ScanRangePlanner planner = new ScanRangePlanner(36, 256, 3600000L);
+    assertEquals(8, planner.getSlices(0, 7 * 24 * 3600000L));
+    //short date ranges are not sliced below the minimum slice
+    assertEquals(2, planner.getSlices(0, 2 * 3600000L + 1));
+    assertEquals(1, planner.getSlices(0, 1000));
+  }
+
+  @Test
+  public void testGetInstance() {
+    SchemaAdapter schema = new SchemaAdapter();
+    schema.loadJson("moreover-schema.json");
+    Configuration properties = new BaseConfiguration();
+    properties.setProperty(ScanRangePlanner.SHARDS, 4);
+    properties.setProperty(ScanRangePlanner.TARGET_RANGES, 8);
+
+    assertEquals(8, ScanRangePlanner.getInstance(properties, schema).getRanges(START, END, "MOREOVER").size());
+    assertEquals(36, ScanRangePlanner.getInstance(null, schema).getRanges(START, START, "MOREOVER").size());
+
+    //the schema knows the shards of its source
+    schema.setShards(2);
+    assertEquals(8, ScanRangePlanner.getInstance(properties, schema).getRanges(START, END, "MOREOVER").size());
+    assertEquals(Integer.valueOf(2), schema.getShards());
+  }
+
+  @Test
+  public void testGetWindows() {
+    List<Range> ranges = new ScanRangePlanner(2, 8, 1000).getRanges(START, END, "TWITTER");
+    List<List<Range>> windows = ScanRangePlanner.getWindows(ranges, "TWITTER", 2);
+
+    //one window per time slice across the shards, newest first
+    assertEquals(4, windows.size());
+    assertEquals(Arrays.asList(ranges.get(3), ranges.get(7)), windows.get(0));
+    assertEquals(Arrays.asList(ranges.get(0), ranges.get(4)), windows.get(3));
+
+    //windows are extended to the minimum number of ranges
+    assertEquals(2, ScanRangePlanner.getWindows(ranges, "TWITTER", 3).size());
+    assertEquals(4, ScanRangePlanner.getWindows(ranges, "TWITTER", 3).get(0).size());
+  }
+
+  @Test
+  public void testGetWindowsExactRows() {
+    long start = START.toEpochMilli();
+    Range newest = Range.exact(String.format("TWITTER_1_%013d_b", start + 1000));
+    Range oldest = Range.exact(String.format("TWITTER_0_%013d_a", start));
+    Range unknown = Range.exact("OTHER_0_a");
+
+    List<List<Range>> windows = ScanRangePlanner.getWindows(Arrays.asList(oldest, unknown, newest), "TWITTER", 1);
+    assertEquals(Arrays.asList(Arrays.asList(newest), Arrays.asList(oldest), Arrays.asList(unknown)), windows);
+  }
+
+  @Test
+  public void testGetTime() {
+    long start = START.toEpochMilli();
+    assertEquals(start, ScanRangePlanner.getTime(String.format("TWITTER_z_%013d_uuid", start), "TWITTER"));
+    assertEquals(start, ScanRangePlanner.getTime(String.format("TWITTER_10_%013d", start), "TWITTER"));
+    assertEquals(-1, ScanRangePlanner.getTime(String.format("TWITTER_10_%013d", start), "MOREOVER"));
+    assertEquals(-1, ScanRangePlanner.getTime("TWITTER_0_123", "TWITTER"));
+    assertEquals(-1, ScanRangePlanner.getTime("TWITTER_0_abcdefghijklm", "TWITTER"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidShards() {
+    new ScanRangePlanner(0, 8, 1000);
+  }
+
+}
@@ -0,0 +1,255 @@
+/*
+ * Licensed to Booz Allen Hamilton under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Booz Allen Hamilton licenses this file to you
+ * under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.boozallen.cognition.lens;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import scala.Tuple2;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TimeBucketCacheTest {
+  private static final long HOUR = 3600000L;
+  private static final long TTL = 6 * HOUR;
+  private static final Instant NOW = Instant.parse("2015-10-21T12:00:00Z");
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final TestClock clock = new TestClock();
+  private TimeBucketCache cache;
+
+  @Before
+  public void setUp() throws IOException {
+    cache = new TimeBucketCache(folder.getRoot().toPath(), HOUR, 600000, 48, 1L << 20, TTL, clock);
+  }
+
+  private Criteria criteria(Instant start, Instant end) {
+    SchemaAdapter schema = new SchemaAdapter();
+    schema.loadJson("moreover-schema.json");
+    schema.setSource("MOREOVER");
+    return new Criteria().setSchema(schema).addMatch(Field.LANGUAGE, "english").setDates(start, end);
+  }
+
+  private static String row(Instant time, String uuid) {
+    return String.format("MOREOVER_0_%013d_%s", time.toEpochMilli(), uuid);
+  }
+
+  private static List<long[]> spans(TimeBucketCache.Plan plan) {
+    List<long[]> spans = new ArrayList<>();
+    for (Criteria span : plan.getSpans()) {
+      spans.add(new long[]{span.getDateStart().toEpochMilli(), span.getDateEnd().toEpochMilli() + 1000});
+    }
+    return spans;
+  }
+
+  private static List<Tuple2<String, String>> cachedRows(TimeBucketCache.Plan plan) {
+    List<Tuple2<String, String>> rows = new ArrayList<>();
+    plan.getCachedRows().forEachRemaining(rows::add);
+    return rows;
+  }
+
+  @Test
+  public void testPlanNothingCached() {
+    Instant start = NOW.minusSeconds(3 * 3600 + 1800);
+    try (TimeBucketCache.Plan plan = cache.plan(criteria(start, NOW))) {
+      //the whole range is scanned in one span
+      assertEquals(1, spans(plan).size());
+      assertArrayEquals(new long[]{start.toEpochMilli(), NOW.toEpochMilli() + 1000}, spans(plan).get(0));
+      assertFalse(plan.getCachedRows().hasNext());
+    }
+  }
+
+  @Test
+  public void testSlidingWindow() {
+    Instant start = NOW.minusSeconds(4 * 3600 + 1800);
+    Instant end = NOW.minusSeconds(1800);
+    Instant inBucket = NOW.minusSeconds(3 * 3600);
+    try (TimeBucketCache.Plan plan = cache.plan(criteria(start, end))) {
+      plan.add(row(inBucket, "a"), "{\"a\":1}");
+      //rows of partial or unsettled buckets are not kept
+      plan.add(row(start.plusSeconds(60), "b"), "{\"b\":1}");
+      plan.add(row(end.minusSeconds(60), "c"), "{\"c\":1}");
+      plan.commit();
+    }
+    //3 complete buckets, empty ones are kept as well
+    assertEquals(3, cache.size());
+
+    //the window moved by half an hour, only its unsettled end is scanned
+    Instant later = NOW;
+    try (TimeBucketCache.Plan plan = cache.plan(criteria(start.plusSeconds(1800), later))) {
+      List<long[]> spans = spans(plan);
+      assertEquals(1, spans.size());
+      assertArrayEquals(new long[]{later.toEpochMilli() - HOUR, later.toEpochMilli() + 1000}, spans.get(0));
+      assertEquals(Arrays.asList(new Tuple2<>(row(inBucket, "a"), "{\"a\":1}")), cachedRows(plan));
+    }
+  }
+
+  @Test
+  public void testPlanSpansAroundCachedBuckets() {
+    Instant day = Instant.parse("2015-10-20T00:00:00Z");
+    try (TimeBucketCache.Plan plan = cache.plan(criteria(day.plusSeconds(3600), day.plusSeconds(2 * 3600 - 1)))) {
+      plan.commit();
+    }
+    try (TimeBucketCache.Plan plan = cache.plan(criteria(day, day.plusSeconds(3 * 3600 - 1)))) {
+      List<long[]> spans = spans(plan);
+      assertEquals(2, spans.size());
+      assertArrayEquals(new long[]{day.toEpochMilli(), day.toEpochMilli() + HOUR}, spans.get(0));
+      assertArrayEquals(new long[]{day.toEpochMilli() + 2 * HOUR, day.toEpochMilli() + 3 * HOUR}, spans.get(1));
+    }
+  }
+
+  @Test
+  public void testCriteriaKey() {
+    Instant day = Instant.parse("2015-10-20T00:00:00Z");
+    try (TimeBucketCache.Plan plan = cache.plan(criteria(day, day.plusSeconds(3600 - 1)))) {
+      plan.commit();
+    }
+    Criteria other = criteria(day, day.plusSeconds(3600 - 1)).addMatch(Field.LANGUAGE, "french");
+    try (TimeBucketCache.Plan plan = cache.plan(other)) {
+      assertEquals(1, spans(plan).size());
+    }
+    try (TimeBucketCache.Plan plan = cache.plan(criteria(day, day.plusSeconds(3600 - 1)))) {
+      assertTrue(spans(plan).isEmpty());
+    }
+  }
+
+  @Test
+  public void testNotCommitted() {
+    Instant day = Instant.parse("2015-10-20T00:00:00Z");
+    try (TimeBucketCache.Plan plan = cache.plan(criteria(day, day.plusSeconds(3600 - 1)))) {
+      plan.add(row(day, "a"), "a");
+    }
+    assertEquals(0, cache.size());
+    assertEquals(0, folder.getRoot().listFiles().length);
+  }
+
+  @Test
+  public void testEviction() throws IOException {
+    cache = new TimeBucketCache(folder.getRoot().toPath(), HOUR, 600000, 48, 1, TTL, clock);
+    Instant day = Instant.parse("2015-10-20T00:00:00Z");
+    try (TimeBucketCache.Plan plan = cache.plan(criteria(day, day.plusSeconds(2 * 3600 - 1)))) {
+      plan.commit();
+    }
+    assertEquals(0, cache.size());
+    assertEquals(0, cache.getBytes());
+    assertEquals(0, folder.getRoot().listFiles().length);
+  }
+
+  @Test
+  public void testLoad() throws IOException {
+    Instant day = Instant.parse("2015-10-20T00:00:00Z");
+    try (TimeBucketCache.Plan plan = cache.plan(criteria(day, day.plusSeconds(3600 - 1)))) {
+      plan.add(row(day, "a"), "a");
+      plan.commit();
+    }
+    assertTrue(new File(folder.getRoot(), "left.tmp").createNewFile());
+    setLastModified(NOW.toEpochMilli() - HOUR);
+
+    TimeBucketCache reloaded = new TimeBucketCache(folder.getRoot().toPath(), HOUR, 600000, 48, 1L << 20, TTL, clock);
+    assertEquals(1, reloaded.size());
+    assertFalse(new File(folder.getRoot(), "left.tmp").exists());
+    try (TimeBucketCache.Plan plan = reloaded.plan(criteria(day, day.plusSeconds(3600 - 1)))) {
+      assertEquals(Arrays.asList(new Tuple2<>(row(day, "a"), "a")), cachedRows(plan));
+    }
+  }
+
+  @Test
+  public void testExpired() {
+    Instant day = Instant.parse("2015-10-20T00:00:00Z");
+    try (TimeBucketCache.Plan plan = cache.plan(criteria(day, day.plusSeconds(3600 - 1)))) {
+      plan.add(row(day, "a"), "a");
+      plan.commit();
+    }
+
+    //rows written into the bucket after it was cached are seen once its file expires
+    clock.millis += TTL + 1;
+    try (TimeBucketCache.Plan plan = cache.plan(criteria(day, day.plusSeconds(3600 - 1)))) {
+      assertEquals(1, spans(plan).size());
+      assertFalse(plan.getCachedRows().hasNext());
+    }
+    assertEquals(0, cache.size());
+    assertEquals(0, folder.getRoot().listFiles().length);
+  }
+
+  @Test
+  public void testLoadExpired() throws IOException {
+    Instant day = Instant.parse("2015-10-20T00:00:00Z");
+    try (TimeBucketCache.Plan plan = cache.plan(criteria(day, day.plusSeconds(3600 - 1)))) {
+      plan.commit();
+    }
+    setLastModified(NOW.toEpochMilli() - TTL - 1);
+
+    TimeBucketCache reloaded = new TimeBucketCache(folder.getRoot().toPath(), HOUR, 600000, 48, 1L << 20, TTL, clock);
+    assertEquals(0, reloaded.size());
+    assertEquals(0, folder.getRoot().listFiles().length);
+  }
+
+  private void setLastModified(long time) {
+    for (File file : folder.getRoot().listFiles()) {
+      assertTrue(file.setLastModified(time));
+    }
+  }
+
+  @Test
+  public void testTooManyBuckets() {
+    assertNull(cache.plan(criteria(NOW.minusSeconds(49 * 3600), NOW)));
+    Criteria noSource = criteria(NOW.minusSeconds(3600), NOW);
+    noSource.getSchema().setSource(null);
+    assertNull(cache.plan(noSource));
+  }
+
+  private static class TestClock extends Clock {
+    volatile long millis = NOW.toEpochMilli();
+
+    @Override
+    public ZoneId getZone() {
+      return ZoneOffset.UTC;
+    }
+
+    @Override
+    public Clock withZone(ZoneId zone) {
+      return this;
+    }
+
+    @Override
+    public long millis() {
+      return millis;
+    }
+
+    @Override
+    public Instant instant() {
+      return Instant.ofEpochMilli(millis);
+    }
+  }
+
+}
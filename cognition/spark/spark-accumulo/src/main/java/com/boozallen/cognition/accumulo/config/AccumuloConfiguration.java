@@ -51,8 +51,8 @@ public class AccumuloConfiguration implements Serializable {
   private static final long serialVersionUID = 1L;
   private ClientConfiguration clientConfig;
   protected Job job;
-  private Connector conn;
-  private Instance zkInstance;
+  private transient Connector conn;
+  private transient Instance zkInstance;
   private String accumuloUser;
   private String accumuloPassword; //Not secure
 
@@ -61,6 +61,9 @@ public class AccumuloConfiguration implements Serializable {
   public AccumuloConfiguration(AccumuloConfiguration config) {
     this.job = config.job;
     this.clientConfig = config.clientConfig;
+    this.zkInstance = config.zkInstance;
+    this.accumuloUser = config.accumuloUser;
+    this.accumuloPassword = config.accumuloPassword;
   }
 
   public AccumuloConfiguration(String zkInstanceName, String zkHosts,
@@ -98,10 +101,33 @@ public class AccumuloConfiguration implements Serializable {
     }
   }
 
+  /**
+   * Returns a copy with its own job configuration, so ranges, columns and iterators set for one query do not leak
+   * into the next one. Iterators in particular are appended and fail the scan if the same name is added twice.
+   */
+  public AccumuloConfiguration copy() {
+    AccumuloConfiguration copy = new AccumuloConfiguration(this);
+    try {
+      copy.job = new Job(new Configuration(job.getConfiguration()));
+    } catch (IOException e) {
+      throw new RuntimeException("Unable to copy the job configuration", e);
+    }
+    copy.conn = conn;
+    return copy;
+  }
+
   public void setRanges(Collection<Range> ranges) {
     InputFormatBase.setRanges(job, ranges);
   }
 
+  /**
+   * Sets whether overlapping and adjacent ranges are merged and clipped to tablets, see
+   * {@link InputFormatBase#setAutoAdjustRanges}. When disabled, each range is its own input split.
+   */
+  public void setAutoAdjustRanges(boolean enableFeature) {
+    InputFormatBase.setAutoAdjustRanges(job, enableFeature);
+  }
+
   public void setAuthorizations(String auths) {
     if (auths == null || auths.isEmpty()) {
       AbstractInputFormat.setScanAuthorizations(job, Authorizations.EMPTY);
@@ -150,15 +176,15 @@ public class AccumuloConfiguration implements Serializable {
     InputFormatBase.fetchColumns(job, columnFamilyColumnQualifierPairs);
   }
   
-  public Connector getConnector(){
+  /**
+   * Returns a connector for client-side reads, e.g. scanning an index before configuring the job.
+   */
+  public Connector getConnector() throws AccumuloException, AccumuloSecurityException {
     //lazy initialize
-    try {
+    if (conn == null) {
       conn = zkInstance.getConnector(accumuloUser, new PasswordToken(accumuloPassword));
-    } catch (AccumuloException | AccumuloSecurityException e) {
-      // TODO Auto-generated catch block
-      e.printStackTrace();
     }
-    return null;
+    return conn;
   }
 
 }
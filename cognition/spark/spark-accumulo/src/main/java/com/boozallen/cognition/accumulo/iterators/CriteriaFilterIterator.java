@@ -0,0 +1,257 @@
+/*
+ * Licensed to Booz Allen Hamilton under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Booz Allen Hamilton licenses this file to you
+ * under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.boozallen.cognition.accumulo.iterators;
+
+import com.boozallen.cognition.accumulo.row.RecordCodec;
+import org.apache.accumulo.core.client.IteratorSetting;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Value;
+import org.apache.accumulo.core.iterators.IteratorEnvironment;
+import org.apache.accumulo.core.iterators.SortedKeyValueIterator;
+import org.apache.accumulo.core.iterators.user.RowFilter;
+import org.apache.accumulo.core.util.Pair;
+import org.apache.hadoop.io.Text;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Scan iterator evaluating the Lens query criteria on the tablet servers, so only matching rows are returned to
+ * Spark instead of every row of the scanned ranges.
+ * <p>
+ * The semantics are those of CriteriaMatcher in lens: each equality match must equal the value of at least one of its
+ * columns, lowercased unless case sensitive, and if there are keywords, one of them must be contained in the
+ * lowercased value of a keyword column wrapped in spaces. Rows written in the record storage mode of
+ * AccumuloEventStorageBolt are matched on the columns of their decoded <code>record</code> cell.
+ * <p>
+ * The criteria are passed as plain string options, set with {@link #setCaseSensitive}, {@link #addMatch} and
+ * {@link #setKeywords}, so the tablet servers only need this class and {@link RecordCodec} on their classpath. Values
+ * and columns are Base64 encoded, as they may contain any character.
+ */
+public class CriteriaFilterIterator extends RowFilter {
+  static final String CASE_SENSITIVE = "caseSensitive";
+  static final String MATCH_PREFIX = "match.";
+  static final String COLUMNS_SUFFIX = ".columns";
+  static final String KEYWORDS = "keywords";
+  static final String KEYWORD_COLUMNS = "keywordColumns";
+
+  private static final String LIST_SEPARATOR = ",";
+  private static final String COLUMN_SEPARATOR = ":";
+
+  private Map<String, String> options;
+  private boolean caseSensitive;
+  private List<Match> matches;
+  private List<String> keywords;
+  private List<Pair<String, String>> keywordColumns;
+  private Set<Pair<String, String>> columns;
+
+  @Override
+  public void init(SortedKeyValueIterator<Key, Value> source, Map<String, String> options, IteratorEnvironment env)
+      throws IOException {
+    super.init(source, options, env);
+    this.options = new HashMap<>(options);
+    this.caseSensitive = Boolean.parseBoolean(options.get(CASE_SENSITIVE));
+    this.matches = new ArrayList<>();
+    this.columns = new HashSet<>();
+    for (Map.Entry<String, String> option : options.entrySet()) {
+      String name = option.getKey();
+      if (name.startsWith(MATCH_PREFIX) && !name.endsWith(COLUMNS_SUFFIX)) {
+        Match match = new Match(decode(option.getValue()), decodeColumns(options.get(name + COLUMNS_SUFFIX)));
+        matches.add(match);
+        columns.addAll(match.columns);
+      }
+    }
+    this.keywords = decodeList(options.get(KEYWORDS));
+    this.keywordColumns = decodeColumns(options.get(KEYWORD_COLUMNS));
+    columns.addAll(keywordColumns);
+  }
+
+  @Override
+  public SortedKeyValueIterator<Key, Value> deepCopy(IteratorEnvironment env) {
+    CriteriaFilterIterator copy = new CriteriaFilterIterator();
+    try {
+      copy.init(getSource().deepCopy(env), options, env);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    return copy;
+  }
+
+  @Override
+  public boolean acceptRow(SortedKeyValueIterator<Key, Value> rowIterator) throws IOException {
+    Map<Pair<String, String>, String> observed = new HashMap<>();
+    while (rowIterator.hasTop()) {
+      Key key = rowIterator.getTopKey();
+      String familyName = key.getColumnFamily().toString();
+      if (RecordCodec.RECORD_FAMILY.equals(familyName)) {
+        Map<String, Map<String, String>> record = RecordCodec.decode(rowIterator.getTopValue().get());
+        for (Map.Entry<String, Map<String, String>> section : record.entrySet()) {
+          for (Map.Entry<String, String> field : section.getValue().entrySet()) {
+            observe(observed, new Pair<>(section.getKey(), field.getKey()), field.getValue());
+          }
+        }
+      } else {
+        Pair<String, String> column = new Pair<>(familyName, key.getColumnQualifier().toString());
+        observe(observed, column, new String(rowIterator.getTopValue().get(), StandardCharsets.UTF_8));
+      }
+      rowIterator.next();
+    }
+    return evaluate(observed);
+  }
+
+  private void observe(Map<Pair<String, String>, String> observed, Pair<String, String> column, String value) {
+    if (columns.contains(column)) {
+      observed.put(column, caseSensitive ? value : value.toLowerCase());
+    }
+  }
+
+  /**
+   * Evaluates the criteria on the observed values of the criteria columns, already lowercased unless case sensitive.
+   */
+  boolean evaluate(Map<Pair<String, String>, String> observed) {
+    for (Match match : matches) {
+      if (!match.evaluate(observed)) {
+        return false;
+      }
+    }
+    if (keywords.isEmpty()) {
+      return true;
+    }
+    for (Pair<String, String> column : keywordColumns) {
+      String value = observed.get(column);
+      if (value == null) {
+        continue;
+      }
+      //wrap in spaces avoids costly tokenization
+      value = " " + value.toLowerCase() + " ";
+      for (String keyword : keywords) {
+        if (value.contains(keyword)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Sets whether equality matches compare the column values as is rather than lowercased.
+   */
+  public static void setCaseSensitive(IteratorSetting setting, boolean caseSensitive) {
+    setting.addOption(CASE_SENSITIVE, Boolean.toString(caseSensitive));
+  }
+
+  /**
+   * Adds an equality match; rows match if the value equals the value of any of the columns.
+   * @param setting -- the iterator setting
+   * @param value -- the value, lowercased unless case sensitive
+   * @param columns -- the column family and qualifier pairs holding the field
+   */
+  public static void addMatch(IteratorSetting setting, String value, Collection<Pair<Text, Text>> columns) {
+    int index = 0;
+    while (setting.getOptions().containsKey(MATCH_PREFIX + index)) {
+      index++;
+    }
+    setting.addOption(MATCH_PREFIX + index, encode(value));
+    setting.addOption(MATCH_PREFIX + index + COLUMNS_SUFFIX, encodeColumns(columns));
+  }
+
+  /**
+   * Sets the keywords; rows match if any keyword is contained in the value of any of the columns.
+   * @param setting -- the iterator setting
+   * @param keywords -- the keywords, as returned by Criteria.getKeywords
+   * @param columns -- the column family and qualifier pairs holding the text
+   */
+  public static void setKeywords(IteratorSetting setting, Collection<String> keywords,
+                                 Collection<Pair<Text, Text>> columns) {
+    List<String> encoded = new ArrayList<>(keywords.size());
+    for (String keyword : keywords) {
+      encoded.add(encode(keyword));
+    }
+    setting.addOption(KEYWORDS, String.join(LIST_SEPARATOR, encoded));
+    setting.addOption(KEYWORD_COLUMNS, encodeColumns(columns));
+  }
+
+  static String encode(String value) {
+    return Base64.getEncoder().encodeToString(value.getBytes(StandardCharsets.UTF_8));
+  }
+
+  static String decode(String value) {
+    return new String(Base64.getDecoder().decode(value), StandardCharsets.UTF_8);
+  }
+
+  static String encodeColumns(Collection<Pair<Text, Text>> columns) {
+    List<String> encoded = new ArrayList<>(columns.size());
+    for (Pair<Text, Text> column : columns) {
+      encoded.add(encode(column.getFirst().toString()) + COLUMN_SEPARATOR + encode(column.getSecond().toString()));
+    }
+    return String.join(LIST_SEPARATOR, encoded);
+  }
+
+  static List<String> decodeList(String option) {
+    List<String> values = new ArrayList<>();
+    if (option != null && !option.isEmpty()) {
+      for (String value : option.split(LIST_SEPARATOR)) {
+        values.add(decode(value));
+      }
+    }
+    return values;
+  }
+
+  static List<Pair<String, String>> decodeColumns(String option) {
+    List<Pair<String, String>> columns = new ArrayList<>();
+    if (option != null && !option.isEmpty()) {
+      for (String column : option.split(LIST_SEPARATOR)) {
+        String[] parts = column.split(COLUMN_SEPARATOR, -1);
+        if (parts.length != 2) {
+          throw new IllegalArgumentException("Invalid column option: " + column);
+        }
+        columns.add(new Pair<>(decode(parts[0]), decode(parts[1])));
+      }
+    }
+    return columns;
+  }
+
+  private static class Match {
+    final String value;
+    final List<Pair<String, String>> columns;
+
+    Match(String value, List<Pair<String, String>> columns) {
+      this.value = value;
+      this.columns = columns;
+    }
+
+    boolean evaluate(Map<Pair<String, String>, String> observed) {
+      for (Pair<String, String> column : columns) {
+        if (value.equals(observed.get(column))) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * Licensed to Booz Allen Hamilton under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Booz Allen Hamilton licenses this file to you
+ * under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.boozallen.cognition.accumulo.row;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A column (family and qualifier) to look up in a {@link RowView}, with its UTF-8 bytes encoded once so lookups
+ * compare bytes without decoding the row.
+ */
+public final class ColumnKey implements Serializable {
+  private static final long serialVersionUID = 4207351196466025842L;
+
+  private final String family;
+  private final String qualifier;
+  private final byte[] familyBytes;
+  private final byte[] qualifierBytes;
+
+  public ColumnKey(String family, String qualifier) {
+    this.family = family;
+    this.qualifier = qualifier;
+    this.familyBytes = family.getBytes(StandardCharsets.UTF_8);
+    this.qualifierBytes = qualifier.getBytes(StandardCharsets.UTF_8);
+  }
+
+  public String getFamily() {
+    return family;
+  }
+
+  public String getQualifier() {
+    return qualifier;
+  }
+
+  byte[] getFamilyBytes() {
+    return familyBytes;
+  }
+
+  byte[] getQualifierBytes() {
+    return qualifierBytes;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof ColumnKey)) {
+      return false;
+    }
+    ColumnKey other = (ColumnKey) o;
+    return family.equals(other.family) && qualifier.equals(other.qualifier);
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * family.hashCode() + qualifier.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return family + ":" + qualifier;
+  }
+}
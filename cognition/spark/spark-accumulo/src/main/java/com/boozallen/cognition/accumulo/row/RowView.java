@@ -0,0 +1,227 @@
+/*
+ * Licensed to Booz Allen Hamilton under one or more contributor
+ * license agreements. See the NOTICE file distributed with
+ * this work for additional information regarding copyright
+ * ownership. Booz Allen Hamilton licenses this file to you
+ * under the Apache License, Version 2.0 (the "License"); you
+ * may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.boozallen.cognition.accumulo.row;
+
+import org.apache.accumulo.core.data.ByteSequence;
+import org.apache.accumulo.core.data.Key;
+import org.apache.accumulo.core.data.Value;
+import scala.Tuple2;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Read-only view of the cells of a row over their raw bytes, replacing a map of decoded strings: columns are looked up
+ * by {@link ColumnKey} comparing bytes, and only the values looked up are decoded.
+ * <p>
+ * The family, qualifier and value bytes of all cells are stored in one array, with the end offset of each part in a
+ * second array, which is also the serialized form (two arrays, cheap for Kryo and Java serialization). Cells are looked
+ * up with a binary search when they are in (family, qualifier) order, as read from Accumulo. A cell of the record
+ * storage mode of AccumuloEventStorageBolt is decoded, once, when a column is not found among the cells.
+ */
+public final class RowView implements Serializable {
+  private static final long serialVersionUID = -3092664164311486123L;
+
+  private static final byte[] RECORD_FAMILY = RecordCodec.RECORD_FAMILY.getBytes(StandardCharsets.UTF_8);
+
+  private final byte[] data;
+  /**
+   * For each cell the end of its family, qualifier and value in data, each part starting where the previous ends
+   */
+  private final int[] ends;
+  private final boolean sorted;
+  private transient Map<String, Map<String, String>> record;
+
+  private RowView(byte[] data, int[] ends, boolean sorted) {
+    this.data = data;
+    this.ends = ends;
+    this.sorted = sorted;
+  }
+
+  /**
+   * Copies the cells of a row.
+   * @param cells -- the cells of one row
+   * @return the row view
+   */
+  public static RowView of(Iterator<Map.Entry<Key, Value>> cells) {
+    byte[] data = new byte[256];
+    int[] ends = new int[24];
+    int length = 0;
+    int cellCount = 0;
+    boolean sorted = true;
+    while (cells.hasNext()) {
+      Map.Entry<Key, Value> cell = cells.next();
+      ByteSequence family = cell.getKey().getColumnFamilyData();
+      ByteSequence qualifier = cell.getKey().getColumnQualifierData();
+      Value value = cell.getValue();
+      int cellLength = family.length() + qualifier.length() + value.getSize();
+      if (length + cellLength > data.length) {
+        data = Arrays.copyOf(data, Math.max(data.length * 2, length + cellLength));
+      }
+      if ((cellCount + 1) * 3 > ends.length) {
+        ends = Arrays.copyOf(ends, ends.length * 2);
+      }
+      int cellStart = length;
+      length = append(data, length, family.getBackingArray(), family.offset(), family.length());
+      ends[cellCount * 3] = length;
+      length = append(data, length, qualifier.getBackingArray(), qualifier.offset(), qualifier.length());
+      ends[cellCount * 3 + 1] = length;
+      length = append(data, length, value.get(), 0, value.getSize());
+      ends[cellCount * 3 + 2] = length;
+      if (cellCount > 0 && compareCells(data, ends, cellCount - 1, cellStart, cellCount) > 0) {
+        sorted = false;
+      }
+      cellCount++;
+    }
+    return new RowView(Arrays.copyOf(data, length), Arrays.copyOf(ends, cellCount * 3), sorted);
+  }
+
+  private static int append(byte[] data, int length, byte[] bytes, int offset, int count) {
+    System.arraycopy(bytes, offset, data, length, count);
+    return length + count;
+  }
+
+  private static int compareCells(byte[] data, int[] ends, int previous, int cellStart, int cell) {
+    int previousStart = previous == 0 ? 0 : ends[previous * 3 - 1];
+    int c = compare(data, previousStart, ends[previous * 3], data, cellStart, ends[cell * 3]);
+    if (c != 0) {
+      return c;
+    }
+    return compare(data, ends[previous * 3], ends[previous * 3 + 1], data, ends[cell * 3], ends[cell * 3 + 1]);
+  }
+
+  private static int compare(byte[] a, int aStart, int aEnd, byte[] b, int bStart, int bEnd) {
+    int aLength = aEnd - aStart;
+    int bLength = bEnd - bStart;
+    for (int i = 0; i < aLength && i < bLength; i++) {
+      int c = (a[aStart + i] & 0xff) - (b[bStart + i] & 0xff);
+      if (c != 0) {
+        return c;
+      }
+    }
+    return aLength - bLength;
+  }
+
+  /**
+   * Returns the number of cells.
+   */
+  public int size() {
+    return ends.length / 3;
+  }
+
+  private int start(int cell) {
+    return cell == 0 ? 0 : ends[cell * 3 - 1];
+  }
+
+  private int compare(int cell, byte[] family, byte[] qualifier) {
+    int c = compare(data, start(cell), ends[cell * 3], family, 0, family.length);
+    if (c != 0) {
+      return c;
+    }
+    return compare(data, ends[cell * 3], ends[cell * 3 + 1], qualifier, 0, qualifier.length);
+  }
+
+  /**
+   * Returns the index of the cell of the column, or -1.
+   */
+  private int find(byte[] family, byte[] qualifier) {
+    if (sorted) {
+      int low = 0;
+      int high = size() - 1;
+      while (low <= high) {
+        int middle = (low + high) >>> 1;
+        int c = compare(middle, family, qualifier);
+        if (c < 0) {
+          low = middle + 1;
+        } else if (c > 0) {
+          high = middle - 1;
+        } else {
+          return middle;
+        }
+      }
+      return -1;
+    }
+    for (int cell = 0; cell < size(); cell++) {
+      if (compare(cell, family, qualifier) == 0) {
+        return cell;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns true if the row has a value for the column.
+   */
+  public boolean contains(ColumnKey column) {
+    return find(column.getFamilyBytes(), column.getQualifierBytes()) >= 0 || getRecordValue(column) != null;
+  }
+
+  /**
+   * Returns the value of the column decoded as UTF-8, or null if the row has no such column.
+   */
+  public String get(ColumnKey column) {
+    int cell = find(column.getFamilyBytes(), column.getQualifierBytes());
+    if (cell >= 0) {
+      int start = ends[cell * 3 + 1];
+      return new String(data, start, ends[cell * 3 + 2] - start, StandardCharsets.UTF_8);
+    }
+    return getRecordValue(column);
+  }
+
+  private String getRecordValue(ColumnKey column) {
+    if (record == null) {
+      int cell = find(RECORD_FAMILY, new byte[0]);
+      if (cell < 0) {
+        return null;
+      }
+      int start = ends[cell * 3 + 1];
+      record = RecordCodec.decode(Arrays.copyOfRange(data, start, ends[cell * 3 + 2]));
+    }
+    Map<String, String> family = record.get(column.getFamily());
+    return family == null ? null : family.get(column.getQualifier());
+  }
+
+  /**
+   * Decodes all cells into a map of (column family, column qualifier) to value, as AccumuloRDD.asRowMap does.
+   */
+  public Map<Tuple2<String, String>, String> toMap() {
+    Map<Tuple2<String, String>, String> map = new LinkedHashMap<>();
+    for (int cell = 0; cell < size(); cell++) {
+      String family = new String(data, start(cell), ends[cell * 3] - start(cell), StandardCharsets.UTF_8);
+      String qualifier = new String(data, ends[cell * 3], ends[cell * 3 + 1] - ends[cell * 3], StandardCharsets.UTF_8);
+      byte[] value = Arrays.copyOfRange(data, ends[cell * 3 + 1], ends[cell * 3 + 2]);
+      if (RecordCodec.RECORD_FAMILY.equals(family)) {
+        for (Map.Entry<String, Map<String, String>> section : RecordCodec.decode(value).entrySet()) {
+          for (Map.Entry<String, String> field : section.getValue().entrySet()) {
+            map.put(new Tuple2<>(section.getKey(), field.getKey()), field.getValue());
+          }
+        }
+      } else {
+        map.put(new Tuple2<>(family, qualifier), new String(value, StandardCharsets.UTF_8));
+      }
+    }
+    return map;
+  }
+
+}
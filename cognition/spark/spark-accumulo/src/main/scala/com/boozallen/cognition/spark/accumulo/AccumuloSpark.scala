@@ -37,6 +37,11 @@ object AccumuloSpark {
     accumulo.asRowMap(rdd)
   }
 
+  def accumuloRowViewRDD(sc: SparkContext, conf: Configuration) = {
+    val accumulo = new AccumuloRDD(sc, conf)
+    accumulo.asRowView(accumulo.getAccumuloRowRDD)
+  }
+
   def writeToAccumulo(pair: PairRDDFunctions[Text, Mutation], conf: Configuration) {
     new AccumuloRDDWriter(conf).writeMutations(pair)
   }
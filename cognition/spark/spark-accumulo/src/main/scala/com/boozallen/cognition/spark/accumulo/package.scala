@@ -44,6 +44,9 @@ package object accumulo {
 
     /** Returns RDD[(Text, Map[(String, String), String])] */
     def accumuloExpandedRowRDD(conf: Configuration) = AccumuloSpark.accumuloExpanedRowRDD(sc, conf)
+
+    /** Returns RDD[(Text, RowView)] */
+    def accumuloRowViewRDD(conf: Configuration) = AccumuloSpark.accumuloRowViewRDD(sc, conf)
   }
 
   implicit def sparkRDDFunctions(pairs: PairRDDFunctions[Text, Mutation]) = new SparkRDDFunctions(pairs)
@@ -19,6 +19,7 @@
 
 package com.boozallen.cognition.spark.rdd.accumulo
 
+import com.boozallen.cognition.accumulo.row.{RecordCodec, RowView}
 import org.apache.accumulo.core.client.mapreduce.{AccumuloInputFormat, AccumuloRowInputFormat}
 import org.apache.accumulo.core.data.{Key, Value}
 import org.apache.accumulo.core.util.PeekingIterator
@@ -43,9 +44,14 @@ class AccumuloRDD(sc: SparkContext, @transient conf: Configuration) extends NewH
 
   def asRowMap(rdd: RDD[(Text, PeekingIterator[java.util.Map.Entry[Key, Value]])]) = {
     rdd.map(kv => (kv._1,
-      kv._2.map(x =>
-        ((x.getKey().getColumnFamily().toString, x.getKey().getColumnQualifier.toString),
-          new String(x.getValue.get()))).toMap[(String, String), String]))
+      kv._2.flatMap(x => AccumuloRDD.expand(x.getKey, x.getValue)).toMap[(String, String), String]))
+  }
+
+  /**
+   * Maps each row to a [[RowView]] over the bytes of its cells, which decodes only the columns looked up.
+   */
+  def asRowView(rdd: RDD[(Text, PeekingIterator[java.util.Map.Entry[Key, Value]])]) = {
+    rdd.map(kv => (kv._1, RowView.of(kv._2)))
   }
 
   //writes are turned off for the time being as they are not sufficiently tested
@@ -58,4 +64,20 @@ class AccumuloRDD(sc: SparkContext, @transient conf: Configuration) extends NewH
     val pair = new PairRDDFunctions(rdd.map(mutation => (tableText.value,mutation)))
     pair.saveAsNewAPIHadoopFile("-", classOf[Text], classOf[Mutation], classOf[AccumuloOutputFormat], conf)
 	}*/
-}
\ No newline at end of file
+}
+
+object AccumuloRDD {
+  /**
+   * Maps a cell to its (family, qualifier) -> value entries. A cell of the record storage mode is expanded into the
+   * data and metadata columns it holds, so rows read the same whichever mode they were written in.
+   */
+  def expand(key: Key, value: Value): Iterable[((String, String), String)] = {
+    val family = key.getColumnFamily.toString
+    if (family == RecordCodec.RECORD_FAMILY) {
+      for ((section, columns) <- RecordCodec.decode(value.get()).toSeq; (qualifier, v) <- columns.toSeq)
+        yield ((section, qualifier), v)
+    } else {
+      Seq(((family, key.getColumnQualifier.toString), new String(value.get())))
+    }
+  }
+}
@@ -27,6 +27,8 @@ import org.junit.Assert._
 
 import com.boozallen.cognition.spark.accumulo.accumulo._
 import com.boozallen.cognition.accumulo.config.AccumuloConfiguration
+import com.boozallen.cognition.accumulo.row.{ColumnKey, RecordCodec, RowView}
+import org.apache.accumulo.core.data.{Key, Value}
 
 import scala.collection.JavaConversions._
 
@@ -48,6 +50,7 @@ class AccumuloTest {
     val accumuloExpandedRow = sc.accumuloExpandedRowRDD(config.getConfiguration())
     val accumuloRow = sc.accumuloRowRDD(config.getConfiguration())
     val accumuloKV = sc.accumuloRDD(config.getConfiguration())
+    val accumuloRowView = sc.accumuloRowViewRDD(config.getConfiguration())
 
     val accumuloExpandedRowValue = accumuloExpandedRow.first
     val accumuloRowValue = accumuloRow.map(x => (x._1, x._2.toList)).first //trouble serializing peeking iterator
@@ -68,5 +71,38 @@ class AccumuloTest {
     assertEquals("cq1", accumuloKVValue._1.getColumnQualifier.toString())
     assertEquals("value1", accumuloKVValue._2.toString())
 
+    val accumuloRowViewValue = accumuloRowView.first
+    assertEquals("rowId1", accumuloRowViewValue._1.toString())
+    assertEquals("value1", accumuloRowViewValue._2.get(new ColumnKey("cf1", "cq1")))
+    assertNull(accumuloRowViewValue._2.get(new ColumnKey("cf2", "cq2")))
+
+  }
+
+  @Test
+  def rowView() {
+    def cell(family: String, qualifier: String, value: Array[Byte]): java.util.Map.Entry[Key, Value] =
+      new java.util.AbstractMap.SimpleEntry(new Key("row", family, qualifier), new Value(value))
+
+    //sorted as read from accumulo, and not sorted
+    for (cells <- Seq(Seq(cell("a", "x", "1".getBytes), cell("b", "", "2".getBytes), cell("b", "y", "3".getBytes)),
+                      Seq(cell("b", "y", "3".getBytes), cell("a", "x", "1".getBytes), cell("b", "", "2".getBytes)))) {
+      val row = RowView.of(cells.iterator)
+      assertEquals(3, row.size())
+      assertEquals("1", row.get(new ColumnKey("a", "x")))
+      assertEquals("2", row.get(new ColumnKey("b", "")))
+      assertEquals("3", row.get(new ColumnKey("b", "y")))
+      assertNull(row.get(new ColumnKey("a", "")))
+      assertNull(row.get(new ColumnKey("c", "x")))
+      assertFalse(row.contains(new ColumnKey("a", "xx")))
+      assertEquals(Map(("a", "x") -> "1", ("b", "") -> "2", ("b", "y") -> "3"), row.toMap.toMap)
+    }
+
+    //a record cell: version, one field "language" -> "en", no metadata
+    val record = Array[Byte](1, 1, 0, 8) ++ "language".getBytes ++ Array[Byte](2) ++ "en".getBytes ++ Array[Byte](0)
+    val row = RowView.of(Seq(cell("data", "id", "1".getBytes), cell(RecordCodec.RECORD_FAMILY, "", record)).iterator)
+    assertEquals("en", row.get(new ColumnKey("data", "language")))
+    assertEquals("1", row.get(new ColumnKey("data", "id")))
+    assertTrue(row.contains(new ColumnKey("data", "language")))
+    assertEquals(Map(("data", "id") -> "1", ("data", "language") -> "en"), row.toMap.toMap)
   }
-}
\ No newline at end of file
+}